@@ -32,6 +32,7 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.util.Date;
 import java.util.prefs.Preferences;
 
@@ -74,6 +75,7 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
 
    private CMMCore core_;
    private ImageProcessor ipCurrent_ = null;
+   private final FocusMetrics focusMetrics_ = new FocusMetrics(Runtime.getRuntime().availableProcessors());
 
    public double SIZE_FIRST = 2;//
    public int NUM_FIRST = 1; // +/- #of snapshot
@@ -313,107 +315,15 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
       }
    }
 
-   /*calculate the sharpness of a given image (in "impro").*/
-   private double sharpNessp(ImageProcessor impro){
-
-
-      int width =  (int)(CROP_SIZE*core_.getImageWidth());
-      int height = (int)(CROP_SIZE*core_.getImageHeight());
-      int ow = (int)(((1-CROP_SIZE)/2)*core_.getImageWidth());
-      int oh = (int)(((1-CROP_SIZE)/2)*core_.getImageHeight());
-
-      double[][] medPix = new double[width][height];
-      double sharpNess = 0;
-      double[] windo = new double[9];
-
-      /*Apply 3x3 median filter to reduce noise*/
-      for (int i=0; i<width; i++){
-         for (int j=0; j<height; j++){
-
-            windo[0] = (double)impro.getPixel(ow+i-1,oh+j-1);
-            windo[1] = (double)impro.getPixel(ow+i,oh+j-1);
-            windo[2] = (double)impro.getPixel(ow+i+1,oh+j-1);
-            windo[3] = (double)impro.getPixel(ow+i-1,oh+j);
-            windo[4] = (double)impro.getPixel(ow+i,oh+j);
-            windo[5] = (double)impro.getPixel(ow+i+1,oh+j);
-            windo[6] = (double)impro.getPixel(ow+i-1,oh+j+1);
-            windo[7] = (double)impro.getPixel(ow+i,oh+j+1);
-            windo[8] = (double)impro.getPixel(ow+i+1,oh+j+1);
-
-            medPix[i][j] = findMed(windo);
-         } 
-      }
-
-      /*Edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum all pixel values. Ideally, the sum is large if most edges are sharp*/
-
-      for (int k=1; k<width-1; k++){
-         for (int l=1; l<height-1; l++){
-
-            sharpNess = sharpNess + Math.pow((-2*medPix[k-1][l-1]- medPix[k][l-1]-medPix[k-1][l]+medPix[k+1][l]+medPix[k][l+1]+2*medPix[k+1][l+1]),2);
-
-         } 
-      }
-      return sharpNess;
-   }
-
-
    /*calculate the sharpness of a given image (in "impro").*/
    private double sharpNess(ImageProcessor impro){
-
-
       int width =  (int)(CROP_SIZE*core_.getImageWidth());
       int height = (int)(CROP_SIZE*core_.getImageHeight());
       int ow = (int)(((1-CROP_SIZE)/2)*core_.getImageWidth());
       int oh = (int)(((1-CROP_SIZE)/2)*core_.getImageHeight());
 
-      // double[][] medPix = new double[width][height];
-      double sharpNess = 0;
-      //double[] windo = new double[9];
-
-      /*Apply 3x3 median filter to reduce noise*/
-
-      /*   for (int i=0; i<width; i++){
-         for (int j=0; j<height; j++){
-
-	    windo[0] = (double)impro.getPixel(ow+i-1,oh+j-1);
-	    windo[1] = (double)impro.getPixel(ow+i,oh+j-1);
-            windo[2] = (double)impro.getPixel(ow+i+1,oh+j-1);
-            windo[3] = (double)impro.getPixel(ow+i-1,oh+j);
-            windo[4] = (double)impro.getPixel(ow+i,oh+j);
-            windo[5] = (double)impro.getPixel(ow+i+1,oh+j);
-            windo[6] = (double)impro.getPixel(ow+i-1,oh+j+1);
-            windo[7] = (double)impro.getPixel(ow+i,oh+j+1);
-            windo[8] = (double)impro.getPixel(ow+i+1,oh+j+1);
-
-            medPix[i][j] = findMed(windo);
-         } 
-	 }*/        
-
-      //tPrev = System.currentTimeMillis();     
-
-      impro.medianFilter();
-      int[] ken = {2, 1, 0, 1, 0, -1, 0, -1, -2};
-      impro.convolve3x3(ken);
-      for (int i=0; i<width; i++){
-         for (int j=0; j<height; j++){
-
-            sharpNess = sharpNess + Math.pow(impro.getPixel(ow+i,oh+j),2);
-         } 
-      }
-
-      // tcur = System.currentTimeMillis()-tPrev;
-
-      /*Edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum all pixel values. Ideally, the sum is large if most edges are sharp*/
-
-      /*  for (int k=1; k<width-1; k++){
-         for (int l=1; l<height-1; l++){
-
-	     sharpNess = sharpNess + Math.pow((-2*medPix[k-1][l-1]- medPix[k][l-1]-medPix[k-1][l]+medPix[k+1][l]+medPix[k][l+1]+2*medPix[k+1][l+1]),2);
-
-         } 
-	 }*/
-
-      return sharpNess;
+      /*3x3 median filter to reduce noise, then edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum the squares of all pixel values. Ideally, the sum is large if most edges are sharp*/
+      return focusMetrics_.score(FocusMetrics.MEDIAN_SOBEL, impro, new Rectangle(ow, oh, width, height));
    }
 
 
@@ -441,21 +351,6 @@ public class Autofocus extends AutofocusBase implements org.micromanager.api.Aut
       return implus;
    }
 
-   private double findMed(double[] arr){ 
-      double tmp;
-      for(int i=0; i<8; i++){
-         for(int j=0; j<8-i; j++){
-            if (arr[j+1]<arr[j]){
-               tmp = arr[j];
-               arr[j]=arr[j+1];
-               arr[j+1]=tmp;
-            }
-         }
-      }
-      return arr[5];
-
-   }
-
    public double fullFocus() {
       run("silent");
       return 0;
@@ -48,6 +48,7 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
 
    private CMMCore core_;
    private ImageProcessor ipCurrent_ = null;
+   private final FocusMetrics focusMetrics_ = new FocusMetrics(Runtime.getRuntime().availableProcessors());
 
    /**
     *  Description of the Field
@@ -340,68 +341,11 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
     *  calculate the sharpness of a given image (in "impro").
     */
    /**
-    *  Description of the Method
-    *
-    *@param  impro  Description of the Parameter
-    *@return        Description of the Return Value
-    */
-   private double sharpNessp(ImageProcessor impro) {
-
-      int width = (int) (CROP_SIZE * core_.getImageWidth());
-      int height = (int) (CROP_SIZE * core_.getImageHeight());
-      int ow = (int) (((1 - CROP_SIZE) / 2) * core_.getImageWidth());
-      int oh = (int) (((1 - CROP_SIZE) / 2) * core_.getImageHeight());
-
-      double[][] medPix = new double[width][height];
-      double sharpNess = 0;
-      double[] windo = new double[9];
-
-      /*
-       *  Apply 3x3 median filter to reduce noise
-       */
-      for (int i = 1; i < width - 1; i++) {
-         for (int j = 1; j < height - 1; j++) {
-
-            windo[0] = (double) impro.getPixel(ow + i - 1, oh + j - 1);
-            windo[1] = (double) impro.getPixel(ow + i, oh + j - 1);
-            windo[2] = (double) impro.getPixel(ow + i + 1, oh + j - 1);
-            windo[3] = (double) impro.getPixel(ow + i - 1, oh + j);
-            windo[4] = (double) impro.getPixel(ow + i, oh + j);
-            windo[5] = (double) impro.getPixel(ow + i + 1, oh + j);
-            windo[6] = (double) impro.getPixel(ow + i - 1, oh + j + 1);
-            windo[7] = (double) impro.getPixel(ow + i, oh + j + 1);
-            windo[8] = (double) impro.getPixel(ow + i + 1, oh + j + 1);
-
-            medPix[i][j] = findMed(windo);
-         }
-      }
-
-      /*
-       *  Edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum all pixel values. Ideally, the sum is large if most edges are sharp
-       */
-      double edgehoriz;
-      double edvevert;
-      for (int k = 1; k < width - 1; k++) {
-         for (int l = 1; l < height - 1; l++) {
-            edgehoriz = Math.pow((-2 * medPix[k - 1][l] - medPix[k - 1][l - 1] - medPix[k - 1][l + 1] + medPix[k + 1][l - 1] + medPix[k + 1][l + 1] + 2 * medPix[k + 1][l]), 2);
-            edvevert = Math.pow((-2 * medPix[k][l - 1] - medPix[k - 1][l - 1] - medPix[k + 1][l - 1] + medPix[k - 1][l + 1] + medPix[k + 1][l + 1] + 2 * medPix[k][l + 1]), 2);
-            sharpNess += (edgehoriz + edvevert);
-            //sharpNess = sharpNess + Math.pow((-2 * medPix[k - 1][l - 1] - medPix[k][l - 1] - medPix[k - 1][l] + medPix[k + 1][l] + medPix[k][l + 1] + 2 * medPix[k + 1][l + 1]), 2);
-
-         }
-      }
-      return sharpNess;
-   }
-
-
-   /*
-    *  calculate the sharpness of a given image (in "impro").
-    */
-   /**
-    *  Description of the Method
+    *  Sum of the edges of the central part of the image, after a 3x3 median
+    *  filter to reduce noise
     *
-    *@param  impro  Description of the Parameter
-    *@return        Description of the Return Value
+    *@param  impro  Image, it is not modified
+    *@return        Sharpness, large if most edges are sharp
     */
    private double sharpNess(ImageProcessor impro) {
 
@@ -409,61 +353,8 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
       int height = (int) (CROP_SIZE * core_.getImageHeight());
       int sx = (int) (core_.getImageWidth() - width) / 2;
       int sy = (int) (core_.getImageHeight() - height) / 2;
-      //int ow = (int) (((1 - CROP_SIZE) / 2) * core_.getImageWidth());
-      //int oh = (int) (((1 - CROP_SIZE) / 2) * core_.getImageHeight());
-
-      // double[][] medPix = new double[width][height];
-      double sharpNess = 0;
-      //double[] windo = new double[9];
-
-      /*
-       *  Apply 3x3 median filter to reduce noise
-       */
-      /*
-       *  for (int i=0; i<width; i++){
-       *  for (int j=0; j<height; j++){
-       *  windo[0] = (double)impro.getPixel(ow+i-1,oh+j-1);
-       *  windo[1] = (double)impro.getPixel(ow+i,oh+j-1);
-       *  windo[2] = (double)impro.getPixel(ow+i+1,oh+j-1);
-       *  windo[3] = (double)impro.getPixel(ow+i-1,oh+j);
-       *  windo[4] = (double)impro.getPixel(ow+i,oh+j);
-       *  windo[5] = (double)impro.getPixel(ow+i+1,oh+j);
-       *  windo[6] = (double)impro.getPixel(ow+i-1,oh+j+1);
-       *  windo[7] = (double)impro.getPixel(ow+i,oh+j+1);
-       *  windo[8] = (double)impro.getPixel(ow+i+1,oh+j+1);
-       *  medPix[i][j] = findMed(windo);
-       *  }
-       *  }
-       */
-      //tPrev = System.currentTimeMillis();
-
-      impro.setRoi(new Rectangle(sx, sy, width, height));
-      impro.crop();
-      impro.medianFilter();
-      impro.findEdges();
-
-      //int[] ken = {2, 1, 0, 1, 0, -1, 0, -1, -2};
-      //impro.convolve3x3(ken);
-
-      for (int i = 0; i < width; i++) {
-         for (int j = 0; j < height; j++) {
-            sharpNess += impro.getPixelValue(i, j);
-         }
-      }
 
-      // tcur = System.currentTimeMillis()-tPrev;
-
-      /*
-       *  Edge detection using a 3x3 filter: [-2 -1 0; -1 0 1; 0 1 2]. Then sum all pixel values. Ideally, the sum is large if most edges are sharp
-       */
-      /*
-       *  for (int k=1; k<width-1; k++){
-       *  for (int l=1; l<height-1; l++){
-       *  sharpNess = sharpNess + Math.pow((-2*medPix[k-1][l-1]- medPix[k][l-1]-medPix[k-1][l]+medPix[k+1][l]+medPix[k][l+1]+2*medPix[k+1][l+1]),2);
-       *  }
-       *  }
-       */
-      return sharpNess;
+      return focusMetrics_.score(FocusMetrics.MEDIAN_EDGES, impro, new Rectangle(sx, sy, width, height));
    }
 
 
@@ -497,32 +388,6 @@ public class AutofocusTB extends AutofocusBase implements Autofocus {
    }
 
 
-   /**
-    *  Description of the Method
-    *
-    *@param  arr  Description of the Parameter
-    *@return      Description of the Return Value
-    */
-   private double findMed(double[] arr) {
-      double tmp;
-      boolean sorted = false;
-      int i = 0;
-      while (!sorted) {
-         sorted = true;
-         for (int j = 0; j < 8 - i; j++) {
-            if (arr[j + 1] < arr[j]) {
-               sorted = false;
-               tmp = arr[j];
-               arr[j] = arr[j + 1];
-               arr[j + 1] = tmp;
-            }
-         }
-         i++;
-      }
-      return arr[5];
-   }
-
-
    /**
     *  Description of the Method
     *
@@ -0,0 +1,425 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:           FocusMetrics.java
+//PROJECT:        Micro-Manager
+//SUBSYSTEM:      Autofocusing plug-in for mciro-manager and ImageJ
+//-----------------------------------------------------------------------------
+//
+//COPYRIGHT:      University of California San Francisco
+//
+//LICENSE:        This file is distributed under the BSD license.
+//                License text is included with the source distribution.
+//
+//                This file is distributed in the hope that it will be useful,
+//                but WITHOUT ANY WARRANTY; without even the implied warranty
+//                of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//                IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//                CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//                INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Focus scores shared by the autofocus plugins.
+ *
+ * Scores are computed straight from the byte[] or short[] pixels of an image,
+ * optionally over a region of interest.  Pixels outside the image are taken
+ * to be equal to the nearest edge pixel.  The work buffers are kept between
+ * calls, so scoring images of the same size allocates no pixel buffers.
+ * With more than one thread the rows are split into bands that are scored
+ * in parallel, on a pool of threads shared by all instances.
+ *
+ * An instance can be used from several threads, but scores one image at a
+ * time.
+ */
+public class FocusMetrics {
+
+   /** Sum of the squared diagonal Sobel response ([-2 -1 0; -1 0 1; 0 1 2])
+    * of the 3x3 median filtered image */
+   public static final int MEDIAN_SOBEL = 0;
+   /** Sum of the Sobel gradient magnitude of the 3x3 median filtered image */
+   public static final int MEDIAN_EDGES = 1;
+   /** Sum of the squared differences between pixels two columns apart */
+   public static final int BRENNER = 2;
+   /** Sum of the squared Sobel gradient magnitude */
+   public static final int TENENGRAD = 3;
+   /** Variance divided by the mean intensity */
+   public static final int NORMALIZED_VARIANCE = 4;
+   /** Mean Sobel gradient magnitude divided by the mean intensity */
+   public static final int EDGES = 5;
+   /** As EDGES, on the image sharpened as by ImageProcessor.sharpen */
+   public static final int SHARP_EDGES = 6;
+   /** Mean intensity */
+   public static final int MEAN = 7;
+   /** Standard deviation divided by the mean intensity */
+   public static final int NORMALIZED_STD_DEV = 8;
+
+   private static final int NONE = 0;
+   private static final int MEDIAN = 1;
+   private static final int SHARPEN = 2;
+
+   // Scores bands for all instances, made when the first one needs it
+   private static ExecutorService executor_ = null;
+   private final Band[] bands_;
+   private final Semaphore bandsDone_ = new Semaphore(0);
+
+   // The image being scored
+   private int metric_;
+   private Object pixels_;
+   private int width_;
+   private int height_;
+   private int maxValue_;
+   private int x0_;
+   private int y0_;
+   private int w_;
+   private int h_;
+
+   public FocusMetrics() {
+      this(1);
+   }
+
+   /**
+    * @param nrThreads - number of bands scored in parallel
+    */
+   public FocusMetrics(int nrThreads) {
+      nrThreads = Math.max(1, nrThreads);
+      bands_ = new Band[nrThreads];
+      for (int i = 0; i < nrThreads; i++) {
+         bands_[i] = new Band();
+      }
+   }
+
+   private static synchronized ExecutorService getExecutor() {
+      if (executor_ == null) {
+         ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "Focus score");
+               thread.setDaemon(true);
+               return thread;
+            }
+         };
+         executor_ = Executors.newFixedThreadPool(
+                 Runtime.getRuntime().availableProcessors(), factory);
+      }
+      return executor_;
+   }
+
+   /**
+    * Scores an image.  Images other than 8 and 16 bit are converted to 16 bit
+    * first.
+    *
+    * @param metric - one of the constants of this class
+    * @param proc - image to be scored, it is not modified
+    * @param roi - part of the image to be scored, or null for all of it
+    */
+   public double score(int metric, ImageProcessor proc, Rectangle roi) {
+      Object pixels = proc.getPixels();
+      if (!(pixels instanceof byte[]) && !(pixels instanceof short[])) {
+         proc = proc.convertToShort(false);
+         pixels = proc.getPixels();
+      }
+      return score(metric, pixels, proc.getWidth(), proc.getHeight(), roi);
+   }
+
+   /**
+    * Scores the byte[] or short[] pixels of a width x height image.
+    *
+    * @param roi - part of the image to be scored, or null for all of it
+    */
+   public synchronized double score(int metric, Object pixels, int width,
+           int height, Rectangle roi) {
+      if (metric < MEDIAN_SOBEL || metric > NORMALIZED_STD_DEV) {
+         throw new IllegalArgumentException("Unknown focus metric: " + metric);
+      }
+      if (pixels instanceof byte[]) {
+         maxValue_ = 255;
+      } else if (pixels instanceof short[]) {
+         maxValue_ = 65535;
+      } else {
+         throw new IllegalArgumentException("Focus scores need 8 or 16 bit pixels");
+      }
+      Rectangle r = new Rectangle(0, 0, width, height);
+      if (roi != null) {
+         r = r.intersection(roi);
+      }
+      if (r.width <= 0 || r.height <= 0) {
+         return 0;
+      }
+      metric_ = metric;
+      pixels_ = pixels;
+      width_ = width;
+      height_ = height;
+      x0_ = r.x;
+      y0_ = r.y;
+      w_ = r.width;
+      h_ = r.height;
+
+      int nrBands = Math.min(bands_.length, h_);
+      for (int b = 0; b < nrBands; b++) {
+         bands_[b].yStart_ = b * h_ / nrBands;
+         bands_[b].yEnd_ = (b + 1) * h_ / nrBands;
+      }
+      if (nrBands == 1) {
+         bands_[0].inPool_ = false;
+         bands_[0].run();
+      } else {
+         ExecutorService executor = getExecutor();
+         for (int b = 0; b < nrBands; b++) {
+            bands_[b].inPool_ = true;
+            executor.execute(bands_[b]);
+         }
+         bandsDone_.acquireUninterruptibly(nrBands);
+      }
+
+      pixels_ = null;
+      // clear the errors of all bands, so that none is left for the next image
+      RuntimeException error = null;
+      for (int b = 0; b < nrBands; b++) {
+         if (error == null) {
+            error = bands_[b].error_;
+         }
+         bands_[b].error_ = null;
+      }
+      if (error != null) {
+         throw error;
+      }
+
+      double sum = 0;
+      double sumI = 0;
+      double sumI2 = 0;
+      for (int b = 0; b < nrBands; b++) {
+         sum += bands_[b].sum_;
+         sumI += bands_[b].sumI_;
+         sumI2 += bands_[b].sumI2_;
+      }
+
+      double n = (double) w_ * h_;
+      double mean = sumI / n;
+      // sample variance, as in ImageStatistics
+      double variance = n > 1 ? (n * sumI2 - sumI * sumI) / n / (n - 1) : 0;
+      switch (metric) {
+         case EDGES:
+         case SHARP_EDGES:
+            return mean > 0 ? (sum / n) / mean : 0;
+         case NORMALIZED_VARIANCE:
+            return mean > 0 ? variance / mean : 0;
+         case MEAN:
+            return mean;
+         case NORMALIZED_STD_DEV:
+            return mean > 0 ? Math.sqrt(variance) / mean : 0;
+         default:
+            return sum;
+      }
+   }
+
+   /**
+    * Scores the rows yStart_ to yEnd_ of the region of interest
+    */
+   private class Band implements Runnable {
+
+      int yStart_;
+      int yEnd_;
+      double sum_;
+      double sumI_;
+      double sumI2_;
+      RuntimeException error_;
+      // the band runs on the shared executor and signals bandsDone_ when it is done
+      boolean inPool_;
+      // pixels of the band with two extra rows and columns on all sides
+      private int[] raw_ = new int[0];
+      // filtered pixels of the band with one extra row and column on all sides
+      private int[] filtered_ = new int[0];
+
+      public void run() {
+         try {
+            score();
+         } catch (RuntimeException e) {
+            error_ = e;
+         } finally {
+            if (inPool_) {
+               bandsDone_.release();
+            }
+         }
+      }
+
+      private void score() {
+         int rows = yEnd_ - yStart_;
+         int rawStride = w_ + 4;
+         if (raw_.length < rawStride * (rows + 4)) {
+            raw_ = new int[rawStride * (rows + 4)];
+         }
+         readPixels(rows, rawStride);
+
+         sumI_ = 0;
+         sumI2_ = 0;
+         for (int y = 0; y < rows; y++) {
+            int p = (y + 2) * rawStride + 2;
+            for (int x = 0; x < w_; x++, p++) {
+               double v = raw_[p];
+               sumI_ += v;
+               sumI2_ += v * v;
+            }
+         }
+
+         int filter = NONE;
+         if (metric_ == MEDIAN_SOBEL || metric_ == MEDIAN_EDGES) {
+            filter = MEDIAN;
+         } else if (metric_ == SHARP_EDGES) {
+            filter = SHARPEN;
+         }
+         int[] a = raw_;
+         int stride = rawStride;
+         int origin = 2 * rawStride + 2;
+         if (filter != NONE) {
+            stride = w_ + 2;
+            if (filtered_.length < stride * (rows + 2)) {
+               filtered_ = new int[stride * (rows + 2)];
+            }
+            filter(filter, rows, rawStride, stride);
+            a = filtered_;
+            origin = stride + 1;
+         }
+
+         double sum = 0;
+         switch (metric_) {
+            case MEDIAN_SOBEL:
+               for (int y = 0; y < rows; y++) {
+                  int p = origin + y * stride;
+                  for (int x = 0; x < w_; x++, p++) {
+                     double d = -2 * a[p - stride - 1] - a[p - stride] - a[p - 1]
+                             + a[p + 1] + a[p + stride] + 2 * a[p + stride + 1];
+                     sum += d * d;
+                  }
+               }
+               break;
+            case BRENNER:
+               for (int y = 0; y < rows; y++) {
+                  int p = origin + y * stride;
+                  // the last two columns have no partner inside the roi
+                  for (int x = 0; x < w_ - 2; x++, p++) {
+                     double d = a[p + 2] - a[p];
+                     sum += d * d;
+                  }
+               }
+               break;
+            case TENENGRAD:
+            case MEDIAN_EDGES:
+            case EDGES:
+            case SHARP_EDGES:
+               boolean squared = metric_ == TENENGRAD;
+               for (int y = 0; y < rows; y++) {
+                  int p = origin + y * stride;
+                  for (int x = 0; x < w_; x++, p++) {
+                     int p1 = a[p - stride - 1], p2 = a[p - stride], p3 = a[p - stride + 1];
+                     int p4 = a[p - 1], p6 = a[p + 1];
+                     int p7 = a[p + stride - 1], p8 = a[p + stride], p9 = a[p + stride + 1];
+                     long gy = p1 + 2 * p2 + p3 - p7 - 2 * p8 - p9;
+                     long gx = p1 + 2 * p4 + p7 - p3 - 2 * p6 - p9;
+                     double g2 = gx * gx + gy * gy;
+                     sum += squared ? g2 : Math.sqrt(g2);
+                  }
+               }
+               break;
+            default:
+               break;
+         }
+         sum_ = sum;
+      }
+
+      /**
+       * Copies the band and a border of two pixels into raw_
+       */
+      private void readPixels(int rows, int stride) {
+         byte[] bytes = pixels_ instanceof byte[] ? (byte[]) pixels_ : null;
+         short[] shorts = pixels_ instanceof short[] ? (short[]) pixels_ : null;
+         int xFirst = Math.max(0, x0_ - 2);
+         int xLast = Math.min(width_ - 1, x0_ + w_ + 1);
+         for (int r = 0; r < rows + 4; r++) {
+            int y = clamp(y0_ + yStart_ + r - 2, height_);
+            int row = y * width_;
+            int p = r * stride;
+            int x = x0_ - 2;
+            for (; x < xFirst; x++, p++) {
+               raw_[p] = pixel(bytes, shorts, row);
+            }
+            if (shorts != null) {
+               for (; x <= xLast; x++, p++) {
+                  raw_[p] = shorts[row + x] & 0xffff;
+               }
+            } else {
+               for (; x <= xLast; x++, p++) {
+                  raw_[p] = bytes[row + x] & 0xff;
+               }
+            }
+            for (; x < x0_ + w_ + 2; x++, p++) {
+               raw_[p] = pixel(bytes, shorts, row + width_ - 1);
+            }
+         }
+      }
+
+      /**
+       * Fills filtered_ with the band and a border of one pixel, filtered
+       */
+      private void filter(int filter, int rows, int rawStride, int stride) {
+         int[] a = raw_;
+         for (int r = 0; r < rows + 2; r++) {
+            int p = (r + 1) * rawStride + 1;
+            int q = r * stride;
+            for (int x = 0; x < w_ + 2; x++, p++, q++) {
+               int p1 = a[p - rawStride - 1], p2 = a[p - rawStride], p3 = a[p - rawStride + 1];
+               int p4 = a[p - 1], p5 = a[p], p6 = a[p + 1];
+               int p7 = a[p + rawStride - 1], p8 = a[p + rawStride], p9 = a[p + rawStride + 1];
+               if (filter == MEDIAN) {
+                  filtered_[q] = median(p1, p2, p3, p4, p5, p6, p7, p8, p9);
+               } else {
+                  int v = (12 * p5 - p1 - p2 - p3 - p4 - p6 - p7 - p8 - p9 + 2) / 4;
+                  filtered_[q] = v < 0 ? 0 : (v > maxValue_ ? maxValue_ : v);
+               }
+            }
+         }
+      }
+   }
+
+   private static int pixel(byte[] bytes, short[] shorts, int index) {
+      return shorts != null ? shorts[index] & 0xffff : bytes[index] & 0xff;
+   }
+
+   private static int clamp(int v, int size) {
+      return v < 0 ? 0 : (v >= size ? size - 1 : v);
+   }
+
+   /**
+    * Median of nine values with a fixed network of 19 compare-exchanges,
+    * written with min and max so that it compiles without branches
+    */
+   static int median(int p0, int p1, int p2, int p3, int p4, int p5, int p6,
+           int p7, int p8) {
+      int t;
+      t = Math.min(p1, p2); p2 = Math.max(p1, p2); p1 = t;
+      t = Math.min(p4, p5); p5 = Math.max(p4, p5); p4 = t;
+      t = Math.min(p7, p8); p8 = Math.max(p7, p8); p7 = t;
+      t = Math.min(p0, p1); p1 = Math.max(p0, p1); p0 = t;
+      t = Math.min(p3, p4); p4 = Math.max(p3, p4); p3 = t;
+      t = Math.min(p6, p7); p7 = Math.max(p6, p7); p6 = t;
+      t = Math.min(p1, p2); p2 = Math.max(p1, p2); p1 = t;
+      t = Math.min(p4, p5); p5 = Math.max(p4, p5); p4 = t;
+      t = Math.min(p7, p8); p8 = Math.max(p7, p8); p7 = t;
+      p3 = Math.max(p0, p3);
+      p5 = Math.min(p5, p8);
+      t = Math.min(p4, p7); p7 = Math.max(p4, p7); p4 = t;
+      p6 = Math.max(p3, p6);
+      p4 = Math.max(p1, p4);
+      p2 = Math.min(p2, p5);
+      p4 = Math.min(p4, p7);
+      t = Math.min(p4, p2); p2 = Math.max(p4, p2); p4 = t;
+      p4 = Math.max(p6, p4);
+      p4 = Math.min(p4, p2);
+      return p4;
+   }
+}
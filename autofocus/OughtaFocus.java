@@ -25,10 +25,19 @@
 //CVS:            $Id: MetadataDlg.java 1275 2008-06-03 21:31:24Z nenad $
 
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 
 import java.awt.Rectangle;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.SwingUtilities;
 
 import mmcorej.CMMCore;
@@ -38,6 +47,8 @@ import mmcorej.TaggedImage;
 import org.apache.commons.math.analysis.UnivariateRealFunction;
 import org.apache.commons.math.optimization.GoalType;
 import org.apache.commons.math.optimization.univariate.BrentOptimizer;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.micromanager.api.ScriptInterface;
 import org.micromanager.utils.AutofocusBase;
 import org.micromanager.utils.ImageUtils;
@@ -58,8 +69,14 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private static final String EXPOSURE = "Exposure";
    private static final String SHOW_IMAGES = "ShowImages";
    private static final String SCORING_METHOD = "Maximize";
+   private static final String SEARCH_MODE = "SearchMode";
    private static final String showValues[] = {"Yes", "No"};
-   private final static String scoringMethods[] = {"Edges","StdDev","Mean","SharpEdges"};
+   private final static String scoringMethods[] = {"Edges","StdDev","Mean","SharpEdges",
+      "Brenner","Tenengrad","NormalizedVariance","MedianSobel"};
+   private final static String searchModes[] = {"Brent","Pipelined"};
+   // images spread evenly over the search range in the first pass of a
+   // pipelined search
+   private static final int COARSE_STEPS = 5;
 
    private double searchRange = 10;
    private double tolerance = 1;
@@ -68,13 +85,21 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    private double exposure = 100;
    private String show = "No";
    private String scoringMethod = "Edges";
+   private String searchMode = "Brent";
    
    private int imageCount_;
    private long startTimeMs_;
    private double startZUm_;
    private boolean liveModeOn_;
+   // time spent moving z, acquiring and scoring during the current search
+   private final AtomicLong tZTotal_ = new AtomicLong();
+   private final AtomicLong tITotal_ = new AtomicLong();
+   private final AtomicLong tCTotal_ = new AtomicLong();
+   private JSONObject lastRunMetrics_ = new JSONObject();
+   private ExecutorService scorer_ = null;
 
    private boolean settingsLoaded_ = false;
+   private final FocusMetrics focusMetrics_ = new FocusMetrics(Runtime.getRuntime().availableProcessors());
 
    public OughtaFocus() {
       super();
@@ -84,6 +109,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       createProperty(EXPOSURE, NumberUtils.doubleToDisplayString(exposure));
       createProperty(SHOW_IMAGES, show, showValues);
       createProperty(SCORING_METHOD, scoringMethod, scoringMethods);
+      createProperty(SEARCH_MODE, searchMode, searchModes);
       imageCount_ = 0;
    }
 
@@ -97,6 +123,7 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          exposure = NumberUtils.displayStringToDouble(getPropertyValue(EXPOSURE));
          show = getPropertyValue(SHOW_IMAGES);
          scoringMethod = getPropertyValue(SCORING_METHOD);
+         searchMode = getPropertyValue(SEARCH_MODE);
 
       } catch (MMException ex) {
          ReportingUtils.logError(ex);
@@ -157,26 +184,232 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
    }
 
    private double runAutofocusAlgorithm() throws Exception {
-      UnivariateRealFunction scoreFun = new UnivariateRealFunction() {
-         public double value(double d) {
-            return measureFocusScore(d);
-         }
-      };
-      BrentOptimizer brentOptimizer = new BrentOptimizer(tolerance,1e-11);
       imageCount_ = 0;
+      tZTotal_.set(0);
+      tITotal_.set(0);
+      tCTotal_.set(0);
 
       CMMCore core = app_.getMMCore();
       double z = core.getPosition(core.getFocusDevice());
       startZUm_ = z;
+      long searchStartMs = System.currentTimeMillis();
 //      getCurrentFocusScore();
-      double zResult = brentOptimizer.optimize(400000000, scoreFun, GoalType.MAXIMIZE, z - searchRange / 2, z + searchRange / 2).getValue();
-      ReportingUtils.logMessage("OughtaFocus Iterations: " + brentOptimizer.getEvaluations() +
+      double zResult;
+      // In live mode the last image is taken rather than snapping one, and with
+      // the next move starting right away it would have been exposed while z moved
+      boolean pipelined = searchMode.contentEquals("Pipelined");
+      if (pipelined && liveModeOn_) {
+         ReportingUtils.logMessage("OughtaFocus: live mode is on, using Brent search");
+         pipelined = false;
+      }
+      if (pipelined) {
+         zResult = runPipelinedSearch(z);
+      } else {
+         UnivariateRealFunction scoreFun = new UnivariateRealFunction() {
+            public double value(double d) {
+               return measureFocusScore(d);
+            }
+         };
+         BrentOptimizer brentOptimizer = new BrentOptimizer(tolerance,1e-11);
+         zResult = brentOptimizer.optimize(400000000, scoreFun, GoalType.MAXIMIZE, z - searchRange / 2, z + searchRange / 2).getValue();
+      }
+      ReportingUtils.logMessage("OughtaFocus Iterations: " + imageCount_ +
             ", z=" + TextUtils.FMT2.format(zResult) +
             ", dz=" + TextUtils.FMT2.format(zResult - startZUm_) +
             ", t=" + (System.currentTimeMillis() - startTimeMs_));
+      reportMetrics(zResult, System.currentTimeMillis() - searchStartMs);
       return zResult;
    }
 
+   /*
+    * Images the search range at COARSE_STEPS evenly spaced positions, then
+    * repeatedly images either side of the peak fitted to all scores so far,
+    * halving the distance each time until it drops below the tolerance.
+    */
+   private double runPipelinedSearch(double z0) throws Exception {
+      TreeMap<Double, Double> scores = new TreeMap<Double, Double>();
+      double zMin = z0 - searchRange / 2;
+      double zMax = z0 + searchRange / 2;
+      double step = searchRange / (COARSE_STEPS - 1);
+      double[] zs = new double[COARSE_STEPS];
+      for (int i = 0; i < COARSE_STEPS; i++) {
+         zs[i] = zMin + i * step;
+      }
+      scan(zs, scores);
+      double zPeak = fitPeak(scores);
+      for (double h = step / 2; h >= tolerance; h /= 2) {
+         ArrayList<Double> next = new ArrayList<Double>();
+         for (double zNew : new double[] {zPeak - h, zPeak + h}) {
+            zNew = MathFunctions.clip(zMin, zNew, zMax);
+            if (!hasScoreNear(scores, zNew, h / 4)) {
+               next.add(zNew);
+            }
+         }
+         if (next.isEmpty()) {
+            break;
+         }
+         zs = new double[next.size()];
+         for (int i = 0; i < zs.length; i++) {
+            zs[i] = next.get(i);
+         }
+         scan(zs, scores);
+         zPeak = fitPeak(scores);
+      }
+      return zPeak;
+   }
+
+   /*
+    * Acquires an image at each of the z positions, in order, and adds the
+    * scores to scores. The next z move starts as soon as an image has been
+    * exposed, and images are scored on another thread, so moving, reading
+    * out and scoring overlap. Images are snapped, so live mode must be off.
+    */
+   private void scan(double[] zs, TreeMap<Double, Double> scores) throws Exception {
+      CMMCore core = app_.getMMCore();
+      String focusDevice = core.getFocusDevice();
+      ArrayList<Future<Double>> futures = new ArrayList<Future<Double>>();
+      core.setPosition(focusDevice, zs[0]);
+      for (int i = 0; i < zs.length; i++) {
+         long start = System.currentTimeMillis();
+         core.waitForDevice(focusDevice);
+         final long tZ = System.currentTimeMillis() - start;
+
+         core.waitForDevice(core.getCameraDevice());
+         core.snapImage();
+         startMove(core, focusDevice, zs, i + 1);
+         final TaggedImage img = core.getTaggedImage();
+         if (show.contentEquals("Yes")) {
+            SwingUtilities.invokeLater(new Runnable() {
+               public void run() {
+                  app_.displayImage(img);
+               }
+            });
+         }
+         final long tI = System.currentTimeMillis() - start - tZ;
+         tZTotal_.addAndGet(tZ);
+         tITotal_.addAndGet(tI);
+
+         final ImageProcessor proc = ImageUtils.makeProcessor(core, img.pix);
+         final double z = zs[i];
+         final int imageNr = imageCount_++;
+         futures.add(getScorer().submit(new Callable<Double>() {
+            public Double call() {
+               long start = System.currentTimeMillis();
+               double score = computeScore(proc);
+               long tC = System.currentTimeMillis() - start;
+               tCTotal_.addAndGet(tC);
+               ReportingUtils.logMessage("OughtaFocus: image=" + imageNr +
+                     ", t=" + (System.currentTimeMillis() - startTimeMs_) +
+                     ", z=" + TextUtils.FMT2.format(z) +
+                     ", score=" + TextUtils.FMT2.format(score) +
+                     ", Tz=" + tZ + ", Ti=" + tI + ", Tc=" + tC);
+               return score;
+            }
+         }));
+      }
+      for (int i = 0; i < zs.length; i++) {
+         scores.put(zs[i], futures.get(i).get());
+      }
+   }
+
+   private void startMove(CMMCore core, String focusDevice, double[] zs, int i) throws Exception {
+      if (i < zs.length) {
+         core.setPosition(focusDevice, zs[i]);
+      }
+   }
+
+   private static boolean hasScoreNear(TreeMap<Double, Double> scores, double z, double distance) {
+      for (double zScored : scores.keySet()) {
+         if (Math.abs(zScored - z) < distance) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /*
+    * Fits a Gaussian (a parabola if any score is not positive) through the
+    * best score and its neighbours in z, and returns the z of its maximum.
+    * Returns the z of the best score if that lies at the edge of the scores.
+    */
+   private static double fitPeak(TreeMap<Double, Double> scores) {
+      int n = scores.size();
+      double[] z = new double[n];
+      double[] s = new double[n];
+      int best = 0;
+      Iterator<Map.Entry<Double, Double>> it = scores.entrySet().iterator();
+      for (int i = 0; i < n; i++) {
+         Map.Entry<Double, Double> entry = it.next();
+         z[i] = entry.getKey();
+         s[i] = entry.getValue();
+         if (s[i] > s[best]) {
+            best = i;
+         }
+      }
+      if (best == 0 || best == n - 1) {
+         return z[best];
+      }
+      double x1 = z[best - 1], x2 = z[best], x3 = z[best + 1];
+      double y1 = s[best - 1], y2 = s[best], y3 = s[best + 1];
+      if (y1 > 0 && y2 > 0 && y3 > 0) {
+         y1 = Math.log(y1);
+         y2 = Math.log(y2);
+         y3 = Math.log(y3);
+      }
+      double denom = (x1 - x2) * (x1 - x3) * (x2 - x3);
+      double a = (x3 * (y2 - y1) + x2 * (y1 - y3) + x1 * (y3 - y2)) / denom;
+      double b = (x3 * x3 * (y1 - y2) + x2 * x2 * (y3 - y1) + x1 * x1 * (y2 - y3)) / denom;
+      if (!(a < 0)) {
+         return x2;
+      }
+      return MathFunctions.clip(x1, -b / (2 * a), x3);
+   }
+
+   private ExecutorService getScorer() {
+      if (scorer_ == null) {
+         scorer_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "OughtaFocus scoring");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return scorer_;
+   }
+
+   /*
+    * Logs the time spent in each phase of the last search, and keeps it for
+    * getLastRunMetrics. With a pipelined search the phases overlap, so they
+    * can add up to more than the total.
+    */
+   private void reportMetrics(double zResult, long totalMs) {
+      JSONObject metrics = new JSONObject();
+      try {
+         metrics.put("SearchMode", searchMode);
+         metrics.put("ScoringMethod", scoringMethod);
+         metrics.put("Images", imageCount_);
+         metrics.put("TotalMs", totalMs);
+         metrics.put("TzMs", tZTotal_.get());
+         metrics.put("TiMs", tITotal_.get());
+         metrics.put("TcMs", tCTotal_.get());
+         metrics.put("Z", zResult);
+         metrics.put("dZ", zResult - startZUm_);
+      } catch (JSONException e) {
+         ReportingUtils.logError(e);
+      }
+      lastRunMetrics_ = metrics;
+      ReportingUtils.logMessage("OughtaFocus metrics: " + metrics.toString());
+   }
+
+   /**
+    * Time spent moving z (TzMs), acquiring (TiMs) and scoring (TcMs) during
+    * the last autofocus run, with the number of images and the total time.
+    */
+   public JSONObject getLastRunMetrics() {
+      return lastRunMetrics_;
+   }
+
    private void setZPosition(double z) throws Exception {
       CMMCore core = app_.getMMCore();
       String focusDevice = core.getFocusDevice();
@@ -211,6 +444,9 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
          ImageProcessor proc = ImageUtils.makeProcessor(core, img.pix);
          double score = computeScore(proc);
          long tC = System.currentTimeMillis() - start - tZ - tI;
+         tZTotal_.addAndGet(tZ);
+         tITotal_.addAndGet(tI);
+         tCTotal_.addAndGet(tC);
          ReportingUtils.logMessage("OughtaFocus: image=" + imageCount_++ +
                ", t=" + (System.currentTimeMillis() - startTimeMs_) +
                ", z=" + TextUtils.FMT2.format(z) + 
@@ -261,51 +497,28 @@ public class OughtaFocus extends AutofocusBase implements org.micromanager.api.A
       throw new UnsupportedOperationException("Not supported yet.");
    }
 
-   private double computeEdges(ImageProcessor proc) {
-      // mean intensity for the original image
-      double meanIntensity = proc.getStatistics().mean;
-      ImageProcessor proc1 = proc.duplicate();
-      // mean intensity of the edge map
-      proc1.findEdges();
-      double meanEdge = proc.getStatistics().mean;
-      
-      return meanEdge/meanIntensity;
-   }
-
-   private double computeSharpEdges(ImageProcessor proc) {
-      // mean intensity for the original image
-      double meanIntensity = proc.getStatistics().mean;
-      ImageProcessor proc1 = proc.duplicate();
-      // mean intensity of the edge map
-      proc1.sharpen();
-      proc1.findEdges();
-      double meanEdge = proc.getStatistics().mean;
-
-      return meanEdge/meanIntensity;
-   }
-
-   private double computeMean(ImageProcessor proc) {
-      return proc.getStatistics().mean;
-   }
-
-   private double computeNormalizedStdDev(ImageProcessor proc) {
-      
-      ImageStatistics stats = proc.getStatistics();
-      return stats.stdDev / stats.mean;
-   }
-
    private double computeScore(ImageProcessor proc) {
+      int metric;
       if (scoringMethod.contentEquals("Mean")) {
-         return computeMean(proc);
+         metric = FocusMetrics.MEAN;
       } else if (scoringMethod.contentEquals("StdDev")) {
-         return computeNormalizedStdDev(proc);
+         metric = FocusMetrics.NORMALIZED_STD_DEV;
       } else if (scoringMethod.contentEquals("Edges")) {
-         return computeEdges(proc);
+         metric = FocusMetrics.EDGES;
       } else if (scoringMethod.contentEquals("SharpEdges")) {
-         return computeSharpEdges(proc);
+         metric = FocusMetrics.SHARP_EDGES;
+      } else if (scoringMethod.contentEquals("Brenner")) {
+         metric = FocusMetrics.BRENNER;
+      } else if (scoringMethod.contentEquals("Tenengrad")) {
+         metric = FocusMetrics.TENENGRAD;
+      } else if (scoringMethod.contentEquals("NormalizedVariance")) {
+         metric = FocusMetrics.NORMALIZED_VARIANCE;
+      } else if (scoringMethod.contentEquals("MedianSobel")) {
+         metric = FocusMetrics.MEDIAN_SOBEL;
       } else {
          return 0;
       }
+      return focusMetrics_.score(metric, proc, null);
    }
 
    public void setApp(ScriptInterface app) {
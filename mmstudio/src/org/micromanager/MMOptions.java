@@ -41,6 +41,8 @@ public class MMOptions {
    private static final String PREF_WINDOW_MAG = "windowMag";
    private static final String MPTIFF_METADATA_FILE = "MakeMetadataFileWithMultipageTiff";
    private static final String MPTIFF_SEPERATE_FILES_FOR_POSITIONS = "SplitXYPostionsInFilesMPTiff";
+   private static final String MPTIFF_ASYNC_WRITE = "AsyncWriteMPTiff";
+   private static final String MPTIFF_ASYNC_WRITE_BUFFER_MB = "AsyncWriteBufferMBMPTiff";
    private static final String SYNCEXPOSUREMAINANDMDA = "SyncExposureBetweenMainAndMDAWindows";
    
    public boolean debugLogEnabled_ = false;
@@ -53,6 +55,8 @@ public class MMOptions {
    public double windowMag_ = 1.0;
    public boolean mpTiffMetadataFile_ = false;
    public boolean mpTiffSeperateFilesForPositions_ = true;
+   public boolean mpTiffAsyncWrite_ = false;
+   public int mpTiffAsyncWriteBufferMB_ = 512;
    public boolean syncExposureMainAndMDA_ = false;
    public boolean hideMDADisplay_ = false;
    
@@ -70,6 +74,8 @@ public class MMOptions {
       prefs.putDouble(PREF_WINDOW_MAG, windowMag_);
       prefs.putBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       prefs.putBoolean(MPTIFF_SEPERATE_FILES_FOR_POSITIONS, mpTiffSeperateFilesForPositions_);
+      prefs.putBoolean(MPTIFF_ASYNC_WRITE, mpTiffAsyncWrite_);
+      prefs.putInt(MPTIFF_ASYNC_WRITE_BUFFER_MB, mpTiffAsyncWriteBufferMB_);
       prefs.putBoolean (SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
    }
    
@@ -88,6 +94,8 @@ public class MMOptions {
       // enableDeviceDiscovery_ = prefs.getBoolean(ENABLE_DEVICE_DISCOVERY, enableDeviceDiscovery_);
       mpTiffMetadataFile_ = prefs.getBoolean(MPTIFF_METADATA_FILE, mpTiffMetadataFile_);
       mpTiffSeperateFilesForPositions_ = prefs.getBoolean(MPTIFF_SEPERATE_FILES_FOR_POSITIONS, mpTiffSeperateFilesForPositions_);
+      mpTiffAsyncWrite_ = prefs.getBoolean(MPTIFF_ASYNC_WRITE, mpTiffAsyncWrite_);
+      mpTiffAsyncWriteBufferMB_ = prefs.getInt(MPTIFF_ASYNC_WRITE_BUFFER_MB, mpTiffAsyncWriteBufferMB_);
       syncExposureMainAndMDA_ = prefs.getBoolean(SYNCEXPOSUREMAINANDMDA, syncExposureMainAndMDA_);
    }
 }
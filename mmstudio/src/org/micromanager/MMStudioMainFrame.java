@@ -671,7 +671,20 @@ public class MMStudioMainFrame extends JFrame implements
     * the rawImageQueue.
     */
     public void runDisplayThread(BlockingQueue rawImageQueue, final DisplayImageRoutine displayImageRoutine) {
-        final BlockingQueue processedImageQueue = ProcessorStack.run(rawImageQueue, getAcquisitionEngine().getImageProcessors());
+        runDisplayThread(rawImageQueue, displayImageRoutine, false);
+    }
+
+   /*
+    * As above. If latestOnly is true, the processors hold on to only the
+    * latest image of each channel, so that in live mode they don't buffer
+    * images the display has no time for.
+    */
+    public void runDisplayThread(BlockingQueue rawImageQueue, final DisplayImageRoutine displayImageRoutine,
+            boolean latestOnly) {
+        List processors = getAcquisitionEngine().getImageProcessors();
+        final BlockingQueue processedImageQueue = latestOnly
+                ? ProcessorStack.runLatestOnly(rawImageQueue, processors)
+                : ProcessorStack.run(rawImageQueue, processors);
         new Thread("Display thread") {
          @Override
             public void run() {
@@ -2300,6 +2313,15 @@ public class MMStudioMainFrame extends JFrame implements
       return options_.mpTiffSeperateFilesForPositions_;
    }
    
+   /**
+    * Returns the number of bytes of images that may wait to be written by the
+    * background writer threads of image stack files, or 0 if they are written
+    * on the acquisition thread
+    */
+   public long getAsyncWriteBufferMPTiff() {
+      return options_.mpTiffAsyncWrite_ ? options_.mpTiffAsyncWriteBufferMB_ * 1048576L : 0;
+   }
+   
    public boolean getHideMDADisplayOption() {
       return options_.hideMDADisplay_;
    }
@@ -91,7 +91,7 @@ public class OptionsDlg extends MMDialog {
       setTitle("Micro-Manager Options");
       springLayout = new SpringLayout();
       getContentPane().setLayout(springLayout);
-      setBounds(100, 100, 380, 410);
+      setBounds(100, 100, 380, 435);
       guiColors_ = new GUIColors();
       Dimension buttonSize = new Dimension(120, 20);
 
@@ -411,6 +411,19 @@ public class OptionsDlg extends MMDialog {
       springLayout.putConstraint(SpringLayout.WEST, seperateFilesForPositionsMPTiffCheckBox, 20, SpringLayout.WEST, getContentPane());
       springLayout.putConstraint(SpringLayout.NORTH, seperateFilesForPositionsMPTiffCheckBox, 5, SpringLayout.SOUTH, metadataFileWithMultipageTiffCheckBox);
       seperateFilesForPositionsMPTiffCheckBox.setSelected(opts_.mpTiffSeperateFilesForPositions_);
+      
+      final JCheckBox asyncWriteMPTiffCheckBox = new JCheckBox();
+      asyncWriteMPTiffCheckBox.addActionListener(new ActionListener() {
+         public void actionPerformed(ActionEvent arg0) {
+            opts_.mpTiffAsyncWrite_ = asyncWriteMPTiffCheckBox.isSelected();
+         }
+      });
+      asyncWriteMPTiffCheckBox.setText("Write image stack files in background (" 
+              + opts_.mpTiffAsyncWriteBufferMB_ + " MB buffer)");
+      getContentPane().add(asyncWriteMPTiffCheckBox);
+      springLayout.putConstraint(SpringLayout.WEST, asyncWriteMPTiffCheckBox, 20, SpringLayout.WEST, getContentPane());
+      springLayout.putConstraint(SpringLayout.NORTH, asyncWriteMPTiffCheckBox, 5, SpringLayout.SOUTH, seperateFilesForPositionsMPTiffCheckBox);
+      asyncWriteMPTiffCheckBox.setSelected(opts_.mpTiffAsyncWrite_);
   
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.addActionListener(new ActionListener() {
@@ -421,7 +434,7 @@ public class OptionsDlg extends MMDialog {
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
       getContentPane().add(syncExposureMainAndMDA);
       springLayout.putConstraint(SpringLayout.WEST, syncExposureMainAndMDA, 20, SpringLayout.WEST, getContentPane());
-      springLayout.putConstraint(SpringLayout.NORTH, syncExposureMainAndMDA, 5, SpringLayout.SOUTH, seperateFilesForPositionsMPTiffCheckBox);
+      springLayout.putConstraint(SpringLayout.NORTH, syncExposureMainAndMDA, 5, SpringLayout.SOUTH, asyncWriteMPTiffCheckBox);
       syncExposureMainAndMDA.setSelected(opts_.syncExposureMainAndMDA_);
   
       
@@ -0,0 +1,496 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DiskDefaultIndex.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Index of the images of a dataset in the default (one tiff per image) format.
+ * The metadata.txt file of each position is scanned without building a
+ * JSONObject for it: only the fields needed to find each image's file are
+ * read, along with where each FrameKey lies in the file so that its full
+ * metadata can be read later on its own. The result is kept in one small file
+ * next to the dataset, and is ignored if any metadata.txt file has changed
+ * length or modification time since.
+ */
+class DiskDefaultIndex {
+
+   public static final String FILENAME = "MMDiskDefaultIndex.bin";
+   private static final int MAGIC = 0x4d4d4444;
+   private static final int VERSION = 1;
+
+   /**
+    * What was found in one position's metadata.txt
+    */
+   public static class Position {
+      public final String name;
+      public long length;
+      public long lastModified;
+      // JSON text of the Summary, or null if there was none
+      public String summary;
+      public final ArrayList<Frame> frames = new ArrayList<Frame>();
+
+      public Position(String name) {
+         this.name = name;
+      }
+
+      public File getMetadataFile(String directory) {
+         return new File(new File(directory, name), "metadata.txt");
+      }
+   }
+
+   /**
+    * The fields of a FrameKey needed to find its image, and where the FrameKey
+    * lies in metadata.txt. Indices that weren't in the metadata are -1.
+    */
+   public static class Frame {
+      public Position position;
+      public int frame = -1;
+      public int slice = -1;
+      public int channelIndex = -1;
+      public int positionIndex = -1;
+      public String channelName = "";
+      public String fileName = null;
+      public long offset;
+      public int length;
+   }
+
+   /**
+    * Reads the full metadata of one frame from its position's metadata.txt
+    */
+   public static JSONObject readFrame(String directory, Frame frame)
+           throws IOException, JSONException {
+      RandomAccessFile file = new RandomAccessFile(frame.position.getMetadataFile(directory), "r");
+      try {
+         byte[] bytes = new byte[frame.length];
+         file.seek(frame.offset);
+         file.readFully(bytes);
+         return new JSONObject(new String(bytes, "UTF-8"));
+      } finally {
+         file.close();
+      }
+   }
+
+   /**
+    * Scans the metadata.txt file of one position. A file left unfinished by an
+    * interrupted acquisition is read up to its last complete FrameKey.
+    */
+   public static Position scan(String directory, String name) throws IOException {
+      Position position = new Position(name);
+      File metadataFile = position.getMetadataFile(directory);
+      position.length = metadataFile.length();
+      position.lastModified = metadataFile.lastModified();
+      Scanner scanner = new Scanner(new FileInputStream(metadataFile));
+      try {
+         if (scanner.skipWhitespace() != '{') {
+            throw new IOException("Not a metadata file: " + metadataFile);
+         }
+         scanner.read();
+         while (true) {
+            int c = scanner.skipWhitespace();
+            if (c == ',') {
+               scanner.read();
+               continue;
+            }
+            if (c != '"') {
+               break;
+            }
+            String key = scanner.readString();
+            if (scanner.skipWhitespace() != ':') {
+               break;
+            }
+            scanner.read();
+            c = scanner.skipWhitespace();
+            if (key.startsWith("FrameKey") && c == '{') {
+               Frame frame = scanner.readFrame();
+               frame.position = position;
+               position.frames.add(frame);
+            } else if (key.equals("Summary")) {
+               ByteArrayOutputStream summary = new ByteArrayOutputStream();
+               scanner.skipValue(summary);
+               position.summary = summary.toString("UTF-8");
+            } else {
+               scanner.skipValue(null);
+            }
+         }
+      } catch (EOFException ex) {
+         // unfinished file; keep the frames read so far
+      } finally {
+         scanner.close();
+      }
+      return position;
+   }
+
+   /**
+    * Writes the index of the given positions, scanned from the dataset in
+    * directory
+    */
+   public static void write(String directory, Position[] positions) {
+      File file = new File(directory, FILENAME);
+      File tempFile = new File(directory, FILENAME + ".tmp");
+      DataOutputStream out = null;
+      try {
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(positions.length);
+         for (Position position : positions) {
+            out.writeUTF(position.name);
+            out.writeLong(position.length);
+            out.writeLong(position.lastModified);
+            out.writeBoolean(position.summary != null);
+            if (position.summary != null) {
+               byte[] summary = position.summary.getBytes("UTF-8");
+               out.writeInt(summary.length);
+               out.write(summary);
+            }
+            out.writeInt(position.frames.size());
+            for (Frame frame : position.frames) {
+               out.writeInt(frame.frame);
+               out.writeInt(frame.slice);
+               out.writeInt(frame.channelIndex);
+               out.writeInt(frame.positionIndex);
+               out.writeUTF(frame.channelName);
+               out.writeBoolean(frame.fileName != null);
+               if (frame.fileName != null) {
+                  out.writeUTF(frame.fileName);
+               }
+               out.writeLong(frame.offset);
+               out.writeInt(frame.length);
+            }
+         }
+         out.close();
+         out = null;
+         file.delete();
+         if (!tempFile.renameTo(file)) {
+            ReportingUtils.logError("Couldn't write image index file in " + directory);
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't write image index file in " + directory);
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+            tempFile.delete();
+         }
+      }
+   }
+
+   /**
+    * Returns the index of each of the named positions, in the same order, or
+    * null if there is no index file or it doesn't match their metadata files
+    */
+   public static Position[] read(String directory, List<String> names) {
+      File file = new File(directory, FILENAME);
+      if (!file.exists()) {
+         return null;
+      }
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+         }
+         int numPositions = in.readInt();
+         if (numPositions != names.size()) {
+            return null;
+         }
+         Position[] positions = new Position[numPositions];
+         for (int i = 0; i < numPositions; i++) {
+            Position position = new Position(in.readUTF());
+            position.length = in.readLong();
+            position.lastModified = in.readLong();
+            File metadataFile = position.getMetadataFile(directory);
+            if (!position.name.equals(names.get(i))
+                    || metadataFile.length() != position.length
+                    || metadataFile.lastModified() != position.lastModified) {
+               return null;
+            }
+            if (in.readBoolean()) {
+               byte[] summary = new byte[in.readInt()];
+               in.readFully(summary);
+               position.summary = new String(summary, "UTF-8");
+            }
+            int numFrames = in.readInt();
+            position.frames.ensureCapacity(numFrames);
+            for (int j = 0; j < numFrames; j++) {
+               Frame frame = new Frame();
+               frame.position = position;
+               frame.frame = in.readInt();
+               frame.slice = in.readInt();
+               frame.channelIndex = in.readInt();
+               frame.positionIndex = in.readInt();
+               frame.channelName = in.readUTF();
+               if (in.readBoolean()) {
+                  frame.fileName = in.readUTF();
+               }
+               frame.offset = in.readLong();
+               frame.length = in.readInt();
+               position.frames.add(frame);
+            }
+            positions[i] = position;
+         }
+         return positions;
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't read image index file in " + directory);
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+   }
+
+   /*
+    * Reads JSON one byte at a time, keeping track of the offset in the file.
+    * Values are only decoded where they are needed.
+    */
+   private static class Scanner {
+
+      private final InputStream in_;
+      private final byte[] buffer_ = new byte[1 << 16];
+      private int bufferPos_ = 0;
+      private int bufferLength_ = 0;
+      private long bufferOffset_ = 0;
+
+      public Scanner(InputStream in) {
+         in_ = in;
+      }
+
+      public void close() throws IOException {
+         in_.close();
+      }
+
+      private long getOffset() {
+         return bufferOffset_ + bufferPos_;
+      }
+
+      private int peek() throws IOException {
+         if (bufferPos_ == bufferLength_) {
+            bufferOffset_ += bufferLength_;
+            bufferPos_ = 0;
+            bufferLength_ = Math.max(0, in_.read(buffer_));
+            if (bufferLength_ == 0) {
+               throw new EOFException();
+            }
+         }
+         return buffer_[bufferPos_] & 0xff;
+      }
+
+      private int read() throws IOException {
+         int c = peek();
+         bufferPos_++;
+         return c;
+      }
+
+      private int skipWhitespace() throws IOException {
+         int c = peek();
+         while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+            bufferPos_++;
+            c = peek();
+         }
+         return c;
+      }
+
+      /*
+       * Reads a string, starting at its opening quote
+       */
+      private String readString() throws IOException {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         read();
+         int c = read();
+         while (c != '"') {
+            if (c == '\\') {
+               c = read();
+               switch (c) {
+                  case 'b': bytes.write('\b'); break;
+                  case 'f': bytes.write('\f'); break;
+                  case 'n': bytes.write('\n'); break;
+                  case 'r': bytes.write('\r'); break;
+                  case 't': bytes.write('\t'); break;
+                  case 'u':
+                     char[] hex = {(char) read(), (char) read(), (char) read(), (char) read()};
+                     try {
+                        char unicode = (char) Integer.parseInt(new String(hex), 16);
+                        bytes.write(String.valueOf(unicode).getBytes("UTF-8"));
+                     } catch (NumberFormatException ex) {
+                        throw new IOException("Bad escape in metadata: \\u" + new String(hex));
+                     }
+                     break;
+                  default: bytes.write(c);
+               }
+            } else {
+               bytes.write(c);
+            }
+            c = read();
+         }
+         return bytes.toString("UTF-8");
+      }
+
+      /*
+       * Reads a number, true, false or null as text
+       */
+      private String readScalar() throws IOException {
+         StringBuilder text = new StringBuilder();
+         int c = peek();
+         while (c != ',' && c != '}' && c != ']' && c != ' ' && c != '\t'
+                 && c != '\r' && c != '\n') {
+            text.append((char) read());
+            c = peek();
+         }
+         return text.toString();
+      }
+
+      /*
+       * Skips a value of any kind, copying its text to copy if that isn't null
+       */
+      private void skipValue(ByteArrayOutputStream copy) throws IOException {
+         int c = skipWhitespace();
+         if (c != '{' && c != '[' && c != '"') {
+            String scalar = readScalar();
+            if (copy != null) {
+               copy.write(scalar.getBytes("UTF-8"));
+            }
+            return;
+         }
+         int depth = 0;
+         boolean inString = false;
+         do {
+            c = read();
+            if (copy != null) {
+               copy.write(c);
+            }
+            if (inString) {
+               if (c == '\\') {
+                  c = read();
+                  if (copy != null) {
+                     copy.write(c);
+                  }
+               } else if (c == '"') {
+                  inString = false;
+               }
+            } else if (c == '"') {
+               inString = true;
+            } else if (c == '{' || c == '[') {
+               depth++;
+            } else if (c == '}' || c == ']') {
+               depth--;
+            }
+         } while (depth > 0 || inString);
+      }
+
+      /*
+       * Reads the fields of a FrameKey needed for the index, skipping the rest
+       */
+      private Frame readFrame() throws IOException {
+         Frame frame = new Frame();
+         frame.offset = getOffset();
+         String frameIndex = null;
+         String frameIndexAlt = null;
+         String sliceIndex = null;
+         String sliceIndexAlt = null;
+         read();
+         while (true) {
+            int c = skipWhitespace();
+            if (c == ',') {
+               read();
+               continue;
+            }
+            if (c == '}') {
+               read();
+               break;
+            }
+            String key = readString();
+            if (skipWhitespace() != ':') {
+               throw new IOException("Bad metadata at offset " + getOffset());
+            }
+            read();
+            c = skipWhitespace();
+            String value = null;
+            if (c == '"') {
+               value = readString();
+            } else if (c == '{' || c == '[') {
+               skipValue(null);
+            } else {
+               value = readScalar();
+            }
+            if (value == null) {
+               continue;
+            }
+            if (key.equals("Frame")) {
+               frameIndex = value;
+            } else if (key.equals("FrameIndex")) {
+               frameIndexAlt = value;
+            } else if (key.equals("SliceIndex")) {
+               sliceIndex = value;
+            } else if (key.equals("Slice")) {
+               sliceIndexAlt = value;
+            } else if (key.equals("ChannelIndex")) {
+               frame.channelIndex = parseIndex(value);
+            } else if (key.equals("PositionIndex")) {
+               frame.positionIndex = parseIndex(value);
+            } else if (key.equals("Channel")) {
+               frame.channelName = value;
+            } else if (key.equals("FileName")) {
+               frame.fileName = value;
+            }
+         }
+         frame.length = (int) (getOffset() - frame.offset);
+         // same precedence as MDUtils.getFrameIndex and getSliceIndex
+         frame.frame = parseIndex(frameIndex != null ? frameIndex : frameIndexAlt);
+         frame.slice = parseIndex(sliceIndex != null ? sliceIndex : sliceIndexAlt);
+         return frame;
+      }
+
+      private static int parseIndex(String value) {
+         if (value == null) {
+            return -1;
+         }
+         try {
+            return (int) Double.parseDouble(value);
+         } catch (NumberFormatException ex) {
+            return -1;
+         }
+      }
+   }
+}
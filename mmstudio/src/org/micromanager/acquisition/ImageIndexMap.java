@@ -0,0 +1,296 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImageIndexMap.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.utils.MDUtils;
+
+/**
+ * Map from image indices to a long value (e.g. a file offset), stored in a flat
+ * open addressing table. The channel, slice, frame and position indices of an
+ * image are packed into a single non-negative long key, so lookups need neither
+ * label strings nor boxed keys. Static methods convert between keys, indices and
+ * the "c_s_f_p" labels used by the TaggedImageStorage API.
+ */
+public class ImageIndexMap {
+
+   //Key layout, high to low bits: 12 bits channel, 16 bits slice, 21 bits frame,
+   //14 bits position. The sign bit is never set
+   private static final int POSITION_BITS = 14, FRAME_BITS = 21, SLICE_BITS = 16, CHANNEL_BITS = 12;
+   private static final int FRAME_SHIFT = POSITION_BITS;
+   private static final int SLICE_SHIFT = FRAME_SHIFT + FRAME_BITS;
+   private static final int CHANNEL_SHIFT = SLICE_SHIFT + SLICE_BITS;
+
+   public static final long NO_VALUE = -1;
+   private static final long EMPTY = -1;
+   private static final int INITIAL_CAPACITY = 64;
+
+   //Keys at even and values at odd indices, so a single array reference gives a
+   //consistent view of the table for readers while it is being resized. Volatile so
+   //that readers see a resized table fully filled in
+   private volatile long[] table_;
+   private int size_ = 0;
+
+   public ImageIndexMap() {
+      table_ = newTable(INITIAL_CAPACITY);
+   }
+
+   /**
+    * @throws IllegalArgumentException if an index is negative or too large to pack
+    */
+   public static long getKey(int channel, int slice, int frame, int position) {
+      if (!isInRange(channel, slice, frame, position)) {
+         throw new IllegalArgumentException("Image indices out of range: channel " + channel
+                 + ", slice " + slice + ", frame " + frame + ", position " + position);
+      }
+      return ((long) channel << CHANNEL_SHIFT) | ((long) slice << SLICE_SHIFT)
+              | ((long) frame << FRAME_SHIFT) | position;
+   }
+
+   public static long getKey(JSONObject tags) throws JSONException {
+      return getKey(MDUtils.getChannelIndex(tags), MDUtils.getSliceIndex(tags),
+              MDUtils.getFrameIndex(tags), MDUtils.getPositionIndex(tags));
+   }
+
+   /**
+    * Whether getKey can pack the indices
+    */
+   public static boolean isInRange(int channel, int slice, int frame, int position) {
+      return fits(channel, CHANNEL_BITS) && fits(slice, SLICE_BITS)
+              && fits(frame, FRAME_BITS) && fits(position, POSITION_BITS);
+   }
+
+   private static boolean fits(int index, int bits) {
+      return index >= 0 && index < (1 << bits);
+   }
+
+   /**
+    * Parses a "c_s_f_p" label without regular expressions or intermediate strings
+    * 
+    * @throws IllegalArgumentException if the label is malformed or an index is out
+    * of range (see getKey(int, int, int, int))
+    */
+   public static long getKey(String label) {
+      long[] indices = new long[4];
+      boolean[] negative = new boolean[4];
+      boolean[] hasDigits = new boolean[4];
+      int i = 0;
+      for (int j = 0; j < label.length(); j++) {
+         char c = label.charAt(j);
+         if (c == '_' && i < 3 && hasDigits[i]) {
+            i++;
+         } else if (c == '-' && !hasDigits[i] && !negative[i]) {
+            negative[i] = true;
+         } else if (c >= '0' && c <= '9') {
+            //saturates, since larger values are out of range either way
+            indices[i] = Math.min(10 * indices[i] + (c - '0'), Integer.MAX_VALUE);
+            hasDigits[i] = true;
+         } else {
+            throw new IllegalArgumentException("Malformed image label: " + label);
+         }
+      }
+      if (i != 3 || !hasDigits[3]) {
+         throw new IllegalArgumentException("Malformed image label: " + label);
+      }
+      int[] values = new int[4];
+      for (int k = 0; k < 4; k++) {
+         values[k] = (int) (negative[k] ? -indices[k] : indices[k]);
+      }
+      return getKey(values[0], values[1], values[2], values[3]);
+   }
+
+   public static int getChannel(long key) {
+      return (int) (key >>> CHANNEL_SHIFT) & ((1 << CHANNEL_BITS) - 1);
+   }
+
+   public static int getSlice(long key) {
+      return (int) (key >>> SLICE_SHIFT) & ((1 << SLICE_BITS) - 1);
+   }
+
+   public static int getFrame(long key) {
+      return (int) (key >>> FRAME_SHIFT) & ((1 << FRAME_BITS) - 1);
+   }
+
+   public static int getPosition(long key) {
+      return (int) key & ((1 << POSITION_BITS) - 1);
+   }
+
+   /**
+    * Same as MDUtils.generateLabel, without going through a shared DecimalFormat
+    */
+   public static String getLabel(long key) {
+      return getChannel(key) + "_" + getSlice(key) + "_" + getFrame(key) + "_" + getPosition(key);
+   }
+
+   /**
+    * Returns labels for the given keys, in the order ImageLabelComparator
+    * would sort them
+    */
+   public static Set<String> getSortedLabels(long[] keys, boolean slicesFirst, boolean timeFirst) {
+      long[] sortKeys = new long[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+         sortKeys[i] = toSortKey(keys[i], slicesFirst, timeFirst);
+      }
+      Arrays.sort(sortKeys);
+      Set<String> labels = new LinkedHashSet<String>();
+      for (long sortKey : sortKeys) {
+         labels.add(getLabel(fromSortKey(sortKey, slicesFirst, timeFirst)));
+      }
+      return labels;
+   }
+
+   //Rearranges the fields of a key so that comparing sort keys as numbers gives the
+   //same order as ImageLabelComparator
+   private static long toSortKey(long key, boolean slicesFirst, boolean timeFirst) {
+      long outer = timeFirst ? ((long) getPosition(key) << FRAME_BITS) | getFrame(key)
+              : ((long) getFrame(key) << POSITION_BITS) | getPosition(key);
+      long inner = slicesFirst ? ((long) getChannel(key) << SLICE_BITS) | getSlice(key)
+              : ((long) getSlice(key) << CHANNEL_BITS) | getChannel(key);
+      return (outer << (CHANNEL_BITS + SLICE_BITS)) | inner;
+   }
+
+   private static long fromSortKey(long sortKey, boolean slicesFirst, boolean timeFirst) {
+      long inner = sortKey & ((1L << (CHANNEL_BITS + SLICE_BITS)) - 1);
+      long outer = sortKey >>> (CHANNEL_BITS + SLICE_BITS);
+      int channel, slice, frame, position;
+      if (slicesFirst) {
+         channel = (int) (inner >>> SLICE_BITS);
+         slice = (int) inner & ((1 << SLICE_BITS) - 1);
+      } else {
+         slice = (int) (inner >>> CHANNEL_BITS);
+         channel = (int) inner & ((1 << CHANNEL_BITS) - 1);
+      }
+      if (timeFirst) {
+         position = (int) (outer >>> FRAME_BITS);
+         frame = (int) outer & ((1 << FRAME_BITS) - 1);
+      } else {
+         frame = (int) (outer >>> POSITION_BITS);
+         position = (int) outer & ((1 << POSITION_BITS) - 1);
+      }
+      return getKey(channel, slice, frame, position);
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   public boolean containsKey(long key) {
+      return get(key) != NO_VALUE;
+   }
+
+   /**
+    * Returns the value stored for the key, or NO_VALUE
+    */
+   public long get(long key) {
+      long[] table = table_;
+      int mask = table.length / 2 - 1;
+      int slot = hash(key) & mask;
+      while (true) {
+         long k = table[2 * slot];
+         if (k == key) {
+            return table[2 * slot + 1];
+         } else if (k == EMPTY) {
+            return NO_VALUE;
+         }
+         slot = (slot + 1) & mask;
+      }
+   }
+
+   public void put(long key, long value) {
+      if (2 * (size_ + 1) > table_.length / 2) {
+         resize();
+      }
+      if (insert(table_, key, value)) {
+         size_++;
+      }
+   }
+
+   /**
+    * Writes each mapping as 4 ints (channel, slice, frame, position) followed by
+    * the value as an unsigned int, the format of the multipage tiff index map
+    */
+   public void writeEntries(ByteBuffer buffer, int byteOffset) {
+      int position = byteOffset;
+      for (long key : keys()) {
+         buffer.putInt(position, getChannel(key));
+         buffer.putInt(position + 4, getSlice(key));
+         buffer.putInt(position + 8, getFrame(key));
+         buffer.putInt(position + 12, getPosition(key));
+         buffer.putInt(position + 16, (int) get(key));
+         position += 20;
+      }
+   }
+
+   /**
+    * Returns a copy of all keys, in no particular order
+    */
+   public long[] keys() {
+      long[] table = table_;
+      long[] keys = new long[size_];
+      int n = 0;
+      for (int i = 0; i < table.length && n < keys.length; i += 2) {
+         if (table[i] != EMPTY) {
+            keys[n++] = table[i];
+         }
+      }
+      return keys;
+   }
+
+   private static boolean insert(long[] table, long key, long value) {
+      int mask = table.length / 2 - 1;
+      int slot = hash(key) & mask;
+      while (table[2 * slot] != EMPTY && table[2 * slot] != key) {
+         slot = (slot + 1) & mask;
+      }
+      boolean newKey = table[2 * slot] == EMPTY;
+      //value first, so a concurrent reader that finds the key finds its value
+      table[2 * slot + 1] = value;
+      table[2 * slot] = key;
+      return newKey;
+   }
+
+   private void resize() {
+      long[] oldTable = table_;
+      long[] table = newTable(oldTable.length);
+      for (int i = 0; i < oldTable.length; i += 2) {
+         if (oldTable[i] != EMPTY) {
+            insert(table, oldTable[i], oldTable[i + 1]);
+         }
+      }
+      table_ = table;
+   }
+
+   //capacity is the number of slots, always a power of 2
+   private static long[] newTable(int capacity) {
+      long[] table = new long[2 * capacity];
+      Arrays.fill(table, EMPTY);
+      return table;
+   }
+
+   private static int hash(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+   }
+}
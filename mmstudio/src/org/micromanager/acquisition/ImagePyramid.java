@@ -0,0 +1,152 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ImagePyramid.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+/**
+ * Downsampled copies of an 8 or 16 bit image plane, each half the width and
+ * height of the one before, made by averaging 2x2 blocks of pixels. Level 0 is
+ * the plane itself and isn't held here, so that a pyramid can be kept in a
+ * WeakHashMap keyed by the plane's pixel array. As the pixels may be changed
+ * in place, a checksum of them is kept to tell whether the pyramid is stale.
+ */
+class ImagePyramid {
+
+   // Planes with fewer pixels are drawn from full resolution
+   public static final int MIN_PIXELS = 2048 * 2048;
+   // No level is made smaller than this in both directions
+   private static final int MIN_LEVEL_SIZE = 256;
+
+   private final Object[] levels_;
+   private final int width_;
+   private final int height_;
+   private final long checksum_;
+
+   /**
+    * Returns true if pixels is an 8 or 16 bit plane big enough for a pyramid
+    */
+   public static boolean canBuild(Object pixels, int width, int height) {
+      int length = -1;
+      if (pixels instanceof byte[]) {
+         length = ((byte[]) pixels).length;
+      } else if (pixels instanceof short[]) {
+         length = ((short[]) pixels).length;
+      }
+      return length >= MIN_PIXELS && length == width * height;
+   }
+
+   public ImagePyramid(Object pixels, int width, int height) {
+      width_ = width;
+      height_ = height;
+      checksum_ = checksum(pixels);
+      int numLevels = 0;
+      while (Math.max(width >> (numLevels + 1), height >> (numLevels + 1)) >= MIN_LEVEL_SIZE) {
+         numLevels++;
+      }
+      levels_ = new Object[numLevels];
+      Object previous = pixels;
+      for (int level = 1; level <= numLevels; level++) {
+         previous = downsample(previous, getWidth(level - 1), getHeight(level - 1));
+         levels_[level - 1] = previous;
+      }
+   }
+
+   /**
+    * Returns true if the plane still holds the pixels the pyramid was made from
+    */
+   public boolean matches(Object pixels) {
+      return checksum(pixels) == checksum_;
+   }
+
+   /*
+    * Sum of the pixel values weighted by position, so that changing any pixel
+    * or swapping two different ones changes it
+    */
+   private static long checksum(Object pixels) {
+      long sum = 0;
+      if (pixels instanceof byte[]) {
+         byte[] bytes = (byte[]) pixels;
+         for (int i = 0; i < bytes.length; i++) {
+            sum += (bytes[i] & 0xff) * (2L * i + 1);
+         }
+      } else {
+         short[] shorts = (short[]) pixels;
+         for (int i = 0; i < shorts.length; i++) {
+            sum += (shorts[i] & 0xffff) * (2L * i + 1);
+         }
+      }
+      return sum;
+   }
+
+   /**
+    * Returns the highest level, counting the plane itself as level 0
+    */
+   public int getMaxLevel() {
+      return levels_.length;
+   }
+
+   /**
+    * Returns the pixels of a level from 1 to getMaxLevel()
+    */
+   public Object getLevel(int level) {
+      return levels_[level - 1];
+   }
+
+   public int getWidth(int level) {
+      return (width_ + (1 << level) - 1) >> level;
+   }
+
+   public int getHeight(int level) {
+      return (height_ + (1 << level) - 1) >> level;
+   }
+
+   private static Object downsample(Object pixels, int width, int height) {
+      int w = (width + 1) / 2;
+      int h = (height + 1) / 2;
+      if (pixels instanceof byte[]) {
+         byte[] src = (byte[]) pixels;
+         byte[] dest = new byte[w * h];
+         for (int y = 0; y < h; y++) {
+            int row0 = 2 * y * width;
+            int row1 = Math.min(2 * y + 1, height - 1) * width;
+            for (int x = 0; x < w; x++) {
+               int x0 = 2 * x;
+               int x1 = Math.min(x0 + 1, width - 1);
+               dest[y * w + x] = (byte) (((src[row0 + x0] & 0xff) + (src[row0 + x1] & 0xff)
+                       + (src[row1 + x0] & 0xff) + (src[row1 + x1] & 0xff) + 2) >> 2);
+            }
+         }
+         return dest;
+      } else {
+         short[] src = (short[]) pixels;
+         short[] dest = new short[w * h];
+         for (int y = 0; y < h; y++) {
+            int row0 = 2 * y * width;
+            int row1 = Math.min(2 * y + 1, height - 1) * width;
+            for (int x = 0; x < w; x++) {
+               int x0 = 2 * x;
+               int x1 = Math.min(x0 + 1, width - 1);
+               dest[y * w + x] = (short) (((src[row0 + x0] & 0xffff) + (src[row0 + x1] & 0xffff)
+                       + (src[row1 + x0] & 0xffff) + (src[row1 + x1] & 0xffff) + 2) >> 2);
+            }
+         }
+         return dest;
+      }
+   }
+}
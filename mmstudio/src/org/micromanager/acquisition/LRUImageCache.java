@@ -0,0 +1,299 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LRUImageCache.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import mmcorej.TaggedImage;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Least recently used cache of images read from disk, shared by all open datasets
+ * and limited by the number of bytes of pixels it holds. Images are keyed by the
+ * dataset they belong to (the owner) and their channel, slice, frame and position
+ * indices. When consecutive requests for a channel step through slices or frames,
+ * the next images in the same direction are read ahead on a background thread.
+ */
+public class LRUImageCache {
+
+   //Rough allowance for the metadata held with each image
+   private static final int TAGS_BYTES_ESTIMATE = 2048;
+   private static final int NUM_TO_PREFETCH = 2;
+
+   private static LRUImageCache instance_;
+
+   private final LinkedHashMap<Key, Entry> entries_;
+   //Last indices requested for each owner and channel, used to detect scrolling
+   private final HashMap<Key, Key> lastRequests_;
+   private final ExecutorService prefetchExecutor_;
+   private long maxBytes_;
+   private long bytes_ = 0;
+   private long hits_ = 0, misses_ = 0;
+   //Incremented by clear, so that images that were being read when an owner was
+   //cleared are not added back afterwards
+   private long generation_ = 0;
+
+   /**
+    * Reads an image that is not in the cache. Loaders must read the image itself,
+    * not go through the cache, since read-ahead loads must not count as requests
+    */
+   public interface ImageLoader {
+      public TaggedImage loadImage(int channel, int slice, int frame, int position);
+   }
+
+   /**
+    * Implemented by storages that keep the images they read in this cache
+    * themselves, so that their callers don't cache them again
+    */
+   public interface SharedCacheUser {
+   }
+
+   public static synchronized LRUImageCache getInstance() {
+      if (instance_ == null) {
+         instance_ = new LRUImageCache(Runtime.getRuntime().maxMemory() / 8);
+      }
+      return instance_;
+   }
+
+   public LRUImageCache(long maxBytes) {
+      maxBytes_ = maxBytes;
+      entries_ = new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+      lastRequests_ = new HashMap<Key, Key>();
+      prefetchExecutor_ = Executors.newFixedThreadPool(1, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Image cache prefetch");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   public synchronized void setMaxBytes(long maxBytes) {
+      maxBytes_ = maxBytes;
+      evict();
+   }
+
+   public synchronized long getMaxBytes() {
+      return maxBytes_;
+   }
+
+   public synchronized long getBytes() {
+      return bytes_;
+   }
+
+   public synchronized double getHitRate() {
+      return hits_ + misses_ == 0 ? 0 : hits_ / (double) (hits_ + misses_);
+   }
+
+   /**
+    * Returns the image from the cache or, if it isn't there, reads it with the
+    * loader and adds it to the cache. Also reads ahead if the owner is being
+    * scrolled through slices or frames
+    */
+   public TaggedImage getImage(Object owner, ImageLoader loader, int channel,
+           int slice, int frame, int position) {
+      TaggedImage img;
+      long generation;
+      synchronized (this) {
+         img = getCachedImage(owner, channel, slice, frame, position);
+         generation = generation_;
+      }
+      prefetchInScrollDirection(owner, loader, channel, slice, frame, position);
+      if (img != null) {
+         return img;
+      }
+      img = loader.loadImage(channel, slice, frame, position);
+      if (img != null) {
+         putImage(owner, img, channel, slice, frame, position, generation);
+      }
+      return img;
+   }
+
+   /**
+    * Returns the image if it is in the cache, or null
+    */
+   public synchronized TaggedImage getCachedImage(Object owner, int channel, int slice,
+           int frame, int position) {
+      Entry entry = entries_.get(new Key(owner, channel, slice, frame, position));
+      if (entry == null) {
+         misses_++;
+         return null;
+      }
+      hits_++;
+      return entry.image;
+   }
+
+   public synchronized void putImage(Object owner, TaggedImage img, int channel, int slice,
+           int frame, int position) {
+      Entry entry = new Entry(img);
+      Entry old = entries_.put(new Key(owner, channel, slice, frame, position), entry);
+      if (old != null) {
+         bytes_ -= old.bytes;
+      }
+      bytes_ += entry.bytes;
+      evict();
+   }
+
+   /**
+    * Adds an image read by the cache, unless an owner was cleared while it was read
+    */
+   private synchronized void putImage(Object owner, TaggedImage img, int channel, int slice,
+           int frame, int position, long generation) {
+      if (generation == generation_) {
+         putImage(owner, img, channel, slice, frame, position);
+      }
+   }
+
+   /**
+    * Drops all images belonging to the owner, e.g. when its dataset is closed
+    */
+   public synchronized void clear(Object owner) {
+      generation_++;
+      Iterator<Key> keys = entries_.keySet().iterator();
+      while (keys.hasNext()) {
+         Key key = keys.next();
+         if (key.owner == owner) {
+            bytes_ -= entries_.get(key).bytes;
+            keys.remove();
+         }
+      }
+      keys = lastRequests_.keySet().iterator();
+      while (keys.hasNext()) {
+         if (keys.next().owner == owner) {
+            keys.remove();
+         }
+      }
+   }
+
+   private void evict() {
+      Iterator<Entry> eldest = entries_.values().iterator();
+      while (bytes_ > maxBytes_ && eldest.hasNext()) {
+         bytes_ -= eldest.next().bytes;
+         eldest.remove();
+      }
+   }
+
+   private void prefetchInScrollDirection(final Object owner, final ImageLoader loader,
+           final int channel, final int slice, final int frame, final int position) {
+      Key last;
+      final long generation;
+      synchronized (this) {
+         last = lastRequests_.put(new Key(owner, channel, 0, 0, 0),
+                 new Key(owner, channel, slice, frame, position));
+         generation = generation_;
+      }
+      if (last == null || last.position != position) {
+         return;
+      }
+      final int sliceStep = slice - last.slice;
+      final int frameStep = frame - last.frame;
+      //Only read ahead when stepping by one along a single axis
+      if (Math.abs(sliceStep) + Math.abs(frameStep) != 1) {
+         return;
+      }
+      prefetchExecutor_.submit(new Runnable() {
+         public void run() {
+            for (int i = 1; i <= NUM_TO_PREFETCH; i++) {
+               int s = slice + i * sliceStep;
+               int f = frame + i * frameStep;
+               if (s < 0 || f < 0) {
+                  return;
+               }
+               synchronized (LRUImageCache.this) {
+                  if (generation != generation_) {
+                     return;
+                  }
+                  if (entries_.containsKey(new Key(owner, channel, s, f, position))) {
+                     continue;
+                  }
+               }
+               try {
+                  TaggedImage img = loader.loadImage(channel, s, f, position);
+                  if (img == null) {
+                     return;
+                  }
+                  putImage(owner, img, channel, s, f, position, generation);
+               } catch (Exception ex) {
+                  ReportingUtils.logError(ex);
+                  return;
+               }
+            }
+         }
+      });
+   }
+
+   private static long getBytes(TaggedImage img) {
+      long bytes = TAGS_BYTES_ESTIMATE;
+      if (img.pix instanceof byte[]) {
+         bytes += ((byte[]) img.pix).length;
+      } else if (img.pix instanceof short[]) {
+         bytes += 2L * ((short[]) img.pix).length;
+      } else if (img.pix instanceof int[]) {
+         bytes += 4L * ((int[]) img.pix).length;
+      }
+      return bytes;
+   }
+
+   private static class Entry {
+      final TaggedImage image;
+      final long bytes;
+
+      Entry(TaggedImage img) {
+         image = img;
+         bytes = getBytes(img);
+      }
+   }
+
+   private static class Key {
+      final Object owner;
+      final int channel, slice, frame, position;
+
+      Key(Object own, int c, int s, int f, int p) {
+         owner = own;
+         channel = c;
+         slice = s;
+         frame = f;
+         position = p;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Key)) {
+            return false;
+         }
+         Key k = (Key) o;
+         return owner == k.owner && channel == k.channel && slice == k.slice
+                 && frame == k.frame && position == k.position;
+      }
+
+      @Override
+      public int hashCode() {
+         int hash = System.identityHashCode(owner);
+         hash = 31 * hash + channel;
+         hash = 31 * hash + slice;
+         hash = 31 * hash + frame;
+         return 31 * hash + position;
+      }
+   }
+}
@@ -0,0 +1,176 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LatestImageQueue.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+
+/**
+ * Queue of live images that holds only the latest image of each channel. An
+ * image that arrives while the previous image of its channel is still waiting
+ * replaces it, and the replaced image is counted as dropped, so a display that
+ * can't keep up shows the newest images instead of falling further behind.
+ * Channels are taken in turn. TaggedImageQueue.POISON is passed on once
+ * the waiting images have been taken.
+ */
+class LatestImageQueue extends AbstractQueue<TaggedImage>
+        implements BlockingQueue<TaggedImage> {
+
+   private final ArrayList<TaggedImage> slots_ = new ArrayList<TaggedImage>();
+   private int nextSlot_ = 0;
+   private int size_ = 0;
+   private boolean poisoned_ = false;
+   private long numDropped_ = 0;
+
+   /**
+    * Returns the number of images that were replaced before being taken
+    */
+   public synchronized long getNumDropped() {
+      return numDropped_;
+   }
+
+   @Override
+   public synchronized boolean offer(TaggedImage image) {
+      if (TaggedImageQueue.isPoison(image)) {
+         poisoned_ = true;
+      } else {
+         int channel = Math.max(0, image.tags.optInt("ChannelIndex", 0));
+         while (slots_.size() <= channel) {
+            slots_.add(null);
+         }
+         if (slots_.set(channel, image) == null) {
+            size_++;
+         } else {
+            numDropped_++;
+         }
+      }
+      notifyAll();
+      return true;
+   }
+
+   @Override
+   public synchronized TaggedImage poll() {
+      if (size_ == 0) {
+         if (poisoned_) {
+            poisoned_ = false;
+            return TaggedImageQueue.POISON;
+         }
+         return null;
+      }
+      int slot = nextFullSlot();
+      nextSlot_ = slot + 1;
+      size_--;
+      return slots_.set(slot, null);
+   }
+
+   @Override
+   public synchronized TaggedImage peek() {
+      if (size_ == 0) {
+         return poisoned_ ? TaggedImageQueue.POISON : null;
+      }
+      return slots_.get(nextFullSlot());
+   }
+
+   private int nextFullSlot() {
+      int n = slots_.size();
+      for (int i = 0; i < n; i++) {
+         int slot = (nextSlot_ + i) % n;
+         if (slots_.get(slot) != null) {
+            return slot;
+         }
+      }
+      throw new IllegalStateException("No image waiting");
+   }
+
+   @Override
+   public synchronized int size() {
+      return size_ + (poisoned_ ? 1 : 0);
+   }
+
+   @Override
+   public synchronized Iterator<TaggedImage> iterator() {
+      ArrayList<TaggedImage> images = new ArrayList<TaggedImage>();
+      for (TaggedImage image : slots_) {
+         if (image != null) {
+            images.add(image);
+         }
+      }
+      if (poisoned_) {
+         images.add(TaggedImageQueue.POISON);
+      }
+      return images.iterator();
+   }
+
+   @Override
+   public void put(TaggedImage image) {
+      offer(image);
+   }
+
+   @Override
+   public boolean offer(TaggedImage image, long timeout, TimeUnit unit) {
+      return offer(image);
+   }
+
+   @Override
+   public synchronized TaggedImage take() throws InterruptedException {
+      while (size() == 0) {
+         wait();
+      }
+      return poll();
+   }
+
+   @Override
+   public synchronized TaggedImage poll(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (size() == 0) {
+         long remaining = deadline - System.nanoTime();
+         if (remaining <= 0) {
+            return null;
+         }
+         TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return poll();
+   }
+
+   @Override
+   public int remainingCapacity() {
+      return Integer.MAX_VALUE;
+   }
+
+   @Override
+   public int drainTo(Collection<? super TaggedImage> c) {
+      return drainTo(c, Integer.MAX_VALUE);
+   }
+
+   @Override
+   public synchronized int drainTo(Collection<? super TaggedImage> c, int maxElements) {
+      int n = 0;
+      while (n < maxElements && size() > 0) {
+         c.add(poll());
+         n++;
+      }
+      return n;
+   }
+}
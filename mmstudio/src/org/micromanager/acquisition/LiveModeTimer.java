@@ -21,15 +21,19 @@
 //
 package org.micromanager.acquisition;
 
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import mmcorej.CMMCore;
@@ -44,12 +48,18 @@ import org.micromanager.utils.ReportingUtils;
  * This class extends the java swing timer.  It periodically retrieves images
  * from the core and displays them in the live window
  * 
+ * Images are retrieved at most as often as the monitor refreshes, and are
+ * handed to the display through a LatestImageQueue, so that when the display
+ * falls behind, older images of a channel are dropped instead of piling up.
+ * 
  * @author Henry Pinkard
  */
 public class LiveModeTimer {
 
    private static final String CCHANNELINDEX = "CameraChannelIndex";
    private static final String ACQ_NAME = MMStudioMainFrame.SIMPLE_ACQ;
+   private static final int DEFAULT_REFRESH_RATE = 60;
+   private static final int MAX_RETRIEVAL_TIMES = 64;
    private VirtualAcquisitionDisplay win_;
    private CMMCore core_;
    private MMStudioMainFrame gui_;
@@ -65,7 +75,22 @@ public class LiveModeTimer {
    private Timer timer_;
    private TimerTask task_;
    private MMStudioMainFrame.DisplayImageRoutine displayImageRoutine_;
-    private LinkedBlockingQueue imageQueue_;
+   private LatestImageQueue imageQueue_;
+   // time each recent image was retrieved from the core, by camera channel
+   // and image number (see getRetrievalKey)
+   private final Map<String, Long> retrievalTimes_ = new LinkedHashMap<String, Long>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+         return size() > MAX_RETRIEVAL_TIMES;
+      }
+   };
+   // number of the last image queued for each camera channel, multi-camera only
+   private final Map<String, Long> lastChannelImageNumbers_ = new HashMap<String, Long>();
+   private volatile long shownRetrievalTime_;
+   private long numSkipped_;
+   private long oldNumDropped_;
+   private double latencySumMs_;
+   private long latencyCount_;
    
    public LiveModeTimer() {
       gui_ = MMStudioMainFrame.getInstance();
@@ -75,6 +100,7 @@ public class LiveModeTimer {
       displayImageRoutine_ = new MMStudioMainFrame.DisplayImageRoutine() {
          public void show(final TaggedImage ti) {
             try {
+               shownRetrievalTime_ = getRetrievalTime(ti);
                gui_.normalizeTags(ti);
                gui_.addImage(ACQ_NAME, ti, true, true);
                gui_.updateLineProfile();
@@ -86,11 +112,12 @@ public class LiveModeTimer {
    }
 
    /**
-    * Determines the optimum interval for the live mode timer task to happen
+    * Determines the optimum interval for the live mode timer task to happen:
+    * the exposure time, but no shorter than the monitor refresh interval.
     * As a side effect, also sets variable fpsInterval_
     */
    private long getInterval() {
-      double interval = 20;
+      double interval = Math.ceil(1000.0 / getRefreshRate());
       try {
          interval = Math.max(core_.getExposure(), interval);
       } catch (Exception e) {
@@ -103,6 +130,19 @@ public class LiveModeTimer {
       return (int) interval;
    }
 
+   private static int getRefreshRate() {
+      try {
+         int rate = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                 .getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+         if (rate != DisplayMode.REFRESH_RATE_UNKNOWN) {
+            return rate;
+         }
+      } catch (Exception e) {
+         ReportingUtils.logError(e, "Unable to get monitor refresh rate");
+      }
+      return DEFAULT_REFRESH_RATE;
+   }
+
    /**
     * Determines whether we are dealing with multiple cameras
     */
@@ -155,13 +195,22 @@ public class LiveModeTimer {
          lastImageNumber_ = imageNumber_ - 1;
          oldImageNumber_ = imageNumber_;
 
-         imageQueue_ = new LinkedBlockingQueue();
+         numSkipped_ = 0;
+         oldNumDropped_ = 0;
+         latencySumMs_ = 0;
+         latencyCount_ = 0;
+         shownRetrievalTime_ = 0;
+         synchronized (retrievalTimes_) {
+            retrievalTimes_.clear();
+         }
+         lastChannelImageNumbers_.clear();
+         imageQueue_ = new LatestImageQueue();
          timer_.schedule(task_, 0, delay);
          win_.liveModeEnabled(true);
          
          win_.getImagePlus().getWindow().toFront();
          running_ = true;
-         gui_.runDisplayThread(imageQueue_, displayImageRoutine_);
+         gui_.runDisplayThread(imageQueue_, displayImageRoutine_, true);
    }
 
    
@@ -170,12 +219,9 @@ public class LiveModeTimer {
    }
    
    private void stop(boolean firstAttempt) {
-        try {
-           if (imageQueue_ != null)
-               imageQueue_.put(TaggedImageQueue.POISON);
-        } catch (InterruptedException ex) {
-           ReportingUtils.logError(ex);
-        }
+      if (imageQueue_ != null) {
+         imageQueue_.put(TaggedImageQueue.POISON);
+      }
       if (timer_ != null) {
          timer_.cancel();
       }
@@ -215,11 +261,42 @@ public class LiveModeTimer {
    {
       imageNumber_ = imageNumber;
    }
+
+   /**
+    * Remembers when an image was retrieved from the core, so that the display
+    * latency can be measured once it has been drawn
+    */
+   private void setRetrievalTime(TaggedImage ti) throws JSONException {
+      synchronized (retrievalTimes_) {
+         retrievalTimes_.put(getRetrievalKey(ti), System.nanoTime());
+      }
+   }
+
+   private long getRetrievalTime(TaggedImage ti) {
+      try {
+         synchronized (retrievalTimes_) {
+            Long time = retrievalTimes_.remove(getRetrievalKey(ti));
+            return time == null ? 0 : time;
+         }
+      } catch (JSONException e) {
+         return 0;
+      }
+   }
+
+   /**
+    * Each camera of a multi-camera numbers its images separately, so image
+    * numbers are only unique together with the camera channel index
+    */
+   private static String getRetrievalKey(TaggedImage ti) throws JSONException {
+      return ti.tags.optInt("ChannelIndex", 0) + "_" + ti.tags.getLong("ImageNumber");
+   }
            
 
    /**
     * Updates the fps timer (how fast does the camera pump images into the 
-    * circular buffer) and display fps (how fast do we display the images)
+    * circular buffer), display fps (how fast do we display the images),
+    * display latency (from retrieving an image to drawing it) and the rate
+    * of camera images that were not displayed.
     * It is called from tasks that are doing the actual image drawing
     * 
     */
@@ -228,17 +305,32 @@ public class LiveModeTimer {
          return;
       try {
          fpsCounter_++;
+         long shown = shownRetrievalTime_;
+         if (shown != 0) {
+            shownRetrievalTime_ = 0;
+            latencySumMs_ += (System.nanoTime() - shown) / 1.0e6;
+            latencyCount_++;
+         }
          long now = System.currentTimeMillis();
          long diff = now - fpsTimer_;
          if (diff > fpsInterval_) {
             double d = diff/ 1000.0;
             double fps = fpsCounter_ / d;
             double dfps = (imageNumber_ - oldImageNumber_) / d;
+            long numDropped = numSkipped_ + imageQueue_.getNumDropped();
+            double droppedFps = (numDropped - oldNumDropped_) / d;
+            String latency = latencyCount_ > 0
+                    ? format_.format(latencySumMs_ / latencyCount_) + " ms" : "-";
             win_.displayStatusLine("fps: " + format_.format(dfps) +
-                    ", display fps: " + format_.format(fps));
+                    ", display fps: " + format_.format(fps) +
+                    ", latency: " + latency +
+                    ", dropped fps: " + format_.format(droppedFps));
             fpsCounter_ = 0;
             fpsTimer_ = now;
             oldImageNumber_ = imageNumber_;
+            oldNumDropped_ = numDropped;
+            latencySumMs_ = 0;
+            latencyCount_ = 0;
          }
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
@@ -266,7 +358,17 @@ public class LiveModeTimer {
                   
                   TaggedImage ti = core_.getLastTaggedImage();
                   // if we have already shown this image, do not do it again.
-                  setImageNumber(ti.tags.getLong("ImageNumber"));
+                  long imageNumber = ti.tags.getLong("ImageNumber");
+                  if (imageNumber == lastImageNumber_) {
+                     return;
+                  }
+                  // camera images that arrived since the last one were skipped
+                  synchronized (LiveModeTimer.this) {
+                     numSkipped_ += Math.max(0, imageNumber - lastImageNumber_ - 1);
+                  }
+                  lastImageNumber_ = imageNumber;
+                  setImageNumber(imageNumber);
+                  setRetrievalTime(ti);
                   imageQueue_.put(ti);
                } catch (Exception ex) {
                   ReportingUtils.logMessage("Stopping live mode because of error...");
@@ -301,9 +403,7 @@ public class LiveModeTimer {
                      if (ti.tags.has(camera + "-CameraChannelName")) {
                         channelName = ti.tags.getString(camera + "-CameraChannelName");
                         if (!cameraChannelsAcquired.contains(channelName)) {
-                           ti.tags.put("Channel", channelName);
-                           ti.tags.put("ChannelIndex", ti.tags.getInt(camera + "-CameraChannelIndex"));
-                           imageQueue_.put(ti);
+                           queueIfNew(ti, channelName, camera);
                            cameraChannelsAcquired.add(channelName);
                         }
                         if (cameraChannelsAcquired.size() == multiChannelCameraNrCh_) {
@@ -322,6 +422,28 @@ public class LiveModeTimer {
       };
    }
 
+   /**
+    * Queues the latest image of a camera channel unless it was queued on an
+    * earlier tick, and counts the images of the channel that were skipped
+    */
+   private void queueIfNew(TaggedImage ti, String channelName, String camera) throws JSONException {
+      long imageNumber = ti.tags.getLong("ImageNumber");
+      Long last = lastChannelImageNumbers_.get(channelName);
+      if (last != null && imageNumber <= last) {
+         return;
+      }
+      if (last != null) {
+         synchronized (this) {
+            numSkipped_ += Math.max(0, imageNumber - last - 1);
+         }
+      }
+      lastChannelImageNumbers_.put(channelName, imageNumber);
+      ti.tags.put("Channel", channelName);
+      ti.tags.put("ChannelIndex", ti.tags.getInt(camera + "-CameraChannelIndex"));
+      setRetrievalTime(ti);
+      imageQueue_.put(ti);
+   }
+
    private void addTags(TaggedImage ti, int channel) throws JSONException {
       MDUtils.setChannelIndex(ti.tags, channel);
       MDUtils.setFrameIndex(ti.tags, 0);
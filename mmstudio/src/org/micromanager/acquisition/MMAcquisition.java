@@ -136,7 +136,11 @@ public class MMAcquisition {
       imageCache_.setSummaryMetadata(summaryMetadata);
       if (show_) {
          virtAcq_ = new VirtualAcquisitionDisplay(imageCache_, eng);
-         imageCache_.addImageCacheListener(virtAcq_);
+         if (imageCache_ instanceof MMImageCache) {
+            ((MMImageCache) imageCache_).addImageCacheListener(virtAcq_, true);
+         } else {
+            imageCache_.addImageCacheListener(virtAcq_);
+         }
       }
          this.summary_ = summaryMetadata;
       } catch (JSONException ex) {
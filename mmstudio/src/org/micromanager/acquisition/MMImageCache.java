@@ -9,14 +9,15 @@ import java.awt.Color;
 import org.micromanager.api.ImageCache;
 import org.micromanager.api.ImageCacheListener;
 import java.util.ArrayList;
-import java.util.Collections;
 import org.micromanager.api.TaggedImageStorage;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import javax.swing.SwingUtilities;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
@@ -35,37 +36,95 @@ import org.micromanager.utils.ReportingUtils;
 public class MMImageCache implements ImageCache {
 
    public static String menuName_ = null;
-   public final List<ImageCacheListener> imageStorageListeners_ = Collections.synchronizedList(new ArrayList<ImageCacheListener>());
+   //Number of undelivered images kept for listeners that only want the latest ones
+   private static final int DROP_OLD_QUEUE_SIZE = 1;
+   //Number of undelivered images after which putImage waits for other listeners
+   private static final int LISTENER_QUEUE_SIZE = 8;
+   //Runs the delivery loops of all listeners of all caches
+   private static final ExecutorService listenerExecutor_ = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, "Image cache listener");
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+   //Copied on every change, so notifying listeners never waits for a lock
+   private final CopyOnWriteArrayList<ListenerQueue> listeners_ = new CopyOnWriteArrayList<ListenerQueue>();
    private TaggedImageStorage imageStorage_;
-   private Set<String> changingKeys_;
+   //Keys are only ever added, and are read by the metadata panel while images arrive
+   private final Set<String> changingKeys_;
    private JSONObject firstTags_;
    private int lastFrame_ = -1;
    private JSONObject lastTags_;
    private final ExecutorService fileExecutor_;
+   private final LRUImageCache imageCache_;
+   private final LRUImageCache.ImageLoader imageLoader_;
 
    public void addImageCacheListener(ImageCacheListener l) {
-      synchronized (imageStorageListeners_) {
-         imageStorageListeners_.add(l);
-      }
+      addImageCacheListener(l, false);
+   }
+
+   /*
+    * Adds the provided cache listener. Listeners are notified on their own
+    * thread, in the order images were received. If dropOldImages is true,
+    * images the listener hasn't gotten to yet are skipped in favor of newer
+    * ones, which suits listeners that only display the latest image. Otherwise
+    * putImage waits while the listener is too far behind.
+    */
+   public void addImageCacheListener(ImageCacheListener l, boolean dropOldImages) {
+      listeners_.add(new ListenerQueue(l, 
+              dropOldImages ? DROP_OLD_QUEUE_SIZE : LISTENER_QUEUE_SIZE, dropOldImages));
    }
 
    public ImageCacheListener[] getImageCacheListeners() {
-      synchronized (imageStorageListeners_) {
-         return (ImageCacheListener[]) imageStorageListeners_.toArray();
+      ArrayList<ImageCacheListener> listeners = new ArrayList<ImageCacheListener>();
+      for (ListenerQueue q : listeners_) {
+         listeners.add(q.listener_);
       }
+      return listeners.toArray(new ImageCacheListener[listeners.size()]);
    }
 
    public void removeImageCacheListener(ImageCacheListener l) {
-      synchronized (imageStorageListeners_) {
-         imageStorageListeners_.remove(l);
+      for (ListenerQueue q : listeners_) {
+         if (q.listener_ == l) {
+            q.close();
+            listeners_.remove(q);
+         }
+      }
+   }
+   
+   /**
+    * Number of images that listeners added with dropOldImages skipped
+    */
+   public long getNumDroppedImages() {
+      long dropped = 0;
+      for (ListenerQueue q : listeners_) {
+         dropped += q.getNumDropped();
+      }
+      return dropped;
+   }
+
+   /**
+    * Number of times putImage waited for a listener to catch up
+    */
+   public long getNumListenerWaits() {
+      long waits = 0;
+      for (ListenerQueue q : listeners_) {
+         waits += q.getNumWaits();
       }
+      return waits;
    }
 
    public MMImageCache(TaggedImageStorage imageStorage) {
       imageStorage_ = imageStorage;
-      changingKeys_ = new HashSet<String>();
+      changingKeys_ = new CopyOnWriteArraySet<String>();
       fileExecutor_ = Executors.newFixedThreadPool(1);
-
+      imageCache_ = LRUImageCache.getInstance();
+      imageLoader_ = new LRUImageCache.ImageLoader() {
+         public TaggedImage loadImage(int channel, int slice, int frame, int position) {
+            return imageStorage_.getImage(channel, slice, frame, position);
+         }
+      };
    }
 
    private void preloadImages() {
@@ -83,10 +142,14 @@ public class MMImageCache implements ImageCache {
    public void finished() {
       imageStorage_.finished();
       String path = getDiskLocation();
-      synchronized (imageStorageListeners_) {
-         for (ImageCacheListener l : imageStorageListeners_) {
-            l.imagingFinished(path);
-         }
+      for (ListenerQueue q : listeners_) {
+         q.addFinished(path);
+      }
+      long dropped = getNumDroppedImages();
+      long waits = getNumListenerWaits();
+      if (dropped > 0 || waits > 0) {
+         ReportingUtils.logMessage("Image cache listeners skipped " + dropped 
+                 + " images, and held up adding images " + waits + " times");
       }
    }
 
@@ -118,10 +181,12 @@ public class MMImageCache implements ImageCache {
    }
 
    public void close() {
+      imageCache_.clear(imageStorage_);
       imageStorage_.close();
-      synchronized (imageStorageListeners_) {
-         imageStorageListeners_.clear();
+      for (ListenerQueue q : listeners_) {
+         q.close();
       }
+      listeners_.clear();
    }
 
    public void saveAs(TaggedImageStorage newImageFileManager) {
@@ -187,10 +252,8 @@ public class MMImageCache implements ImageCache {
             }
          }
 
-         synchronized (imageStorageListeners_) {
-            for (ImageCacheListener l : imageStorageListeners_) {
-               l.imageReceived(taggedImg);
-            }
+         for (ListenerQueue q : listeners_) {
+            q.addImage(taggedImg);
          }
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
@@ -206,7 +269,13 @@ public class MMImageCache implements ImageCache {
    public TaggedImage getImage(int channel, int slice, int frame, int position) {
       TaggedImage taggedImg = null;
       if (taggedImg == null) {
-         taggedImg = imageStorage_.getImage(channel, slice, frame, position);
+         if (imageStorage_ instanceof TaggedImageStorageRam
+                 || imageStorage_ instanceof LRUImageCache.SharedCacheUser) {
+            //already in memory, or cached by the storage
+            taggedImg = imageStorage_.getImage(channel, slice, frame, position);
+         } else {
+            taggedImg = imageCache_.getImage(imageStorage_, imageLoader_, channel, slice, frame, position);
+         }
          if (taggedImg != null) {
             checkForChangingTags(taggedImg);
          }
@@ -223,24 +292,45 @@ public class MMImageCache implements ImageCache {
       return tags;
    }
 
+   /**
+    * Adds the keys whose values differ from those of the first image to
+    * changingKeys_. Keys already known to change are skipped, so once all
+    * changing keys have been found only lookups in changingKeys_ are left
+    */
    private void checkForChangingTags(TaggedImage taggedImg) {
-      if (firstTags_ == null) {
-         firstTags_ = taggedImg.tags;
-      } else {
-         Iterator<String> keys = taggedImg.tags.keys();
-         while (keys.hasNext()) {
-            String key = keys.next();
-            try {
-               if (!taggedImg.tags.isNull(key)) {
-                  if (!firstTags_.has(key) || firstTags_.isNull(key)) {
-                     changingKeys_.add(key);
-                  } else if (!taggedImg.tags.getString(key).contentEquals(firstTags_.getString(key))) {
+      JSONObject firstTags;
+      synchronized (this) {
+         if (firstTags_ == null) {
+            firstTags_ = taggedImg.tags;
+            return;
+         }
+         firstTags = firstTags_;
+      }
+      if (taggedImg.tags == firstTags) {
+         return;
+      }
+      Iterator<String> keys = taggedImg.tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         if (changingKeys_.contains(key)) {
+            continue;
+         }
+         try {
+            if (!taggedImg.tags.isNull(key)) {
+               if (!firstTags.has(key) || firstTags.isNull(key)) {
+                  changingKeys_.add(key);
+               } else {
+                  Object value = taggedImg.tags.get(key);
+                  Object firstValue = firstTags.get(key);
+                  //compare as strings only when the values aren't trivially equal
+                  if (!value.equals(firstValue)
+                          && !taggedImg.tags.getString(key).contentEquals(firstTags.getString(key))) {
                      changingKeys_.add(key);
                   }
                }
-            } catch (Exception e) {
-               ReportingUtils.logError(e);
             }
+         } catch (Exception e) {
+            ReportingUtils.logError(e);
          }
       }
    }
@@ -495,4 +585,123 @@ public class MMImageCache implements ImageCache {
    public long getDataSetSize() {
       throw new UnsupportedOperationException("Not supported yet.");
    }
+
+   /**
+    * Delivers images and the end of imaging to one listener, on a thread of
+    * listenerExecutor_, so slow listeners don't hold up each other. At most
+    * maxImages undelivered images are kept: when another one arrives, either the
+    * oldest is dropped, or the thread adding it waits until the listener has
+    * taken one. The end of imaging is never dropped.
+    */
+   private static class ListenerQueue implements Runnable {
+
+      private final ImageCacheListener listener_;
+      private final int maxImages_;
+      private final boolean dropOld_;
+      private final LinkedList<Object> events_ = new LinkedList<Object>();
+      private int numImages_ = 0;
+      private long numDropped_ = 0;
+      private long numWaits_ = 0;
+      private boolean scheduled_ = false;
+      private boolean closed_ = false;
+      //the thread running the listener, which must never wait for itself
+      private Thread deliveryThread_ = null;
+
+      ListenerQueue(ImageCacheListener listener, int maxImages, boolean dropOld) {
+         listener_ = listener;
+         maxImages_ = maxImages;
+         dropOld_ = dropOld;
+      }
+
+      synchronized void addImage(TaggedImage img) {
+         if (!dropOld_ && numImages_ >= maxImages_ && !closed_
+                 && Thread.currentThread() != deliveryThread_) {
+            numWaits_++;
+            try {
+               while (numImages_ >= maxImages_ && !closed_) {
+                  wait();
+               }
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         if (dropOld_ && numImages_ >= maxImages_) {
+            Iterator<Object> it = events_.iterator();
+            while (it.hasNext()) {
+               if (it.next() instanceof TaggedImage) {
+                  it.remove();
+                  numImages_--;
+                  numDropped_++;
+                  break;
+               }
+            }
+         }
+         events_.add(img);
+         numImages_++;
+         schedule();
+      }
+
+      synchronized void addFinished(String path) {
+         events_.add(new ImagingFinished(path));
+         schedule();
+      }
+
+      synchronized void close() {
+         closed_ = true;
+         events_.clear();
+         numImages_ = 0;
+         notifyAll();
+      }
+
+      synchronized long getNumDropped() {
+         return numDropped_;
+      }
+
+      synchronized long getNumWaits() {
+         return numWaits_;
+      }
+
+      private void schedule() {
+         if (!scheduled_ && !closed_) {
+            scheduled_ = true;
+            listenerExecutor_.execute(this);
+         }
+      }
+
+      public void run() {
+         while (true) {
+            Object event;
+            synchronized (this) {
+               event = events_.poll();
+               if (event == null || closed_) {
+                  scheduled_ = false;
+                  deliveryThread_ = null;
+                  return;
+               }
+               deliveryThread_ = Thread.currentThread();
+               if (event instanceof TaggedImage) {
+                  numImages_--;
+                  notifyAll();
+               }
+            }
+            try {
+               if (event instanceof TaggedImage) {
+                  listener_.imageReceived((TaggedImage) event);
+               } else {
+                  listener_.imagingFinished(((ImagingFinished) event).path);
+               }
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+   }
+
+   private static class ImagingFinished {
+      final String path;
+
+      ImagingFinished(String p) {
+         path = p;
+      }
+   }
 }
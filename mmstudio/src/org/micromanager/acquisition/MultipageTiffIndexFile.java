@@ -0,0 +1,152 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MultipageTiffIndexFile.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import org.micromanager.utils.ReportingUtils;
+
+/**
+ * Index of all images in a multipage tiff dataset, kept in one small file next
+ * to the tiff files so that reopening the dataset doesn't need to read the index
+ * map of every tiff file. The name, length and modification time of each tiff
+ * file are recorded, and the index is ignored if any of them has changed.
+ */
+class MultipageTiffIndexFile {
+
+   public static final String FILENAME = "MMImageIndex.bin";
+   private static final int MAGIC = 0x4d4d4958;
+   private static final int VERSION = 1;
+
+   /**
+    * Writes the index maps of the given readers, all of which must be open on
+    * finished files in the directory
+    */
+   public static void write(String directory, List<MultipageTiffReader> readers) {
+      File file = new File(directory, FILENAME);
+      File tempFile = new File(directory, FILENAME + ".tmp");
+      DataOutputStream out = null;
+      try {
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(readers.size());
+         for (MultipageTiffReader reader : readers) {
+            File tiff = reader.getFile();
+            ImageIndexMap indexMap = reader.getIndexMap();
+            long[] keys = indexMap.keys();
+            out.writeUTF(tiff.getName());
+            out.writeLong(tiff.length());
+            out.writeLong(tiff.lastModified());
+            out.writeInt(keys.length);
+            for (long key : keys) {
+               out.writeLong(key);
+               out.writeLong(indexMap.get(key));
+            }
+         }
+         out.close();
+         out = null;
+         file.delete();
+         if (!tempFile.renameTo(file)) {
+            ReportingUtils.logError("Couldn't write image index file in " + directory);
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't write image index file in " + directory);
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+            tempFile.delete();
+         }
+      }
+   }
+
+   /**
+    * Returns the index map of each of the given tiff files, in the same order, or
+    * null if there is no index file or it doesn't match the tiff files
+    */
+   public static ImageIndexMap[] read(String directory, File[] tiffFiles) {
+      File file = new File(directory, FILENAME);
+      if (!file.exists()) {
+         return null;
+      }
+      HashMap<String, File> filesByName = new HashMap<String, File>();
+      for (File tiff : tiffFiles) {
+         filesByName.put(tiff.getName(), tiff);
+      }
+      HashMap<String, ImageIndexMap> mapsByName = new HashMap<String, ImageIndexMap>();
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+         }
+         int numFiles = in.readInt();
+         if (numFiles != tiffFiles.length) {
+            return null;
+         }
+         for (int i = 0; i < numFiles; i++) {
+            File tiff = filesByName.get(in.readUTF());
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            if (tiff == null || tiff.length() != length || tiff.lastModified() != lastModified) {
+               return null;
+            }
+            ImageIndexMap indexMap = new ImageIndexMap();
+            int numEntries = in.readInt();
+            for (int j = 0; j < numEntries; j++) {
+               long key = in.readLong();
+               indexMap.put(key, in.readLong());
+            }
+            mapsByName.put(tiff.getName(), indexMap);
+         }
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex, "Couldn't read image index file in " + directory);
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException ex) {
+               ReportingUtils.logError(ex);
+            }
+         }
+      }
+      ImageIndexMap[] indexMaps = new ImageIndexMap[tiffFiles.length];
+      for (int i = 0; i < tiffFiles.length; i++) {
+         indexMaps[i] = mapsByName.get(tiffFiles[i].getName());
+         if (indexMaps[i] == null) {
+            return null;
+         }
+      }
+      return indexMaps;
+   }
+}
@@ -28,10 +28,11 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JOptionPane;
@@ -43,6 +44,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMException;
+import org.micromanager.utils.MemoryUtils;
 import org.micromanager.utils.ProgressBar;
 import org.micromanager.utils.ReportingUtils;
 
@@ -50,6 +52,10 @@ import org.micromanager.utils.ReportingUtils;
 public class MultipageTiffReader {
       
    private static final long BIGGEST_INT_BIT = (long) Math.pow(2, 31);
+   //Finished files are mapped in overlapping windows, each starting a stride after the
+   //previous one, so any region shorter than the stride lies entirely inside one window
+   private static final long MAPPED_WINDOW_STRIDE = 1L << 30;
+   private static final long MAPPED_WINDOW_SIZE = 2 * MAPPED_WINDOW_STRIDE - 1;
 
    
    public static final char BITS_PER_SAMPLE = MultipageTiffWriter.BITS_PER_SAMPLE;
@@ -71,7 +77,12 @@ public class MultipageTiffReader {
    private boolean rgb_;
    private boolean writingFinished_;
    
-   private HashMap<String,Long> indexMap_;
+   private ImageIndexMap indexMap_;
+   //null when the file is read through positioned FileChannel reads
+   private MappedByteBuffer[] mappedWindows_;
+   //held for reading while views of the mapping are in use, and for writing
+   //while the mapping is released
+   private final ReadWriteLock mapLock_ = new ReentrantReadWriteLock();
    
    /**
     * This constructor is used for a file that is currently being written
@@ -84,18 +95,35 @@ public class MultipageTiffReader {
       writingFinished_ = false;
    }
    
-   public void setIndexMap(HashMap<String,Long> indexMap) {
+   public void setIndexMap(ImageIndexMap indexMap) {
       indexMap_ = indexMap;
    }
    
    public void setFileChannel(FileChannel fc) {
       fileChannel_ = fc;
    }
+   
+   public void setFile(File file) {
+      file_ = file;
+   }
+   
+   public File getFile() {
+      return file_;
+   }
   
    /**
     * This constructor is used for opening datasets that have already been saved
     */
    public MultipageTiffReader(File file) throws IOException {
+      this(file, null);
+   }
+   
+   /**
+    * Opens a saved file whose index map has already been read, e.g. from the
+    * dataset's index file, so that it doesn't have to be read from the file itself.
+    * If indexMap is null, it is read from the file
+    */
+   public MultipageTiffReader(File file, ImageIndexMap indexMap) throws IOException {
       displayAndComments_ = new JSONObject();
       file_ = file;
       try {
@@ -107,7 +135,11 @@ public class MultipageTiffReader {
       long firstIFD = readHeader();
       summaryMetadata_ = readSummaryMD();
       try {
-         readIndexMap();
+         if (indexMap != null) {
+            indexMap_ = indexMap;
+         } else {
+            readIndexMap();
+         }
       } catch (Exception e) {
          ReportingUtils.showError("Can't read index map in file: " + file_.getName());
          try {
@@ -126,6 +158,7 @@ public class MultipageTiffReader {
       if (summaryMetadata_ != null) {
          getRGBAndByteDepth(summaryMetadata_);
       }
+      mapFile();
    }
    
    public static boolean isMMMultipageTiff(String directory) throws IOException {
@@ -207,15 +240,27 @@ public class MultipageTiffReader {
    }
    
    public TaggedImage readImage(String label) {
-      if (indexMap_.containsKey(label)) {
+      return readImage(ImageIndexMap.getKey(label));
+   }
+   
+   /**
+    * @param key image indices packed by ImageIndexMap.getKey
+    */
+   public TaggedImage readImage(long key) {
+      long byteOffset = indexMap_.get(key);
+      if (byteOffset != ImageIndexMap.NO_VALUE) {
+         mapLock_.readLock().lock();
          try {
-            long byteOffset = indexMap_.get(label);
-            
+            if (fileChannel_ == null) {
+               return null;
+            }
             IFDData data = readIFD(byteOffset);
             return readTaggedImage(data);
          } catch (IOException ex) {
             ReportingUtils.logError(ex);
             return null;
+         } finally {
+            mapLock_.readLock().unlock();
          }
          
       } else {
@@ -224,10 +269,8 @@ public class MultipageTiffReader {
       }
    }  
    
-   public Set<String> getIndexKeys() {
-      if (indexMap_ == null)
-         return null;
-      return indexMap_.keySet();
+   public ImageIndexMap getIndexMap() {
+      return indexMap_;
    }
 
    private JSONObject readSummaryMD() {
@@ -280,25 +323,35 @@ public class MultipageTiffReader {
          byte[] bytes = getBytesFromString(comments.toString());
          ByteBuffer byteCount = ByteBuffer.wrap(new byte[4]).order(byteOrder_).putInt(0,bytes.length);
          ByteBuffer buffer = ByteBuffer.wrap(bytes);
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, 24);
-         fileChannel_.write(byteCount,offset + 4);
-         fileChannel_.write(buffer, offset +8);
+         mapLock_.readLock().lock();
+         try {
+            long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.COMMENTS_OFFSET_HEADER, 24);
+            fileChannel_.write(byteCount,offset + 4);
+            fileChannel_.write(buffer, offset +8);
+         } finally {
+            mapLock_.readLock().unlock();
+         }
       }
       displayAndComments_.put("Comments", comments);
    }
 
    public void rewriteDisplaySettings(JSONArray settings) throws IOException, JSONException {
       if (writingFinished_) {
-         long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER, 16);        
-         int numReservedBytes = readIntoBuffer(offset + 4, 4).getInt(0);
-         byte[] blank = new byte[numReservedBytes];
-         for (int i = 0; i < blank.length; i++) {
-            blank[i] = 0;
+         mapLock_.readLock().lock();
+         try {
+            long offset = readOffsetHeaderAndOffset(MultipageTiffWriter.DISPLAY_SETTINGS_OFFSET_HEADER, 16);        
+            int numReservedBytes = readIntoBuffer(offset + 4, 4).getInt(0);
+            byte[] blank = new byte[numReservedBytes];
+            for (int i = 0; i < blank.length; i++) {
+               blank[i] = 0;
+            }
+            fileChannel_.write(ByteBuffer.wrap(blank), offset+8);
+            byte[] bytes = getBytesFromString(settings.toString());
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            fileChannel_.write(buffer, offset+8);
+         } finally {
+            mapLock_.readLock().unlock();
          }
-         fileChannel_.write(ByteBuffer.wrap(blank), offset+8);
-         byte[] bytes = getBytesFromString(settings.toString());
-         ByteBuffer buffer = ByteBuffer.wrap(bytes);
-         fileChannel_.write(buffer, offset+8);
       }
       displayAndComments_.put("Channels", settings);
    }
@@ -319,7 +372,50 @@ public class MultipageTiffReader {
       }
    }
    
+   /**
+    * Maps a finished file into memory so that IFDs, metadata and pixels can be
+    * read as views of the mapping rather than copied into newly allocated buffers.
+    * Falls back to FileChannel reads if the file can't be mapped (e.g. not enough
+    * address space on a 32 bit JVM)
+    */
+   private void mapFile() {
+      if (fileChannel_ == null) {
+         return;
+      }
+      try {
+         long size = fileChannel_.size();
+         int numWindows = (int) Math.max(1, (size + MAPPED_WINDOW_STRIDE - 1) / MAPPED_WINDOW_STRIDE);
+         MappedByteBuffer[] windows = new MappedByteBuffer[numWindows];
+         for (int i = 0; i < numWindows; i++) {
+            long start = i * MAPPED_WINDOW_STRIDE;
+            windows[i] = fileChannel_.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(MAPPED_WINDOW_SIZE, size - start));
+         }
+         mappedWindows_ = windows;
+      } catch (IOException ex) {
+         ReportingUtils.logError("Couldn't memory map file: " + file_.getName() + ", using unmapped reads");
+         mappedWindows_ = null;
+      }
+   }
+
+   /**
+    * Returns a buffer holding the given region of the file. For mapped files this is
+    * a view of the mapping, so its contents must be read with absolute get methods
+    * and must not be modified
+    */
    private ByteBuffer readIntoBuffer(long position, int length) throws IOException {
+      if (mappedWindows_ != null && length < MAPPED_WINDOW_STRIDE) {
+         int window = (int) (position / MAPPED_WINDOW_STRIDE);
+         if (window < mappedWindows_.length) {
+            ByteBuffer view = mappedWindows_[window].duplicate();
+            int start = (int) (position - window * MAPPED_WINDOW_STRIDE);
+            if (start + length <= view.capacity()) {
+               view.position(start);
+               view.limit(start + length);
+               return view.slice().order(byteOrder_);
+            }
+         }
+      }
       ByteBuffer buffer = ByteBuffer.allocate(length).order(byteOrder_);
       fileChannel_.read(buffer, position);
       return buffer;
@@ -341,7 +437,7 @@ public class MultipageTiffReader {
          throw new MMException("Error reading index map header");
       }
       int numMappings = header.getInt(4);
-      indexMap_ = new HashMap<String, Long>();
+      indexMap_ = new ImageIndexMap();
       ByteBuffer mapBuffer = readIntoBuffer(offset+8, 20*numMappings);     
       for (int i = 0; i < numMappings; i++) {
          int channel = mapBuffer.getInt(i*20);
@@ -349,7 +445,7 @@ public class MultipageTiffReader {
          int frame = mapBuffer.getInt(i*20+8);
          int position = mapBuffer.getInt(i*20+12);
          long imageOffset = unsignInt(mapBuffer.getInt(i*20+16));
-         indexMap_.put(MDUtils.generateLabel(channel, slice, frame, position), imageOffset);
+         indexMap_.put(ImageIndexMap.getKey(channel, slice, frame, position), imageOffset);
       }
    }
 
@@ -357,7 +453,7 @@ public class MultipageTiffReader {
       ByteBuffer buff = readIntoBuffer(byteOffset,2);
       int numEntries = buff.getChar(0);
      
-      ByteBuffer entries = readIntoBuffer(byteOffset + 2, numEntries*12 + 4).order(byteOrder_);
+      ByteBuffer entries = readIntoBuffer(byteOffset + 2, numEntries*12 + 4);
       IFDData data = new IFDData();
       for (int i = 0; i < numEntries; i++) {
          IFDEntry entry = readDirectoryEntry(i*12, entries);
@@ -377,6 +473,13 @@ public class MultipageTiffReader {
 
    private String getString(ByteBuffer buffer) {
       try {
+         if (!buffer.hasArray()) {
+            byte[] bytes = new byte[buffer.capacity()];
+            ByteBuffer view = buffer.duplicate();
+            view.clear();
+            view.get(bytes);
+            return new String(bytes, "US-ASCII");
+         }
          return new String(buffer.array(), "US-ASCII");
       } catch (UnsupportedEncodingException ex) {
          ReportingUtils.logError(ex);
@@ -385,10 +488,8 @@ public class MultipageTiffReader {
    }
    
    private TaggedImage readTaggedImage(IFDData data) throws IOException {
-      ByteBuffer pixelBuffer = ByteBuffer.allocate( (int) data.bytesPerImage);
-      ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength);
-      fileChannel_.read(pixelBuffer, data.pixelOffset);
-      fileChannel_.read(mdBuffer, data.mdOffset);
+      ByteBuffer pixelBuffer = readIntoBuffer(data.pixelOffset, (int) data.bytesPerImage);
+      ByteBuffer mdBuffer = readIntoBuffer(data.mdOffset, (int) data.mdLength);
       JSONObject md = null;
       try {
          md = new JSONObject(getString(mdBuffer));
@@ -400,12 +501,14 @@ public class MultipageTiffReader {
          getRGBAndByteDepth(md);
       }
       
+      //pixelBuffer may be a view of the mapped file, so pixels are copied out of it
+      //using absolute or bulk gets only
       if (rgb_) {
          if (byteDepth_ == 1) {
             byte[] pixels = new byte[(int) (4 * data.bytesPerImage / 3)];
             int i = 0;
-            for (byte b : pixelBuffer.array()) {
-               pixels[i] = b;
+            for (int j = 0; j < data.bytesPerImage; j++) {
+               pixels[i] = pixelBuffer.get(j);
                i++;
                if ((i + 1) % 4 == 0) {
                   pixels[i] = 0;
@@ -428,12 +531,16 @@ public class MultipageTiffReader {
          }
       } else {
          if (byteDepth_ == 1) {
-            return new TaggedImage(pixelBuffer.array(), md);
+            if (pixelBuffer.hasArray()) {
+               return new TaggedImage(pixelBuffer.array(), md);
+            }
+            byte[] pix = new byte[pixelBuffer.capacity()];
+            pixelBuffer.get(pix);
+            return new TaggedImage(pix, md);
          } else {
             short[] pix = new short[pixelBuffer.capacity()/2];
-            for (int i = 0; i < pix.length; i++ ) {
-               pix[i] = pixelBuffer.getShort(i*2);
-            }
+            pixelBuffer.clear();
+            pixelBuffer.asShortBuffer().get(pix);
             return new TaggedImage(pix, md);
          }
       }
@@ -486,14 +593,29 @@ public class MultipageTiffReader {
       fileChannel_ = raFile_.getChannel();
    }
    
+   /**
+    * Unmaps the file and closes it. Waits for reads in progress, since they may
+    * be using views of the mapping
+    */
    public void close() throws IOException {
-      if (fileChannel_ != null) {
-         fileChannel_.close();
-         fileChannel_ = null;
-      }
-      if (raFile_ != null) {
-         raFile_.close();
-         raFile_ = null;
+      mapLock_.writeLock().lock();
+      try {
+         if (mappedWindows_ != null) {
+            for (MappedByteBuffer window : mappedWindows_) {
+               MemoryUtils.unmap(window);
+            }
+            mappedWindows_ = null;
+         }
+         if (fileChannel_ != null) {
+            fileChannel_.close();
+            fileChannel_ = null;
+         }
+         if (raFile_ != null) {
+            raFile_.close();
+            raFile_ = null;
+         }
+      } finally {
+         mapLock_.writeLock().unlock();
       }
    }
       
@@ -516,7 +638,7 @@ public class MultipageTiffReader {
          return;
       }
       long filePosition = firstIFD;
-      indexMap_ = new HashMap<String, Long>();
+      indexMap_ = new ImageIndexMap();
       final ProgressBar progressBar = new ProgressBar("Fixing dataset", 0, (int) (fileChannel_.size() / 2L));
       progressBar.setRange(0, (int) (fileChannel_.size() / 2L));
       progressBar.setProgress(0);
@@ -532,12 +654,7 @@ public class MultipageTiffReader {
                nextIFDOffsetLocation = data.nextIFDOffsetLocation;
                continue;
             }
-            String label = null;
-            label = MDUtils.getLabel(ti.tags);
-            if (label == null) {
-               break;
-            }          
-            indexMap_.put(label, filePosition);
+            indexMap_.put(ImageIndexMap.getKey(ti.tags), filePosition);
             final int progress = (int) (filePosition/2L);
             SwingUtilities.invokeLater(new Runnable() {
                public void run() {
@@ -574,16 +691,7 @@ public class MultipageTiffReader {
       ByteBuffer buffer = ByteBuffer.allocate(8 + 20 * numMappings).order(byteOrder_);
       buffer.putInt(0, MultipageTiffWriter.INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
-      int position = 2;
-      for (String label : indexMap_.keySet()) {
-         String[] indecies = label.split("_");
-         for (String index : indecies) {
-            buffer.putInt(4 * position, Integer.parseInt(index));
-            position++;
-         }
-         buffer.putInt(4 * position, indexMap_.get(label).intValue());
-         position++;
-      }
+      indexMap_.writeEntries(buffer, 8);
       fileChannel_.write(buffer, filePosition);
 
       ByteBuffer header = ByteBuffer.allocate(8).order(byteOrder_);
@@ -617,4 +725,4 @@ public class MultipageTiffReader {
    }
  
    
-}
\ No newline at end of file
+}
\ No newline at end of file
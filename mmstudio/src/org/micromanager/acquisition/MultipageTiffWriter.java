@@ -34,7 +34,6 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -87,6 +86,13 @@ public class MultipageTiffWriter {
    
    public static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
    
+   //Largest IFD: first IFD entries plus 6 bytes of RGB bits per sample
+   private static final int MAX_IFD_BYTES = 2 + (ENTRIES_PER_IFD + 4) * 12 + 4 + 6;
+   //Direct pixel buffers are shared by all writers, so only a few frames worth of direct
+   //memory is held no matter how many files are open at once
+   private static final int MAX_POOLED_PIXEL_BUFFERS = 4;
+   private static final LinkedList<ByteBuffer> pixelBufferPool_ = new LinkedList<ByteBuffer>();
+   
    
    final private boolean omeTiff_;
    
@@ -96,13 +102,19 @@ public class MultipageTiffWriter {
    private long filePosition_ = 0;
    private int bufferPosition_;
    private int numChannels_ = 1, numFrames_ = 1, numSlices_ = 1;
-   private HashMap<String, Long> indexMap_;
+   private ImageIndexMap indexMap_;
    private long nextIFDOffsetLocation_ = -1;
    private boolean rgb_ = false;
    private int byteDepth_, imageWidth_, imageHeight_, bytesPerImagePixels_;
    private long resNumerator_ = 1, resDenomenator_ = 1;
    private double zStepUm_ = 1;
-   private LinkedList<ByteBuffer> buffers_;
+   //IFD, pixels, resolution values and metadata, written with one gathering write per image
+   private final ByteBuffer[] buffers_ = new ByteBuffer[4];
+   private ByteBuffer ifdBuffer_;
+   private CharBuffer ifdCharView_;
+   private ByteBuffer resolutionBuffer_;
+   private ByteBuffer mdBuffer_;
+   private ByteBuffer pixelBuffer_;
    private boolean firstIFD_ = true;
    private long omeDescriptionTagPosition_;
    private long ijDescriptionTagPosition_;
@@ -148,10 +160,12 @@ public class MultipageTiffWriter {
                 ReportingUtils.showError("Insufficent space on disk: no room to write data");
          }
          fileChannel_ = raFile_.getChannel();
-         indexMap_ = new HashMap<String, Long>();
+         indexMap_ = new ImageIndexMap();
          reader_.setFileChannel(fileChannel_);
          reader_.setIndexMap(indexMap_);
-         buffers_ = new LinkedList<ByteBuffer>();
+         reader_.setFile(f);
+         ifdBuffer_ = ByteBuffer.allocateDirect(MAX_IFD_BYTES).order(BYTE_ORDER);
+         ifdCharView_ = ifdBuffer_.asCharBuffer();
          
          writeMMHeaderAndSummaryMD(summaryMD);
       } catch (IOException ex) {
@@ -172,7 +186,7 @@ public class MultipageTiffWriter {
       return fileChannel_;
    }
    
-   public HashMap<String, Long> getIndexMap() {
+   public ImageIndexMap getIndexMap() {
       return indexMap_;
    }
    
@@ -239,6 +253,9 @@ public class MultipageTiffWriter {
       //Dont close file channel and random access file becase Tiff reader still using them
       fileChannel_ = null;
       raFile_ = null;    
+      ifdBuffer_ = null;
+      ifdCharView_ = null;
+      mdBuffer_ = null;
    }
    
    public boolean hasSpaceToWrite(TaggedImage img, int omeMDLength) {
@@ -270,17 +287,82 @@ public class MultipageTiffWriter {
         
    public void writeImage(TaggedImage img) throws IOException {
       long offset = filePosition_;
+      long key;
+      try {
+         key = ImageIndexMap.getKey(img.tags);
+      } catch (JSONException ex) {
+         throw new IOException("Image indices missing from metadata");
+      } catch (IllegalArgumentException ex) {
+         throw new IOException(ex.getMessage());
+      }
       writeIFD(img);
-      indexMap_.put(MDUtils.getLabel(img.tags), offset);
+      indexMap_.put(key, offset);
       writeBuffers();
    }
    
    private void writeBuffers() throws IOException {
-      ByteBuffer[] buffs = new ByteBuffer[buffers_.size()];
-      for (int i = 0; i < buffs.length; i++) {
-         buffs[i] = buffers_.removeFirst();
+      try {
+         long remaining = 0;
+         for (ByteBuffer buffer : buffers_) {
+            remaining += buffer.remaining();
+         }
+         //a gathering write may stop part way through any of the buffers
+         while (remaining > 0) {
+            remaining -= fileChannel_.write(buffers_);
+         }
+      } finally {
+         if (pixelBuffer_ != null) {
+            returnPixelBuffer(pixelBuffer_);
+            pixelBuffer_ = null;
+         }
       }
-      fileChannel_.write(buffs);
+   }
+   
+   private static ByteBuffer borrowPixelBuffer(int capacity) {
+      synchronized (pixelBufferPool_) {
+         while (!pixelBufferPool_.isEmpty()) {
+            ByteBuffer buffer = pixelBufferPool_.removeFirst();
+            //buffers of other sizes are left over from previous datasets
+            if (buffer.capacity() == capacity) {
+               buffer.clear();
+               return buffer;
+            }
+         }
+      }
+      return ByteBuffer.allocateDirect(capacity).order(BYTE_ORDER);
+   }
+   
+   private static void returnPixelBuffer(ByteBuffer buffer) {
+      synchronized (pixelBufferPool_) {
+         if (pixelBufferPool_.size() < MAX_POOLED_PIXEL_BUFFERS) {
+            pixelBufferPool_.addFirst(buffer);
+         }
+      }
+   }
+   
+   private ByteBuffer getIFDBuffer(int numBytes) {
+      ifdBuffer_.clear();
+      ifdBuffer_.limit(numBytes);
+      return ifdBuffer_;
+   }
+   
+   /**
+    * Copies metadata into a reusable direct buffer, one byte per character,
+    * substituting '?' for non ASCII characters as the US-ASCII encoder would
+    */
+   private ByteBuffer getMetadataBuffer(String mdString) {
+      int length = mdString.length();
+      if (mdBuffer_ == null || mdBuffer_.capacity() < length) {
+         int capacity = mdBuffer_ == null ? length : Math.max(length, 2 * mdBuffer_.capacity());
+         mdBuffer_ = ByteBuffer.allocateDirect(capacity);
+      }
+      mdBuffer_.clear();
+      for (int i = 0; i < length; i++) {
+         char c = mdString.charAt(i);
+         mdBuffer_.put(c < 128 ? (byte) c : (byte) '?');
+      }
+      mdBuffer_.flip();
+      return mdBuffer_;
    }
 
    private void writeIFD(TaggedImage img) throws IOException {
@@ -296,8 +378,8 @@ public class MultipageTiffWriter {
      int totalBytes = 2 + numEntries*12 + 4 + (rgb_?6:0) + 16 + mdString.length() + bytesPerImagePixels_;
      int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
      
-     ByteBuffer ifdBuffer = ByteBuffer.allocate(IFDandBitDepthBytes).order(BYTE_ORDER);
-     CharBuffer charView = ifdBuffer.asCharBuffer();
+     ByteBuffer ifdBuffer = getIFDBuffer(IFDandBitDepthBytes);
+     CharBuffer charView = ifdCharView_;
          
      long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
      nextIFDOffsetLocation_ = filePosition_ + 2 + numEntries*12;
@@ -348,10 +430,11 @@ public class MultipageTiffWriter {
          charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
       }
-      buffers_.add(ifdBuffer);
-      buffers_.add(getPixelBuffer(img));
-      buffers_.add(getResolutionValuesBuffer());   
-      buffers_.add(ByteBuffer.wrap(getBytesFromString(mdString)));
+      pixelBuffer_ = getPixelBuffer(img);
+      buffers_[0] = ifdBuffer;
+      buffers_[1] = pixelBuffer_;
+      buffers_[2] = getResolutionValuesBuffer();
+      buffers_[3] = getMetadataBuffer(mdString);
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
@@ -371,55 +454,56 @@ public class MultipageTiffWriter {
    }
 
    private ByteBuffer getResolutionValuesBuffer() throws IOException {
-      ByteBuffer buffer = ByteBuffer.allocate(16).order(BYTE_ORDER);
-      buffer.putInt(0,(int)resNumerator_);
-      buffer.putInt(4,(int)resDenomenator_);
-      buffer.putInt(8,(int)resNumerator_);
-      buffer.putInt(12,(int)resDenomenator_);
-      return buffer;
+      if (resolutionBuffer_ == null) {
+         resolutionBuffer_ = ByteBuffer.allocateDirect(16).order(BYTE_ORDER);
+         resolutionBuffer_.putInt(0,(int)resNumerator_);
+         resolutionBuffer_.putInt(4,(int)resDenomenator_);
+         resolutionBuffer_.putInt(8,(int)resNumerator_);
+         resolutionBuffer_.putInt(12,(int)resDenomenator_);
+      }
+      resolutionBuffer_.clear();
+      return resolutionBuffer_;
    }
 
    public void setAbortedNumFrames(int n) {
       numFrames_ = n;
    }
 
+   /**
+    * Copies pixels into a pooled direct buffer, dropping the unused fourth
+    * channel of RGB images, without any intermediate arrays
+    */
    private ByteBuffer getPixelBuffer(TaggedImage img) throws IOException {
+      ByteBuffer buffer = borrowPixelBuffer(bytesPerImagePixels_);
       if (rgb_) {
          if (byteDepth_ == 1) {
             byte[] originalPix = (byte[]) img.pix;
-            byte[] pix = new byte[originalPix.length * 3 / 4];
             int count = 0;
             for (int i = 0; i < originalPix.length; i++) {
                if ((i + 1) % 4 != 0) {
-                  pix[count] = originalPix[i];
+                  buffer.put(count, originalPix[i]);
                   count++;
                }
             }
-            return ByteBuffer.wrap(pix);
          } else {
             short[] originalPix = (short[]) img.pix;
-            short[] pix = new short[originalPix.length * 3 / 4];
             int count = 0;
             for (int i = 0; i < originalPix.length; i++) {
                if ((i + 1) % 4 != 0) {
-                  pix[count] = originalPix[i];
+                  buffer.putShort(2 * count, originalPix[i]);
                   count++;
                }
             }
-            ByteBuffer buffer = ByteBuffer.allocate(pix.length * 2).order(BYTE_ORDER);
-            buffer.asShortBuffer().put(pix);
-            return buffer;
          }
       } else {
          if (byteDepth_ == 1) {
-            return ByteBuffer.wrap((byte[]) img.pix);
+            buffer.put((byte[]) img.pix);
+            buffer.rewind();
          } else {
-            short[] pix = (short[]) img.pix;
-            ByteBuffer buffer = ByteBuffer.allocate(pix.length * 2).order(BYTE_ORDER);
-            buffer.asShortBuffer().put(pix);
-            return buffer;
+            buffer.asShortBuffer().put((short[]) img.pix);
          }
       }
+      return buffer;
    }
 
    private void processSummaryMD(JSONObject summaryMD) throws MMScriptException, JSONException {
@@ -696,16 +780,7 @@ public class MultipageTiffWriter {
       ByteBuffer buffer = ByteBuffer.allocate(8 + 20 * numMappings).order(BYTE_ORDER);
       buffer.putInt(0, INDEX_MAP_HEADER);
       buffer.putInt(4, numMappings);
-      int position = 2;
-      for (String label : indexMap_.keySet()) {
-         String[] indecies = label.split("_");
-         for (String index : indecies) {
-            buffer.putInt(4 * position, Integer.parseInt(index));
-            position++;
-         }
-         buffer.putInt(4 * position, indexMap_.get(label).intValue());
-         position++;
-      }
+      indexMap_.writeEntries(buffer, 8);
       fileChannel_.write(buffer, filePosition_);
 
       ByteBuffer header = ByteBuffer.allocate(8).order(BYTE_ORDER);
@@ -753,8 +828,8 @@ public class MultipageTiffWriter {
              + (blankPixelsAlreadyWritten ? 0 : bytesPerImagePixels_);
      int IFDandBitDepthBytes = 2+ numEntries*12 + 4 + (rgb_?6:0);
      
-     ByteBuffer ifdBuffer = ByteBuffer.allocate(IFDandBitDepthBytes).order(BYTE_ORDER);
-     CharBuffer charView = ifdBuffer.asCharBuffer();
+     ByteBuffer ifdBuffer = getIFDBuffer(IFDandBitDepthBytes);
+     CharBuffer charView = ifdCharView_;
          
      long tagDataOffset = filePosition_ + 2 + numEntries*12 + 4;
      nextIFDOffsetLocation_ = filePosition_ + 2 + numEntries*12;
@@ -813,12 +888,18 @@ public class MultipageTiffWriter {
          charView.put(bufferPosition_/2+1,(char) (byteDepth_*8));
          charView.put(bufferPosition_/2+2,(char) (byteDepth_*8));
       }
-      buffers_.add(ifdBuffer);
+      buffers_[0] = ifdBuffer;
       if (!blankPixelsAlreadyWritten) {
-         buffers_.add(ByteBuffer.wrap(new byte[bytesPerImagePixels_]));
+         pixelBuffer_ = borrowPixelBuffer(bytesPerImagePixels_);
+         for (int i = 0; i < bytesPerImagePixels_; i++) {
+            pixelBuffer_.put(i, (byte) 0);
+         }
+         buffers_[1] = pixelBuffer_;
+      } else {
+         buffers_[1] = ByteBuffer.allocate(0);
       }
-      buffers_.add(getResolutionValuesBuffer());   
-      buffers_.add(ByteBuffer.wrap(getBytesFromString(mdString)));
+      buffers_[2] = getResolutionValuesBuffer();
+      buffers_[3] = getMetadataBuffer(mdString);
       
       filePosition_ += totalBytes;
       firstIFD_ = false;
@@ -5,23 +5,51 @@
 
 package org.micromanager.acquisition;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
 import org.micromanager.api.DataProcessor;
+import org.micromanager.api.StatelessDataProcessor;
 import org.micromanager.utils.ReportingUtils;
 
 /**
+ * Links DataProcessors into a pipeline. Stages are connected by bounded queues
+ * backed by preallocated arrays, so a slow stage only holds up the stages
+ * before it once queueDepth data objects are waiting for it.
+ * StatelessDataProcessors with more than one worker are run on that many
+ * threads, and their output is put back into input order.
  *
  * @author arthur
  */
 public class ProcessorStack<E> {
 
+   public static final int DEFAULT_QUEUE_DEPTH = 4;
+
    private final List<DataProcessor<E>> processors_;
    private final BlockingQueue<E> input_;
    private final BlockingQueue<E> output_;
+   private final List<BlockingQueue<E>> queues_ = new ArrayList<BlockingQueue<E>>();
+   private final List<ParallelStage<E>> parallelStages_ = new ArrayList<ParallelStage<E>>();
+
    public ProcessorStack(BlockingQueue<E> input,
            List<DataProcessor<E>> processors) {
+      this(input, processors, DEFAULT_QUEUE_DEPTH);
+   }
+
+   public ProcessorStack(BlockingQueue<E> input,
+           List<DataProcessor<E>> processors, int queueDepth) {
+      this(input, processors, queueDepth, false);
+   }
+
+   /**
+    * @param latestOnly connect the stages with LatestImageQueues instead of
+    * bounded queues, so that stages drop stale images rather than buffer them
+    */
+   private ProcessorStack(BlockingQueue<E> input,
+           List<DataProcessor<E>> processors, int queueDepth, boolean latestOnly) {
       processors_ = processors;
       input_ = input;
 
@@ -29,9 +57,20 @@ public class ProcessorStack<E> {
       BlockingQueue<E> right = left;
       if (processors_ != null) {
          for (DataProcessor<E> processor:processors_) {
-            right = new LinkedBlockingQueue<E>(1);
-            processor.setInput(left);
-            processor.setOutput(right);
+            if (latestOnly) {
+               right = (BlockingQueue<E>) new LatestImageQueue();
+            } else {
+               right = new ArrayBlockingQueue<E>(Math.max(1, queueDepth));
+            }
+            queues_.add(right);
+            if (processor instanceof StatelessDataProcessor
+                    && ((StatelessDataProcessor<E>) processor).getNumWorkers() > 1) {
+               parallelStages_.add(new ParallelStage<E>((StatelessDataProcessor<E>) processor,
+                       left, right, queueDepth));
+            } else {
+               processor.setInput(left);
+               processor.setOutput(right);
+            }
             left = right;
          }
       }
@@ -44,7 +83,13 @@ public class ProcessorStack<E> {
    }
 
    public void start() {
+      for (ParallelStage<E> stage : parallelStages_) {
+         stage.start();
+      }
       for (DataProcessor<E> processor : processors_) {
+         if (isParallel(processor)) {
+            continue;
+         }
          if (!processor.isAlive()) {
             if (processor.isStarted()) {
                ReportingUtils.showError("Processor: " + processor.getName()
@@ -56,10 +101,188 @@ public class ProcessorStack<E> {
       }
    }
 
+   /**
+    * Returns the number of data objects waiting in the queue after each stage
+    */
+   public int[] getQueueSizes() {
+      int[] sizes = new int[queues_.size()];
+      for (int i = 0; i < sizes.length; i++) {
+         sizes[i] = queues_.get(i).size();
+      }
+      return sizes;
+   }
+
+   public List<DataProcessor<E>> getProcessors() {
+      return processors_;
+   }
+
+   private boolean isParallel(DataProcessor<E> processor) {
+      for (ParallelStage<E> stage : parallelStages_) {
+         if (stage.processor_ == processor) {
+            return true;
+         }
+      }
+      return false;
+   }
+
    public static BlockingQueue run(BlockingQueue inputTaggedImageQueue, List imageProcessors) {
+      return run(inputTaggedImageQueue, imageProcessors, DEFAULT_QUEUE_DEPTH);
+   }
+
+   public static BlockingQueue run(BlockingQueue inputTaggedImageQueue, List imageProcessors,
+           int queueDepth) {
       // Set up the DataProcessor<TaggedImage> sequence
-      ProcessorStack processorStack = new ProcessorStack((BlockingQueue) inputTaggedImageQueue, imageProcessors);
+      ProcessorStack processorStack = new ProcessorStack((BlockingQueue) inputTaggedImageQueue,
+              imageProcessors, queueDepth);
       return processorStack.begin();
    }
-   
+
+   /**
+    * Runs TaggedImage processors for live display: each stage only holds on to
+    * the latest image of each channel, like a LatestImageQueue input does
+    */
+   public static BlockingQueue runLatestOnly(BlockingQueue inputTaggedImageQueue,
+           List imageProcessors) {
+      ProcessorStack processorStack = new ProcessorStack((BlockingQueue) inputTaggedImageQueue,
+              imageProcessors, DEFAULT_QUEUE_DEPTH, true);
+      return processorStack.begin();
+   }
+
+   private static boolean isEndOfStream(Object datum) {
+      return datum instanceof TaggedImage && TaggedImageQueue.isPoison((TaggedImage) datum);
+   }
+
+   /**
+    * Runs a StatelessDataProcessor on several worker threads. Each worker takes
+    * the next data object from the input along with its sequence number, and
+    * stores its result in a ring of slots indexed by sequence number. A collector
+    * thread passes the results on in sequence order. A data object for which the
+    * processor throws (or returns null) is dropped. Workers and collector stop
+    * after the end-of-stream object, or when stop is requested of the processor.
+    */
+   private static class ParallelStage<E> {
+
+      //how often waiting threads check whether stop was requested
+      private static final long STOP_CHECK_MS = 100;
+
+      private final StatelessDataProcessor<E> processor_;
+      private final BlockingQueue<E> input_;
+      private final BlockingQueue<E> output_;
+      private final Object[] results_;
+      private final boolean[] done_;
+      private final Object inputLock_ = new Object();
+      private long nextIn_ = 0;
+      private long nextOut_ = 0;
+      private boolean endReached_ = false;
+
+      ParallelStage(StatelessDataProcessor<E> processor, BlockingQueue<E> input,
+              BlockingQueue<E> output, int queueDepth) {
+         processor_ = processor;
+         input_ = input;
+         output_ = output;
+         int numSlots = processor.getNumWorkers() + Math.max(1, queueDepth);
+         results_ = new Object[numSlots];
+         done_ = new boolean[numSlots];
+      }
+
+      void start() {
+         int numWorkers = processor_.getNumWorkers();
+         for (int i = 0; i < numWorkers; i++) {
+            Thread worker = new Thread(processor_.getName() + " worker " + i) {
+               @Override
+               public void run() {
+                  work();
+               }
+            };
+            worker.setDaemon(true);
+            worker.start();
+         }
+         Thread collector = new Thread(processor_.getName() + " collector") {
+            @Override
+            public void run() {
+               collect();
+            }
+         };
+         collector.setDaemon(true);
+         collector.start();
+      }
+
+      private void work() {
+         try {
+            while (true) {
+               E datum;
+               long sequenceNumber;
+               synchronized (inputLock_) {
+                  do {
+                     if (endReached_ || processor_.isStopRequested()) {
+                        return;
+                     }
+                     datum = input_.poll(STOP_CHECK_MS, TimeUnit.MILLISECONDS);
+                  } while (datum == null);
+                  sequenceNumber = nextIn_++;
+                  endReached_ = isEndOfStream(datum);
+               }
+               synchronized (this) {
+                  while (sequenceNumber - nextOut_ >= results_.length) {
+                     if (processor_.isStopRequested()) {
+                        return;
+                     }
+                     wait(STOP_CHECK_MS);
+                  }
+               }
+               E result = datum;
+               if (!isEndOfStream(datum)) {
+                  try {
+                     result = processor_.processOnWorker(datum);
+                  } catch (RuntimeException ex) {
+                     ReportingUtils.logError(ex);
+                     //the collector skips the slot, so the unprocessed datum isn't passed on
+                     result = null;
+                  }
+               }
+               synchronized (this) {
+                  int slot = (int) (sequenceNumber % results_.length);
+                  results_[slot] = result;
+                  done_[slot] = true;
+                  notifyAll();
+               }
+            }
+         } catch (InterruptedException ex) {
+            ReportingUtils.logError(ex);
+         }
+      }
+
+      private void collect() {
+         try {
+            while (true) {
+               E result;
+               synchronized (this) {
+                  int slot = (int) (nextOut_ % results_.length);
+                  while (!done_[slot]) {
+                     if (processor_.isStopRequested()) {
+                        return;
+                     }
+                     wait(STOP_CHECK_MS);
+                  }
+                  result = (E) results_[slot];
+                  results_[slot] = null;
+                  done_[slot] = false;
+                  nextOut_++;
+                  notifyAll();
+               }
+               while (result != null
+                       && !output_.offer(result, STOP_CHECK_MS, TimeUnit.MILLISECONDS)) {
+                  if (processor_.isStopRequested()) {
+                     return;
+                  }
+               }
+               if (isEndOfStream(result)) {
+                  return;
+               }
+            }
+         } catch (InterruptedException ex) {
+            ReportingUtils.logError(ex);
+         }
+      }
+   }
 }
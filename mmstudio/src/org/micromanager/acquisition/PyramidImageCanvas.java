@@ -0,0 +1,285 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PyramidImageCanvas.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * ImageCanvas that draws large planes from a downsampled level of an
+ * ImagePyramid when zoomed out by a factor of 2 or more. Only the visible part
+ * of that level is passed through the channel LUTs, so the cost of drawing
+ * depends on the size of the window rather than the size of the image.
+ * Composite and color modes and plain single channel images are drawn this
+ * way; grayscale mode, other pixel types and small images are drawn by ImageJ
+ * as before. A pyramid is only made when a plane is first drawn zoomed out,
+ * and made again if the plane's pixels were changed in place.
+ */
+class PyramidImageCanvas extends ImageCanvas {
+
+   // pyramids of recent planes, keyed by their pixel arrays
+   private static final Map<Object, ImagePyramid> pyramids_ =
+           Collections.synchronizedMap(new WeakHashMap<Object, ImagePyramid>());
+   private BufferedImage buffer_;
+   // set when the image may have been changed, e.g. by an ImageJ filter, so
+   // that the next paint checks the pyramids against the pixels
+   private volatile boolean checkPixels_ = true;
+
+   private static class Channel {
+      Object pixels;
+      byte[] reds = new byte[256];
+      byte[] greens = new byte[256];
+      byte[] blues = new byte[256];
+      double min;
+      double max;
+   }
+
+   public PyramidImageCanvas(ImagePlus imp) {
+      super(imp);
+   }
+
+   /**
+    * Tells the canvas that the pixels of the image may have changed
+    */
+   public void pixelsChanged() {
+      checkPixels_ = true;
+   }
+
+   @Override
+   public void setImageUpdated() {
+      checkPixels_ = true;
+      super.setImageUpdated();
+   }
+
+   private static ImagePyramid getPyramid(Object pixels, int width, int height, boolean check) {
+      ImagePyramid pyramid = pyramids_.get(pixels);
+      if (pyramid == null || (check && !pyramid.matches(pixels))) {
+         pyramid = new ImagePyramid(pixels, width, height);
+         pyramids_.put(pixels, pyramid);
+      }
+      return pyramid;
+   }
+
+   /**
+    * Returns true if the next paint will draw from a pyramid, so that the
+    * full resolution image doesn't need to be updated.
+    */
+   public boolean willPaintPyramid() {
+      return getLevel() > 0 && getChannels() != null;
+   }
+
+   @Override
+   public void paint(Graphics g) {
+      if (!paintPyramid(g)) {
+         super.paint(g);
+      }
+   }
+
+   private int getLevel() {
+      double magnification = getMagnification();
+      if (magnification > 0.5 || magnification <= 0) {
+         return 0;
+      }
+      return (int) Math.floor(Math.log(1 / magnification) / Math.log(2) + 1e-6);
+   }
+
+   private ArrayList<Channel> getChannels() {
+      ArrayList<Channel> channels = new ArrayList<Channel>();
+      if (imp instanceof CompositeImage) {
+         CompositeImage ci = (CompositeImage) imp;
+         int mode = ci.getMode();
+         if (mode == CompositeImage.COMPOSITE) {
+            boolean[] active = ci.getActiveChannels();
+            for (int c = 1; c <= ci.getNChannels(); c++) {
+               if (c - 1 < active.length && active[c - 1]) {
+                  Channel channel = makeChannel(ci.getProcessor(c), ci.getChannelLut(c));
+                  if (channel == null) {
+                     return null;
+                  }
+                  channels.add(channel);
+               }
+            }
+         } else if (mode == CompositeImage.COLOR) {
+            Channel channel = makeChannel(ci.getProcessor(ci.getChannel()),
+                    ci.getChannelLut(ci.getChannel()));
+            if (channel == null) {
+               return null;
+            }
+            channels.add(channel);
+         } else {
+            return null;
+         }
+      } else {
+         ImageProcessor ip = imp.getProcessor();
+         if (ip == null || !(ip.getColorModel() instanceof IndexColorModel)) {
+            return null;
+         }
+         Channel channel = makeChannel(ip, (IndexColorModel) ip.getColorModel());
+         if (channel == null) {
+            return null;
+         }
+         channel.min = ip.getMin();
+         channel.max = ip.getMax();
+         channels.add(channel);
+      }
+      return channels.isEmpty() ? null : channels;
+   }
+
+   private Channel makeChannel(ImageProcessor ip, IndexColorModel cm) {
+      if (ip == null || cm == null || cm.getMapSize() != 256
+              || !ImagePyramid.canBuild(ip.getPixels(), imp.getWidth(), imp.getHeight())) {
+         return null;
+      }
+      Channel channel = new Channel();
+      channel.pixels = ip.getPixels();
+      cm.getReds(channel.reds);
+      cm.getGreens(channel.greens);
+      cm.getBlues(channel.blues);
+      if (cm instanceof LUT) {
+         channel.min = ((LUT) cm).min;
+         channel.max = ((LUT) cm).max;
+      }
+      return channel;
+   }
+
+   private boolean paintPyramid(Graphics g) {
+      int level = getLevel();
+      if (level == 0) {
+         return false;
+      }
+      ArrayList<Channel> channels = getChannels();
+      if (channels == null) {
+         return false;
+      }
+      int width = imp.getWidth();
+      int height = imp.getHeight();
+      boolean check = checkPixels_;
+      checkPixels_ = false;
+      ImagePyramid pyramid = null;
+      Object[] levelPixels = new Object[channels.size()];
+      for (int i = 0; i < channels.size(); i++) {
+         pyramid = getPyramid(channels.get(i).pixels, width, height, check);
+         if (pyramid.getMaxLevel() == 0) {
+            return false;
+         }
+         levelPixels[i] = pyramid.getLevel(Math.min(level, pyramid.getMaxLevel()));
+      }
+      level = Math.min(level, pyramid.getMaxLevel());
+      int levelWidth = pyramid.getWidth(level);
+      int levelHeight = pyramid.getHeight(level);
+
+      // the visible part of the image, in pixels of the level
+      Rectangle src = getSrcRect();
+      int x0 = src.x >> level;
+      int y0 = src.y >> level;
+      int x1 = Math.min(levelWidth, (src.x + src.width + (1 << level) - 1) >> level);
+      int y1 = Math.min(levelHeight, (src.y + src.height + (1 << level) - 1) >> level);
+      int w = x1 - x0;
+      int h = y1 - y0;
+      if (w <= 0 || h <= 0) {
+         return false;
+      }
+      if (buffer_ == null || buffer_.getWidth() < w || buffer_.getHeight() < h) {
+         buffer_ = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+      }
+      int[] rgb = ((DataBufferInt) buffer_.getRaster().getDataBuffer()).getData();
+      int stride = buffer_.getWidth();
+      for (int y = 0; y < h; y++) {
+         Arrays.fill(rgb, y * stride, y * stride + w, 0);
+      }
+      for (int i = 0; i < channels.size(); i++) {
+         applyLut(channels.get(i), levelPixels[i], levelWidth, x0, y0, w, h, rgb, stride,
+                 channels.size() > 1);
+      }
+
+      double magnification = getMagnification();
+      int destWidth = (int) Math.round(src.width * magnification);
+      int destHeight = (int) Math.round(src.height * magnification);
+      g.drawImage(buffer_, 0, 0, destWidth, destHeight, 0, 0, w, h, null);
+
+      Overlay overlay = imp.getOverlay();
+      if (overlay != null && !imp.getHideOverlay()) {
+         for (int i = 0; i < overlay.size(); i++) {
+            overlay.get(i).drawOverlay(g);
+         }
+      }
+      Roi roi = imp.getRoi();
+      if (roi != null) {
+         roi.draw(g);
+      }
+      return true;
+   }
+
+   /*
+    * Maps the pixels of a w x h region of a level through the channel's LUT,
+    * the same way ImageJ scales 16 bit images to 8 bits, and adds the result
+    * to the rgb buffer, saturating each component when combining channels.
+    */
+   private static void applyLut(Channel channel, Object pixels, int levelWidth,
+           int x0, int y0, int w, int h, int[] rgb, int stride, boolean add) {
+      double scale = 256.0 / (channel.max - channel.min + 1);
+      int min = (int) channel.min;
+      int[] colors = new int[256];
+      for (int i = 0; i < 256; i++) {
+         colors[i] = ((channel.reds[i] & 0xff) << 16) | ((channel.greens[i] & 0xff) << 8)
+                 | (channel.blues[i] & 0xff);
+      }
+      short[] shorts = pixels instanceof short[] ? (short[]) pixels : null;
+      byte[] bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+      for (int y = 0; y < h; y++) {
+         int in = (y0 + y) * levelWidth + x0;
+         int out = y * stride;
+         for (int x = 0; x < w; x++, in++, out++) {
+            int value = shorts != null ? shorts[in] & 0xffff : bytes[in] & 0xff;
+            int index = (int) ((value - min) * scale + 0.5);
+            if (index < 0) {
+               index = 0;
+            } else if (index > 255) {
+               index = 255;
+            }
+            int color = colors[index];
+            if (add) {
+               int old = rgb[out];
+               int r = Math.min(255, ((old >> 16) & 0xff) + ((color >> 16) & 0xff));
+               int gr = Math.min(255, ((old >> 8) & 0xff) + ((color >> 8) & 0xff));
+               int b = Math.min(255, (old & 0xff) + (color & 0xff));
+               rgb[out] = (r << 16) | (gr << 8) | b;
+            } else {
+               rgb[out] = color;
+            }
+         }
+      }
+   }
+}
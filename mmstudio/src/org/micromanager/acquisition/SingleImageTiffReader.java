@@ -0,0 +1,332 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SingleImageTiffReader.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.acquisition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the pixels and Info property of a tiff file holding one uncompressed
+ * image in a single strip, as ImageJ writes for TaggedImageStorageDiskDefault,
+ * without going through ij.io.Opener. Pixels are returned in the layout of
+ * the Micro-Manager pixel type (GRAY8, GRAY16, RGB32 or RGB64) that matches the
+ * tiff's samples. For any other kind of tiff, isSupported() returns false.
+ */
+class SingleImageTiffReader {
+
+   private static final int HEADER_READ_SIZE = 4096;
+   private static final int IFD_ENTRY_SIZE = 12;
+   private static final int IMAGE_WIDTH = 256;
+   private static final int IMAGE_LENGTH = 257;
+   private static final int BITS_PER_SAMPLE = 258;
+   private static final int COMPRESSION = 259;
+   private static final int STRIP_OFFSETS = 273;
+   private static final int SAMPLES_PER_PIXEL = 277;
+   private static final int STRIP_BYTE_COUNTS = 279;
+   private static final int META_DATA_BYTE_COUNTS = 50838;
+   private static final int META_DATA = 50839;
+   private static final int MAGIC_NUMBER = 0x494a494a;  // "IJIJ"
+   private static final int INFO = 0x696e666f;  // "info"
+
+   // one buffer per thread for reading, grown to the largest image read
+   private static final ThreadLocal<ByteBuffer> buffers_ = new ThreadLocal<ByteBuffer>();
+
+   private final File file_;
+   private ByteOrder byteOrder_;
+   private int width_;
+   private int height_;
+   private int bitsPerSample_;
+   private int samplesPerPixel_ = 1;
+   private int compression_ = 1;
+   private int numStrips_;
+   private long stripOffset_;
+   private long stripByteCount_;
+   private long metadataCountsOffset_;
+   private int numMetadataCounts_;
+   private long metadataOffset_;
+   private long nextIFDOffset_;
+
+   /**
+    * Reads the header and first IFD of file
+    */
+   public SingleImageTiffReader(File file) throws IOException {
+      file_ = file;
+      RandomAccessFile raFile = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raFile.getChannel();
+         ByteBuffer header = read(channel, 0, (int) Math.min(HEADER_READ_SIZE, channel.size()));
+         if (header.limit() < 8) {
+            throw new IOException("Not a tiff file: " + file);
+         }
+         int order = header.getShort(0);
+         if (order == 0x4949) {
+            byteOrder_ = ByteOrder.LITTLE_ENDIAN;
+         } else if (order == 0x4d4d) {
+            byteOrder_ = ByteOrder.BIG_ENDIAN;
+         } else {
+            throw new IOException("Not a tiff file: " + file);
+         }
+         header.order(byteOrder_);
+         long ifdOffset = header.getInt(4) & 0xffffffffL;
+         ByteBuffer ifd = header;
+         int ifdStart = (int) ifdOffset;
+         // the IFD is followed by the offset of the next one
+         if (ifdOffset + 2 > header.limit()
+                 || ifdOffset + 2 + (header.getShort(ifdStart) & 0xffff) * IFD_ENTRY_SIZE + 4
+                 > header.limit()) {
+            ByteBuffer count = read(channel, ifdOffset, 2).order(byteOrder_);
+            int numEntries = count.getShort(0) & 0xffff;
+            ifd = read(channel, ifdOffset, 2 + numEntries * IFD_ENTRY_SIZE + 4).order(byteOrder_);
+            ifdStart = 0;
+         }
+         int numEntries = ifd.getShort(ifdStart) & 0xffff;
+         for (int i = 0; i < numEntries; i++) {
+            readEntry(channel, header, ifd, ifdStart + 2 + i * IFD_ENTRY_SIZE);
+         }
+         int next = ifdStart + 2 + numEntries * IFD_ENTRY_SIZE;
+         nextIFDOffset_ = next + 4 <= ifd.limit() ? ifd.getInt(next) & 0xffffffffL : -1;
+      } finally {
+         raFile.close();
+      }
+   }
+
+   private void readEntry(FileChannel channel, ByteBuffer header, ByteBuffer ifd, int entry)
+           throws IOException {
+      int tag = ifd.getShort(entry) & 0xffff;
+      int type = ifd.getShort(entry + 2) & 0xffff;
+      int count = ifd.getInt(entry + 4);
+      switch (tag) {
+         case IMAGE_WIDTH:
+            width_ = getValue(ifd, entry, type);
+            break;
+         case IMAGE_LENGTH:
+            height_ = getValue(ifd, entry, type);
+            break;
+         case BITS_PER_SAMPLE:
+            if (count == 1) {
+               bitsPerSample_ = getValue(ifd, entry, type);
+            } else if (count == 2) {
+               bitsPerSample_ = ifd.getShort(entry + 8) & 0xffff;
+            } else {
+               // the same for all samples in the files handled here
+               long offset = ifd.getInt(entry + 8) & 0xffffffffL;
+               ByteBuffer bits = offset + 2 <= header.limit() ? header
+                       : read(channel, offset, 2).order(byteOrder_);
+               bitsPerSample_ = bits.getShort(bits == header ? (int) offset : 0) & 0xffff;
+            }
+            break;
+         case COMPRESSION:
+            compression_ = getValue(ifd, entry, type);
+            break;
+         case STRIP_OFFSETS:
+            numStrips_ = count;
+            stripOffset_ = getValue(ifd, entry, type) & 0xffffffffL;
+            break;
+         case SAMPLES_PER_PIXEL:
+            samplesPerPixel_ = getValue(ifd, entry, type);
+            break;
+         case STRIP_BYTE_COUNTS:
+            stripByteCount_ = getValue(ifd, entry, type) & 0xffffffffL;
+            break;
+         case META_DATA_BYTE_COUNTS:
+            numMetadataCounts_ = count;
+            metadataCountsOffset_ = ifd.getInt(entry + 8) & 0xffffffffL;
+            break;
+         case META_DATA:
+            metadataOffset_ = ifd.getInt(entry + 8) & 0xffffffffL;
+            break;
+      }
+   }
+
+   private static int getValue(ByteBuffer ifd, int entry, int type) {
+      if (type == 3) {
+         return ifd.getShort(entry + 8) & 0xffff;
+      }
+      return ifd.getInt(entry + 8);
+   }
+
+   /**
+    * Returns true if the image can be read by readPixels. Files with more than one
+    * IFD are not, e.g. RGB64 images, which ImageJ saves as a stack of 3 planes
+    */
+   public boolean isSupported() {
+      return nextIFDOffset_ == 0
+              && compression_ == 1 && numStrips_ == 1 && width_ > 0 && height_ > 0
+              && (bitsPerSample_ == 8 || bitsPerSample_ == 16)
+              && (samplesPerPixel_ == 1 || samplesPerPixel_ == 3)
+              && stripByteCount_ >= getImageByteCount();
+   }
+
+   private long getImageByteCount() {
+      return (long) width_ * height_ * samplesPerPixel_ * (bitsPerSample_ / 8);
+   }
+
+   /**
+    * Returns the Micro-Manager pixel type of the image
+    */
+   public String getPixelType() {
+      if (samplesPerPixel_ == 3) {
+         return bitsPerSample_ == 8 ? "RGB32" : "RGB64";
+      }
+      return bitsPerSample_ == 8 ? "GRAY8" : "GRAY16";
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * Reads the image with one read from the file. Returns byte[] for GRAY8,
+    * short[] for GRAY16, and blue, green, red, empty quadruples as byte[] for
+    * RGB32 and short[] for RGB64, as in ImageUtils.getRGB32PixelsFromColorPanes
+    * and getRGB64PixelsFromColorPlanes.
+    */
+   public Object readPixels() throws IOException {
+      if (!isSupported()) {
+         throw new IOException("Unsupported tiff file: " + file_);
+      }
+      int numBytes = (int) getImageByteCount();
+      ByteBuffer buffer = getBuffer(numBytes);
+      RandomAccessFile raFile = new RandomAccessFile(file_, "r");
+      try {
+         readFully(raFile.getChannel(), stripOffset_, buffer);
+      } finally {
+         raFile.close();
+      }
+      if (buffer.remaining() < numBytes) {
+         throw new IOException("Unexpected end of file: " + file_);
+      }
+      buffer.order(byteOrder_);
+      int numPixels = width_ * height_;
+      if (samplesPerPixel_ == 1) {
+         if (bitsPerSample_ == 8) {
+            byte[] pixels = new byte[numPixels];
+            buffer.get(pixels);
+            return pixels;
+         }
+         short[] pixels = new short[numPixels];
+         buffer.asShortBuffer().get(pixels);
+         return pixels;
+      }
+      if (bitsPerSample_ == 8) {
+         byte[] pixels = new byte[numPixels * 4];
+         for (int i = 0, j = 0; i < numPixels; i++, j += 4) {
+            byte red = buffer.get();
+            byte green = buffer.get();
+            pixels[j] = buffer.get();
+            pixels[j + 1] = green;
+            pixels[j + 2] = red;
+         }
+         return pixels;
+      }
+      short[] pixels = new short[numPixels * 4];
+      for (int i = 0, j = 0; i < numPixels; i++, j += 4) {
+         short red = buffer.getShort();
+         short green = buffer.getShort();
+         pixels[j] = buffer.getShort();
+         pixels[j + 1] = green;
+         pixels[j + 2] = red;
+      }
+      return pixels;
+   }
+
+   /**
+    * Returns the Info property that ImageJ saved with the image, or null if
+    * there is none
+    */
+   public String readInfo() throws IOException {
+      if (numMetadataCounts_ < 2 || metadataOffset_ == 0) {
+         return null;
+      }
+      RandomAccessFile raFile = new RandomAccessFile(file_, "r");
+      try {
+         FileChannel channel = raFile.getChannel();
+         ByteBuffer counts = read(channel, metadataCountsOffset_, 4 * numMetadataCounts_)
+                 .order(byteOrder_);
+         int headerSize = counts.getInt(0);
+         ByteBuffer header = read(channel, metadataOffset_, headerSize).order(byteOrder_);
+         if (headerSize < 4 || header.getInt(0) != MAGIC_NUMBER) {
+            return null;
+         }
+         // the header lists the type and number of each kind of metadata,
+         // which follow it in the same order
+         long offset = metadataOffset_ + headerSize;
+         int countIndex = 1;
+         for (int i = 4; i + 8 <= headerSize; i += 8) {
+            int type = header.getInt(i);
+            int numEntries = header.getInt(i + 4);
+            if (type == INFO) {
+               if (countIndex >= numMetadataCounts_) {
+                  return null;
+               }
+               int length = counts.getInt(4 * countIndex);
+               ByteBuffer info = read(channel, offset, length).order(byteOrder_);
+               char[] chars = new char[length / 2];
+               info.asCharBuffer().get(chars);
+               return new String(chars);
+            }
+            for (int j = 0; j < numEntries && countIndex < numMetadataCounts_; j++) {
+               offset += counts.getInt(4 * countIndex++);
+            }
+         }
+         return null;
+      } finally {
+         raFile.close();
+      }
+   }
+
+   private static ByteBuffer getBuffer(int size) {
+      ByteBuffer buffer = buffers_.get();
+      if (buffer == null || buffer.capacity() < size) {
+         buffer = ByteBuffer.allocateDirect(size);
+         buffers_.set(buffer);
+      }
+      buffer.clear();
+      buffer.limit(size);
+      return buffer;
+   }
+
+   private static ByteBuffer read(FileChannel channel, long position, int length)
+           throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      readFully(channel, position, buffer);
+      return buffer;
+   }
+
+   private static void readFully(FileChannel channel, long position, ByteBuffer buffer)
+           throws IOException {
+      while (buffer.hasRemaining()) {
+         int n = channel.read(buffer, position);
+         if (n < 0) {
+            break;
+         }
+         position += n;
+      }
+      buffer.flip();
+   }
+}
@@ -10,7 +10,6 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.io.FileSaver;
 import ij.io.Opener;
-import ij.io.TiffDecoder;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
@@ -22,6 +21,11 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import mmcorej.TaggedImage;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -33,7 +37,8 @@ import org.micromanager.utils.*;
  *
  * @author arthur
  */
-public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
+public class TaggedImageStorageDiskDefault implements TaggedImageStorage,
+        LRUImageCache.SharedCacheUser {
    public static String menuName_ = "Micro-Manager default file format";
    private final String dir_;
    private boolean firstElement_;
@@ -41,11 +46,15 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    private boolean newDataSet_;
    private JSONObject summaryMetadata_;
    private TreeMap<String,String> filenameTable_;
-   private HashMap<String, JSONObject> metadataTable_ = null;
+   // where the metadata of each image of an opened dataset is in metadata.txt
+   private HashMap<String, DiskDefaultIndex.Frame> frameTable_ = null;
+   private boolean legacyMetadata_ = false;
    private JSONObject displaySettings_;
    private int lastFrame_ = -1;
    private Thread shutdownHook_;
    private HashMap<Integer, String> positionNames_;
+   private final LRUImageCache cache_;
+   private final LRUImageCache.ImageLoader imageLoader_;
 
    public TaggedImageStorageDiskDefault(String dir) throws Exception {
       this(dir, false, null);
@@ -57,9 +66,15 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
       newDataSet_ = newDataSet;
       filenameTable_ = new TreeMap<String,String>(new ImageLabelComparator());
       metadataStreams_ = new HashMap<Integer,Writer>();
-      metadataTable_ = new HashMap<String, JSONObject>();
+      frameTable_ = new HashMap<String, DiskDefaultIndex.Frame>();
       displaySettings_ = new JSONObject();
       positionNames_ = new HashMap<Integer,String>();
+      cache_ = LRUImageCache.getInstance();
+      imageLoader_ = new LRUImageCache.ImageLoader() {
+         public TaggedImage loadImage(int channel, int slice, int frame, int position) {
+            return readImage(channel, slice, frame, position);
+         }
+      };
       setSummaryMetadata(summaryMetadata);
       
       // Note: this will throw an error if there is no existing data set
@@ -141,16 +156,55 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
          String label = MDUtils.getLabel(md);
          filenameTable_.put(label, fileName);
          //metadataTable_.put(label, md);
+         cache_.putImage(this, taggedImg, MDUtils.getChannelIndex(md), MDUtils.getSliceIndex(md),
+                 MDUtils.getFrameIndex(md), MDUtils.getPositionIndex(md));
       } catch (Exception ex) {
          ReportingUtils.showError(ex);
       }
    }
 
    public TaggedImage getImage(int channel, int slice, int frame, int position) {
+      return cache_.getImage(this, imageLoader_, channel, slice, frame, position);
+   }
+
+   private TaggedImage readImage(int channel, int slice, int frame, int position) {
       String label = MDUtils.generateLabel(channel, slice, frame, position);
       if (filenameTable_.get(label) == null) {
          return null;
       }
+      File file = new File(dir_, filenameTable_.get(label));
+      try {
+         if (file.exists()) {
+            SingleImageTiffReader reader = new SingleImageTiffReader(file);
+            if (reader.isSupported()) {
+               String info = reader.readInfo();
+               JSONObject md;
+               if (info != null) {
+                  md = new JSONObject(info);
+               } else {
+                  md = readFrameMetadata(label);
+               }
+               if (md == null) {
+                  return null;
+               }
+               // Otherwise the file doesn't hold what the metadata describes, so let
+               // ImageJ sort it out
+               if (reader.getPixelType().equals(MDUtils.getPixelType(md))) {
+                  return new TaggedImage(reader.readPixels(), md);
+               }
+            }
+         }
+      } catch (Exception ex) {
+         ReportingUtils.logError(ex, "Couldn't read " + file + " directly");
+      }
+      return readImageWithOpener(label);
+   }
+
+   /*
+    * Reads an image through ImageJ, for tiff files that SingleImageTiffReader
+    * doesn't handle
+    */
+   private TaggedImage readImageWithOpener(String label) {
       ImagePlus imp = new Opener().openImage(dir_ + "/" + filenameTable_.get(label));
       if (imp != null) {
          try {
@@ -160,11 +214,10 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
                if (imp.getProperty("Info") != null) {
                   md = new JSONObject((String) imp.getProperty("Info"));
                } else {
-                 md = metadataTable_.get(label);
+                  md = readFrameMetadata(label);
                }
             } catch (Exception e) {
-               if (metadataTable_.size() > 0) {
-                  md = metadataTable_.get(label);
+               if (legacyMetadata_) {
                   return null;
                }
             }
@@ -197,10 +250,22 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    }
 
    public JSONObject getImageTags(int channel, int slice, int frame, int position) {
+      TaggedImage cached = cache_.getCachedImage(this, channel, slice, frame, position);
+      if (cached != null) {
+         return cached.tags;
+      }
       String label = MDUtils.generateLabel(channel, slice, frame, position);
-      TiffDecoder td = new TiffDecoder(dir_, filenameTable_.get(label));
       try {
-         return new JSONObject(td.getTiffInfo()[0].info);
+         // older tiff files don't hold their metadata
+         if (legacyMetadata_) {
+            return readFrameMetadata(label);
+         }
+         String info = new SingleImageTiffReader(
+                 new File(dir_, filenameTable_.get(label))).readInfo();
+         if (info == null) {
+            return readFrameMetadata(label);
+         }
+         return new JSONObject(info);
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
          return null;
@@ -389,59 +454,128 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
          }
       }
 
+      DiskDefaultIndex.Position[] indexedPositions = DiskDefaultIndex.read(dir_, positions);
+      if (indexedPositions == null) {
+         indexedPositions = scanPositions(positions);
+         DiskDefaultIndex.write(dir_, indexedPositions);
+      }
+
       for (int positionIndex = 0; positionIndex < positions.size(); ++positionIndex) {
          String position = positions.get(positionIndex);
-         JSONObject data = readJsonMetadata(position);
-         if (data != null) {
+         DiskDefaultIndex.Position indexed = indexedPositions[positionIndex];
+         try {
+            if (indexed.summary == null) {
+               throw new JSONException("No summary metadata for position " + position);
+            }
+            summaryMetadata_ = jsonToMetadata(new JSONObject(indexed.summary));
+            int metadataVersion = 0;
             try {
-               summaryMetadata_ = jsonToMetadata(data.getJSONObject("Summary"));
-               int metadataVersion = 0;
+               metadataVersion = summaryMetadata_.getInt("MetadataVersion");
+            } catch (JSONException ex) {
+            }
+            if (metadataVersion < 10) {
+               legacyMetadata_ = true;
+            }
+            for (DiskDefaultIndex.Frame frame : indexed.frames) {
                try {
-                  metadataVersion = summaryMetadata_.getInt("MetadataVersion");
-               } catch (JSONException ex) {
-               }
-               for (String key:makeJsonIterableKeys(data)) {
-                  JSONObject chunk = data.getJSONObject(key);
-                  if (key.startsWith("FrameKey")) {
-                     JSONObject md = jsonToMetadata(chunk);
-                     try {
-                        if (!md.has("ChannelIndex"))
-                           md.put("ChannelIndex", getChannelIndex(MDUtils.getChannelName(md)));
-                        if (!md.has("PositionIndex"))
-                           md.put("PositionIndex", positionIndex);
-                        if (!md.has("PixelType") && !md.has("IJType")) {
-                           md.put("PixelType", MDUtils.getPixelType(summaryMetadata_));
-                        }
-                        lastFrame_ = Math.max(MDUtils.getFrameIndex(md), lastFrame_);
-                        String fileName = MDUtils.getFileName(md);
-                        if (fileName == null) {
-                           fileName = "img_" + String.format("%9d", MDUtils.getFrameIndex(md))
-                                   + "_" + MDUtils.getChannelName(md)
-                                   + "_" + String.format("%3d", MDUtils.getSliceIndex(md));
-                        }
-                        if (position.length() > 0)
-                           fileName = position + "/" + fileName;
-                        
-                        filenameTable_.put(MDUtils.getLabel(md), fileName);
-                        if (metadataVersion < 10)
-                           metadataTable_.put(MDUtils.getLabel(md), md);
-                        
-                     } catch (Exception ex) {
-                        ReportingUtils.showError(ex);
-                     }
+                  if (frame.frame < 0 || frame.slice < 0) {
+                     throw new JSONException("Missing frame or slice index in "
+                             + indexed.getMetadataFile(dir_));
                   }
+                  int channelIndex = frame.channelIndex;
+                  if (channelIndex < 0) {
+                     channelIndex = getChannelIndex(frame.channelName);
+                  }
+                  int framePosition = frame.positionIndex;
+                  if (framePosition < 0) {
+                     framePosition = positionIndex;
+                  }
+                  lastFrame_ = Math.max(frame.frame, lastFrame_);
+                  String fileName = frame.fileName;
+                  if (fileName == null) {
+                     fileName = "img_" + String.format("%9d", frame.frame)
+                             + "_" + frame.channelName
+                             + "_" + String.format("%3d", frame.slice);
+                  }
+                  if (position.length() > 0)
+                     fileName = position + "/" + fileName;
+
+                  String label = MDUtils.generateLabel(channelIndex, frame.slice,
+                          frame.frame, framePosition);
+                  filenameTable_.put(label, fileName);
+                  frameTable_.put(label, frame);
+               } catch (Exception ex) {
+                  ReportingUtils.logError(ex);
                }
-            } catch (JSONException ex) {
-               ReportingUtils.showError(ex);
             }
-         } else {
-            throw (new Exception("No metadata file found"));
+         } catch (JSONException ex) {
+            ReportingUtils.showError(ex);
          }
-        
       }
       readDisplaySettings();
    }
 
+   /**
+    * Scans the metadata file of each position, several at a time
+    */
+   private DiskDefaultIndex.Position[] scanPositions(final List<String> positions)
+           throws Exception {
+      DiskDefaultIndex.Position[] scanned = new DiskDefaultIndex.Position[positions.size()];
+      if (positions.isEmpty()) {
+         return scanned;
+      }
+      for (String position : positions) {
+         if (!new File(dir_ + "/" + position + "/metadata.txt").exists()) {
+            throw (new Exception("No metadata file found"));
+         }
+      }
+      int numThreads = Math.min(positions.size(), Runtime.getRuntime().availableProcessors());
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      try {
+         ArrayList<Future<DiskDefaultIndex.Position>> futures =
+                 new ArrayList<Future<DiskDefaultIndex.Position>>();
+         for (final String position : positions) {
+            futures.add(executor.submit(new Callable<DiskDefaultIndex.Position>() {
+               public DiskDefaultIndex.Position call() throws IOException {
+                  return DiskDefaultIndex.scan(dir_, position);
+               }
+            }));
+         }
+         for (int i = 0; i < scanned.length; i++) {
+            try {
+               scanned[i] = futures.get(i).get();
+            } catch (ExecutionException ex) {
+               throw new IOException("Couldn't read metadata of position "
+                       + positions.get(i) + ": " + ex.getCause());
+            }
+         }
+      } finally {
+         executor.shutdown();
+      }
+      return scanned;
+   }
+
+   /**
+    * Reads the metadata of one image from metadata.txt, filling in the
+    * indices and pixel type the same way as the index was made
+    */
+   private JSONObject readFrameMetadata(String label) throws Exception {
+      DiskDefaultIndex.Frame frame = frameTable_.get(label);
+      if (frame == null) {
+         return null;
+      }
+      JSONObject md = jsonToMetadata(DiskDefaultIndex.readFrame(dir_, frame));
+      int[] indices = MDUtils.getIndices(label);
+      if (!md.has("ChannelIndex"))
+         md.put("ChannelIndex", indices[0]);
+      if (!md.has("PositionIndex"))
+         md.put("PositionIndex", indices[3]);
+      if (!md.has("PixelType") && !md.has("IJType")) {
+         md.put("PixelType", MDUtils.getPixelType(summaryMetadata_));
+      }
+      return md;
+   }
+
    private int getChannelIndex(String channelName) {
       try {
          JSONArray channelNames;
@@ -496,16 +630,6 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
 
    }
 
-   private JSONObject readJsonMetadata(String pos) throws Exception {
-      String fileStr;
-      fileStr = TextUtils.readTextFile(dir_ + "/" + pos + "/metadata.txt");
-      try {
-         return new JSONObject(fileStr);
-      } catch (JSONException ex) {
-         return new JSONObject(fileStr.concat("}"));
-      }
-   }
-
    /**
     * @return the summaryMetadata_
     */
@@ -578,6 +702,7 @@ public class TaggedImageStorageDiskDefault implements TaggedImageStorage {
    }
 
    public void close() {
+      cache_.clear(this);
       try {
          writeDisplaySettings();
          if (shutdownHook_ != null) {
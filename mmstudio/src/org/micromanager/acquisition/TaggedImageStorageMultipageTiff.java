@@ -25,6 +25,13 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -35,25 +42,39 @@ import org.micromanager.utils.*;
 
 
 
-public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage {
+public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage,
+        LRUImageCache.SharedCacheUser {
+   
+   //Placed on a FileSet's write queue to stop its writer thread
+   private static final PendingImage END_OF_QUEUE = new PendingImage(null, null, 0, 0);
    
    private JSONObject summaryMetadata_;
    private JSONObject displayAndComments_;
    private boolean newDataSet_;
+   //datasets written by this storage get an index file, and so do opened ones
+   //whose tiff files were rewritten with new display settings
+   private final boolean openedForWriting_;
+   private boolean tiffsRewritten_ = false;
+   private boolean indexFileWritten_ = false;
+   //display settings as last found in or written to the tiff files, null if unknown
+   private String writtenDisplayAndComments_ = null;
    private int lastFrameOpenedDataSet_ = -1;
    private String directory_;
    private Thread shutdownHook_;
    private int numPositions_;
-   private CachedImages cached_;
+   private LRUImageCache cache_;
+   private LRUImageCache.ImageLoader imageLoader_;
    final public boolean omeTiff_;
    final private boolean seperateMetadataFile_;
    private boolean splitByXYPosition_ = true;
    private boolean finished_ = false;
-   private boolean expectedImageOrder_ = true;
+   //cleared by the writer threads
+   private volatile boolean expectedImageOrder_ = true;
    private int numChannels_, numSlices_;
    private String omeXML_ = null;
    private OMEMetadata omeMetadata_;
-   private int lastFrame_ = 0;
+   private volatile int lastFrame_ = 0;
+   private boolean slicesFirst_ = false, timeFirst_ = false;
   
    //used for estimating total length of ome xml
    private int totalNumImagePlanes_ = 0;
@@ -61,12 +82,30 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    //map of position indices to objects associated with each
    private HashMap<Integer, FileSet> fileSets_;
    
-   //Map of image labels to file 
-   private TreeMap<String, MultipageTiffReader> tiffReadersByLabel_;
+   //Map of image keys (see ImageIndexMap) to the index in readers_ of their file
+   private final ImageIndexMap readerIndices_ = new ImageIndexMap();
+   private final ArrayList<MultipageTiffReader> readers_ = new ArrayList<MultipageTiffReader>();
+   private final IdentityHashMap<MultipageTiffReader, Integer> readerNumbers_ = 
+           new IdentityHashMap<MultipageTiffReader, Integer>();
+   //guards the reader maps against concurrent updates from writer threads
+   private final Object readersLock_ = new Object();
+   
+   //Asynchronous writing: images waiting to be written, by image key, and the number
+   //of pixel bytes they hold, which is kept under asyncWriteBufferBytes_
+   final private long asyncWriteBufferBytes_;
+   private final ConcurrentHashMap<Long, PendingImage> pendingImages_ = 
+           new ConcurrentHashMap<Long, PendingImage>();
+   private final Object writeBufferLock_ = new Object();
+   private long bytesInFlight_ = 0;
+   private long numImagesWritten_ = 0;
+   private long totalWriteTimeNs_ = 0;
+   private long maxWriteTimeNs_ = 0;
+   private int numWriteStalls_ = 0;
   
    public TaggedImageStorageMultipageTiff(String dir, Boolean newDataSet, JSONObject summaryMetadata) throws IOException {            
       this(dir, newDataSet, summaryMetadata, MMStudioMainFrame.getInstance().getMetadataFileWithMultipageTiff(),
-              MMStudioMainFrame.getInstance().getSeperateFilesForPositionsMPTiff());
+              MMStudioMainFrame.getInstance().getSeperateFilesForPositionsMPTiff(),
+              MMStudioMainFrame.getInstance().getAsyncWriteBufferMPTiff());
    }
    
    /*
@@ -74,14 +113,31 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
     */
    public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
          boolean seperateMDFile, boolean seperateFilesForPositions) throws IOException {
+      this(dir, newDataSet, summaryMetadata, seperateMDFile, seperateFilesForPositions, 0);
+   }
+   
+   /**
+    * @param asyncWriteBufferBytes if greater than 0, images are written to disk by one 
+    * background thread per file set, and putImage only blocks when the images waiting 
+    * to be written hold more than this many bytes of pixels. If 0, images are written 
+    * on the thread calling putImage
+    */
+   public TaggedImageStorageMultipageTiff(String dir, boolean newDataSet, JSONObject summaryMetadata, 
+         boolean seperateMDFile, boolean seperateFilesForPositions, long asyncWriteBufferBytes) throws IOException {
       omeTiff_ = true;
       seperateMetadataFile_ = seperateMDFile;
       splitByXYPosition_ = seperateFilesForPositions;
+      asyncWriteBufferBytes_ = asyncWriteBufferBytes;
 
       newDataSet_ = newDataSet;
+      openedForWriting_ = newDataSet;
       directory_ = dir;
-      tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator());
-      cached_ = new CachedImages();
+      cache_ = LRUImageCache.getInstance();
+      imageLoader_ = new LRUImageCache.ImageLoader() {
+         public TaggedImage loadImage(int channel, int slice, int frame, int position) {
+            return readImage(channel, slice, frame, position);
+         }
+      };
       setSummaryMetadata(summaryMetadata);
 
       // TODO: throw error if no existing dataset
@@ -95,6 +151,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          public void run() {
             finished();
             writeDisplaySettings();
+            writeIndexFile();
          }
       };    
       Runtime.getRuntime().addShutdownHook(this.shutdownHook_); 
@@ -124,11 +181,11 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    }
    
    boolean slicesFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getSlicesFirst();
+      return slicesFirst_;
    }
    
    boolean timeFirst() {
-      return ((ImageLabelComparator) tiffReadersByLabel_.comparator()).getTimeFirst();
+      return timeFirst_;
    }
 
    private void openExistingDataSet() throws IOException {
@@ -136,15 +193,17 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
       MultipageTiffReader reader = null;
       File dir = new File(directory_);
+      ArrayList<File> tiffFiles = new ArrayList<File>();
       for (File f : dir.listFiles()) {
          if (f.getName().endsWith(".tif") || f.getName().endsWith(".TIF")) {
-            reader = new MultipageTiffReader(f);
-            Set<String> labels = reader.getIndexKeys();
-            for (String label : labels) {
-               tiffReadersByLabel_.put(label, reader);
-               int frameIndex = Integer.parseInt(label.split("_")[2]);
-               lastFrameOpenedDataSet_ = Math.max(frameIndex, lastFrameOpenedDataSet_);
-            }
+            tiffFiles.add(f);
+         }
+      }
+      for (MultipageTiffReader r : openReaders(tiffFiles.toArray(new File[0]))) {
+         reader = r;
+         for (long key : reader.getIndexMap().keys()) {
+            addReader(key, reader);
+            lastFrameOpenedDataSet_ = Math.max(ImageIndexMap.getFrame(key), lastFrameOpenedDataSet_);
          }
       }
 
@@ -152,35 +211,205 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          setSummaryMetadata(reader.getSummaryMetadata());
          numPositions_ = MDUtils.getNumPositions(summaryMetadata_);
          displayAndComments_ = reader.getDisplayAndComments();
+         writtenDisplayAndComments_ = displayAndComments_.toString();
       } catch (JSONException ex) {
          ReportingUtils.logError(ex);
       } 
    }
    
+   /**
+    * Opens a reader for each file, several at a time. Index maps are taken from the
+    * dataset's index file if it is up to date, otherwise each reader reads its own
+    */
+   private MultipageTiffReader[] openReaders(final File[] files) throws IOException {
+      final ImageIndexMap[] indexMaps = MultipageTiffIndexFile.read(directory_, files);
+      if (indexMaps == null && new File(directory_, MultipageTiffIndexFile.FILENAME).exists()) {
+         ReportingUtils.logMessage("Image index file in " + directory_ 
+                 + " is out of date, reading the index of every tiff file");
+      }
+      MultipageTiffReader[] readers = new MultipageTiffReader[files.length];
+      if (files.length == 0) {
+         return readers;
+      }
+      int numThreads = Math.min(files.length, Runtime.getRuntime().availableProcessors());
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      try {
+         ArrayList<Future<MultipageTiffReader>> futures = new ArrayList<Future<MultipageTiffReader>>();
+         for (int i = 0; i < files.length; i++) {
+            final int index = i;
+            futures.add(executor.submit(new Callable<MultipageTiffReader>() {
+               public MultipageTiffReader call() throws IOException {
+                  return new MultipageTiffReader(files[index],
+                          indexMaps == null ? null : indexMaps[index]);
+               }
+            }));
+         }
+         for (int i = 0; i < files.length; i++) {
+            try {
+               readers[i] = futures.get(i).get();
+            } catch (InterruptedException ex) {
+               throw new IOException("Interrupted while opening " + files[i].getName());
+            } catch (ExecutionException ex) {
+               if (ex.getCause() instanceof IOException) {
+                  throw (IOException) ex.getCause();
+               }
+               throw new IOException("Couldn't open " + files[i].getName() + ": " + ex.getCause());
+            }
+         }
+      } finally {
+         executor.shutdown();
+      }
+      return readers;
+   }
+   
+   /**
+    * Writes the index file once, when the storage is closed, since any later
+    * change to the tiff files (e.g. new display settings) invalidates it.
+    * Nothing is written for an opened dataset whose files are unchanged, as its
+    * index file is still valid
+    */
+   private synchronized void writeIndexFile() {
+      if (!(openedForWriting_ || tiffsRewritten_) || indexFileWritten_) {
+         return;
+      }
+      indexFileWritten_ = true;
+      List<MultipageTiffReader> readers = getReaders();
+      if (!readers.isEmpty()) {
+         MultipageTiffIndexFile.write(directory_, readers);
+      }
+   }
+   
    @Override
    public TaggedImage getImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
-      TaggedImage img = cached_.get(label);
-      if (img != null) {
-         return img;
+      return cache_.getImage(this, imageLoader_, channelIndex, sliceIndex, frameIndex, positionIndex);
+   }
+   
+   private TaggedImage readImage(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
+      if (!ImageIndexMap.isInRange(channelIndex, sliceIndex, frameIndex, positionIndex)) {
+         return null;
       }
-      if (!tiffReadersByLabel_.containsKey(label)) {
+      long key = ImageIndexMap.getKey(channelIndex, sliceIndex, frameIndex, positionIndex);
+      PendingImage pending = pendingImages_.get(key);
+      if (pending != null) {
+         return pending.image;
+      }
+      MultipageTiffReader reader = getReader(key);
+      if (reader == null) {
          return null;
       }
-      return tiffReadersByLabel_.get(label).readImage(label);   
+      return reader.readImage(key);   
    }
 
    @Override
    public JSONObject getImageTags(int channelIndex, int sliceIndex, int frameIndex, int positionIndex) {
-      String label = MDUtils.generateLabel(channelIndex, sliceIndex, frameIndex, positionIndex);
-      TaggedImage img = cached_.get(label);
-      if (img != null) {
-         return img.tags;
+      TaggedImage img = getImage(channelIndex, sliceIndex, frameIndex, positionIndex);
+      return img == null ? null : img.tags;
+   }
+   
+   private MultipageTiffReader getReader(long key) {
+      synchronized (readersLock_) {
+         long index = readerIndices_.get(key);
+         return index == ImageIndexMap.NO_VALUE ? null : readers_.get((int) index);
       }
-      if (!tiffReadersByLabel_.containsKey(label)) {
-         return null;
+   }
+   
+   private void addReader(long key, MultipageTiffReader reader) {
+      synchronized (readersLock_) {
+         Integer index = readerNumbers_.get(reader);
+         if (index == null) {
+            index = readers_.size();
+            readers_.add(reader);
+            readerNumbers_.put(reader, index);
+         }
+         readerIndices_.put(key, index);
+      }
+   }
+   
+   private ArrayList<MultipageTiffReader> getReaders() {
+      synchronized (readersLock_) {
+         return new ArrayList<MultipageTiffReader>(readers_);
+      }
+   }
+   
+   /**
+    * Number of images handed to putImage that have not yet been written to disk
+    */
+   public int getNumPendingImages() {
+      return pendingImages_.size();
+   }
+   
+   /**
+    * Bytes of pixel data handed to putImage that have not yet been written to disk
+    */
+   public long getBytesInFlight() {
+      synchronized (writeBufferLock_) {
+         return bytesInFlight_;
       }
-      return tiffReadersByLabel_.get(label).readImage(label).tags;   
+   }
+   
+   /**
+    * Mean time taken by writer threads to write an image and its metadata, in ms
+    */
+   public double getMeanWriteLatencyMs() {
+      synchronized (writeBufferLock_) {
+         return numImagesWritten_ == 0 ? 0 : totalWriteTimeNs_ / (1000000.0 * numImagesWritten_);
+      }
+   }
+   
+   public double getMaxWriteLatencyMs() {
+      synchronized (writeBufferLock_) {
+         return maxWriteTimeNs_ / 1000000.0;
+      }
+   }
+   
+   /**
+    * Number of times putImage had to wait for writer threads because the
+    * asynchronous write buffer was full, i.e. the disk was falling behind
+    */
+   public int getNumWriteStalls() {
+      synchronized (writeBufferLock_) {
+         return numWriteStalls_;
+      }
+   }
+   
+   private void reserveWriteBuffer(long bytes) throws MMException {
+      synchronized (writeBufferLock_) {
+         //Always allow one image in, even if it is bigger than the whole buffer
+         if (bytesInFlight_ > 0 && bytesInFlight_ + bytes > asyncWriteBufferBytes_) {
+            numWriteStalls_++;
+            ReportingUtils.logMessage("Image stack file writing is falling behind acquisition, "
+                    + pendingImages_.size() + " images waiting to be written");
+            try {
+               while (bytesInFlight_ > 0 && bytesInFlight_ + bytes > asyncWriteBufferBytes_) {
+                  writeBufferLock_.wait();
+               }
+            } catch (InterruptedException ex) {
+               throw new MMException("Interrupted while waiting for images to be written");
+            }
+         }
+         bytesInFlight_ += bytes;
+      }
+   }
+   
+   private void releaseWriteBuffer(long bytes, long writeTimeNs) {
+      synchronized (writeBufferLock_) {
+         bytesInFlight_ -= bytes;
+         numImagesWritten_++;
+         totalWriteTimeNs_ += writeTimeNs;
+         maxWriteTimeNs_ = Math.max(maxWriteTimeNs_, writeTimeNs);
+         writeBufferLock_.notifyAll();
+      }
+   }
+   
+   private static long getPixelBytes(TaggedImage img) {
+      if (img.pix instanceof byte[]) {
+         return ((byte[]) img.pix).length;
+      } else if (img.pix instanceof short[]) {
+         return 2L * ((short[]) img.pix).length;
+      } else if (img.pix instanceof int[]) {
+         return 4L * ((int[]) img.pix).length;
+      }
+      return 0;
    }
 
    @Override
@@ -196,7 +425,14 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
             ReportingUtils.logError(ex);
          }
       }
-      String label = MDUtils.getLabel(taggedImage.tags);
+      long key;
+      try {
+         key = ImageIndexMap.getKey(taggedImage.tags);
+      } catch (JSONException ex) {
+         throw new MMException("Image indices missing from metadata");
+      } catch (IllegalArgumentException ex) {
+         throw new MMException(ex.getMessage());
+      }
       if (fileSets_ == null) {
          try {
             fileSets_ = new HashMap<Integer, FileSet>();
@@ -216,26 +452,48 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          fileSets_.put(fileSetIndex, new FileSet(taggedImage.tags, this));
       }
       FileSet set = fileSets_.get(fileSetIndex);
-      try {
-         set.writeImage(taggedImage);
-      } catch (IOException ex) {
-        ReportingUtils.showError("problem writing image to file");
+      if (asyncWriteBufferBytes_ > 0) {
+         //the writer thread adds FileName to the tags it writes, so it gets its own
+         //copy rather than changing tags that the cache and displays are reading
+         TaggedImage toWrite = new TaggedImage(taggedImage.pix, MDUtils.copy(taggedImage.tags));
+         PendingImage pending = new PendingImage(taggedImage, toWrite, key, getPixelBytes(taggedImage));
+         reserveWriteBuffer(pending.bytes);
+         pendingImages_.put(key, pending);
+         set.queueImage(pending);
+      } else {
+         try {
+            set.writeImage(taggedImage);
+            addReader(key, set.getCurrentReader());
+         } catch (IOException ex) {
+           ReportingUtils.showError("problem writing image to file");
+         }
       }
-      tiffReadersByLabel_.put(label, set.getCurrentReader());
          
-      int frame;
-      try {
-         frame = MDUtils.getFrameIndex(taggedImage.tags);
-      } catch (JSONException ex) {
-         frame = 0;
-      }
+      int frame = ImageIndexMap.getFrame(key);
       lastFrameOpenedDataSet_ = Math.max(frame, lastFrameOpenedDataSet_);
-      cached_.add(taggedImage, label);
+      lastFrame_ = Math.max(frame, lastFrame_);
+      cache_.putImage(this, taggedImage, ImageIndexMap.getChannel(key), ImageIndexMap.getSlice(key),
+              frame, ImageIndexMap.getPosition(key));
    }
 
    @Override
    public Set<String> imageKeys() {
-      return tiffReadersByLabel_.keySet();
+      long[] keys;
+      synchronized (readersLock_) {
+         keys = readerIndices_.keys();
+      }
+      if (!pendingImages_.isEmpty()) {
+         //images still waiting to be written are not in readerIndices_ yet
+         ImageIndexMap allKeys = new ImageIndexMap();
+         for (long key : keys) {
+            allKeys.put(key, 0);
+         }
+         for (Long key : pendingImages_.keySet()) {
+            allKeys.put(key, 0);
+         }
+         keys = allKeys.keys();
+      }
+      return ImageIndexMap.getSortedLabels(keys, slicesFirst_, timeFirst_);
    }
 
    /**
@@ -251,6 +509,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       newDataSet_ = false;
       try {
          if (fileSets_ != null) {
+            for (FileSet p : fileSets_.values()) {
+               p.finishWriting();
+            }
             for (FileSet p : fileSets_.values()) {
                p.finishAbortedAcqIfNeeded();
             }
@@ -274,11 +535,8 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       summaryMetadata_ = md;
       if (summaryMetadata_ != null) {
          try {
-            boolean slicesFirst = summaryMetadata_.getBoolean("SlicesFirst");
-            boolean timeFirst = summaryMetadata_.getBoolean("TimeFirst");
-            TreeMap<String, MultipageTiffReader> oldImageMap = tiffReadersByLabel_;
-            tiffReadersByLabel_ = new TreeMap<String, MultipageTiffReader>(new ImageLabelComparator(slicesFirst, timeFirst));
-            tiffReadersByLabel_.putAll(oldImageMap);
+            slicesFirst_ = summaryMetadata_.getBoolean("SlicesFirst");
+            timeFirst_ = summaryMetadata_.getBoolean("TimeFirst");
          } catch (JSONException ex) {
             ReportingUtils.logError("Couldn't find SlicesFirst or TimeFirst in summary metadata");
          }
@@ -303,9 +561,20 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       displayAndComments_ = settings;
    }
           
+   /**
+    * Writes the display settings and comments into the tiff files, unless they
+    * already hold these. Rewriting changes the files' modification times, so the
+    * index file is rewritten too when the storage is closed
+    */
    @Override   
-   public void writeDisplaySettings() {
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+   public synchronized void writeDisplaySettings() {
+      String settings = displayAndComments_.toString();
+      if (settings.equals(writtenDisplayAndComments_)) {
+         return;
+      }
+      writtenDisplayAndComments_ = settings;
+      tiffsRewritten_ = true;
+      for (MultipageTiffReader r : getReaders()) {
          try {
             r.rewriteDisplaySettings(displayAndComments_.getJSONArray("Channels"));
             r.rewriteComments(displayAndComments_.getJSONObject("Comments"));
@@ -324,7 +593,8 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
    public void close() {
       shutdownHook_.run();
       Runtime.getRuntime().removeShutdownHook(shutdownHook_);
-      for (MultipageTiffReader r : new HashSet<MultipageTiffReader>(tiffReadersByLabel_.values())) {
+      cache_.clear(this);
+      for (MultipageTiffReader r : getReaders()) {
          try {
             r.close();
          } catch (IOException ex) {
@@ -372,6 +642,8 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
 
    //Class encapsulating a single File (or series of files)
    //Default is one file series per xy posititon
+   //The writers, file name and IFD count are used by the writer thread, so methods
+   //using them are synchronized
    private class FileSet {
       private LinkedList<MultipageTiffWriter> tiffWriters_;
       private FileWriter mdWriter_;
@@ -382,6 +654,9 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
       private int ifdCount_ = 0;
       private TaggedImageStorageMultipageTiff mpTiff_;
       int nextExpectedChannel_ = 0, nextExpectedSlice_ = 0, nextExpectedFrame_ = 0;
+      //only used when writing asynchronously
+      private LinkedBlockingQueue<PendingImage> writeQueue_;
+      private Thread writerThread_;
 
       
       public FileSet(JSONObject firstImageTags, TaggedImageStorageMultipageTiff mpt) {
@@ -403,7 +678,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          }
       }
 
-      public void finished() throws IOException {
+      public synchronized void finished() throws IOException {
          if (finished_) {
             return;
          }
@@ -424,11 +699,70 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          finished_ = true;
       }
 
-      public MultipageTiffReader getCurrentReader() {
+      public synchronized MultipageTiffReader getCurrentReader() {
          return tiffWriters_.getLast().getReader();
       }
       
-      public void writeImage(TaggedImage img) throws IOException {
+      public void queueImage(PendingImage img) {
+         if (writerThread_ == null) {
+            writeQueue_ = new LinkedBlockingQueue<PendingImage>();
+            writerThread_ = new Thread("Multipage tiff writer: " + baseFilename_) {
+               @Override
+               public void run() {
+                  writeQueuedImages();
+               }
+            };
+            //the shutdown hook waits for queued images to be written
+            writerThread_.setDaemon(true);
+            writerThread_.start();
+         }
+         writeQueue_.add(img);
+      }
+      
+      private void writeQueuedImages() {
+         while (true) {
+            PendingImage img;
+            try {
+               img = writeQueue_.take();
+            } catch (InterruptedException ex) {
+               ReportingUtils.logError(ex);
+               return;
+            }
+            if (img == END_OF_QUEUE) {
+               return;
+            }
+            long start = System.nanoTime();
+            try {
+               writeImage(img.toWrite);
+               addReader(img.key, getCurrentReader());
+            } catch (IOException ex) {
+               ReportingUtils.showError("problem writing image to file");
+            } catch (RuntimeException ex) {
+               ReportingUtils.logError(ex);
+            }
+            //a newer image put under the same key stays pending
+            pendingImages_.remove(img.key, img);
+            releaseWriteBuffer(img.bytes, System.nanoTime() - start);
+         }
+      }
+      
+      /**
+       * Waits until all queued images have been written
+       */
+      public void finishWriting() {
+         if (writerThread_ == null) {
+            return;
+         }
+         writeQueue_.add(END_OF_QUEUE);
+         try {
+            writerThread_.join();
+         } catch (InterruptedException ex) {
+            ReportingUtils.logError(ex);
+         }
+         writerThread_ = null;
+      }
+      
+      public synchronized void writeImage(TaggedImage img) throws IOException {
          //check if current writer is out of space, if so, make a new one
          if (!tiffWriters_.getLast().hasSpaceToWrite(img, omeTiff_ ? estimateOMEMDSize(): 0  )) {
             currentTiffFilename_ = baseFilename_ + "_" + tiffWriters_.size() + (omeTiff_ ? ".ome.tif" : ".tif");
@@ -457,7 +791,10 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          //write metadata
          if (omeTiff_) {
             try {
-               omeMetadata_.addImageTagsToOME(img.tags, ifdCount_, baseFilename_, currentTiffFilename_);
+               //shared by the writer threads of all file sets
+               synchronized (omeMetadata_) {
+                  omeMetadata_.addImageTagsToOME(img.tags, ifdCount_, baseFilename_, currentTiffFilename_);
+               }
             } catch (Exception ex) {
                ReportingUtils.logError("Problem writing OME metadata");
             }
@@ -553,7 +890,7 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
        * that weren't written. Modify ImageJ and OME max number of frames as appropriate.
        * This method only works if xy positions are split across separate files
        */
-      private void finishAbortedAcqIfNeeded() {
+      private synchronized void finishAbortedAcqIfNeeded() {
          if (expectedImageOrder_ && splitByXYPosition_ && !timeFirst()) {
             try {
                //One position may be on the next frame compared to others. Complete each position
@@ -575,33 +912,35 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          int numSlices = MDUtils.getNumSlices(summaryMetadata_);
          int numChannels = MDUtils.getNumChannels(summaryMetadata_);
          if (numFrames > frame + 1 ) {
-            TreeSet<String> writtenImages = new TreeSet<String>();
+            int positionIndex = -1;
             for (MultipageTiffWriter w : tiffWriters_) {
-               writtenImages.addAll(w.getIndexMap().keySet());
+               long[] keys = w.getIndexMap().keys();
+               if (positionIndex == -1 && keys.length > 0) {
+                  positionIndex = ImageIndexMap.getPosition(keys[0]);
+               }
                w.setAbortedNumFrames(frame + 1);
             }
-            int positionIndex = MDUtils.getIndices(writtenImages.first())[3];
+            if (positionIndex == -1) {
+               return;
+            }
             if (omeTiff_) {
                omeMetadata_.setNumFrames(positionIndex, frame + 1);
             }
-            TreeSet<String> lastFrameLabels = new TreeSet<String>();
-            for (int c = 0; c < numChannels; c++) {
-               for (int z = 0; z < numSlices; z++) {
-                  lastFrameLabels.add(MDUtils.generateLabel(c, z, frame, positionIndex));
-               }
-            }
-            lastFrameLabels.removeAll(writtenImages);
             try {
-               for (String label : lastFrameLabels) {
-                  tiffWriters_.getLast().writeBlankImage(label);
-                  if (omeTiff_) {
-                     JSONObject dummyTags = new JSONObject();
-                     int channel = Integer.parseInt(label.split("_")[0]);
-                     int slice = Integer.parseInt(label.split("_")[1]);
-                     MDUtils.setChannelIndex(dummyTags, channel);
-                     MDUtils.setFrameIndex(dummyTags, frame);
-                     MDUtils.setSliceIndex(dummyTags, slice);
-                     omeMetadata_.addImageTagsToOME(dummyTags, ifdCount_, baseFilename_, currentTiffFilename_);
+               for (int c = 0; c < numChannels; c++) {
+                  for (int z = 0; z < numSlices; z++) {
+                     long key = ImageIndexMap.getKey(c, z, frame, positionIndex);
+                     if (isWritten(key)) {
+                        continue;
+                     }
+                     tiffWriters_.getLast().writeBlankImage(ImageIndexMap.getLabel(key));
+                     if (omeTiff_) {
+                        JSONObject dummyTags = new JSONObject();
+                        MDUtils.setChannelIndex(dummyTags, c);
+                        MDUtils.setFrameIndex(dummyTags, frame);
+                        MDUtils.setSliceIndex(dummyTags, z);
+                        omeMetadata_.addImageTagsToOME(dummyTags, ifdCount_, baseFilename_, currentTiffFilename_);
+                     }
                   }
                }
             } catch (IOException ex) {
@@ -610,6 +949,15 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
          }
       }
       
+      private boolean isWritten(long key) {
+         for (MultipageTiffWriter w : tiffWriters_) {
+            if (w.getIndexMap().containsKey(key)) {
+               return true;
+            }
+         }
+         return false;
+      }
+      
       void checkForExpectedImageOrder(JSONObject tags) {
          try {
             //Determine next expected indices
@@ -649,31 +997,20 @@ public final class TaggedImageStorageMultipageTiff implements TaggedImageStorage
  
    }
    
-   private class CachedImages {
-      private static final int NUM_TO_CACHE = 10;
-      
-      private LinkedList<TaggedImage> images;
-      private LinkedList<String> labels;
-      
-      public CachedImages() {
-         images = new LinkedList<TaggedImage>();
-         labels = new LinkedList<String>();
-      }
+   private static class PendingImage {
+      //returned to readers until the image is written
+      final TaggedImage image;
+      //written to disk, with tags that only the writer thread changes
+      final TaggedImage toWrite;
+      final long key;
+      final long bytes;
       
-      public void add(TaggedImage img, String label) {
-         images.addFirst(img);
-         labels.addFirst(label);
-         while (images.size() > NUM_TO_CACHE) {
-            images.removeLast();
-            labels.removeLast();
-         }
-      }
-
-      public TaggedImage get(String label) {
-         int i = labels.indexOf(label);
-         return i == -1 ? null : images.get(i);
+      public PendingImage(TaggedImage img, TaggedImage imgToWrite, long imageKey, long numBytes) {
+         image = img;
+         toWrite = imgToWrite;
+         key = imageKey;
+         bytes = numBytes;
       }
-      
    }
     
 }
\ No newline at end of file
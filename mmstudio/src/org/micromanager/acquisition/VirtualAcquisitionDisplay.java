@@ -81,6 +81,8 @@ public final class VirtualAcquisitionDisplay implements AcquisitionDisplay,
    final Preferences prefs_ = Preferences.userNodeForPackage(this.getClass());
    private static final String SIMPLE_WIN_X = "simple_x";
    private static final String SIMPLE_WIN_Y = "simple_y";
+   // pixels per channel counted for histograms with fast live histograms on
+   private static final int LIVE_HISTOGRAM_SAMPLES = 1 << 16;
    private AcquisitionEngine eng_;
    private boolean finished_ = false;
    private boolean promptToSave_ = true;
@@ -102,6 +104,7 @@ public final class VirtualAcquisitionDisplay implements AcquisitionDisplay,
    private DisplayControls controls_;
    public AcquisitionVirtualStack virtualStack_;
    private boolean simple_ = false;
+   private volatile boolean liveModeOn_ = false;
    private boolean mda_ = false; //flag if display corresponds to MD acquisition
    private MetadataPanel mdPanel_;
    private boolean newDisplay_ = true; //used for autostretching on window opening
@@ -297,7 +300,17 @@ public final class VirtualAcquisitionDisplay implements AcquisitionDisplay,
 
             @Override
             public void run() {
-               superUpdateImage();
+               ImageCanvas canvas = getCanvas();
+               if (canvas instanceof PyramidImageCanvas
+                       && ((PyramidImageCanvas) canvas).willPaintPyramid()) {
+                  // drawn from the pyramid; update the full image only when it's needed
+                  canvas.setImageUpdated();
+               } else {
+                  if (canvas instanceof PyramidImageCanvas) {
+                     ((PyramidImageCanvas) canvas).pixelsChanged();
+                  }
+                  superUpdateImage();
+               }
                imageChangedUpdate();
                try {
                   GUIUtils.invokeLater(new Runnable() {
@@ -1706,6 +1719,37 @@ public final class VirtualAcquisitionDisplay implements AcquisitionDisplay,
       if (simple_) {
          controls_.acquiringImagesUpdate(enabled);
       }
+      liveModeOn_ = enabled;
+      if (!enabled && histogramControlsState_ != null
+              && histogramControlsState_.fastLiveHist) {
+         // replace the sampled statistics of the last live image
+         SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+               if (histograms_ != null && hyperImage_ != null) {
+                  histograms_.calcAndDisplayHistAndStats(isActiveDisplay());
+                  if (histogramControlsState_.autostretch) {
+                     histograms_.autostretch();
+                  }
+                  histograms_.applyLUTToImage();
+                  drawWithoutUpdate();
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * Returns the stride at which the histograms should sample a width x height
+    * image: 1 unless this is the live window in live mode and fast live
+    * histograms are selected.
+    */
+   public int getHistogramSampleStride(int width, int height) {
+      if (!simple_ || !liveModeOn_ || histogramControlsState_ == null
+              || !histogramControlsState_.fastLiveHist) {
+         return 1;
+      }
+      return HistogramStatistics.getSampleStride(width, height, LIVE_HISTOGRAM_SAMPLES);
    }
 
    private void createWindow() {
@@ -2210,7 +2254,7 @@ public final class VirtualAcquisitionDisplay implements AcquisitionDisplay,
       private boolean closed_ = false;
 
       public DisplayWindow(ImagePlus ip) {
-         super(ip);
+         super(ip, new PyramidImageCanvas(ip));
       }
 
       @Override
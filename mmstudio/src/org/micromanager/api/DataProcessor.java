@@ -3,6 +3,7 @@ package org.micromanager.api;
 import java.util.Collection;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.micromanager.utils.ReportingUtils;
 
 /**
@@ -19,6 +20,13 @@ public abstract class DataProcessor<E> extends Thread {
    private BlockingQueue<E> output_;
    private boolean stopRequested_ = false;
    private boolean started_ = false;
+   //Processing time statistics: the time from poll() returning a datum to the
+   //next produce(), or of each call to StatelessDataProcessor.processDatum.
+   //Atomic rather than synchronized, since the monitor of a Thread is also used by join()
+   private long lastPollTimeNs_ = -1;
+   private final AtomicLong numProcessed_ = new AtomicLong();
+   private final AtomicLong totalProcessingTimeNs_ = new AtomicLong();
+   private final AtomicLong maxProcessingTimeNs_ = new AtomicLong();
 
    /*
     * The process method should be overridden by classes implementing
@@ -104,6 +112,7 @@ public abstract class DataProcessor<E> extends Thread {
          try {
             E datum = (E) input_.poll(100, TimeUnit.MILLISECONDS);
             if (datum != null) {
+               lastPollTimeNs_ = System.nanoTime();
                return datum;
             }
          } catch (InterruptedException ex) {
@@ -125,6 +134,10 @@ public abstract class DataProcessor<E> extends Thread {
     * A convenience method for posting a data object to the output queue.
     */
    protected void produce(E datum) {
+      if (lastPollTimeNs_ >= 0) {
+         recordProcessingTime(System.nanoTime() - lastPollTimeNs_);
+         lastPollTimeNs_ = -1;
+      }
       try {
          output_.put(datum);
       } catch (InterruptedException ex) {
@@ -132,6 +145,40 @@ public abstract class DataProcessor<E> extends Thread {
       }
    };
 
+   /*
+    * Adds the time taken to process one datum to the statistics.
+    */
+   protected void recordProcessingTime(long nanoseconds) {
+      numProcessed_.incrementAndGet();
+      totalProcessingTimeNs_.addAndGet(nanoseconds);
+      long max = maxProcessingTimeNs_.get();
+      while (nanoseconds > max && !maxProcessingTimeNs_.compareAndSet(max, nanoseconds)) {
+         max = maxProcessingTimeNs_.get();
+      }
+   }
+
+   /*
+    * Returns the number of data objects processed so far.
+    */
+   public long getNumProcessed() {
+      return numProcessed_.get();
+   }
+
+   /*
+    * Returns the mean time, in milliseconds, taken to process a data object.
+    */
+   public double getMeanProcessingTimeMs() {
+      long numProcessed = numProcessed_.get();
+      return numProcessed == 0 ? 0 : totalProcessingTimeNs_.get() / (1e6 * numProcessed);
+   }
+
+   /*
+    * Returns the longest time, in milliseconds, taken to process a data object.
+    */
+   public double getMaxProcessingTimeMs() {
+      return maxProcessingTimeNs_.get() / 1e6;
+   }
+
    /*
     * Returns true if stop has been requested.
     */
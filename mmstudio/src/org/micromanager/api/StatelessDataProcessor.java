@@ -0,0 +1,64 @@
+package org.micromanager.api;
+
+/**
+ * A DataProcessor that turns each data object into exactly one new data object,
+ * independently of all others. Because it keeps no state between data objects,
+ * the ProcessorStack can run it on several worker threads at once, and puts
+ * the results back into the order the data objects arrived in.
+ *
+ * Inherit from this class and override processDatum instead of process.
+ */
+public abstract class StatelessDataProcessor<E> extends DataProcessor<E> {
+   //not synchronized, as that would lock the monitor of this Thread, which join() waits on
+   private volatile int numWorkers_ = 1;
+
+   /*
+    * Override this method to process a single data object. It may be called
+    * from several threads at once. The end-of-stream object
+    * (TaggedImageQueue.POISON) must be returned unchanged.
+    */
+   protected abstract E processDatum(E datum);
+
+   /*
+    * Processes data objects one at a time when this processor is run
+    * as a single thread.
+    */
+   @Override
+   protected void process() {
+      E datum = poll();
+      if (datum != null) {
+         produce(processDatum(datum));
+      }
+   }
+
+   /*
+    * Processes one data object on a ProcessorStack worker thread and records
+    * the time it took.
+    */
+   public E processOnWorker(E datum) {
+      long start = System.nanoTime();
+      E result = processDatum(datum);
+      recordProcessingTime(System.nanoTime() - start);
+      return result;
+   }
+
+   /*
+    * Returns true if stop has been requested. The ProcessorStack threads
+    * running this processor exit when it is.
+    */
+   public boolean isStopRequested() {
+      return stopRequested();
+   }
+
+   /*
+    * Sets the number of threads the ProcessorStack should use to run
+    * this processor.
+    */
+   public void setNumWorkers(int numWorkers) {
+      numWorkers_ = Math.max(1, numWorkers);
+   }
+
+   public int getNumWorkers() {
+      return numWorkers_;
+   }
+}
@@ -46,7 +46,7 @@ import org.micromanager.acquisition.VirtualAcquisitionDisplay;
 import org.micromanager.acquisition.VirtualAcquisitionDisplay.MMCompositeImage;
 import org.micromanager.api.ImageCache;
 import org.micromanager.graph.HistogramPanel.CursorListener;
-import org.micromanager.utils.HistogramUtils;
+import org.micromanager.utils.HistogramStatistics;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.JavaUtils;
 import org.micromanager.utils.MDUtils;
@@ -98,6 +98,7 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
    final private int bitDepth_;
    private Color color_;
    private String name_;
+   private final HistogramStatistics stats_ = new HistogramStatistics();
 
    public ChannelControlPanel(int channelIndex, MultiChannelHistograms mcHistograms, VirtualAcquisitionDisplay disp) {
       display_ = disp;
@@ -675,60 +676,36 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
          return;
       }
 
-      int[] rawHistogram = ip.getHistogram();
+      double fractionToReject = 0.01*display_.getHistogramControlsState().percentToIgnore;
+      stats_.calculate(ip, fractionToReject,
+              display_.getHistogramSampleStride(ip.getWidth(), ip.getHeight()));
+      int[] rawHistogram = stats_.getRawHistogram();
       int imgWidth = img_.getWidth();
       int imgHeight = img_.getHeight();
 
-      if (rawHistogram[0] == imgWidth * imgHeight) {
+      int numPixels = stats_.isSampled() ? stats_.getNumPixels() : imgWidth * imgHeight;
+      if (rawHistogram[0] == numPixels) {
          return;  //Blank pixels 
       }
       if (display_.getHistogramControlsState().ignoreOutliers) {
          // todo handle negative values
-         maxAfterRejectingOutliers_ = rawHistogram.length;
          // specified percent of pixels are ignored in the automatic contrast setting
-         int totalPoints = imgHeight * imgWidth;
-         HistogramUtils hu = new HistogramUtils(rawHistogram, totalPoints, 0.01*display_.getHistogramControlsState().percentToIgnore);
-         minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
-         maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+         minAfterRejectingOutliers_ = stats_.getMinAfterRejectingOutliers();
+         maxAfterRejectingOutliers_ = stats_.getMaxAfterRejectingOutliers();
       }
       GraphData histogramData = new GraphData();
 
-      pixelMin_ = -1;
-      pixelMax_ = 0;
+      pixelMin_ = stats_.getMin();
+      pixelMax_ = stats_.getMax();
 
       int numBins = (int) Math.min(rawHistogram.length / binSize_, NUM_BINS);
       int[] histogram = new int[NUM_BINS];
-      int total = 0;
-      for (int i = 0; i < numBins; i++) {
-         histogram[i] = 0;
-         for (int j = 0; j < binSize_; j++) {
-            int rawHistIndex = (int) (i * binSize_ + j);
-            int rawHistVal = rawHistogram[rawHistIndex];
-            histogram[i] += rawHistVal;
-            if (rawHistVal > 0) {
-               pixelMax_ = rawHistIndex;
-               if (pixelMin_ == -1) {
-                  pixelMin_ = rawHistIndex;
-               }
-            }
-         }
-         total += histogram[i];
-         if (display_.getHistogramControlsState().logHist) {
+      int total = stats_.getBinnedHistogram(histogram, binSize_);
+      if (display_.getHistogramControlsState().logHist) {
+         for (int i = 0; i < numBins; i++) {
             histogram[i] = histogram[i] > 0 ? (int) (1000 * Math.log(histogram[i])) : 0;
          }
       }
-      //Make sure max has correct value is hist display mode isnt auto
-      if (histRangeComboBox_.getSelectedIndex() != -1) {
-         pixelMin_ = rawHistogram.length-1;
-         for (int i = rawHistogram.length-1; i > 0; i--) {
-            if (rawHistogram[i] > 0 && i > pixelMax_ ) {
-               pixelMax_ = i;
-            }
-            if (rawHistogram[i] > 0 && i < pixelMin_ ) {
-               pixelMin_ = i;
-            }
-         }
-      }
 
       // work around what is apparently a bug in ImageJ
       if (total == 0) {
@@ -748,8 +725,12 @@ public class ChannelControlPanel extends JPanel implements CursorListener {
          hp_.setAutoScale();
          hp_.repaint();
 
-         minMaxLabel_.setText("Min: " + NumberUtils.intToDisplayString((int) pixelMin_) + "   "
-                 + "Max: " + NumberUtils.intToDisplayString((int) pixelMax_));
+         // sampled values are marked as estimates
+         String approx = stats_.isSampled() ? "~" : "";
+         minMaxLabel_.setText("Min: " + approx + NumberUtils.intToDisplayString((int) pixelMin_) + "   "
+                 + "Max: " + approx + NumberUtils.intToDisplayString((int) pixelMax_));
+         minMaxLabel_.setToolTipText(stats_.getSamplingDescription(
+                 display_.getHistogramControlsState().ignoreOutliers ? fractionToReject : 0));
       } else {
           hp_.setVisible(false);        
       }
@@ -60,6 +60,7 @@ public class ContrastPanel extends JPanel {
    private static final String PREF_SYNC_CHANNELS = "sync_channels";
    private static final String PREF_SLOW_HIST = "slow_hist";
    private static final String PREF_SLOW_DISP = "slow_disp";
+   private static final String PREF_FAST_LIVE_HIST = "fast_live_hist";
    private JScrollPane histDisplayScrollPane_;
    private JComboBox displayModeCombo_;
    private JCheckBox autostretchCheckBox_;
@@ -72,6 +73,7 @@ public class ContrastPanel extends JPanel {
    private JCheckBox syncChannelsCheckBox_;
    private JCheckBox slowHistCheckBox_;
    private JCheckBox slowDispCheckBox_;
+   private JCheckBox fastLiveHistCheckBox_;
    private JLabel displayModeLabel_;
    private Preferences prefs_;
    private Color overlayColor_ = Color.white;
@@ -110,6 +112,7 @@ public class ContrastPanel extends JPanel {
       state.syncChannels = prefs_.getBoolean(PREF_SYNC_CHANNELS, false);
       state.slowHist = prefs_.getBoolean(PREF_SLOW_HIST, false);
       state.slowDisplayUpdates = prefs_.getBoolean(PREF_SLOW_DISP, false);
+      state.fastLiveHist = prefs_.getBoolean(PREF_FAST_LIVE_HIST, false);
       state.scaleBar = false;
       state.scaleBarColorIndex = 0;
       state.scaleBarLocationIndex = 0;
@@ -127,6 +130,7 @@ public class ContrastPanel extends JPanel {
          autostretchCheckBox_.setEnabled(false);
          slowHistCheckBox_.setEnabled(false);
          slowDispCheckBox_.setEnabled(false);
+         fastLiveHistCheckBox_.setEnabled(false);
          logHistCheckBox_.setEnabled(false);
          rejectOutliersCheckBox_.setEnabled(false);
          rejectPercentSpinner_.setEnabled(false);
@@ -141,6 +145,7 @@ public class ContrastPanel extends JPanel {
          logHistCheckBox_.setEnabled(true);
          slowHistCheckBox_.setEnabled(true);
          slowDispCheckBox_.setEnabled(!currentDisplay_.isSimpleDisplay());
+         fastLiveHistCheckBox_.setEnabled(currentDisplay_.isSimpleDisplay());
          autostretchCheckBox_.setEnabled(true);
          if (autostretchCheckBox_.isSelected()) {
             rejectOutliersCheckBox_.setEnabled(true);
@@ -158,6 +163,7 @@ public class ContrastPanel extends JPanel {
          logHistCheckBox_.setEnabled(true);
          slowHistCheckBox_.setEnabled(true);
          slowDispCheckBox_.setEnabled(!currentDisplay_.isSimpleDisplay());
+         fastLiveHistCheckBox_.setEnabled(currentDisplay_.isSimpleDisplay());
          syncChannelsCheckBox_.setEnabled(true);
 
       }
@@ -179,6 +185,7 @@ public class ContrastPanel extends JPanel {
       syncChannelsCheckBox_.setSelected(state.syncChannels);
       slowHistCheckBox_.setSelected(state.slowHist);
       slowDispCheckBox_.setSelected(state.slowDisplayUpdates);
+      fastLiveHistCheckBox_.setSelected(state.fastLiveHist);
 
       boolean bar = state.scaleBar;
       int color = state.scaleBarColorIndex;
@@ -219,6 +226,7 @@ public class ContrastPanel extends JPanel {
       prefs_.putBoolean(PREF_SYNC_CHANNELS, syncChannelsCheckBox_.isSelected());
       prefs_.putBoolean(PREF_SLOW_HIST, slowHistCheckBox_.isSelected());
       prefs_.putBoolean(PREF_SLOW_DISP, slowDispCheckBox_.isSelected());
+      prefs_.putBoolean(PREF_FAST_LIVE_HIST, fastLiveHistCheckBox_.isSelected());
 
       if (currentDisplay_ == null) {
          return;
@@ -230,6 +238,7 @@ public class ContrastPanel extends JPanel {
       s.percentToIgnore = (Double) rejectPercentSpinner_.getValue();
       s.slowHist = slowHistCheckBox_.isSelected();
       s.slowDisplayUpdates = slowDispCheckBox_.isSelected();
+      s.fastLiveHist = fastLiveHistCheckBox_.isSelected();
       s.syncChannels = syncChannelsCheckBox_.isSelected();
       s.scaleBar = sizeBarCheckBox_.isSelected();
       s.scaleBarColorIndex = sizeBarColorComboBox_.getSelectedIndex();
@@ -357,6 +366,15 @@ public class ContrastPanel extends JPanel {
          }
       });
 
+      fastLiveHistCheckBox_ = new JCheckBox("Fast live hist");
+      fastLiveHistCheckBox_.setToolTipText("In live mode, calculate histograms and autostretch from a sample of the pixels");
+      fastLiveHistCheckBox_.addActionListener(new java.awt.event.ActionListener() {
+
+         public void actionPerformed(java.awt.event.ActionEvent evt) {
+            fastLiveHistCheckBoxAction();
+         }
+      });
+
 
 
       org.jdesktop.layout.GroupLayout channelsTablePanel_Layout = new org.jdesktop.layout.GroupLayout(this);
@@ -368,7 +386,8 @@ public class ContrastPanel extends JPanel {
               .add(sizeBarColorComboBox_, GroupLayout.PREFERRED_SIZE, 60, GroupLayout.PREFERRED_SIZE).addPreferredGap(LayoutStyle.UNRELATED)
               .add(syncChannelsCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
               .add(slowHistCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
-              .add(slowDispCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
+              .add(slowDispCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+              .add(fastLiveHistCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
               .add(jPanel1, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
               .add(channelsTablePanel_Layout.createParallelGroup(GroupLayout.LEADING)
               .add(histDisplayScrollPane_, GroupLayout.DEFAULT_SIZE, 620, Short.MAX_VALUE)));
@@ -381,7 +400,8 @@ public class ContrastPanel extends JPanel {
               .add(sizeBarColorComboBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
               .add(syncChannelsCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
               .add(slowHistCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
-              .add(slowDispCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
+              .add(slowDispCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+              .add(fastLiveHistCheckBox_, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
               .addPreferredGap(LayoutStyle.UNRELATED)
               .add(jPanel1, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
               .addContainerGap(589, Short.MAX_VALUE))
@@ -480,6 +500,10 @@ public class ContrastPanel extends JPanel {
       saveCheckBoxStates();
    }
 
+   private void fastLiveHistCheckBoxAction() {
+      saveCheckBoxStates();
+   }
+
    public void displayModeComboActionPerformed() {
       if (currentDisplay_ == null || !(currentDisplay_.getHyperImage() instanceof CompositeImage)) {
          return;
@@ -9,6 +9,7 @@ public class HistogramControlsState {
     
     public boolean slowDisplayUpdates;
     public boolean slowHist;
+    public boolean fastLiveHist;
     public boolean syncChannels;
     public int scaleBarColorIndex;
     public int scaleBarLocationIndex;
@@ -46,7 +46,7 @@ import org.micromanager.internalinterfaces.Histograms;
 import org.micromanager.api.ImageCache;
 import org.micromanager.graph.HistogramPanel.CursorListener;
 import org.micromanager.utils.ContrastSettings;
-import org.micromanager.utils.HistogramUtils;
+import org.micromanager.utils.HistogramStatistics;
 import org.micromanager.utils.NumberUtils;
 
 /**
@@ -83,6 +83,7 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
    private VirtualAcquisitionDisplay display_;
    private ImagePlus img_;
    private ImageCache cache_;
+   private final HistogramStatistics stats_ = new HistogramStatistics();
 
    public SingleChannelHistogram(VirtualAcquisitionDisplay disp) {
       super();
@@ -452,47 +453,34 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
        if (img_ == null || img_.getProcessor() == null) {
          return;
       }
-      int[] rawHistogram = img_.getProcessor().getHistogram();
+      ImageProcessor ip = img_.getProcessor();
+      double fractionToReject = 0.01*display_.getHistogramControlsState().percentToIgnore;
+      stats_.calculate(ip, fractionToReject,
+              display_.getHistogramSampleStride(ip.getWidth(), ip.getHeight()));
+      int[] rawHistogram = stats_.getRawHistogram();
       int imgWidth = img_.getWidth();
       int imgHeight = img_.getHeight();
       if (display_.getHistogramControlsState().ignoreOutliers) {
          // todo handle negative values
-         maxAfterRejectingOutliers_ = rawHistogram.length;
          // specified percent of pixels are ignored in the automatic contrast setting
-         int totalPoints = imgHeight * imgWidth;
-         HistogramUtils hu = new HistogramUtils(rawHistogram, totalPoints, 0.01*display_.getHistogramControlsState().percentToIgnore);
-         minAfterRejectingOutliers_ = hu.getMinAfterRejectingOutliers();
-         maxAfterRejectingOutliers_ = hu.getMaxAfterRejectingOutliers();
+         minAfterRejectingOutliers_ = stats_.getMinAfterRejectingOutliers();
+         maxAfterRejectingOutliers_ = stats_.getMaxAfterRejectingOutliers();
       }
       GraphData histogramData = new GraphData();
 
-      pixelMin_ = -1;
-      pixelMax_ = 0;
-      mean_ = 0;
+      pixelMin_ = stats_.getMin();
+      pixelMax_ = stats_.getMax();
+      mean_ = stats_.getMean();
+      stdDev_ = stats_.getStdDev();
 
       int numBins = (int) Math.min(rawHistogram.length / binSize_, HIST_BINS);
       int[] histogram = new int[HIST_BINS];
-      int total = 0;
-      for (int i = 0; i < numBins; i++) {
-         histogram[i] = 0;
-         for (int j = 0; j < binSize_; j++) {
-            int rawHistIndex = (int) (i * binSize_ + j);
-            int rawHistVal = rawHistogram[rawHistIndex];
-            histogram[i] += rawHistVal;
-            if (rawHistVal > 0) {
-               pixelMax_ = rawHistIndex;
-               if (pixelMin_ == -1) {
-                  pixelMin_ = rawHistIndex;
-               }
-               mean_ += rawHistIndex * rawHistVal;
-            }
-         }
-         total += histogram[i];
-         if (display_.getHistogramControlsState().logHist) {
+      int total = stats_.getBinnedHistogram(histogram, binSize_);
+      if (display_.getHistogramControlsState().logHist) {
+         for (int i = 0; i < numBins; i++) {
             histogram[i] = histogram[i] > 0 ? (int) (1000 * Math.log(histogram[i])) : 0;
          }
       }
-      mean_ /= imgWidth * imgHeight;
 
       // work around what is apparently a bug in ImageJ
       if (total == 0) {
@@ -503,46 +491,23 @@ public class SingleChannelHistogram extends JPanel implements Histograms, Cursor
          }
       }
 
-      //need to recalc mean if hist display mode isnt auto
-      if (histRangeComboBox_.getSelectedIndex() != -1) {
-         mean_ = 0;
-         for (int i = 0; i < rawHistogram.length; i++) {
-            mean_ += i * rawHistogram[i];
-         }
-         mean_ /= imgWidth * imgHeight;
-      }
       if (drawHist) {
-
-         stdDev_ = 0;
-         if (histRangeComboBox_.getSelectedIndex() != -1) {
-            pixelMin_ = rawHistogram.length - 1;
-         }
-         for (int i = rawHistogram.length - 1; i >= 0; i--) {
-            if (histRangeComboBox_.getSelectedIndex() != -1) {
-               if (rawHistogram[i] > 0 && i < pixelMin_) {
-                  pixelMin_ = i;
-               }
-               if (rawHistogram[i] > 0 && i > pixelMax_) {
-                  pixelMax_ = i;
-               }
-            }
-
-            for (int j = 0; j < rawHistogram[i]; j++) {
-               stdDev_ += (i - mean_) * (i - mean_);
-            }
-
-         }
-         stdDev_ = Math.sqrt(stdDev_ / (imgWidth * imgHeight));
          //Draw histogram and stats
          histogramData.setData(histogram);
          histogramPanel_.setData(histogramData);
          histogramPanel_.setAutoScale();
          histogramPanel_.setToolTipText("Click and drag curve to adjust gamma");
 
-         maxLabel_.setText("Max: " + NumberUtils.intToDisplayString((int) pixelMax_));
-         minLabel_.setText("Min: " + NumberUtils.intToDisplayString((int) pixelMin_));
-         meanLabel_.setText("Mean: " + NumberUtils.intToDisplayString((int) mean_));
-         stdDevLabel_.setText("Std Dev: " + NumberUtils.intToDisplayString((int) stdDev_));
+         // sampled values are marked as estimates
+         String approx = stats_.isSampled() ? "~" : "";
+         maxLabel_.setText("Max: " + approx + NumberUtils.intToDisplayString((int) pixelMax_));
+         minLabel_.setText("Min: " + approx + NumberUtils.intToDisplayString((int) pixelMin_));
+         meanLabel_.setText("Mean: " + approx + NumberUtils.intToDisplayString((int) mean_));
+         stdDevLabel_.setText("Std Dev: " + approx + NumberUtils.intToDisplayString((int) stdDev_));
+         String sampling = stats_.getSamplingDescription(
+                 display_.getHistogramControlsState().ignoreOutliers ? fractionToReject : 0);
+         minLabel_.setToolTipText(sampling);
+         maxLabel_.setToolTipText(sampling);
 
          updateHistogram();
       }
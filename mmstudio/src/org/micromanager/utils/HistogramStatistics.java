@@ -0,0 +1,428 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          HistogramStatistics.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     mmstudio
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2013
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package org.micromanager.utils;
+
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Calculates the histogram and pixel statistics of an image for the histogram
+ * displays. 8 and 16 bit pixel arrays are counted directly into a raw
+ * histogram that is kept between calls; min, max, mean, standard deviation
+ * and the outlier limits then come from a single pass over that histogram.
+ * Large images are counted in parts on several threads. For fast live
+ * display, only every n-th pixel of every n-th row can be counted, in which
+ * case getQuantileBounds gives the uncertainty of the estimates.
+ * Other images fall back to ImageProcessor.getHistogram().
+ *
+ * An instance is not thread safe; each histogram display keeps its own.
+ */
+public class HistogramStatistics {
+
+   private static final int PARALLEL_THRESHOLD = 1 << 20;
+   private static final int NUM_THREADS = Math.max(1,
+           Math.min(4, Runtime.getRuntime().availableProcessors()));
+   private static ExecutorService executor_;
+
+   private int[] rawHistogram_;
+   private int[][] partialHistograms_;
+   private int stride_ = 1;
+   private int numPixels_;
+   private int min_;
+   private int max_;
+   private double mean_;
+   private double stdDev_;
+   private int minAfterRejectingOutliers_;
+   private int maxAfterRejectingOutliers_;
+
+   /**
+    * Calculates the histogram and statistics of the processor's pixels within
+    * its roi. Pixels outside a non-rectangular roi are included.
+    * @param fractionToReject - fraction of pixels ignored at each end of the
+    * histogram for the outlier limits
+    */
+   public void calculate(ImageProcessor ip, double fractionToReject) {
+      calculate(ip, fractionToReject, 1);
+   }
+
+   /**
+    * Like calculate(ip, fractionToReject), but only counts every stride-th
+    * pixel of every stride-th row. Images that can't be counted directly
+    * are always counted in full.
+    */
+   public void calculate(ImageProcessor ip, double fractionToReject, int stride) {
+      Object pixels = ip.getPixels();
+      Rectangle roi = ip.getRoi();
+      stride_ = Math.max(1, stride);
+      if (pixels instanceof short[] && ip.getMask() == null) {
+         count((short[]) pixels, ip.getWidth(), roi, stride_, 65536);
+      } else if (pixels instanceof byte[] && ip.getMask() == null) {
+         count((byte[]) pixels, ip.getWidth(), roi, stride_, 256);
+      } else {
+         stride_ = 1;
+         rawHistogram_ = ip.getHistogram();
+      }
+      calculateStatistics(fractionToReject);
+   }
+
+   /**
+    * Returns the stride that samples about numSamples pixels of a
+    * width x height image.
+    */
+   public static int getSampleStride(int width, int height, int numSamples) {
+      return Math.max(1, (int) Math.sqrt((double) width * height / Math.max(1, numSamples)));
+   }
+
+   /**
+    * True if the last image was sampled rather than counted in full
+    */
+   public boolean isSampled() {
+      return stride_ > 1;
+   }
+
+   public int getStride() {
+      return stride_;
+   }
+
+   /**
+    * Returns the range of pixel values that contains, with about 95%
+    * confidence, the value that the given fraction of all pixels lies below.
+    * Both ends are equal to the value in the histogram if the image was
+    * counted in full. For a fraction of 0 or 1 the true min or max may lie
+    * outside the range, but only for the few pixels the sample missed.
+    */
+   public int[] getQuantileBounds(double fraction) {
+      long n = numPixels_;
+      if (n == 0) {
+         return new int[]{0, 0};
+      }
+      double rank = fraction * (n - 1);
+      double error = 0;
+      if (stride_ > 1) {
+         // normal approximation to the binomial spread of the rank; at
+         // least 3 ranks, the 95% limit when no sampled pixel lies beyond it
+         error = Math.max(3, 1.96 * Math.sqrt(n * fraction * (1 - fraction)));
+      }
+      return new int[]{valueAtRank((long) Math.max(0, Math.floor(rank - error))),
+                 valueAtRank((long) Math.min(n - 1, Math.ceil(rank + error)))};
+   }
+
+   /**
+    * Describes how the last image was sampled and the uncertainty of the
+    * autostretch limits, with fractionToReject of the pixels ignored at each
+    * end, for display as a tool tip. Returns null if it was counted in full.
+    */
+   public String getSamplingDescription(double fractionToReject) {
+      if (!isSampled()) {
+         return null;
+      }
+      int[] minBounds = getQuantileBounds(fractionToReject);
+      int[] maxBounds = getQuantileBounds(1 - fractionToReject);
+      return "Estimated from 1 in " + stride_ * stride_ + " pixels; autostretch min "
+              + NumberUtils.intToDisplayString(minBounds[0]) + " - "
+              + NumberUtils.intToDisplayString(minBounds[1]) + ", max "
+              + NumberUtils.intToDisplayString(maxBounds[0]) + " - "
+              + NumberUtils.intToDisplayString(maxBounds[1]);
+   }
+
+   private int valueAtRank(long rank) {
+      long count = 0;
+      for (int i = min_; i <= max_; i++) {
+         count += rawHistogram_[i];
+         if (count > rank) {
+            return i;
+         }
+      }
+      return max_;
+   }
+
+   /**
+    * The raw histogram of the last image, one bin per pixel value. The array
+    * is reused by the next call to calculate().
+    */
+   public int[] getRawHistogram() {
+      return rawHistogram_;
+   }
+
+   public int getNumPixels() {
+      return numPixels_;
+   }
+
+   public int getMin() {
+      return min_;
+   }
+
+   public int getMax() {
+      return max_;
+   }
+
+   public double getMean() {
+      return mean_;
+   }
+
+   public double getStdDev() {
+      return stdDev_;
+   }
+
+   public int getMinAfterRejectingOutliers() {
+      return minAfterRejectingOutliers_;
+   }
+
+   public int getMaxAfterRejectingOutliers() {
+      return maxAfterRejectingOutliers_;
+   }
+
+   /**
+    * Sums the raw histogram into the given bins, each binSize pixel values
+    * wide, starting at 0. Returns the number of pixels counted.
+    */
+   public int getBinnedHistogram(int[] bins, double binSize) {
+      Arrays.fill(bins, 0);
+      int end = (int) Math.min(rawHistogram_.length, bins.length * binSize);
+      int total = 0;
+      for (int i = 0; i < end; i++) {
+         int count = rawHistogram_[i];
+         if (count > 0) {
+            bins[Math.min(bins.length - 1, (int) (i / binSize))] += count;
+            total += count;
+         }
+      }
+      return total;
+   }
+
+   private void calculateStatistics(double fractionToReject) {
+      int[] hist = rawHistogram_;
+      long n = 0;
+      double sum = 0;
+      double sumSquares = 0;
+      min_ = -1;
+      max_ = 0;
+      for (int i = 0; i < hist.length; i++) {
+         int count = hist[i];
+         if (count > 0) {
+            if (min_ == -1) {
+               min_ = i;
+            }
+            max_ = i;
+            n += count;
+            sum += (double) i * count;
+            sumSquares += (double) i * i * count;
+         }
+      }
+      numPixels_ = (int) n;
+      if (n == 0) {
+         min_ = 0;
+         mean_ = 0;
+         stdDev_ = 0;
+         minAfterRejectingOutliers_ = 0;
+         maxAfterRejectingOutliers_ = 0;
+         return;
+      }
+      mean_ = sum / n;
+      stdDev_ = Math.sqrt(Math.max(0, sumSquares / n - mean_ * mean_));
+
+      // same limits as HistogramUtils.get[Min|Max]AfterRejectingOutliers
+      long maxOutliers = (long) (0.5 + n * fractionToReject);
+      long outliers = 0;
+      minAfterRejectingOutliers_ = 0;
+      for (int i = min_; i <= max_; i++) {
+         outliers += hist[i];
+         if (outliers > maxOutliers) {
+            minAfterRejectingOutliers_ = i;
+            break;
+         }
+      }
+      outliers = 0;
+      maxAfterRejectingOutliers_ = 0;
+      for (int i = max_; i >= min_; i--) {
+         outliers += hist[i];
+         if (outliers > maxOutliers) {
+            maxAfterRejectingOutliers_ = i;
+            break;
+         }
+      }
+   }
+
+   private int[] clearedRawHistogram(int length) {
+      if (rawHistogram_ == null || rawHistogram_.length != length) {
+         rawHistogram_ = new int[length];
+      } else {
+         Arrays.fill(rawHistogram_, 0);
+      }
+      return rawHistogram_;
+   }
+
+   private int[][] clearedPartialHistograms(int numParts, int length) {
+      if (partialHistograms_ == null || partialHistograms_.length != numParts
+              || partialHistograms_[0].length != length) {
+         partialHistograms_ = new int[numParts][length];
+      } else {
+         for (int[] hist : partialHistograms_) {
+            Arrays.fill(hist, 0);
+         }
+      }
+      return partialHistograms_;
+   }
+
+   private void count(final short[] pixels, final int width, final Rectangle roi,
+           final int stride, int length) {
+      int[] hist = clearedRawHistogram(length);
+      int numRows = (roi.height + stride - 1) / stride;
+      int numColumns = (roi.width + stride - 1) / stride;
+      if (numRows * numColumns < PARALLEL_THRESHOLD || NUM_THREADS == 1) {
+         countRows(pixels, width, roi, stride, 0, numRows, hist);
+         return;
+      }
+      final int[][] parts = clearedPartialHistograms(NUM_THREADS, length);
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for (int i = 0; i < NUM_THREADS; i++) {
+         final int[] part = parts[i];
+         final int row0 = numRows * i / NUM_THREADS;
+         final int row1 = numRows * (i + 1) / NUM_THREADS;
+         tasks.add(new Callable<Object>() {
+            public Object call() {
+               countRows(pixels, width, roi, stride, row0, row1, part);
+               return null;
+            }
+         });
+      }
+      if (!runAll(tasks)) {
+         countRows(pixels, width, roi, stride, 0, numRows, hist);
+         return;
+      }
+      merge(parts, hist);
+   }
+
+   private void count(final byte[] pixels, final int width, final Rectangle roi,
+           final int stride, int length) {
+      int[] hist = clearedRawHistogram(length);
+      int numRows = (roi.height + stride - 1) / stride;
+      int numColumns = (roi.width + stride - 1) / stride;
+      if (numRows * numColumns < PARALLEL_THRESHOLD || NUM_THREADS == 1) {
+         countRows(pixels, width, roi, stride, 0, numRows, hist);
+         return;
+      }
+      final int[][] parts = clearedPartialHistograms(NUM_THREADS, length);
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+      for (int i = 0; i < NUM_THREADS; i++) {
+         final int[] part = parts[i];
+         final int row0 = numRows * i / NUM_THREADS;
+         final int row1 = numRows * (i + 1) / NUM_THREADS;
+         tasks.add(new Callable<Object>() {
+            public Object call() {
+               countRows(pixels, width, roi, stride, row0, row1, part);
+               return null;
+            }
+         });
+      }
+      if (!runAll(tasks)) {
+         countRows(pixels, width, roi, stride, 0, numRows, hist);
+         return;
+      }
+      merge(parts, hist);
+   }
+
+   /*
+    * Counts every stride-th pixel of every stride-th row of the roi, from
+    * sampled row row0 up to row1.
+    */
+   private static void countRows(short[] pixels, int width, Rectangle roi,
+           int stride, int row0, int row1, int[] hist) {
+      if (stride == 1 && roi.x == 0 && roi.width == width) {
+         for (int i = (roi.y + row0) * width, end = (roi.y + row1) * width; i < end; i++) {
+            hist[pixels[i] & 0xffff]++;
+         }
+         return;
+      }
+      for (int y = roi.y + row0 * stride, yEnd = Math.min(roi.y + roi.height, roi.y + row1 * stride);
+              y < yEnd; y += stride) {
+         for (int i = y * width + roi.x, end = y * width + roi.x + roi.width; i < end; i += stride) {
+            hist[pixels[i] & 0xffff]++;
+         }
+      }
+   }
+
+   private static void countRows(byte[] pixels, int width, Rectangle roi,
+           int stride, int row0, int row1, int[] hist) {
+      if (stride == 1 && roi.x == 0 && roi.width == width) {
+         for (int i = (roi.y + row0) * width, end = (roi.y + row1) * width; i < end; i++) {
+            hist[pixels[i] & 0xff]++;
+         }
+         return;
+      }
+      for (int y = roi.y + row0 * stride, yEnd = Math.min(roi.y + roi.height, roi.y + row1 * stride);
+              y < yEnd; y += stride) {
+         for (int i = y * width + roi.x, end = y * width + roi.x + roi.width; i < end; i += stride) {
+            hist[pixels[i] & 0xff]++;
+         }
+      }
+   }
+
+   private static void merge(int[][] parts, int[] hist) {
+      for (int[] part : parts) {
+         for (int i = 0; i < hist.length; i++) {
+            hist[i] += part[i];
+         }
+      }
+   }
+
+   /*
+    * Runs the tasks on the shared threads and waits for them. Returns false if
+    * they didn't all complete, in which case the caller counts on its own thread.
+    */
+   private static boolean runAll(List<Callable<Object>> tasks) {
+      try {
+         List<Future<Object>> futures = getExecutor().invokeAll(tasks);
+         for (Future<Object> future : futures) {
+            future.get();
+         }
+         return true;
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ex) {
+         ReportingUtils.logError(ex);
+      }
+      return false;
+   }
+
+   private static synchronized ExecutorService getExecutor() {
+      if (executor_ == null) {
+         executor_ = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+            private int count_ = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "Histogram thread " + count_++);
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return executor_;
+   }
+}
@@ -6,6 +6,10 @@
 package org.micromanager.utils;
 
 import ij.plugin.Memory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 
 public class MemoryUtils {
    /**
@@ -34,4 +38,39 @@ public class MemoryUtils {
       return maxMemory;
    }
 
+   /**
+    * Releases a memory mapping right away rather than when the buffer is
+    * garbage collected, so that the file can be deleted (Windows keeps mapped
+    * files locked). Neither buffer nor any view of it may be used afterwards.
+    * Does nothing if the JVM doesn't give access to its cleaner.
+    */
+   public static void unmap(MappedByteBuffer buffer) {
+      if (buffer == null) {
+         return;
+      }
+      try {
+         Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+         Method invokeCleaner = null;
+         try {
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+         } catch (NoSuchMethodException e) {
+            // Java 8 and earlier
+         }
+         if (invokeCleaner != null) {
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+         }
+         Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+         cleanerMethod.setAccessible(true);
+         Object cleaner = cleanerMethod.invoke(buffer);
+         if (cleaner != null) {
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+         }
+      } catch (Exception e) {
+         ReportingUtils.logError(e, "Couldn't unmap buffer");
+      }
+   }
+
 }
@@ -26,6 +26,7 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.Arrow;
+import ij.gui.GenericDialog;
 import ij.gui.ImageWindow;
 import ij.gui.MessageDialog;
 import ij.gui.Roi;
@@ -170,8 +171,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
    public class MyRowData {
      
       
-      public final List<GaussianSpotData> spotList_;
-      public Map<Integer, List<GaussianSpotData>> frameIndexSpotList_;
+      public final SpotTable spotList_;
       public final ArrayList<Double> timePoints_;
       public String name_;
       public final String title_;
@@ -227,7 +227,12 @@ public class DataCollectionForm extends javax.swing.JFrame {
          height_ = height;
          pixelSizeNm_ = pixelSizeUm;
          zStackStepSizeNm_ = zStackStepSizeNm;
-         spotList_ = spotList;
+         if (spotList instanceof SpotTable) {
+            spotList_ = (SpotTable) spotList;
+         } else {
+            spotList_ = new SpotTable(spotList);
+         }
+         spotList_.trimToSize();
          shape_ = shape;
          halfSize_ = halfSize;
          nrChannels_ = nrChannels;
@@ -246,8 +251,8 @@ public class DataCollectionForm extends javax.swing.JFrame {
             Point2D.Double stdPoint = stdDevXYList(xyList, avgPoint);
             stdX = stdPoint.x;
             stdY = stdPoint.y;
-            for (GaussianSpotData spot : spotList_) {
-               nrPhotons += spot.getIntensity();
+            for (int i = 0; i < spotList_.size(); i++) {
+               nrPhotons += spotList_.getIntensity(i);
             }
          }
          stdX_ = stdX;
@@ -262,22 +267,10 @@ public class DataCollectionForm extends javax.swing.JFrame {
       }
       
       /**
-       * Populates the list frameIndexSpotList which gives access to spots by frame
+       * Builds the frame index of spotList_ which gives access to spots by frame
        */
       public void index() {
-         boolean useFrames = nrFrames_ > nrSlices_;
-         int nr = nrSlices_;
-         if (useFrames)
-            nr = nrFrames_;
-         frameIndexSpotList_ = new HashMap<Integer, List<GaussianSpotData>>(nr);
-         for (GaussianSpotData spot : spotList_) {
-            int index = spot.getSlice();
-            if (useFrames)
-               index = spot.getFrame();
-            if (frameIndexSpotList_.get(index) == null)
-               frameIndexSpotList_.put(index, new ArrayList<GaussianSpotData>());
-            frameIndexSpotList_.get(index).add(spot);              
-         }    
+         spotList_.index(nrFrames_ > nrSlices_);
       }
       
    }
@@ -1124,12 +1117,44 @@ public class DataCollectionForm extends javax.swing.JFrame {
            return;
        } else {
 
+          // Shift-click to only load part of the data
+          int firstFrame = Integer.MIN_VALUE;
+          int lastFrame = Integer.MAX_VALUE;
+          Rectangle roi = null;
+          if ((modifiers & java.awt.event.InputEvent.SHIFT_MASK) > 0) {
+             GenericDialog gd = new GenericDialog("Load part of Spot Data");
+             gd.addNumericField("First frame", 0, 0);
+             gd.addNumericField("Last frame", 0, 0, 6, "(0 = last)");
+             gd.addMessage("Region (in pixels, width 0 for the whole image)");
+             gd.addNumericField("X", 0, 0);
+             gd.addNumericField("Y", 0, 0);
+             gd.addNumericField("Width", 0, 0);
+             gd.addNumericField("Height", 0, 0);
+             gd.showDialog();
+             if (gd.wasCanceled()) {
+                return;
+             }
+             firstFrame = (int) gd.getNextNumber();
+             int last = (int) gd.getNextNumber();
+             if (last > 0) {
+                lastFrame = last;
+             }
+             Rectangle r = new Rectangle((int) gd.getNextNumber(), (int) gd.getNextNumber(),
+                     (int) gd.getNextNumber(), (int) gd.getNextNumber());
+             if (r.width > 0 && r.height > 0) {
+                roi = r;
+             }
+          }
+          final int first = firstFrame;
+          final int last = lastFrame;
+          final Rectangle region = roi;
+
           // Thread doing file import
           Runnable loadFile = new Runnable() {
 
                 @Override
              public void run() {
-                loadFiles(selectedFiles);
+                loadFiles(selectedFiles, first, last, region);
              }
           };
 
@@ -1144,14 +1169,29 @@ public class DataCollectionForm extends javax.swing.JFrame {
      * @param selectedFiles - Array of files to be imported
      */
     private void loadFiles(File[] selectedFiles) {
+       loadFiles(selectedFiles, Integer.MIN_VALUE, Integer.MAX_VALUE, null);
+    }
+    
+    /**
+     * Imports the spots of the given files in the given frame range and region
+     * @param selectedFiles - Array of files to be imported
+     * @param firstFrame - first frame to be imported
+     * @param lastFrame - last frame to be imported
+     * @param roi - region (in pixels) to be imported, or null for all spots
+     */
+    private void loadFiles(File[] selectedFiles, int firstFrame, int lastFrame, 
+            Rectangle roi) {
       for (File selectedFile : selectedFiles) {
          loadTSFDir_ = selectedFile.getParent();
+         SpotFileReader reader = new SpotFileReader(selectedFile);
+         reader.setFrameRange(firstFrame, lastFrame);
+         reader.setRoi(roi);
          if (selectedFile.getName().endsWith(".txt")) {
-            loadText(selectedFile);
+            loadText(reader);
          } else if (selectedFile.getName().endsWith(".tsf")) {
-            loadTSF(selectedFile);
+            loadTSF(reader);
          } else if (selectedFile.getName().endsWith(".bin")) {
-            loadBin(selectedFile);
+            loadBin(reader);
          } else {
             JOptionPane.showMessageDialog(getInstance(), "Unrecognized file extension");
          }
@@ -1159,94 +1199,20 @@ public class DataCollectionForm extends javax.swing.JFrame {
    }
    
    
-   private void loadBin(File selectedFile) {
+   private void loadBin(SpotFileReader reader) {
        try {
           ij.IJ.showStatus ("Loading data..");
           setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
           
-          List<GaussianSpotData> spotList = new ArrayList<GaussianSpotData>();
-          
           float pixelSize = (float) 160.0; // how do we get this from the file?
           
-          LittleEndianDataInputStream   fin = new LittleEndianDataInputStream(
-                  new BufferedInputStream(new FileInputStream(selectedFile)));
-          byte[] m425 = {77, 52, 50, 53};
-          for (int i = 0; i < 4; i++) {
-             if (fin.readByte() != m425[i])
-                throw (new IOException("Not a .bin file"));
-          }
-          
-          
-          boolean nStorm = true;
-          byte[] ns = new byte[4];
-          byte[] guid = {71, 85, 73, 68};
-          for (int i = 0; i < 4; i++) {
-             ns[i] = fin.readByte();
-             if (ns[i] != guid[i])
-                nStorm = false;
-          }
-          
-          if (nStorm) { // read away 57 bytes
-             fin.skipBytes(53);
-          } else {
-             // there may be a more elegant way to go back 4 bytes
-             fin.close();
-             fin = new LittleEndianDataInputStream (
-                  new BufferedInputStream(new FileInputStream(selectedFile)));
-             fin.skipBytes(4);
-          }
-          
-          int nrFrames = fin.readInt();
-          int molType = fin.readInt();
-          int nr = 0;
-          boolean hasZ = false;
-          double maxZ = Double.NEGATIVE_INFINITY;
-          double minZ = Double.POSITIVE_INFINITY;
-          
-          for (int i = 0; i <= nrFrames; i++) {
-             int nrMolecules = fin.readInt();
-             for (int j = 0; j < nrMolecules; j++) {
-                // total size of data on disk is 17 bytes
-                float x = fin.readFloat();
-                float y = fin.readFloat();
-                float xc = fin.readFloat();
-                float yc = fin.readFloat();
-                float h = fin.readFloat();
-                float a = fin.readFloat(); // integrated dens. based on fitting
-                float w = fin.readFloat();
-                float phi = fin.readFloat();
-                float ax = fin.readFloat();
-                float b = fin.readFloat();
-                float intensity = fin.readFloat();
-                int c = fin.readInt();
-                int union = fin.readInt();
-                int frame = fin.readInt();
-                int union2 = fin.readInt();
-                int link = fin.readInt();
-                float z = fin.readFloat();
-                float zc = fin.readFloat();
-                
-                if (zc != 0.0)
-                   hasZ = true;
-                if (zc > maxZ)
-                   maxZ = zc;
-                if (zc < minZ)
-                   minZ = zc;
-                
-                GaussianSpotData gsd = new GaussianSpotData(null, 0, 0, i,
-                        0, nr, (int) xc, (int) yc);
-                gsd.setData(intensity, b, pixelSize * xc, pixelSize * yc, 0.0, w, ax, phi, c);
-                gsd.setZCenter(zc);
-                gsd.setOriginalPosition(x, y, z);
-                spotList.add(gsd);
-                nr++;
-             }
-          }
+          SpotTable spotList = reader.readBin(pixelSize);
           
-          String name = selectedFile.getName();
+          String name = reader.getFile().getName();
           
           addSpotData(name, name, "", 256, 256, pixelSize, (float) 0.0, 3, 2, 1, 1, 1, 1, 
-                  nr, spotList, null, false, Coordinates.NM, hasZ, minZ, maxZ);
+                  spotList.size(), spotList, null, false, Coordinates.NM, reader.hasZ(), 
+                  reader.getMinZ(), reader.getMaxZ());
 
           
        }  catch (FileNotFoundException ex) {
@@ -1265,72 +1231,19 @@ public class DataCollectionForm extends javax.swing.JFrame {
     
     /**
      * Loads a text file saved from this application back into memory
-     * @param selectedFile 
+     * @param reader - SpotFileReader for the file to be loaded
      */
-    private void loadText(File selectedFile) {
+    private void loadText(SpotFileReader reader) {
        try {
          ij.IJ.showStatus("Loading data..");
 
          setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-         BufferedReader fr = new BufferedReader( new FileReader(selectedFile));
-         
-         String info = fr.readLine();
-         String[] infos = info.split("\t");
-         HashMap<String, String> infoMap = new HashMap<String, String>();
-         for (int i = 0; i < infos.length; i++) {
-            String[] keyValue = infos[i].split(": ");
-            if (keyValue.length == 2)
-               infoMap.put(keyValue[0], keyValue[1]);
-         }
-         String test = infoMap.get("has_Z");
-         boolean hasZ = false;
-         if (test != null && test.equals("true")) {
-            hasZ = true;     
-         }
          
-         String head = fr.readLine();
-         String[] headers = head.split("\t");        
-         String spot;
-         List<GaussianSpotData> spotList = new ArrayList<GaussianSpotData>();
-         double maxZ = Double.NEGATIVE_INFINITY;
-         double minZ = Double.POSITIVE_INFINITY;
-         
-         while ( (spot = fr.readLine()) != null) {
-            String[] spotTags = spot.split("\t");
-            HashMap<String, String> k = new HashMap<String, String>();
-            for (int i = 0; i < headers.length; i ++) 
-               k.put(headers[i], spotTags[i]);
-            
-            
-            GaussianSpotData gsd = new GaussianSpotData(null, 
-                    Integer.parseInt(k.get("channel")), 
-                    Integer.parseInt(k.get("slice")), 
-                    Integer.parseInt(k.get("frame")),
-                    Integer.parseInt(k.get("pos")), 
-                    Integer.parseInt(k.get("molecule")), 
-                    Integer.parseInt(k.get("x_position")), 
-                    Integer.parseInt(k.get("y_position")) 
-                    );
-            gsd.setData(Double.parseDouble(k.get("intensity")), 
-                    Double.parseDouble(k.get("background")),
-                    Double.parseDouble(k.get("x")),
-                    Double.parseDouble(k.get("y")), 0.0,
-                    Double.parseDouble(k.get("width")),
-                    Double.parseDouble(k.get("a")),
-                    Double.parseDouble(k.get("theta")),
-                    Double.parseDouble(k.get("x_precision"))
-                    );
-            if (hasZ) {
-               double zc = Double.parseDouble(k.get("z"));
-               gsd.setZCenter(zc); 
-               if (zc > maxZ)
-                  maxZ = zc;
-               if (zc < minZ)
-                  minZ = zc;
-            }
-            spotList.add(gsd);
-                        
-         }
+         SpotTable spotList = reader.readText();
+         HashMap<String, String> infoMap = reader.getInfo();
+         boolean hasZ = reader.hasZ();
+         double maxZ = reader.getMaxZ();
+         double minZ = reader.getMinZ();
          
          // Add transformed data to data overview window
          float zStepSize = (float) 0.0;
@@ -1373,9 +1286,9 @@ public class DataCollectionForm extends javax.swing.JFrame {
     
     /**
      * Load a .tsf file
-     * @param selectedFile - File to be loaded
+     * @param reader - SpotFileReader for the file to be loaded
      */
-   private void loadTSF(File selectedFile) {
+   private void loadTSF(SpotFileReader reader) {
       SpotList psl = null;
       try {
 
@@ -1383,26 +1296,31 @@ public class DataCollectionForm extends javax.swing.JFrame {
 
          setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
+         File selectedFile = reader.getFile();
          FileInputStream fi = new FileInputStream(selectedFile);
          DataInputStream di = new DataInputStream(fi);
 
          // the new file format has an initial 0, then the offset (in long)
          // to the position of spotList
+         long spotsStart;
+         long spotsEnd;
          int magic = di.readInt();
          if (magic != 0) {
             // reset and mark do not seem to work on my computer
             fi.close();
             fi = new FileInputStream(selectedFile);
             psl = SpotList.parseDelimitedFrom(fi);
+            spotsStart = fi.getChannel().position();
+            spotsEnd = selectedFile.length();
          } else {
             // TODO: evaluate after creating code writing this formt
             long offset = di.readLong();
             fi.skip(offset);
             psl = SpotList.parseDelimitedFrom(fi);
-            fi.close();
-            fi = new FileInputStream(selectedFile);
-            fi.skip(12); // size of int + size of long
+            spotsStart = 12; // size of int + size of long
+            spotsEnd = spotsStart + offset;
          }
+         fi.close();
 
 
          String name = psl.getName();
@@ -1423,45 +1341,13 @@ public class DataCollectionForm extends javax.swing.JFrame {
          int nrPositions = psl.getNrPos();
          boolean isTrack = psl.getIsTrack();
          long expectedSpots = psl.getNrSpots();
-         long esf = expectedSpots / 100;
-         long maxNrSpots = 0;
-         boolean hasZ = false;
-         double maxZ = Double.NEGATIVE_INFINITY;
-         double minZ = Double.POSITIVE_INFINITY;
-
-
-         ArrayList<GaussianSpotData> spotList = new ArrayList<GaussianSpotData>();
-         Spot pSpot;
-         while (fi.available() > 0 && (expectedSpots == 0 || maxNrSpots < expectedSpots)) {
-
-            pSpot = Spot.parseDelimitedFrom(fi);
-
-            GaussianSpotData gSpot = new GaussianSpotData((ImageProcessor) null, pSpot.getChannel(),
-                    pSpot.getSlice(), pSpot.getFrame(), pSpot.getPos(),
-                    pSpot.getMolecule(), pSpot.getXPosition(), pSpot.getYPosition());
-            gSpot.setData(pSpot.getIntensity(), pSpot.getBackground(), pSpot.getX(),
-                    pSpot.getY(), 0.0, pSpot.getWidth(), pSpot.getA(), pSpot.getTheta(),
-                    pSpot.getXPrecision());
-            if (pSpot.hasZ()) {
-               double zc = pSpot.getZ();
-               gSpot.setZCenter(zc);
-               hasZ = true;
-               if (zc > maxZ)
-                  maxZ = zc;
-               if (zc < minZ)
-                  minZ = zc;
-            }
-            maxNrSpots++;
-            if ((esf > 0) && ((maxNrSpots % esf) == 0)) {
-               ij.IJ.showProgress((double) maxNrSpots / (double) expectedSpots);
-            }
-
-            spotList.add(gSpot);
-         }
+
+         SpotTable spotList = reader.readTSF(spotsStart, spotsEnd, expectedSpots);
 
          addSpotData(name, title, "", width, height, pixelSizeUm, (float) 0.0, shape, halfSize,
-                 nrChannels, nrFrames, nrSlices, nrPositions, (int) maxNrSpots,
-                 spotList, null, isTrack, Coordinates.NM, hasZ, minZ, maxZ);
+                 nrChannels, nrFrames, nrSlices, nrPositions, spotList.size(),
+                 spotList, null, isTrack, Coordinates.NM, reader.hasZ(), 
+                 reader.getMinZ(), reader.getMaxZ());
 
       } catch (FileNotFoundException ex) {
          JOptionPane.showMessageDialog(getInstance(),"File not found");
@@ -2676,7 +2562,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
       final int row = jTable1_.getSelectedRow();
 
       final MyRowData rowData = rowData_.get(row);
-      if (rowData.frameIndexSpotList_ == null) {
+      if (!rowData.spotList_.isIndexed()) {
          rowData.index();
       }
 
@@ -2697,43 +2583,48 @@ public class DataCollectionForm extends javax.swing.JFrame {
                // linked spots go here:
                List<GaussianSpotData> destList = new ArrayList<GaussianSpotData>();
 
-               // build a 2D array of lists with gaussian spots
-               List<GaussianSpotData>[][] spotImage =
-                       new ArrayList[rowData.width_][rowData.height_];
+               // for each pixel, the first and last row of the spots linked
+               // so far, chained through nextRow
+               SpotTable spots = rowData.spotList_;
+               int[] firstRow = new int[rowData.width_ * rowData.height_];
+               int[] lastRow = new int[rowData.width_ * rowData.height_];
+               int[] nextRow = new int[spots.size()];
+               Arrays.fill(firstRow, -1);
                for (int i = 1; i < nr; i++) {
                   ij.IJ.showStatus("Linking spotData...");
                   ij.IJ.showProgress(i, nr);
-                  List<GaussianSpotData> frameSpots = rowData.frameIndexSpotList_.get(i);
-                  if (frameSpots != null) {
-                     for (GaussianSpotData spot : frameSpots) {
-                        if (spotImage[spot.getX()][spot.getY()] == null) {
-                           spotImage[spot.getX()][spot.getY()] = new ArrayList<GaussianSpotData>();
+                  int start = spots.getFrameStart(i);
+                  int end = spots.getFrameEnd(i);
+                  if (start == end) {
+                     System.out.println("Empty row: " + i);
+                  }
+                  for (int j = start; j < end; j++) {
+                     int spot = spots.getFrameRow(j);
+                     int pixel = spots.getX(spot) * rowData.height_ + spots.getY(spot);
+                     if (firstRow[pixel] == -1) {
+                        firstRow[pixel] = spot;
+                     } else {
+                        int lastFrame = spots.getFrame(lastRow[pixel]);
+                        if (!useFrames) {
+                           lastFrame = spots.getSlice(lastRow[pixel]);
+                        }
+                        if (lastFrame != i - 1) {
+                           linkSpots(spots, firstRow[pixel], nextRow, destList, useFrames);
+                           firstRow[pixel] = spot;
                         } else {
-                           List<GaussianSpotData> prevSpotList = spotImage[spot.getX()][spot.getY()];
-                           GaussianSpotData lastSpot = prevSpotList.get(prevSpotList.size() - 1);
-                           int lastFrame = lastSpot.getFrame();
-                           if (!useFrames) {
-                              lastFrame = lastSpot.getSlice();
-                           }
-                           if (lastFrame != i - 1) {
-                              linkSpots(prevSpotList, destList, useFrames);
-                              spotImage[spot.getX()][spot.getY()] = new ArrayList<GaussianSpotData>();
-                           }
+                           nextRow[lastRow[pixel]] = spot;
                         }
-                        spotImage[spot.getX()][spot.getY()].add(spot);
                      }
-                  } else {
-                     System.out.println("Empty row: " + i);
+                     nextRow[spot] = -1;
+                     lastRow[pixel] = spot;
                   }
                }
 
                // Finish links of all remaining spots
                ij.IJ.showStatus("Finishing linking spotData...");
-               for (int w = 0; w < rowData.width_; w++) {
-                  for (int h = 0; h < rowData.height_; h++) {
-                     if (spotImage[w][h] != null) {
-                        linkSpots(spotImage[w][h], destList, useFrames);
-                     }
+               for (int pixel = 0; pixel < firstRow.length; pixel++) {
+                  if (firstRow[pixel] != -1) {
+                     linkSpots(spots, firstRow[pixel], nextRow, destList, useFrames);
                   }
                }
                ij.IJ.showStatus("");
@@ -2824,20 +2715,22 @@ public class DataCollectionForm extends javax.swing.JFrame {
    }//GEN-LAST:event_method2CBox_ActionPerformed
 
    /**
-    * Given a list of linked spots, create a single spot entry that will be added 
+    * Given a chain of linked spots, create a single spot entry that will be added 
     * to the destination list
-    * @param source - list of spots that all occur around the same pixel and in linked frames
+    * @param spots - table holding the spots
+    * @param first - row of the first spot of the chain
+    * @param next - row of the spot following each row in the chain, -1 at the end
     * @param dest - list spots in which each entry represents multiple linked spots
     */
    
-   private void linkSpots(List<GaussianSpotData> source, List<GaussianSpotData> dest,
-           boolean useFrames) {
-      if (source == null)
+   private void linkSpots(SpotTable spots, int first, int[] next,
+           List<GaussianSpotData> dest, boolean useFrames) {
+      if (first < 0)
          return;
       if (dest == null)
          return;
       
-      GaussianSpotData sp = new GaussianSpotData(source.get(0));
+      GaussianSpotData sp = new GaussianSpotData(spots.get(first));
       
       double intensity = 0.0;
       double background = 0.0;
@@ -2847,34 +2740,36 @@ public class DataCollectionForm extends javax.swing.JFrame {
       double a = 0.0;
       double theta = 0.0;
       double sigma = 0.0;
+      int n = 0;
       
-      for (GaussianSpotData spot : source) {
-         intensity += spot.getIntensity();
-         background += spot.getBackground();
-         xCenter += spot.getXCenter();
-         yCenter += spot.getYCenter();
-         width += spot.getWidth();
-         a += spot.getA();
-         theta += spot.getTheta();
-         sigma += spot.getSigma();
+      for (int row = first; row != -1; row = next[row]) {
+         intensity += spots.getIntensity(row);
+         background += spots.getBackground(row);
+         xCenter += spots.getXCenter(row);
+         yCenter += spots.getYCenter(row);
+         width += spots.getWidth(row);
+         a += spots.getA(row);
+         theta += spots.getTheta(row);
+         sigma += spots.getSigma(row);
+         n++;
       }
       
-      background /= source.size();
-      xCenter /= source.size();
-      yCenter /= source.size();
-      width /= source.size();
-      a /= source.size();
-      theta /= source.size();
-      sigma /= source.size();
+      background /= n;
+      xCenter /= n;
+      yCenter /= n;
+      width /= n;
+      a /= n;
+      theta /= n;
+      sigma /= n;
       
       // not sure if this is correct:
-      sigma /= Math.sqrt(source.size());
+      sigma /= Math.sqrt(n);
          
       sp.setData(intensity, background, xCenter, yCenter, 0.0, width, a, theta, sigma);
-      sp.originalFrame_ = source.get(0).getFrame();
+      sp.originalFrame_ = spots.getFrame(first);
       if (!useFrames)
-         sp.originalFrame_ = source.get(0).getSlice();
-      sp.nrLinks_ = source.size();
+         sp.originalFrame_ = spots.getSlice(first);
+      sp.nrLinks_ = n;
       
       
       dest.add(sp);   
@@ -4007,14 +3902,14 @@ public class DataCollectionForm extends javax.swing.JFrame {
       }
 
       
-      List<GaussianSpotData> sl = rd.spotList_;
+      SpotTable sl = rd.spotList_;
       
-      for (GaussianSpotData gsd : sl) {
-         double xw = gsd.getWidth();
-         double xy = xw / gsd.getA();
+      for (int row = 0; row < sl.size(); row++) {
+         double xw = sl.getWidth(row);
+         double xy = xw / sl.getA(row);
          if (xw < widthCutoff && xy < widthCutoff && xw > 0 && xy > 0) {
-            zc_.addDataPoint(gsd.getWidth(), gsd.getWidth() / gsd.getA(),
-               gsd.getSlice() /* * rd.zStackStepSizeNm_*/);
+            zc_.addDataPoint(sl.getWidth(row), sl.getWidth(row) / sl.getA(row),
+               sl.getSlice(row) /* * rd.zStackStepSizeNm_*/);
          }
       }
       zc_.plotDataPoints();
@@ -4022,7 +3917,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
       zc_.clearDataPoints();
       
       // calculate average and stdev per frame
-      if (rd.frameIndexSpotList_ == null) {
+      if (!sl.isIndexed()) {
          rd.index();
       }  
       
@@ -4030,15 +3925,15 @@ public class DataCollectionForm extends javax.swing.JFrame {
      
       int frameNr = 0;
       while (frameNr < nrImages) {
-         List<GaussianSpotData> frameSpots = rd.frameIndexSpotList_.get(frameNr);
-         if (frameSpots != null) {
-            double[] xws = new double[frameSpots.size()];
-            double[] yws = new double[frameSpots.size()];
-            int i = 0;
-            for (GaussianSpotData gsd : frameSpots) {
-               xws[i] = gsd.getWidth();
-               yws[i] = (gsd.getWidth() / gsd.getA());
-               i++;
+         int start = sl.getFrameStart(frameNr);
+         int nrFrameSpots = sl.getFrameEnd(frameNr) - start;
+         if (nrFrameSpots > 0) {
+            double[] xws = new double[nrFrameSpots];
+            double[] yws = new double[nrFrameSpots];
+            for (int i = 0; i < nrFrameSpots; i++) {
+               int row = sl.getFrameRow(start + i);
+               xws[i] = sl.getWidth(row);
+               yws[i] = (sl.getWidth(row) / sl.getA(row));
             }
             double meanX = StatUtils.mean(xws);
             double meanY = StatUtils.mean(yws);
@@ -4048,7 +3943,7 @@ public class DataCollectionForm extends javax.swing.JFrame {
             //System.out.println("Frame: " + frameNr + ", X: " + (int) meanX + ", " + (int) varX + 
             //        ", Y: " + (int) meanY + ", " + (int) varY);
             
-            if (frameSpots.size() >= minNrSpots && 
+            if (nrFrameSpots >= minNrSpots && 
                     meanX < widthCutoff &&
                     meanY < widthCutoff &&
                     varX < maxVariance && 
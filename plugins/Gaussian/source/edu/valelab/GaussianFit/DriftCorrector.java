@@ -11,7 +11,6 @@ import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import javax.swing.JOptionPane;
 
@@ -98,25 +97,25 @@ public class DriftCorrector {
       byte[] pixelsRef = new byte[width * height];
       ipRef.setPixels(pixelsRef);
 
-      if (rowData.frameIndexSpotList_ == null) {
+      final SpotTable spots = rowData.spotList_;
+      if (!spots.isIndexed()) {
          rowData.index();
       }
       int spotNr = 0;
       int frameNr = 0;
       while (spotNr < maxNrSpots && frameNr < maxNrFrames && frameNr < nrImages) {
-         List<GaussianSpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
-         if (frameSpots != null) {
-            for (GaussianSpotData spot : frameSpots) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int index = (y * width) + x;
-               if (index < size && index > 0) {
-                  if (pixelsRef[index] != -1) {
-                     pixelsRef[index] += 1;
-                  }
+         int end = spots.getFrameEnd(frameNr);
+         for (int i = spots.getFrameStart(frameNr); i < end; i++) {
+            int row = spots.getFrameRow(i);
+            int x = (int) (factor * spots.getXCenter(row));
+            int y = (int) (factor * spots.getYCenter(row));
+            int index = (y * width) + x;
+            if (index < size && index > 0) {
+               if (pixelsRef[index] != -1) {
+                  pixelsRef[index] += 1;
                }
-               spotNr++;
             }
+            spotNr++;
          }
          frameNr++;
       }
@@ -149,10 +148,11 @@ public class DriftCorrector {
          spotNr = 0;
 
          while (spotNr < maxNrSpots && tmpFrameNr < maxNrFrames && frameNr < nrImages) {
-            List<GaussianSpotData> frameSpots = rowData.frameIndexSpotList_.get(frameNr);
-            for (GaussianSpotData spot : frameSpots) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
+            int end = spots.getFrameEnd(frameNr);
+            for (int i = spots.getFrameStart(frameNr); i < end; i++) {
+               int row = spots.getFrameRow(i);
+               int x = (int) (factor * spots.getXCenter(row));
+               int y = (int) (factor * spots.getYCenter(row));
                int index = (y * width) + x;
                if (index < size && index > 0) {
                   if (pixelsTest[index] != -1) {
@@ -230,20 +230,18 @@ public class DriftCorrector {
          ij.IJ.showStatus("Assembling jitter corrected dataset...");
          ij.IJ.showProgress(1);
 
-         List<GaussianSpotData> correctedData = new ArrayList<GaussianSpotData>();
-         Iterator it = rowData.spotList_.iterator();
+         SpotTable correctedData = new SpotTable(spots.size());
 
          testNr = 0;
          StageMovementData smd = stagePos.get(0);
          int counter = 0;
-         while (it.hasNext()) {
+         for (int row = 0; row < spots.size(); row++) {
             counter++;
-            GaussianSpotData gs = (GaussianSpotData) it.next();
             int test = 0;
             if (useSlices) {
-               test = gs.getSlice();
+               test = spots.getSlice(row);
             } else {
-               test = gs.getFrame();
+               test = spots.getFrame(row);
             }
             if (test != testNr) {
                testNr = test - 1;
@@ -260,6 +258,7 @@ public class DriftCorrector {
                   }
                }
             }
+            GaussianSpotData gs = spots.get(row);
             if (found) {
                Point2D.Double point = new Point2D.Double(gs.getXCenter() - smd.pos_.x,
                        gs.getYCenter() - smd.pos_.y);
@@ -13,7 +13,7 @@
 package edu.valelab.GaussianFit;
 
 import ij.ImagePlus;
-import ij.plugin.ImageCalculator;
+import ij.process.Blitter;
 import ij.process.ImageProcessor;
 import ij.plugin.filter.GaussianBlur;
 import java.awt.Polygon;
@@ -25,8 +25,6 @@ import java.awt.Rectangle;
  * @author nico
  */
 public class FindLocalMaxima {
-   private static GaussianBlur filter_ = new GaussianBlur();
-   private static ImageCalculator ic_ = new ImageCalculator();
    
    public enum FilterType {
       NONE,
@@ -43,23 +41,35 @@ public class FindLocalMaxima {
     * @return Polygon with maxima 
     */
    public static Polygon FindMax(ImagePlus iPlus, int n, int threshold, FilterType filterType) {
+      return FindMax(iPlus.getProcessor(), n, threshold, filterType);
+   }
+
+   /**
+    * Finds local maxima in the Roi of an ImageProcessor.  Does not modify
+    * the ImageProcessor, so that different threads can search different
+    * images at the same time.
+    * 
+    * @param iProc - ImageProcessor in which to look for local maxima
+    * @param n - minimum distance to other local maximum
+    * @param threshold - value below which a maximum will be rejected
+    * @return Polygon with maxima 
+    */
+   public static Polygon FindMax(ImageProcessor iProc, int n, int threshold, FilterType filterType) {
       Polygon maxima = new Polygon();
 
-      ImageProcessor iProc = iPlus.getProcessor();
       Rectangle roi = iProc.getRoi();
       
       // Prefilter if needed
       switch (filterType) {
          case GAUSSIAN1_5 : 
             // TODO: if there is an ROI, we only need to filter_ in the ROI
+            GaussianBlur filter = new GaussianBlur();
             ImageProcessor iProcG1 = iProc.duplicate();
             ImageProcessor iProcG5 = iProc.duplicate();
-            filter_.blur(iProcG1, 1);
-            filter_.blur(iProcG5, 5);
-            ImagePlus p1 = new ImagePlus("G1", iProcG1);
-            ImagePlus p5 = new ImagePlus("G5", iProcG5);
-            ic_.run("subtract", p1, p5);
-            iProc = p1.getProcessor();
+            filter.blur(iProcG1, 1);
+            filter.blur(iProcG5, 5);
+            iProcG1.copyBits(iProcG5, 0, 0, Blitter.SUBTRACT);
+            iProc = iProcG1;
                       
             break;
       }
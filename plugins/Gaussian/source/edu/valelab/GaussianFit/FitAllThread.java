@@ -13,15 +13,16 @@ package edu.valelab.GaussianFit;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
-import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
 import java.awt.Polygon;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,9 +37,9 @@ import org.micromanager.utils.ReportingUtils;
 public class FitAllThread extends GaussianInfo implements Runnable  {
    double[] params0_;
    double[] steps_ = new double[5];
-   GaussianFitStackThread[] gfsThreads_;
    private volatile Thread t_ = null;
-   private static boolean running_ = false;
+   private static volatile boolean running_ = false;
+   private final AtomicInteger nrFits_ = new AtomicInteger(0);
    private FindLocalMaxima.FilterType preFilterType_;
 
    public FitAllThread(int shape, int fitMode, FindLocalMaxima.FilterType preFilterType) {
@@ -56,13 +57,6 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
    }
 
    public synchronized void stop() {
-      if (gfsThreads_ != null) {
-         for (int i=0; i<gfsThreads_.length; i++) {
-            if (gfsThreads_[i] != null) {
-               gfsThreads_[i].stop();
-            }
-         }
-      }
       t_ = null;
       running_ = false;
    }
@@ -73,9 +67,8 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
 
    public void run() {
 
-      // List with spot positions found through the Find Maxima command
-      sourceList_ = new LinkedBlockingQueue<GaussianSpotData>();
-      resultList_ = Collections.synchronizedList(new ArrayList<GaussianSpotData>());
+      resultList_ = new SpotTable();
+      nrFits_.set(0);
 
       // take the active ImageJ image
       ImagePlus siPlus = null;
@@ -87,8 +80,6 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       }
 
       int nrThreads = ij.Prefs.getThreads();
-         if (nrThreads > 8)
-            nrThreads = 8;
 
       Roi originalRoi = siPlus.getRoi();
 
@@ -171,48 +162,69 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       // report duration of analysis
       double took = (endTime - startTime) / 1E9;
       double rate = resultList_.size() / took;
+      double fitRate = nrFits_.get() / took;
       DecimalFormat df2 = new DecimalFormat("#.##");
       DecimalFormat df0 = new DecimalFormat("#");
       print ("Analyzed " + resultList_.size() + " spots in " + df2.format(took) + 
-              " seconds (" + df0.format(rate) + " spots/sec.)");
+              " seconds (" + df0.format(rate) + " spots/sec., " + 
+              df0.format(fitRate) + " fits/sec. using " + nrThreads + " threads)");
 
       running_ = false;
    }
 
 
-   private int analyzeImagePlus(ImagePlus siPlus, int position, int nrThreads, Roi originalRoi) {
-
-      int nrSpots = 0;
-      // Start up IJ.Prefs.getThreads() threads for gaussian fitting
-      gfsThreads_ = new GaussianFitStackThread[nrThreads];
-      for (int i=0; i<nrThreads; i++) {
-         gfsThreads_[i] = new GaussianFitStackThread(sourceList_,resultList_, siPlus, halfSize_,
-                 shape_, fitMode_);
-
-         // TODO: more efficient way of passing through settings!
-         gfsThreads_[i].setPhotonConversionFactor(photonConversionFactor_);
-         gfsThreads_[i].setGain(gain_);
-         gfsThreads_[i].setPixelSize(pixelSize_);
-         gfsThreads_[i].setZStackStepSize(zStackStepSize_);
-         gfsThreads_[i].setTimeIntervalMs(timeIntervalMs_);
-         gfsThreads_[i].setBaseLevel(baseLevel_);
-         gfsThreads_[i].setNoiseTolerance(noiseTolerance_);
-         gfsThreads_[i].setSigmaMax(widthMax_);
-         gfsThreads_[i].setSigmaMin(widthMin_);
-         gfsThreads_[i].setNrPhotonsMin(nrPhotonsMin_);
-         gfsThreads_[i].setNrPhotonsMax(nrPhotonsMax_);
-         gfsThreads_[i].setMaxIterations(maxIterations_);
-         gfsThreads_[i].setUseWidthFilter(useWidthFilter_);
-         gfsThreads_[i].setUseNrPhotonsFilter(useNrPhotonsFilter_);
-         gfsThreads_[i].init();
-      }
+   /**
+    * Creates a fitter with the current settings for one of the fitting threads
+    */
+   private SpotFitter createSpotFitter() {
+      SpotFitter fitter = new SpotFitter(resultList_, halfSize_, shape_, fitMode_);
+      // TODO: more efficient way of passing through settings!
+      fitter.setPhotonConversionFactor(photonConversionFactor_);
+      fitter.setGain(gain_);
+      fitter.setPixelSize(pixelSize_);
+      fitter.setZStackStepSize(zStackStepSize_);
+      fitter.setTimeIntervalMs(timeIntervalMs_);
+      fitter.setBaseLevel(baseLevel_);
+      fitter.setNoiseTolerance(noiseTolerance_);
+      fitter.setSigmaMax(widthMax_);
+      fitter.setSigmaMin(widthMin_);
+      fitter.setNrPhotonsMin(nrPhotonsMin_);
+      fitter.setNrPhotonsMax(nrPhotonsMax_);
+      fitter.setMaxIterations(maxIterations_);
+      fitter.setUseWidthFilter(useWidthFilter_);
+      fitter.setUseNrPhotonsFilter(useNrPhotonsFilter_);
+      return fitter;
+   }
+
+   /**
+    * Finds and fits the spots in all images of the given position.  Images
+    * are read here one by one, and each is handed to the fitting threads,
+    * which find the local maxima in it and fit them.  At most a few images
+    * per thread wait to be fitted, so that memory use does not depend on
+    * the size of the stack.
+    */
+   private int analyzeImagePlus(ImagePlus siPlus, final int position, int nrThreads, 
+           Roi originalRoi) {
+
+      final AtomicInteger nrSpots = new AtomicInteger(0);
+      // Every thread reuses its own fitter for all the spots it fits
+      final ThreadLocal<SpotFitter> fitters = new ThreadLocal<SpotFitter>() {
+         @Override
+         protected SpotFitter initialValue() {
+            return createSpotFitter();
+         }
+      };
+      final int maxImagesWaiting = 2 * nrThreads;
+      final Semaphore imagesWaiting = new Semaphore(maxImagesWaiting);
+      final AtomicInteger imagesDone = new AtomicInteger(0);
+      ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
       
       // work around strange bug that happens with freshly opened images
       for (int i = 1; i <= siPlus.getNChannels(); i++) {
          siPlus.setPosition(i, siPlus.getCurrentSlice(), siPlus.getFrame());
       }
 
-      int nrImages = siPlus.getNChannels() * siPlus.getNSlices() * siPlus.getNFrames();
+      final int nrImages = siPlus.getNChannels() * siPlus.getNSlices() * siPlus.getNFrames();
       int imageCount = 0;
       try {
          for (int c = 1; c <= siPlus.getNChannels(); c++) {
@@ -224,114 +236,91 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
                for (int f = 1; f <= siPlus.getNFrames(); f++) {
                   if (!running_)
                      break;
-                  // to avoid making a gigantic sourceList and running out of memory
-                  // sleep a bit when the sourcesize gets too big
-                  // once we have very fast multi-core computers, this constant can be increased
-                  if (sourceList_.size() > 100000)
-                     try {
-                     Thread.sleep(1000);
-                  } catch (InterruptedException ex) {
-                     // not sure what to do
-                  }
+                  // wait until the fitting threads can take another image
+                  imagesWaiting.acquire();
 
                   imageCount++;
                   ij.IJ.showStatus("Processing image " + imageCount);
 
-                  ImageProcessor siProc = null;
-                  Polygon p = new Polygon();
+                  // The fitting threads get their own ImageProcessor for the 
+                  // pixels of this image, since the one of siPlus is reused
+                  final ImageProcessor siProc;
                   synchronized (GaussianSpotData.lockIP) {
                      siPlus.setPositionWithoutUpdate(c, z, f);
-                     // If ROI manager is used, use RoiManager Rois
-                     //  may be dangerous if the user is not aware
-                     RoiManager roiM = RoiManager.getInstance();
-                     Roi[] rois = null;
-                     //if (roiM != null && roiM.getSelectedIndex() > -1 ) {
-                     //   rois = roiM.getSelectedRoisAsArray();
-                     //}
-                     if (rois != null && rois.length > 0) {
-                        for (Roi roi : rois) {
-                           siPlus.setRoi(roi, false);
-                           siProc = siPlus.getProcessor();
-                           Polygon q = FindLocalMaxima.FindMax(siPlus, halfSize_, noiseTolerance_,
-                                   preFilterType_);
-                           for (int i = 0; i < q.npoints; i++) {
-                              p.addPoint(q.xpoints[i], q.ypoints[i]);
-                           }
-                        }
-                     } else {  // no Rois in RoiManager
-                        siPlus.setRoi(originalRoi, false);
-                        siProc = siPlus.getProcessor();
-                        p = FindLocalMaxima.FindMax(siPlus, halfSize_, noiseTolerance_,
-                                preFilterType_);
-                     }
-                  }
-
-                  ij.IJ.showProgress(imageCount, nrImages);
-
-
-                  if (p.npoints > nrSpots) {
-                     nrSpots = p.npoints;
+                     ImageProcessor ip = siPlus.getProcessor();
+                     siProc = ip.createProcessor(ip.getWidth(), ip.getHeight());
+                     siProc.setPixels(ip.getPixels());
                   }
-                  int[][] sC = new int[p.npoints][2];
-                  for (int j = 0; j < p.npoints; j++) {
-                     sC[j][0] = p.xpoints[j];
-                     sC[j][1] = p.ypoints[j];
+                  if (originalRoi != null && originalRoi.isArea()) {
+                     siProc.setRoi(originalRoi.getBounds());
                   }
 
-                  Arrays.sort(sC, new SpotSortComparator());
-
-                  for (int j = 0; j < sC.length; j++) {
-                     // filter out spots too close to the edge
-                     if (sC[j][0] > halfSize_ && sC[j][0] < siPlus.getWidth() - halfSize_
-                             && sC[j][1] > halfSize_ && sC[j][1] < siPlus.getHeight() - halfSize_) {
-                        ImageProcessor sp = GaussianSpotData.getSpotProcessor(siProc,
-                                halfSize_, sC[j][0], sC[j][1]);
-                        if (sp == null) {
-                           continue;
-                        }
-                        GaussianSpotData thisSpot = new GaussianSpotData(sp, c, z, f,
-                                position, j, sC[j][0], sC[j][1]);
+                  final int channel = c;
+                  final int slice = z;
+                  final int frame = f;
+                  executor.execute(new Runnable() {
+                     @Override
+                     public void run() {
                         try {
-                           sourceList_.put(thisSpot);
-                        } catch (InterruptedException iex) {
-                           Thread.currentThread().interrupt();
-                           throw new RuntimeException("Unexpected interruption");
+                           if (running_) {
+                              fitImage(fitters.get(), siProc, channel, slice, frame, 
+                                      position, nrSpots);
+                           }
+                        } catch (OutOfMemoryError ome) {
+                           running_ = false;
+                           ij.IJ.error("Out Of Memory");
+                        } catch (Exception ex) {
+                           running_ = false;
+                           ReportingUtils.logError(ex, "Error while fitting image");
+                        } finally {
+                           ij.IJ.showProgress(imagesDone.incrementAndGet(), nrImages);
+                           imagesWaiting.release();
                         }
                      }
-                  }
+                  });
                }
             }
          }
 
-      // start ProgresBar thread
-      ProgressThread pt = new ProgressThread(sourceList_);
-      pt.init();
-      
+         // wait for the fitting threads to finish
+         imagesWaiting.acquire(maxImagesWaiting);
       
       } catch (OutOfMemoryError ome) {
          ij.IJ.error("Out Of Memory");
-      }
-
-      // Send working threads signal that we are done:
-      GaussianSpotData lastSpot = new GaussianSpotData(null, -1, 1, -1, -1, -1, -1, -1);
-      try {
-         sourceList_.put(lastSpot);
       } catch (InterruptedException iex) {
          Thread.currentThread().interrupt();
-         throw new RuntimeException("Unexpected interruption");
+      } finally {
+         executor.shutdown();
       }
 
-      // wait for worker threads to finish
-      for (int i=0; i<nrThreads; i++) {
-         try {
-            gfsThreads_[i].join();
-            gfsThreads_[i] = null;
-         } catch (InterruptedException ie) {
-         }
+      return nrSpots.get();
+   }
+
+   /**
+    * Finds the local maxima in the Roi of siProc and fits them
+    */
+   private void fitImage(SpotFitter fitter, ImageProcessor siProc, int c, int z, int f,
+           int position, AtomicInteger nrSpots) {
+      Polygon p = FindLocalMaxima.FindMax(siProc, halfSize_, noiseTolerance_,
+              preFilterType_);
+
+      int max = nrSpots.get();
+      while (p.npoints > max && !nrSpots.compareAndSet(max, p.npoints)) {
+         max = nrSpots.get();
+      }
+      int[][] sC = new int[p.npoints][2];
+      for (int j = 0; j < p.npoints; j++) {
+         sC[j][0] = p.xpoints[j];
+         sC[j][1] = p.ypoints[j];
       }
 
-      sourceList_.clear();
-      return nrSpots;
+      Arrays.sort(sC, new SpotSortComparator());
+
+      for (int j = 0; j < sC.length && running_; j++) {
+         if (fitter.fit(siProc, c, z, f, position, j, sC[j][0], sC[j][1])) {
+            nrFits_.incrementAndGet();
+         }
+      }
    }
 
    private class SpotSortComparator implements Comparator {
@@ -47,10 +47,13 @@ public class GaussianFit {
 	int fitMode_ = 1;
 
 	NelderMeadSimplex nm_;
+	SimplexOptimizer opt_;
 	SimpleScalarValueChecker convergedChecker_;
 	MultiVariateGaussianFunction mGF_;
 
 	LevenbergMarquardtOptimizer lMO_;
+
+	LMGaussianFitter lmGF_;
 	
 	boolean estimateByMaximum;
 	boolean hardCodedSteps;
@@ -62,7 +65,9 @@ public class GaussianFit {
 	 * @param mode
 	 *            - fit circle (1) ellipse(2), or ellipse with varying angle (3)
 	 * @param fitmode
-	 *            - algorithm use: NelderMead (1), or Levenberg Marquard (2)
+	 *            - algorithm use: NelderMead (1), Levenberg Marquard (2),
+	 *            or LMGaussianFitter minimizing least squares (3) or 
+	 *            maximizing the likelihood (4)
 	 */
 	public GaussianFit(int mode, int fitMode, boolean estByMax, boolean hardCodeStp) {
 		super();
@@ -87,11 +92,15 @@ public class GaussianFit {
 		if (fitMode_ == 1) {
 			// nm_ = new NelderMeadSimplex(1);
 			convergedChecker_ = new SimpleScalarValueChecker(1e-6, -1);
+			opt_ = new SimplexOptimizer(convergedChecker_);
 			mGF_ = new MultiVariateGaussianFunction(mode_);
 		}
 		if (fitMode == 2) {
 			lMO_ = new LevenbergMarquardtOptimizer();
 		}
+		if (fitMode_ == 3 || fitMode_ == 4) {
+			lmGF_ = new LMGaussianFitter(mode_, fitMode_ == 4);
+		}
 
 		estimateByMaximum = estByMax;
 		hardCodedSteps = hardCodeStp;
@@ -125,14 +134,13 @@ public class GaussianFit {
 			// nm_.setStartConfiguration(steps_);
 			// nm_.setConvergenceChecker(convergedChecker_);
 			// nm_.setMaxIterations(maxIterations);
-			SimplexOptimizer opt = new SimplexOptimizer(convergedChecker_);
-			opt.setSimplex(nm_);
+			opt_.setSimplex(nm_);
 			mGF_.setImage((short[]) siProc.getPixels(), siProc.getWidth(),
 					siProc.getHeight());
 			try {
 				// RealPointValuePair result = nm_.optimize(mGF_,
 				// GoalType.MINIMIZE, params0_);
-				RealPointValuePair result = opt.optimize(maxIterations, mGF_,
+				RealPointValuePair result = opt_.optimize(maxIterations, mGF_,
 						GoalType.MINIMIZE, params0_);
 				paramsOut = result.getPoint();
 			} catch (java.lang.OutOfMemoryError e) {
@@ -172,6 +180,11 @@ public class GaussianFit {
 			}
 		}
 
+		if (fitMode_ == 3 || fitMode_ == 4) {
+			paramsOut = lmGF_.fit((short[]) siProc.getPixels(), siProc.getWidth(),
+					siProc.getHeight(), params0_, maxIterations);
+		}
+
 		if (mode_ == 3) {
 			if (paramsOut.length > S3) {
 				double[] prms = GaussianUtils.ellipseParmConversion(
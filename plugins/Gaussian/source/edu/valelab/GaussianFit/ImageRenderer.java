@@ -61,6 +61,7 @@ public class ImageRenderer {
       int endy = rect.y + rect.height;
       final int size = width * height;
       double factor = (double) magnification / rowData.pixelSizeNm_;
+      final SpotTable spots = rowData.spotList_;
 
 
       try {
@@ -69,10 +70,10 @@ public class ImageRenderer {
                ip = new ShortProcessor(width, height);
                short pixels[] = new short[size];
                ip.setPixels(pixels);
-               for (GaussianSpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
+               for (int row = 0; row < spots.size(); row++) {
+                  if (sf.filter(spots, row)) {
+                     int x = (int) (factor * spots.getXCenter(row));
+                     int y = (int) (factor * spots.getYCenter(row));
                      if (x > rect.x && x < endx && y > rect.y && y < endy) {
                         x -= rect.x;
                         y -= rect.y;
@@ -93,16 +94,16 @@ public class ImageRenderer {
                   sp[i].setPixels(pixels[i]);
                }
                double spread = rowData.maxZ_ - rowData.minZ_;
-               for (GaussianSpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
+               for (int row = 0; row < spots.size(); row++) {
+                  if (sf.filter(spots, row)) {
+                     int x = (int) (factor * spots.getXCenter(row));
+                     int y = (int) (factor * spots.getYCenter(row));
                      if (x > rect.x && x < endx && y > rect.y && y < endy) {
                         x -= rect.x;
                         y -= rect.y;
                         int index = (y * width) + x;
                         if (index < size && index > 0) {
-                           int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
+                           int zIndex = (int) (256 * (spots.getZCenter(row) - rowData.minZ_) / spread);
                            if (zIndex < 0) {
                               zIndex = 0;
                            }
@@ -153,20 +154,20 @@ public class ImageRenderer {
             ip.setPixels(pixels);
 
             ij.IJ.showStatus("Rendering Image...");
-            int updateQuantum = rowData.spotList_.size() / 100;
+            int updateQuantum = spots.size() / 100;
             int counter = 0;
             int spotsUsed = 0;
-            for (GaussianSpotData spot : rowData.spotList_) {
+            for (int row = 0; row < spots.size(); row++) {
                if (counter % updateQuantum == 0) {
-                  ij.IJ.showProgress(counter, rowData.spotList_.size());
+                  ij.IJ.showProgress(counter, spots.size());
                }
 
 
-               if (sf.filter(spot)) {
+               if (sf.filter(spots, row)) {
 
 
                   // cover 3 * precision
-                  int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
+                  int halfWidth = (int) (2 * spots.getSigma(row) / renderedPixelInNm);
                   if (halfWidth == 0) {
                      halfWidth = 2;
                   }
@@ -180,8 +181,8 @@ public class ImageRenderer {
                    * sig = params[S]
                    * 
                    */
-                  int xc = (int) (factor * spot.getXCenter());
-                  int yc = (int) (factor * spot.getYCenter());
+                  int xc = (int) (factor * spots.getXCenter(row));
+                  int yc = (int) (factor * spots.getYCenter(row));
                   //int xc = (int) Math.round(spot.getXCenter() / renderedPixelInNm);
                   //int yc = (int) Math.round(spot.getYCenter() / renderedPixelInNm);
 
@@ -199,12 +200,12 @@ public class ImageRenderer {
                         int yStart = (int) yc - halfWidth;
                         int yEnd = (int) yc + halfWidth;
                         float[][] boxPixels = new float[xEnd - xStart][yEnd - yStart];
+                        double[] parms = {1.0, 0.0,
+                           spots.getXCenter(row) / renderedPixelInNm,
+                           spots.getYCenter(row) / renderedPixelInNm,
+                           spots.getSigma(row) / renderedPixelInNm};
                         for (int x = xStart; x < xEnd; x++) {
                            for (int y = yStart; y < yEnd; y++) {
-                              double[] parms = {1.0, 0.0,
-                                 spot.getXCenter() / renderedPixelInNm,
-                                 spot.getYCenter() / renderedPixelInNm,
-                                 spot.getSigma() / renderedPixelInNm};
                               double val = GaussianUtils.gaussian(parms, x, y);
                               totalInt += val;
                               if (normalize) {
@@ -311,11 +312,12 @@ public class ImageRenderer {
             is.addSlice(ip[i]);
          }
 
-         for (GaussianSpotData spot : rowData.spotList_) {
-            if (sf.filter(spot)) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int z = (int) (factor * (spot.getZCenter() - rowData.minZ_) * 500.0);
+         final SpotTable spots = rowData.spotList_;
+         for (int row = 0; row < spots.size(); row++) {
+            if (sf.filter(spots, row)) {
+               int x = (int) (factor * spots.getXCenter(row));
+               int y = (int) (factor * spots.getYCenter(row));
+               int z = (int) (factor * (spots.getZCenter(row) - rowData.minZ_) * 500.0);
                if (x > rect.x && x < endx && y > rect.y && y < endy) {
                   x -= rect.x;
                   y -= rect.y;
@@ -0,0 +1,278 @@
+/**
+ * Levenberg-Marquardt fitter for the Gaussian models of GaussianUtils
+ *
+ * Part of Micro-Manager's Localization Plugin
+ */
+
+package edu.valelab.GaussianFit;
+
+import java.util.Arrays;
+
+/**
+ * Fits a circular (mode 1), elliptical (mode 2) or rotated elliptical (mode 3)
+ * Gaussian, with the parameters used by GaussianUtils.gaussian,
+ * gaussian2DXY and gaussian2DEllips, directly to the pixels of a spot.
+ *
+ * Derivatives are calculated in closed form and all work space is allocated
+ * when the fitter is created, so that fitting a spot only allocates the
+ * array with the result.  The fit either minimizes the sum of squared
+ * residuals, or maximizes the likelihood of the pixel values assuming
+ * Poisson noise (in which case the Hessian is approximated by the Fisher
+ * information).
+ *
+ * A fitter is not thread safe, use one per thread.
+ *
+ * @author nico
+ */
+public class LMGaussianFitter {
+
+   private static final double INITIAL_LAMBDA = 0.001;
+   private static final double MAX_LAMBDA = 1e10;
+   // stop when the cost improves by less than this fraction
+   private static final double RELATIVE_TOLERANCE = 1e-6;
+
+   private final int mode_;
+   private final boolean mle_;
+   private final int nrParams_;
+   private final double[] params_;
+   private final double[] trial_;
+   private final double[] derivatives_;
+   private final double[] gradient_;
+   private final double[] hessian_;
+   private final double[] matrix_;
+   private final double[] step_;
+
+   /**
+    * @param mode - fit circle (1) ellipse(2), or ellipse with varying angle (3)
+    * @param mle - maximize the Poisson likelihood rather than minimizing the
+    *              sum of squares
+    */
+   public LMGaussianFitter(int mode, boolean mle) {
+      if (mode < 1 || mode > 3) {
+         throw new IllegalArgumentException("Unknown mode: " + mode);
+      }
+      mode_ = mode;
+      mle_ = mle;
+      nrParams_ = mode + 4;
+      params_ = new double[nrParams_];
+      trial_ = new double[nrParams_];
+      derivatives_ = new double[nrParams_];
+      gradient_ = new double[nrParams_];
+      hessian_ = new double[nrParams_ * nrParams_];
+      matrix_ = new double[nrParams_ * nrParams_];
+      step_ = new double[nrParams_];
+   }
+
+   /**
+    * Fits the model to a spot
+    *
+    * @param pixels - width * height pixels of the spot
+    * @param width
+    * @param height
+    * @param params0 - start values of the parameters
+    * @param maxIterations - maximum number of Levenberg-Marquardt steps
+    * @return fitted parameters
+    */
+   public double[] fit(short[] pixels, int width, int height, double[] params0,
+           int maxIterations) {
+      System.arraycopy(params0, 0, params_, 0, nrParams_);
+      double lambda = INITIAL_LAMBDA;
+      double cost = cost(pixels, width, height, params_);
+      for (int iteration = 0; iteration < maxIterations; iteration++) {
+         computeGradientAndHessian(pixels, width, height);
+         double trialCost = Double.POSITIVE_INFINITY;
+         while (lambda < MAX_LAMBDA) {
+            if (solve(lambda)) {
+               for (int i = 0; i < nrParams_; i++) {
+                  trial_[i] = params_[i] + step_[i];
+               }
+               trialCost = cost(pixels, width, height, trial_);
+               if (trialCost < cost) {
+                  break;
+               }
+            }
+            lambda *= 10;
+         }
+         if (!(trialCost < cost)) {
+            break;
+         }
+         System.arraycopy(trial_, 0, params_, 0, nrParams_);
+         boolean converged = cost - trialCost <= RELATIVE_TOLERANCE * Math.abs(cost);
+         cost = trialCost;
+         lambda = Math.max(lambda / 10, 1e-12);
+         if (converged) {
+            break;
+         }
+      }
+      double[] result = new double[nrParams_];
+      System.arraycopy(params_, 0, result, 0, nrParams_);
+      return result;
+   }
+
+   /**
+    * Value of the model at x, y.  Also sets derivatives_ if derivatives is true.
+    */
+   private double model(double[] p, int x, int y, boolean derivatives) {
+      double dx = x - p[GaussianFit.XC];
+      double dy = y - p[GaussianFit.YC];
+      double e;
+      switch (mode_) {
+         case 1: {
+            double s2 = p[GaussianFit.S] * p[GaussianFit.S];
+            double r2 = dx * dx + dy * dy;
+            e = Math.exp(-r2 / (2 * s2));
+            if (derivatives) {
+               double q = p[GaussianFit.INT] * e;
+               derivatives_[GaussianFit.XC] = dx * q / s2;
+               derivatives_[GaussianFit.YC] = dy * q / s2;
+               derivatives_[GaussianFit.S] = r2 * q / (s2 * p[GaussianFit.S]);
+            }
+            break;
+         }
+         case 2: {
+            double sx2 = p[GaussianFit.S1] * p[GaussianFit.S1];
+            double sy2 = p[GaussianFit.S2] * p[GaussianFit.S2];
+            e = Math.exp(-(dx * dx / (2 * sx2) + dy * dy / (2 * sy2)));
+            if (derivatives) {
+               double q = p[GaussianFit.INT] * e;
+               derivatives_[GaussianFit.XC] = dx * q / sx2;
+               derivatives_[GaussianFit.YC] = dy * q / sy2;
+               derivatives_[GaussianFit.S1] = dx * dx * q / (sx2 * p[GaussianFit.S1]);
+               derivatives_[GaussianFit.S2] = dy * dy * q / (sy2 * p[GaussianFit.S2]);
+            }
+            break;
+         }
+         default: {
+            double a = p[GaussianFit.S1];
+            double b = p[GaussianFit.S2];
+            double c = p[GaussianFit.S3];
+            e = Math.exp(-(a * dx * dx + c * dy * dy + 2 * b * dx * dy) / 2);
+            if (derivatives) {
+               double q = p[GaussianFit.INT] * e;
+               derivatives_[GaussianFit.XC] = (a * dx + b * dy) * q;
+               derivatives_[GaussianFit.YC] = (b * dx + c * dy) * q;
+               derivatives_[GaussianFit.S1] = -0.5 * dx * dx * q;
+               derivatives_[GaussianFit.S2] = -dx * dy * q;
+               derivatives_[GaussianFit.S3] = -0.5 * dy * dy * q;
+            }
+            break;
+         }
+      }
+      if (derivatives) {
+         derivatives_[GaussianFit.INT] = e;
+         derivatives_[GaussianFit.BGR] = 1.0;
+      }
+      return p[GaussianFit.INT] * e + p[GaussianFit.BGR];
+   }
+
+   /**
+    * Sum of squared residuals, or the negative log likelihood (without the
+    * terms that do not depend on the parameters)
+    */
+   private double cost(short[] pixels, int width, int height, double[] p) {
+      double cost = 0.0;
+      for (int y = 0, i = 0; y < height; y++) {
+         for (int x = 0; x < width; x++, i++) {
+            double mu = model(p, x, y, false);
+            double data = pixels[i] & 0xffff;
+            if (mle_) {
+               if (!(mu > 0)) {
+                  return Double.POSITIVE_INFINITY;
+               }
+               cost += mu - data * Math.log(mu);
+            } else {
+               cost += (data - mu) * (data - mu);
+            }
+         }
+      }
+      return Double.isNaN(cost) ? Double.POSITIVE_INFINITY : cost;
+   }
+
+   /**
+    * Fills gradient_ and hessian_ at params_ such that the solution of
+    * hessian_ * step = gradient_ is the Gauss-Newton step
+    */
+   private void computeGradientAndHessian(short[] pixels, int width, int height) {
+      int n = nrParams_;
+      Arrays.fill(gradient_, 0.0);
+      Arrays.fill(hessian_, 0.0);
+      for (int y = 0, i = 0; y < height; y++) {
+         for (int x = 0; x < width; x++, i++) {
+            double mu = model(params_, x, y, true);
+            double data = pixels[i] & 0xffff;
+            double residual;
+            double weight;
+            if (mle_) {
+               residual = data / mu - 1;
+               // Fisher information of a Poisson pixel
+               weight = 1.0 / mu;
+            } else {
+               residual = data - mu;
+               weight = 1.0;
+            }
+            for (int j = 0; j < n; j++) {
+               double wd = weight * derivatives_[j];
+               gradient_[j] += residual * derivatives_[j];
+               for (int k = j; k < n; k++) {
+                  hessian_[j * n + k] += wd * derivatives_[k];
+               }
+            }
+         }
+      }
+      for (int j = 0; j < n; j++) {
+         for (int k = 0; k < j; k++) {
+            hessian_[j * n + k] = hessian_[k * n + j];
+         }
+      }
+   }
+
+   /**
+    * Solves (hessian_ + lambda * diag(hessian_)) step_ = gradient_ by Cholesky
+    * decomposition
+    *
+    * @return false if the matrix is not positive definite
+    */
+   private boolean solve(double lambda) {
+      int n = nrParams_;
+      System.arraycopy(hessian_, 0, matrix_, 0, n * n);
+      for (int j = 0; j < n; j++) {
+         double diagonal = hessian_[j * n + j];
+         matrix_[j * n + j] += lambda * (diagonal > 0 ? diagonal : 1.0);
+      }
+      // matrix_ = L * L^T, with L stored in the lower triangle
+      for (int j = 0; j < n; j++) {
+         double sum = matrix_[j * n + j];
+         for (int k = 0; k < j; k++) {
+            sum -= matrix_[j * n + k] * matrix_[j * n + k];
+         }
+         if (!(sum > 0)) {
+            return false;
+         }
+         double diagonal = Math.sqrt(sum);
+         matrix_[j * n + j] = diagonal;
+         for (int i = j + 1; i < n; i++) {
+            double s = matrix_[i * n + j];
+            for (int k = 0; k < j; k++) {
+               s -= matrix_[i * n + k] * matrix_[j * n + k];
+            }
+            matrix_[i * n + j] = s / diagonal;
+         }
+      }
+      // forward substitution L z = gradient, then back substitution L^T step = z
+      for (int i = 0; i < n; i++) {
+         double s = gradient_[i];
+         for (int k = 0; k < i; k++) {
+            s -= matrix_[i * n + k] * step_[k];
+         }
+         step_[i] = s / matrix_[i * n + i];
+      }
+      for (int i = n - 1; i >= 0; i--) {
+         double s = step_[i];
+         for (int k = i + 1; k < n; k++) {
+            s -= matrix_[k * n + i] * step_[k];
+         }
+         step_[i] = s / matrix_[i * n + i];
+      }
+      return true;
+   }
+}
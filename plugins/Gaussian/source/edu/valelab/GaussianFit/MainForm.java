@@ -67,7 +67,6 @@ public class MainForm extends javax.swing.JFrame implements ij.ImageListener{
 
    // Store values of dropdown menus:
    private int shape_ = 1;
-   private int fitMode_ = 2;
    private FindLocalMaxima.FilterType preFilterType_ = FindLocalMaxima.FilterType.NONE;
 
    private FitAllThread ft_;
@@ -560,7 +559,7 @@ public class MainForm extends javax.swing.JFrame implements ij.ImageListener{
         jLabel20.setBounds(90, 220, 76, 20);
 
         fitMethodComboBox1.setFont(new java.awt.Font("Lucida Grande", 0, 10));
-        fitMethodComboBox1.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Simplex", "LevenBerg-Marq" }));
+        fitMethodComboBox1.setModel(new javax.swing.DefaultComboBoxModel(new String[] { "Simplex", "LevenBerg-Marq", "LM-fast", "MLE-fast" }));
         fitMethodComboBox1.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
                 fitMethodComboBox1ActionPerformed(evt);
@@ -631,7 +630,13 @@ public class MainForm extends javax.swing.JFrame implements ij.ImageListener{
     private void fitAllButton_ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_fitAllButton_ActionPerformed
        
        if (ft_ == null || !ft_.isRunning()) {
-          ft_ = new FitAllThread(shape_, fitMode_, preFilterType_);
+          // Fit All has always used Levenberg-Marquardt, unless one of
+          // the fast fitters is chosen
+          int fitMode = fitMethodComboBox1.getSelectedIndex() + 1;
+          if (fitMode < 3) {
+             fitMode = 2;
+          }
+          ft_ = new FitAllThread(shape_, fitMode, preFilterType_);
           updateValues(ft_);
           ft_.init();
        } else {
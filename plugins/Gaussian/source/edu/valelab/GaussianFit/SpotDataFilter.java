@@ -47,6 +47,28 @@ public class SpotDataFilter {
       return true;
    }
    
+   /**
+    * Indicates whether or not the spot in the given row is acceptable
+    * 
+    * @param spots - table holding the spot
+    * @param row - row of the spot in the table
+    * @return true if spot is acceptable
+    */
+   public boolean filter (SpotTable spots, int row) {
+      if (useSigma_) {
+         double sigma = spots.getSigma(row);
+         if (sigma < sigmaMin_ || sigma > sigmaMax_)
+            return false;
+      }
+      if (useIntensity_) {
+         double intensity = spots.getIntensity(row);
+         if (intensity < intensityMin_ || intensity > intensityMax_)
+            return false;
+      }
+      
+      return true;
+   }
+   
    
    
 }
@@ -0,0 +1,671 @@
+package edu.valelab.GaussianFit;
+
+import edu.ucsf.tsf.TaggedSpotsProtos.Spot;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.micromanager.utils.MemoryUtils;
+
+/**
+ * Reads the spots of Insight3 .bin files, .tsf files and text files saved by
+ * DataCollectionForm into a SpotTable
+ *
+ * A first pass over the file divides it into chunks of about CHUNK_SIZE bytes
+ * and counts the spots in each, so that the table is allocated once and every
+ * chunk can be decoded straight into its own rows.  The chunks are then mapped
+ * into memory and decoded in parallel, reporting progress to ImageJ.  Each
+ * chunk is unmapped once decoded, so that the file isn't left locked.
+ *
+ * Spots can be limited to a range of frames and to a rectangle (in pixels).
+ * Frames outside the range are not decoded at all in .bin files, since their
+ * spot counts are stored in the frame headers.
+ *
+ * @author Nico Stuurman
+ */
+public class SpotFileReader {
+   private static final int CHUNK_SIZE = 16 << 20;
+   private static final int SCAN_BUFFER_SIZE = 1 << 16;
+   // total size of a molecule in a .bin file: 18 floats and ints
+   private static final int BIN_RECORD_SIZE = 72;
+
+   private final File file_;
+   private int firstFrame_ = Integer.MIN_VALUE;
+   private int lastFrame_ = Integer.MAX_VALUE;
+   private Rectangle roi_ = null;
+   private boolean hasZ_ = false;
+   private double minZ_ = Double.POSITIVE_INFINITY;
+   private double maxZ_ = Double.NEGATIVE_INFINITY;
+   private final HashMap<String, String> info_ = new HashMap<String, String>();
+
+   /**
+    * Part of the file decoded by one task, and the results of decoding it
+    */
+   private static class Chunk {
+      long start_;
+      long end_;
+      int nrSpots_;
+      int firstRow_;
+      // .bin only: number of the first molecule in the file, its frame,
+      // and the number of molecules of that frame from there on
+      int firstNr_;
+      int frame_;
+      int left_;
+      int nrKept_ = 0;
+      boolean hasZ_ = false;
+      double minZ_ = Double.POSITIVE_INFINITY;
+      double maxZ_ = Double.NEGATIVE_INFINITY;
+
+      void addZ(double z) {
+         if (z < minZ_)
+            minZ_ = z;
+         if (z > maxZ_)
+            maxZ_ = z;
+      }
+   }
+
+   private interface ChunkDecoder {
+      void decode(Chunk chunk, ByteBuffer buffer, SpotTable spots) throws IOException;
+   }
+
+   /**
+    * Reads small pieces of a file at arbitrary positions through a buffer
+    */
+   private static class FileWindow {
+      private final FileChannel channel_;
+      private final ByteBuffer buffer_;
+      private long start_ = -1;
+      private int length_ = 0;
+
+      FileWindow(FileChannel channel, ByteOrder order) {
+         channel_ = channel;
+         buffer_ = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+         buffer_.order(order);
+      }
+
+      private int fill(long pos, int size) throws IOException {
+         if (start_ < 0 || pos < start_ || pos + size > start_ + length_) {
+            buffer_.clear();
+            long p = pos;
+            int n;
+            while (buffer_.hasRemaining() && (n = channel_.read(buffer_, p)) > 0) {
+               p += n;
+            }
+            start_ = pos;
+            length_ = buffer_.position();
+            if (length_ < size) {
+               throw new IOException("Unexpected end of file");
+            }
+         }
+         return (int) (pos - start_);
+      }
+
+      byte getByte(long pos) throws IOException {
+         return buffer_.get(fill(pos, 1));
+      }
+
+      int getInt(long pos) throws IOException {
+         return buffer_.getInt(fill(pos, 4));
+      }
+   }
+
+   public SpotFileReader(File file) {
+      file_ = file;
+   }
+
+   public File getFile() {
+      return file_;
+   }
+
+   /**
+    * Only spots with firstFrame <= frame <= lastFrame will be read
+    */
+   public void setFrameRange(int firstFrame, int lastFrame) {
+      firstFrame_ = firstFrame;
+      lastFrame_ = lastFrame;
+   }
+
+   /**
+    * Only spots whose x and y position (in pixels) lie in roi will be read.
+    * @param roi - null to read spots anywhere
+    */
+   public void setRoi(Rectangle roi) {
+      roi_ = roi;
+   }
+
+   public boolean hasZ() {
+      return hasZ_;
+   }
+
+   public double getMinZ() {
+      return minZ_;
+   }
+
+   public double getMaxZ() {
+      return maxZ_;
+   }
+
+   /**
+    * Returns the key-value pairs of the first line of a text file
+    */
+   public HashMap<String, String> getInfo() {
+      return info_;
+   }
+
+   private boolean keep(int frame, int x, int y) {
+      return frame >= firstFrame_ && frame <= lastFrame_
+              && (roi_ == null || roi_.contains(x, y));
+   }
+
+   /**
+    * Reads an Insight3 .bin file
+    * @param pixelSize - in nm, used to convert the positions to nm
+    */
+   public SpotTable readBin(final float pixelSize) throws IOException {
+      List<Chunk> chunks = new ArrayList<Chunk>();
+      RandomAccessFile raFile = new RandomAccessFile(file_, "r");
+      try {
+         FileChannel channel = raFile.getChannel();
+         long fileSize = channel.size();
+         FileWindow window = new FileWindow(channel, ByteOrder.LITTLE_ENDIAN);
+         byte[] m425 = {77, 52, 50, 53};
+         for (int i = 0; i < 4; i++) {
+            if (window.getByte(i) != m425[i])
+               throw (new IOException("Not a .bin file"));
+         }
+         // nStorm files have a 57 byte header after the magic number
+         boolean nStorm = true;
+         byte[] guid = {71, 85, 73, 68};
+         for (int i = 0; i < 4; i++) {
+            if (window.getByte(4 + i) != guid[i])
+               nStorm = false;
+         }
+         long pos = nStorm ? 61 : 4;
+         int nrFrames = window.getInt(pos);
+         pos += 8; // frames and molecule type
+
+         // each frame starts with its number of molecules
+         int nr = 0;
+         int rows = 0;
+         Chunk chunk = null;
+         for (int frame = 0; frame <= nrFrames && frame <= lastFrame_; frame++) {
+            int nrMolecules = window.getInt(pos);
+            pos += 4;
+            if (nrMolecules < 0 || pos + (long) nrMolecules * BIN_RECORD_SIZE > fileSize) {
+               throw new IOException("Unexpected end of file");
+            }
+            if (frame < firstFrame_) {
+               nr += nrMolecules;
+            } else {
+               long p = pos;
+               int left = nrMolecules;
+               while (left > 0) {
+                  if (chunk == null) {
+                     chunk = new Chunk();
+                     chunk.start_ = p;
+                     chunk.firstRow_ = rows;
+                     chunk.firstNr_ = nr;
+                     chunk.frame_ = frame;
+                     chunk.left_ = left;
+                  }
+                  int n = (int) Math.min(left,
+                          Math.max(1, (CHUNK_SIZE - (p - chunk.start_)) / BIN_RECORD_SIZE));
+                  p += (long) n * BIN_RECORD_SIZE;
+                  chunk.end_ = p;
+                  chunk.nrSpots_ += n;
+                  left -= n;
+                  rows += n;
+                  nr += n;
+                  if (p - chunk.start_ > CHUNK_SIZE - BIN_RECORD_SIZE) {
+                     chunks.add(chunk);
+                     chunk = null;
+                  }
+               }
+            }
+            pos += (long) nrMolecules * BIN_RECORD_SIZE;
+         }
+         if (chunk != null) {
+            chunks.add(chunk);
+         }
+      } finally {
+         raFile.close();
+      }
+
+      return decode(chunks, new ChunkDecoder() {
+         @Override
+         public void decode(Chunk chunk, ByteBuffer buffer, SpotTable spots) {
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int pos = 0;
+            int frame = chunk.frame_;
+            int left = chunk.left_;
+            for (int i = 0; i < chunk.nrSpots_; i++) {
+               while (left == 0) {
+                  left = buffer.getInt(pos);
+                  pos += 4;
+                  frame++;
+               }
+               float x = buffer.getFloat(pos);
+               float y = buffer.getFloat(pos + 4);
+               float xc = buffer.getFloat(pos + 8);
+               float yc = buffer.getFloat(pos + 12);
+               // height at 16, integrated density at 20
+               float w = buffer.getFloat(pos + 24);
+               float phi = buffer.getFloat(pos + 28);
+               float ax = buffer.getFloat(pos + 32);
+               float b = buffer.getFloat(pos + 36);
+               float intensity = buffer.getFloat(pos + 40);
+               int c = buffer.getInt(pos + 44);
+               // union, frame, union2 and link at 48 to 60
+               float z = buffer.getFloat(pos + 64);
+               float zc = buffer.getFloat(pos + 68);
+               pos += BIN_RECORD_SIZE;
+               left--;
+
+               if (!keep(frame, (int) xc, (int) yc))
+                  continue;
+               int row = chunk.firstRow_ + chunk.nrKept_++;
+               spots.set(row, 0, 0, frame, 0, chunk.firstNr_ + i, (int) xc, (int) yc);
+               spots.setData(row, intensity, b, pixelSize * xc, pixelSize * yc, zc,
+                       w, ax, phi, c);
+               spots.setOriginalPosition(row, x, y, z);
+               if (zc != 0.0)
+                  chunk.hasZ_ = true;
+               chunk.addZ(zc);
+            }
+         }
+      });
+   }
+
+   /**
+    * Reads the Spot messages of a .tsf file
+    * @param start - position of the first Spot
+    * @param end - position after the last Spot
+    * @param expectedSpots - number of spots to read, or 0 to read up to end
+    */
+   public SpotTable readTSF(long start, long end, long expectedSpots) throws IOException {
+      List<Chunk> chunks = new ArrayList<Chunk>();
+      RandomAccessFile raFile = new RandomAccessFile(file_, "r");
+      try {
+         FileChannel channel = raFile.getChannel();
+         end = Math.min(end, channel.size());
+         FileWindow window = new FileWindow(channel, ByteOrder.BIG_ENDIAN);
+         // every Spot is preceded by its size as a varint
+         long pos = start;
+         int rows = 0;
+         Chunk chunk = null;
+         while (pos < end && (expectedSpots == 0 || rows < expectedSpots)) {
+            long messageStart = pos;
+            long size = 0;
+            int shift = 0;
+            byte b;
+            do {
+               b = window.getByte(pos++);
+               size |= (long) (b & 0x7f) << shift;
+               shift += 7;
+            } while (b < 0 && shift < 64);
+            pos += size;
+            if (pos > end) {
+               throw new IOException("Unexpected end of file");
+            }
+            if (chunk == null) {
+               chunk = new Chunk();
+               chunk.start_ = messageStart;
+               chunk.firstRow_ = rows;
+            }
+            chunk.end_ = pos;
+            chunk.nrSpots_++;
+            rows++;
+            if (chunk.end_ - chunk.start_ >= CHUNK_SIZE) {
+               chunks.add(chunk);
+               chunk = null;
+            }
+         }
+         if (chunk != null) {
+            chunks.add(chunk);
+         }
+      } finally {
+         raFile.close();
+      }
+
+      return decode(chunks, new ChunkDecoder() {
+         @Override
+         public void decode(Chunk chunk, ByteBuffer buffer, SpotTable spots)
+                 throws IOException {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            InputStream in = new ByteArrayInputStream(bytes);
+            for (int i = 0; i < chunk.nrSpots_; i++) {
+               Spot pSpot = Spot.parseDelimitedFrom(in);
+               if (pSpot == null) {
+                  throw new IOException("Unexpected end of file");
+               }
+               if (!keep(pSpot.getFrame(), pSpot.getXPosition(), pSpot.getYPosition()))
+                  continue;
+               int row = chunk.firstRow_ + chunk.nrKept_++;
+               spots.set(row, pSpot.getChannel(), pSpot.getSlice(), pSpot.getFrame(),
+                       pSpot.getPos(), pSpot.getMolecule(), pSpot.getXPosition(),
+                       pSpot.getYPosition());
+               double zc = 0.0;
+               if (pSpot.hasZ()) {
+                  zc = pSpot.getZ();
+                  chunk.hasZ_ = true;
+                  chunk.addZ(zc);
+               }
+               spots.setData(row, pSpot.getIntensity(), pSpot.getBackground(), pSpot.getX(),
+                       pSpot.getY(), zc, pSpot.getWidth(), pSpot.getA(), pSpot.getTheta(),
+                       pSpot.getXPrecision());
+            }
+         }
+      });
+   }
+
+   /**
+    * Reads a text file written by DataCollectionForm.  The key-value pairs of
+    * its first line are available from getInfo() afterwards.
+    */
+   public SpotTable readText() throws IOException, NumberFormatException {
+      List<Chunk> chunks = new ArrayList<Chunk>();
+      final String[] headers;
+      RandomAccessFile raFile = new RandomAccessFile(file_, "r");
+      try {
+         FileChannel channel = raFile.getChannel();
+         long fileSize = channel.size();
+         FileWindow window = new FileWindow(channel, ByteOrder.BIG_ENDIAN);
+         long[] pos = new long[] {0};
+         String info = readLine(window, pos, fileSize);
+         String head = readLine(window, pos, fileSize);
+         if (info == null || head == null) {
+            throw new NumberFormatException("Missing header");
+         }
+         String[] infos = info.split("\t");
+         for (int i = 0; i < infos.length; i++) {
+            String[] keyValue = infos[i].split(": ");
+            if (keyValue.length == 2)
+               info_.put(keyValue[0], keyValue[1]);
+         }
+         headers = head.split("\t");
+
+         // chunks end at line ends, spots are counted as non-empty lines
+         long start = pos[0];
+         int rows = 0;
+         while (start < fileSize) {
+            long end = Math.min(fileSize, start + CHUNK_SIZE);
+            while (end < fileSize && window.getByte(end - 1) != '\n') {
+               end++;
+            }
+            Chunk chunk = new Chunk();
+            chunk.start_ = start;
+            chunk.end_ = end;
+            chunk.firstRow_ = rows;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 
+                    start, end - start);
+            boolean content = false;
+            try {
+               for (int i = 0; i < buffer.limit(); i++) {
+                  byte b = buffer.get(i);
+                  if (b == '\n') {
+                     if (content)
+                        chunk.nrSpots_++;
+                     content = false;
+                  } else if (b != '\r') {
+                     content = true;
+                  }
+               }
+            } finally {
+               MemoryUtils.unmap(buffer);
+            }
+            if (content)
+               chunk.nrSpots_++;
+            rows += chunk.nrSpots_;
+            chunks.add(chunk);
+            start = end;
+         }
+      } finally {
+         raFile.close();
+      }
+
+      final boolean hasZ = "true".equals(info_.get("has_Z"));
+      final int channelCol = getColumn(headers, "channel");
+      final int sliceCol = getColumn(headers, "slice");
+      final int frameCol = getColumn(headers, "frame");
+      final int posCol = getColumn(headers, "pos");
+      final int moleculeCol = getColumn(headers, "molecule");
+      final int xPosCol = getColumn(headers, "x_position");
+      final int yPosCol = getColumn(headers, "y_position");
+      final int intensityCol = getColumn(headers, "intensity");
+      final int backgroundCol = getColumn(headers, "background");
+      final int xCol = getColumn(headers, "x");
+      final int yCol = getColumn(headers, "y");
+      final int widthCol = getColumn(headers, "width");
+      final int aCol = getColumn(headers, "a");
+      final int thetaCol = getColumn(headers, "theta");
+      final int precisionCol = getColumn(headers, "x_precision");
+      final int zCol = hasZ ? getColumn(headers, "z") : -1;
+
+      SpotTable spots = decode(chunks, new ChunkDecoder() {
+         @Override
+         public void decode(Chunk chunk, ByteBuffer buffer, SpotTable spots) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            int[] fieldStart = new int[headers.length];
+            int[] fieldEnd = new int[headers.length];
+            char[] chars = new char[64];
+            int lineStart = 0;
+            while (lineStart < bytes.length) {
+               int lineEnd = lineStart;
+               while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                  lineEnd++;
+               }
+               int next = lineEnd + 1;
+               if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                  lineEnd--;
+               }
+               if (lineEnd > lineStart) {
+                  int nrFields = 0;
+                  int s = lineStart;
+                  for (int i = lineStart; i <= lineEnd && nrFields < headers.length; i++) {
+                     if (i == lineEnd || bytes[i] == '\t') {
+                        fieldStart[nrFields] = s;
+                        fieldEnd[nrFields] = i;
+                        nrFields++;
+                        s = i + 1;
+                     }
+                  }
+                  if (nrFields < headers.length) {
+                     throw new NumberFormatException("Missing values");
+                  }
+                  int frame = parseInt(bytes, fieldStart[frameCol], fieldEnd[frameCol]);
+                  int x = parseInt(bytes, fieldStart[xPosCol], fieldEnd[xPosCol]);
+                  int y = parseInt(bytes, fieldStart[yPosCol], fieldEnd[yPosCol]);
+                  if (keep(frame, x, y)) {
+                     int row = chunk.firstRow_ + chunk.nrKept_++;
+                     spots.set(row,
+                             parseInt(bytes, fieldStart[channelCol], fieldEnd[channelCol]),
+                             parseInt(bytes, fieldStart[sliceCol], fieldEnd[sliceCol]),
+                             frame,
+                             parseInt(bytes, fieldStart[posCol], fieldEnd[posCol]),
+                             parseInt(bytes, fieldStart[moleculeCol], fieldEnd[moleculeCol]),
+                             x, y);
+                     double zc = 0.0;
+                     if (hasZ) {
+                        zc = parseDouble(bytes, fieldStart[zCol], fieldEnd[zCol], chars);
+                        chunk.addZ(zc);
+                     }
+                     spots.setData(row,
+                             parseDouble(bytes, fieldStart[intensityCol], fieldEnd[intensityCol], chars),
+                             parseDouble(bytes, fieldStart[backgroundCol], fieldEnd[backgroundCol], chars),
+                             parseDouble(bytes, fieldStart[xCol], fieldEnd[xCol], chars),
+                             parseDouble(bytes, fieldStart[yCol], fieldEnd[yCol], chars),
+                             zc,
+                             parseDouble(bytes, fieldStart[widthCol], fieldEnd[widthCol], chars),
+                             parseDouble(bytes, fieldStart[aCol], fieldEnd[aCol], chars),
+                             parseDouble(bytes, fieldStart[thetaCol], fieldEnd[thetaCol], chars),
+                             parseDouble(bytes, fieldStart[precisionCol], fieldEnd[precisionCol], chars));
+                  }
+               }
+               lineStart = next;
+            }
+         }
+      });
+      hasZ_ = hasZ;
+      return spots;
+   }
+
+   private static String readLine(FileWindow window, long[] pos, long fileSize)
+           throws IOException {
+      if (pos[0] >= fileSize) {
+         return null;
+      }
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      while (pos[0] < fileSize) {
+         byte b = window.getByte(pos[0]++);
+         if (b == '\n') {
+            break;
+         }
+         line.write(b);
+      }
+      String result = line.toString();
+      if (result.endsWith("\r")) {
+         result = result.substring(0, result.length() - 1);
+      }
+      return result;
+   }
+
+   private static int getColumn(String[] headers, String name) {
+      for (int i = 0; i < headers.length; i++) {
+         if (headers[i].equals(name)) {
+            return i;
+         }
+      }
+      throw new NumberFormatException("Missing column: " + name);
+   }
+
+   private static int parseInt(byte[] bytes, int start, int end) {
+      boolean negative = false;
+      int i = start;
+      if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+         negative = bytes[i] == '-';
+         i++;
+      }
+      if (i == end || end - i > 10) {
+         return Integer.parseInt(new String(bytes, start, end - start));
+      }
+      long value = 0;
+      for (; i < end; i++) {
+         int digit = bytes[i] - '0';
+         if (digit < 0 || digit > 9) {
+            throw new NumberFormatException("For input string: \""
+                    + new String(bytes, start, end - start) + "\"");
+         }
+         value = value * 10 + digit;
+      }
+      if (negative) {
+         value = -value;
+      }
+      if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+         throw new NumberFormatException("Out of range: " + value);
+      }
+      return (int) value;
+   }
+
+   private static double parseDouble(byte[] bytes, int start, int end, char[] chars) {
+      int length = end - start;
+      if (length > chars.length) {
+         return Double.parseDouble(new String(bytes, start, length));
+      }
+      for (int i = 0; i < length; i++) {
+         chars[i] = (char) (bytes[start + i] & 0xff);
+      }
+      return Double.parseDouble(new String(chars, 0, length));
+   }
+
+   /**
+    * Decodes the chunks in parallel into one SpotTable, then moves the spots
+    * that were kept next to each other
+    */
+   private SpotTable decode(List<Chunk> chunks, final ChunkDecoder decoder)
+           throws IOException {
+      int nrRows = 0;
+      long size = 0;
+      for (Chunk chunk : chunks) {
+         nrRows += chunk.nrSpots_;
+         size += chunk.end_ - chunk.start_;
+      }
+      final SpotTable spots = new SpotTable(nrRows);
+      spots.setSize(nrRows);
+      final long totalSize = size;
+      final AtomicLong doneSize = new AtomicLong(0);
+
+      RandomAccessFile raFile = new RandomAccessFile(file_, "r");
+      ExecutorService executor = Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors());
+      try {
+         final FileChannel channel = raFile.getChannel();
+         List<Future<Object>> futures = new ArrayList<Future<Object>>();
+         for (final Chunk chunk : chunks) {
+            futures.add(executor.submit(new Callable<Object>() {
+               @Override
+               public Object call() throws Exception {
+                  long length = chunk.end_ - chunk.start_;
+                  MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                          chunk.start_, length);
+                  try {
+                     decoder.decode(chunk, buffer, spots);
+                  } finally {
+                     MemoryUtils.unmap(buffer);
+                  }
+                  ij.IJ.showProgress((double) doneSize.addAndGet(length) / totalSize);
+                  return null;
+               }
+            }));
+         }
+         for (Future<Object> future : futures) {
+            try {
+               future.get();
+            } catch (InterruptedException ex) {
+               throw new IOException("Interrupted while reading " + file_.getName());
+            } catch (ExecutionException ex) {
+               Throwable cause = ex.getCause();
+               if (cause instanceof IOException)
+                  throw (IOException) cause;
+               if (cause instanceof RuntimeException)
+                  throw (RuntimeException) cause;
+               if (cause instanceof Error)
+                  throw (Error) cause;
+               throw new IOException(cause.toString());
+            }
+         }
+      } finally {
+         executor.shutdownNow();
+         raFile.close();
+      }
+
+      int row = 0;
+      for (Chunk chunk : chunks) {
+         spots.moveRows(chunk.firstRow_, row, chunk.nrKept_);
+         row += chunk.nrKept_;
+         hasZ_ |= chunk.hasZ_;
+         minZ_ = Math.min(minZ_, chunk.minZ_);
+         maxZ_ = Math.max(maxZ_, chunk.maxZ_);
+      }
+      spots.setSize(row);
+      spots.trimToSize();
+      return spots;
+   }
+}
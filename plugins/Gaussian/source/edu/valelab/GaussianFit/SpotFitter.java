@@ -0,0 +1,121 @@
+package edu.valelab.GaussianFit;
+
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.List;
+
+
+/**
+ * Fits the spots found in images and adds the results to a list
+ *
+ * Every fitting thread uses its own SpotFitter, which keeps its GaussianFit
+ * and the image the spot is copied into for all the spots it fits.
+ *
+ * @author nico
+ */
+public class SpotFitter extends GaussianInfo {
+
+   private final GaussianFit gs_;
+   private short[] spotPixels_ = null;
+   private ImageProcessor spotProc_ = null;
+
+
+   public SpotFitter(List<GaussianSpotData> resultList, int halfSize,
+           int shape, int fitMode) {
+      halfSize_ = halfSize;
+      resultList_ = resultList;
+      shape_ = shape;
+      fitMode_ = fitMode;
+      gs_ = new GaussianFit(shape_, fitMode_);
+   }
+
+   /**
+    * Returns the (2 * halfSize) square around x, y in siProc.  For 16 bit
+    * images the pixels are copied into an image that is reused for every spot.
+    */
+   private ImageProcessor getSpotProcessor(ImageProcessor siProc, int x, int y) {
+      if (!(siProc.getPixels() instanceof short[])) {
+         return GaussianSpotData.getSpotProcessor(siProc, halfSize_, x, y);
+      }
+      int size = 2 * halfSize_;
+      if (spotProc_ == null) {
+         spotPixels_ = new short[size * size];
+         spotProc_ = new ShortProcessor(size, size, spotPixels_, null);
+      }
+      short[] pixels = (short[]) siProc.getPixels();
+      int width = siProc.getWidth();
+      for (int row = 0; row < size; row++) {
+         System.arraycopy(pixels, (y - halfSize_ + row) * width + x - halfSize_,
+                 spotPixels_, row * size, size);
+      }
+      return spotProc_;
+   }
+
+   /**
+    * Fits the spot at x, y in siProc, and adds it to the result list if it
+    * passes the width and photon filters
+    *
+    * @return false if the spot was too close to the edge to be fitted
+    */
+   public boolean fit(ImageProcessor siProc, int channel, int slice, int frame,
+           int position, int nr, int x, int y) {
+      // filter out spots too close to the edge
+      if (x <= halfSize_ || x >= siProc.getWidth() - halfSize_
+              || y <= halfSize_ || y >= siProc.getHeight() - halfSize_) {
+         return false;
+      }
+      ImageProcessor ip = getSpotProcessor(siProc, x, y);
+      if (ip == null) {
+         return false;
+      }
+      double[] paramsOut = gs_.doGaussianFit(ip, maxIterations_);
+      if (paramsOut.length < 5) {
+         return true;
+      }
+      double cPCF = photonConversionFactor_ / gain_;
+      GaussianSpotData spotData = new GaussianSpotData(null, channel, slice, frame,
+              position, nr, x, y);
+      double sx = 0;
+      double sy = 0;
+      double a = 1;
+      double theta = 0;
+      double N = cPCF * paramsOut[GaussianFit.INT]
+              * (2 * Math.PI * paramsOut[GaussianFit.S] * paramsOut[GaussianFit.S]);
+      double xMax = (paramsOut[GaussianFit.XC] - halfSize_ + x) * pixelSize_;
+      double yMax = (paramsOut[GaussianFit.YC] - halfSize_ + y) * pixelSize_;
+      double s = paramsOut[GaussianFit.S] * pixelSize_;
+      // express background in photons after base level correction
+      double bgr = cPCF * (paramsOut[GaussianFit.BGR] - baseLevel_);
+      // calculate error using formular from Thompson et al (2002)
+      // (dx)2 = (s*s + (a*a/12)) / N + (8*pi*s*s*s*s * b*b) / (a*a*N*N)
+      double sigma = (s * s + (pixelSize_ * pixelSize_) / 12) / N
+              + (8 * Math.PI * s * s * s * s * bgr * bgr) / (pixelSize_ * pixelSize_ * N * N);
+      sigma = Math.sqrt(sigma);
+
+      if (paramsOut.length >= 6) {
+         sx = paramsOut[GaussianFit.S1] * pixelSize_;
+         sy = paramsOut[GaussianFit.S2] * pixelSize_;
+         a = sx / sy;
+
+         ZCalibrator zc = DataCollectionForm.zc_;
+         if (zc.hasFitFunctions()) {
+            spotData.setZCenter(zc.getZ(2 * sx, 2 * sy));
+         }
+      }
+
+      if (paramsOut.length >= 7) {
+         theta = paramsOut[GaussianFit.S3];
+      }
+
+      double width = 2 * s;
+
+      spotData.setData(N, bgr, xMax, yMax, 0.0, width, a, theta, sigma);
+
+      if ((!useWidthFilter_ || (width > widthMin_ && width < widthMax_))
+              && (!useNrPhotonsFilter_ || (N > nrPhotonsMin_ && N < nrPhotonsMax_))) {
+         resultList_.add(spotData);
+      }
+      return true;
+   }
+}
@@ -0,0 +1,400 @@
+package edu.valelab.GaussianFit;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * Column store for fitted spots
+ *
+ * Each field of GaussianSpotData is kept in its own primitive array, so that
+ * a spot costs about 130 bytes rather than an object of its own (and often
+ * the ImageProcessor it was fitted in, which is not kept here).  Code that
+ * goes through many spots should use the column getters with a row number.
+ * As a List, the table returns a new GaussianSpotData holding a copy of the
+ * row, so changes made to spots obtained with get() are not stored.
+ *
+ * index() sorts the rows by frame (or slice), after which the rows of frame f
+ * are getFrameRow(i) for getFrameStart(f) <= i < getFrameEnd(f).
+ *
+ * add() may be called from several threads at once, other methods only once
+ * all spots have been added.
+ *
+ * @author Nico Stuurman
+ */
+public class SpotTable extends AbstractList<GaussianSpotData> implements RandomAccess {
+   private static final int DEFAULT_CAPACITY = 1024;
+
+   private int size_ = 0;
+   private int[] frame_;
+   private int[] channel_;
+   private int[] slice_;
+   private int[] position_;
+   private int[] nr_;
+   private int[] x_;
+   private int[] y_;
+   private int[] nrLinks_;
+   private int[] originalFrame_;
+   private double[] intensity_;
+   private double[] background_;
+   private double[] xCenter_;
+   private double[] yCenter_;
+   private double[] zCenter_;
+   private double[] xOri_;
+   private double[] yOri_;
+   private double[] zOri_;
+   private double[] width_;
+   private double[] a_;
+   private double[] theta_;
+   private double[] sigma_;
+
+   // frame index: rows of frame f are indexRows_[indexStart_[f]] up to
+   // (not including) indexRows_[indexStart_[f + 1]]
+   private int[] indexStart_ = null;
+   private int[] indexRows_ = null;
+
+   public SpotTable() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   public SpotTable(int capacity) {
+      allocate(Math.max(capacity, 1));
+   }
+
+   public SpotTable(Collection<GaussianSpotData> spots) {
+      this(spots.size());
+      for (GaussianSpotData spot : spots) {
+         add(spot);
+      }
+   }
+
+   private void allocate(int capacity) {
+      frame_ = new int[capacity];
+      channel_ = new int[capacity];
+      slice_ = new int[capacity];
+      position_ = new int[capacity];
+      nr_ = new int[capacity];
+      x_ = new int[capacity];
+      y_ = new int[capacity];
+      nrLinks_ = new int[capacity];
+      originalFrame_ = new int[capacity];
+      intensity_ = new double[capacity];
+      background_ = new double[capacity];
+      xCenter_ = new double[capacity];
+      yCenter_ = new double[capacity];
+      zCenter_ = new double[capacity];
+      xOri_ = new double[capacity];
+      yOri_ = new double[capacity];
+      zOri_ = new double[capacity];
+      width_ = new double[capacity];
+      a_ = new double[capacity];
+      theta_ = new double[capacity];
+      sigma_ = new double[capacity];
+   }
+
+   private void resize(int capacity) {
+      frame_ = copyOf(frame_, capacity);
+      channel_ = copyOf(channel_, capacity);
+      slice_ = copyOf(slice_, capacity);
+      position_ = copyOf(position_, capacity);
+      nr_ = copyOf(nr_, capacity);
+      x_ = copyOf(x_, capacity);
+      y_ = copyOf(y_, capacity);
+      nrLinks_ = copyOf(nrLinks_, capacity);
+      originalFrame_ = copyOf(originalFrame_, capacity);
+      intensity_ = copyOf(intensity_, capacity);
+      background_ = copyOf(background_, capacity);
+      xCenter_ = copyOf(xCenter_, capacity);
+      yCenter_ = copyOf(yCenter_, capacity);
+      zCenter_ = copyOf(zCenter_, capacity);
+      xOri_ = copyOf(xOri_, capacity);
+      yOri_ = copyOf(yOri_, capacity);
+      zOri_ = copyOf(zOri_, capacity);
+      width_ = copyOf(width_, capacity);
+      a_ = copyOf(a_, capacity);
+      theta_ = copyOf(theta_, capacity);
+      sigma_ = copyOf(sigma_, capacity);
+   }
+
+   private static int[] copyOf(int[] column, int length) {
+      int[] copy = new int[length];
+      System.arraycopy(column, 0, copy, 0, Math.min(column.length, length));
+      return copy;
+   }
+
+   private static double[] copyOf(double[] column, int length) {
+      double[] copy = new double[length];
+      System.arraycopy(column, 0, copy, 0, Math.min(column.length, length));
+      return copy;
+   }
+
+   /**
+    * Frees the unused part of the columns
+    */
+   public synchronized void trimToSize() {
+      if (frame_.length > size_ && size_ > 0) {
+         resize(size_);
+      }
+   }
+
+   /**
+    * Appends a copy of the spot's data.  The spot's ImageProcessor is not kept.
+    */
+   @Override
+   public synchronized boolean add(GaussianSpotData spot) {
+      if (size_ == frame_.length) {
+         resize(size_ + (size_ >> 1) + 1);
+      }
+      int row = size_;
+      frame_[row] = spot.getFrame();
+      channel_[row] = spot.getChannel();
+      slice_[row] = spot.getSlice();
+      position_[row] = spot.getPosition();
+      nr_[row] = spot.getNr();
+      x_[row] = spot.getX();
+      y_[row] = spot.getY();
+      nrLinks_[row] = spot.nrLinks_;
+      originalFrame_[row] = spot.originalFrame_;
+      intensity_[row] = spot.getIntensity();
+      background_[row] = spot.getBackground();
+      xCenter_[row] = spot.getXCenter();
+      yCenter_[row] = spot.getYCenter();
+      zCenter_[row] = spot.getZCenter();
+      xOri_[row] = spot.getXOri();
+      yOri_[row] = spot.geYOri();
+      zOri_[row] = spot.getZOri();
+      width_[row] = spot.getWidth();
+      a_[row] = spot.getA();
+      theta_[row] = spot.getTheta();
+      sigma_[row] = spot.getSigma();
+      size_++;
+      indexStart_ = null;
+      indexRows_ = null;
+      modCount++;
+      return true;
+   }
+
+   /**
+    * Sets the number of rows, growing the columns if needed.  Used by
+    * SpotFileReader, which fills rows directly with the setters below.
+    */
+   void setSize(int size) {
+      if (size > frame_.length) {
+         resize(size);
+      }
+      size_ = size;
+      indexStart_ = null;
+      indexRows_ = null;
+      modCount++;
+   }
+
+   void set(int row, int channel, int slice, int frame, int position, int nr,
+           int x, int y) {
+      channel_[row] = channel;
+      slice_[row] = slice;
+      frame_[row] = frame;
+      position_[row] = position;
+      nr_[row] = nr;
+      x_[row] = x;
+      y_[row] = y;
+   }
+
+   void setData(int row, double intensity, double background, double xCenter,
+           double yCenter, double zCenter, double width, double a, double theta,
+           double sigma) {
+      intensity_[row] = intensity;
+      background_[row] = background;
+      xCenter_[row] = xCenter;
+      yCenter_[row] = yCenter;
+      zCenter_[row] = zCenter;
+      width_[row] = width;
+      a_[row] = a;
+      theta_[row] = theta;
+      sigma_[row] = sigma;
+   }
+
+   void setOriginalPosition(int row, double xPos, double yPos, double zPos) {
+      xOri_[row] = xPos;
+      yOri_[row] = yPos;
+      zOri_[row] = zPos;
+   }
+
+   /**
+    * Copies count rows starting at row from to the rows starting at row to
+    */
+   void moveRows(int from, int to, int count) {
+      if (from == to || count == 0) {
+         return;
+      }
+      System.arraycopy(frame_, from, frame_, to, count);
+      System.arraycopy(channel_, from, channel_, to, count);
+      System.arraycopy(slice_, from, slice_, to, count);
+      System.arraycopy(position_, from, position_, to, count);
+      System.arraycopy(nr_, from, nr_, to, count);
+      System.arraycopy(x_, from, x_, to, count);
+      System.arraycopy(y_, from, y_, to, count);
+      System.arraycopy(nrLinks_, from, nrLinks_, to, count);
+      System.arraycopy(originalFrame_, from, originalFrame_, to, count);
+      System.arraycopy(intensity_, from, intensity_, to, count);
+      System.arraycopy(background_, from, background_, to, count);
+      System.arraycopy(xCenter_, from, xCenter_, to, count);
+      System.arraycopy(yCenter_, from, yCenter_, to, count);
+      System.arraycopy(zCenter_, from, zCenter_, to, count);
+      System.arraycopy(xOri_, from, xOri_, to, count);
+      System.arraycopy(yOri_, from, yOri_, to, count);
+      System.arraycopy(zOri_, from, zOri_, to, count);
+      System.arraycopy(width_, from, width_, to, count);
+      System.arraycopy(a_, from, a_, to, count);
+      System.arraycopy(theta_, from, theta_, to, count);
+      System.arraycopy(sigma_, from, sigma_, to, count);
+   }
+
+   /**
+    * Returns a new GaussianSpotData with the data of the given row
+    */
+   @Override
+   public GaussianSpotData get(int row) {
+      if (row < 0 || row >= size_) {
+         throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size_);
+      }
+      GaussianSpotData spot = new GaussianSpotData(null, channel_[row], slice_[row],
+              frame_[row], position_[row], nr_[row], x_[row], y_[row]);
+      spot.setData(intensity_[row], background_[row], xCenter_[row], yCenter_[row],
+              zCenter_[row], width_[row], a_[row], theta_[row], sigma_[row]);
+      spot.setZCenter(zCenter_[row]);
+      spot.setOriginalPosition(xOri_[row], yOri_[row], zOri_[row]);
+      spot.nrLinks_ = nrLinks_[row];
+      spot.originalFrame_ = originalFrame_[row];
+      return spot;
+   }
+
+   @Override
+   public int size() {
+      return size_;
+   }
+
+   /**
+    * Builds the frame index
+    * @param useFrames - index by frame if true, by slice otherwise
+    */
+   public void index(boolean useFrames) {
+      int[] keys = useFrames ? frame_ : slice_;
+      int maxKey = 0;
+      for (int row = 0; row < size_; row++) {
+         maxKey = Math.max(maxKey, keys[row]);
+      }
+      int[] start = new int[maxKey + 2];
+      for (int row = 0; row < size_; row++) {
+         if (keys[row] >= 0) {
+            start[keys[row] + 1]++;
+         }
+      }
+      for (int key = 0; key <= maxKey; key++) {
+         start[key + 1] += start[key];
+      }
+      int[] rows = new int[start[maxKey + 1]];
+      int[] next = copyOf(start, maxKey + 1);
+      for (int row = 0; row < size_; row++) {
+         if (keys[row] >= 0) {
+            rows[next[keys[row]]++] = row;
+         }
+      }
+      indexRows_ = rows;
+      indexStart_ = start;
+   }
+
+   public boolean isIndexed() {
+      return indexStart_ != null;
+   }
+
+   /**
+    * Returns the position in the index of the first row of the given frame
+    */
+   public int getFrameStart(int frame) {
+      if (frame < 0 || frame >= indexStart_.length - 1) {
+         return 0;
+      }
+      return indexStart_[frame];
+   }
+
+   /**
+    * Returns the position in the index after the last row of the given frame
+    */
+   public int getFrameEnd(int frame) {
+      if (frame < 0 || frame >= indexStart_.length - 1) {
+         return 0;
+      }
+      return indexStart_[frame + 1];
+   }
+
+   /**
+    * Returns the row at the given position in the index
+    */
+   public int getFrameRow(int i) {
+      return indexRows_[i];
+   }
+
+   public int getFrame(int row) {
+      return frame_[row];
+   }
+   public int getChannel(int row) {
+      return channel_[row];
+   }
+   public int getSlice(int row) {
+      return slice_[row];
+   }
+   public int getPosition(int row) {
+      return position_[row];
+   }
+   public int getNr(int row) {
+      return nr_[row];
+   }
+   public int getX(int row) {
+      return x_[row];
+   }
+   public int getY(int row) {
+      return y_[row];
+   }
+   public int getNrLinks(int row) {
+      return nrLinks_[row];
+   }
+   public int getOriginalFrame(int row) {
+      return originalFrame_[row];
+   }
+   public double getIntensity(int row) {
+      return intensity_[row];
+   }
+   public double getBackground(int row) {
+      return background_[row];
+   }
+   public double getXCenter(int row) {
+      return xCenter_[row];
+   }
+   public double getYCenter(int row) {
+      return yCenter_[row];
+   }
+   public double getZCenter(int row) {
+      return zCenter_[row];
+   }
+   public double getXOri(int row) {
+      return xOri_[row];
+   }
+   public double getYOri(int row) {
+      return yOri_[row];
+   }
+   public double getZOri(int row) {
+      return zOri_[row];
+   }
+   public double getWidth(int row) {
+      return width_[row];
+   }
+   public double getA(int row) {
+      return a_[row];
+   }
+   public double getTheta(int row) {
+      return theta_[row];
+   }
+   public double getSigma(int row) {
+      return sigma_[row];
+   }
+}
@@ -4,68 +4,67 @@ import ij.ImagePlus;
 import ij.process.ImageProcessor;
 import mmcorej.TaggedImage;
 import org.json.JSONObject;
-import org.micromanager.api.DataProcessor;
+import org.micromanager.acquisition.TaggedImageQueue;
+import org.micromanager.api.StatelessDataProcessor;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.ReportingUtils;
 
-public class ImageFlippingProcessor extends DataProcessor<TaggedImage> {
+public class ImageFlippingProcessor extends StatelessDataProcessor<TaggedImage> {
 
    ImageFlipperControls controls_;
 
    public ImageFlippingProcessor(ImageFlipperControls controls) {
       this.controls_ = controls;
+      //each image is flipped independently, so two images can be flipped at once
+      setNumWorkers(2);
    }
 
    @Override
-   public void process() {
+   protected TaggedImage processDatum(TaggedImage nextImage) {
+      if (TaggedImageQueue.isPoison(nextImage)) {
+         return nextImage;
+      }
       try {
-         TaggedImage nextImage = poll();
-         try {
-            String camera = nextImage.tags.getString("Core-Camera");
-            if (!camera.equals(controls_.getCamera())) {
-               if (nextImage.tags.has("CameraChannelIndex")) {
-                  camera = MDUtils.getChannelName(nextImage.tags);
-               }
-            }
-            if (!camera.equals(controls_.getCamera())) {
-               produce(nextImage);
-               return;
-
-            }
-            int width = MDUtils.getWidth(nextImage.tags);
-            int height = MDUtils.getHeight(nextImage.tags);
-            String type = MDUtils.getPixelType(nextImage.tags);
-            int ijType = ImagePlus.GRAY8;
-            if (type.equals("GRAY16")) {
-               ijType = ImagePlus.GRAY16;
+         String camera = nextImage.tags.getString("Core-Camera");
+         if (!camera.equals(controls_.getCamera())) {
+            if (nextImage.tags.has("CameraChannelIndex")) {
+               camera = MDUtils.getChannelName(nextImage.tags);
             }
+         }
+         if (!camera.equals(controls_.getCamera())) {
+            return nextImage;
+         }
+         int width = MDUtils.getWidth(nextImage.tags);
+         int height = MDUtils.getHeight(nextImage.tags);
+         String type = MDUtils.getPixelType(nextImage.tags);
+         int ijType = ImagePlus.GRAY8;
+         if (type.equals("GRAY16")) {
+            ijType = ImagePlus.GRAY16;
+         }
 
-            ImageProcessor proc = ImageUtils.makeProcessor(ijType, width, height, nextImage.pix);
-
-            if (controls_.getMirror()) {
-               proc.flipHorizontal();
-            }
-            if (controls_.getRotate() == 1) {
-               proc = proc.rotateLeft();
-            }
-            if (controls_.getRotate() == 2) {
-               proc.flipVertical();
-            }
-            if (controls_.getRotate() == 3) {
-               proc = proc.rotateRight();
-            }
-            JSONObject newTags = nextImage.tags;
-            MDUtils.setWidth(newTags, proc.getWidth());
-            MDUtils.setHeight(newTags, proc.getHeight());
+         ImageProcessor proc = ImageUtils.makeProcessor(ijType, width, height, nextImage.pix);
 
-            produce(new TaggedImage(proc.getPixels(), newTags));
-         } catch (Exception ex) {
-            produce(nextImage);
-            ReportingUtils.logError(ex);
+         if (controls_.getMirror()) {
+            proc.flipHorizontal();
          }
+         if (controls_.getRotate() == 1) {
+            proc = proc.rotateLeft();
+         }
+         if (controls_.getRotate() == 2) {
+            proc.flipVertical();
+         }
+         if (controls_.getRotate() == 3) {
+            proc = proc.rotateRight();
+         }
+         JSONObject newTags = nextImage.tags;
+         MDUtils.setWidth(newTags, proc.getWidth());
+         MDUtils.setHeight(newTags, proc.getHeight());
+
+         return new TaggedImage(proc.getPixels(), newTags);
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
+         return nextImage;
       }
    }
 }
@@ -26,13 +26,13 @@ import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.acquisition.TaggedImageQueue;
-import org.micromanager.api.DataProcessor;
+import org.micromanager.api.StatelessDataProcessor;
 import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MDUtils;
 import org.micromanager.utils.MMScriptException;
 import org.micromanager.utils.ReportingUtils;
 
-public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
+public class NewImageFlippingProcessor extends StatelessDataProcessor<TaggedImage> {
 
    static public enum Rotation {
 
@@ -42,44 +42,37 @@ public class NewImageFlippingProcessor extends DataProcessor<TaggedImage> {
 
    public NewImageFlippingProcessor(NewImageFlipperControls controls) {
       this.controls_ = controls;
+      //each image is flipped independently, so two images can be flipped at once
+      setNumWorkers(2);
    }
 
    /**
-    * Polls for tagged images, and processes them if they are from the selected 
-    * camera.
+    * Processes tagged images if they are from the selected camera.
     * 
     */
    @Override
-   public void process() {
+   protected TaggedImage processDatum(TaggedImage nextImage) {
+      if (nextImage == TaggedImageQueue.POISON) {
+         //Must produce Poison image so LiveAcq Thread terminates properly
+         return nextImage;
+      }
       try {
-         TaggedImage nextImage = poll();
-         if (nextImage != TaggedImageQueue.POISON) {
-            try {
-               String camera = nextImage.tags.getString("Core-Camera");
-               if (!camera.equals(controls_.getCamera())) {
-                  if (nextImage.tags.has("Camera")) {
-                     camera = nextImage.tags.getString("Camera");
-                  }
-               }
-               if (!camera.equals(controls_.getCamera())) {
-                  produce(nextImage);
-                  return;
-
-               }
-
-               produce(proccessTaggedImage(nextImage, controls_.getMirror(),
-                       controls_.getRotate()));
-
-            } catch (Exception ex) {
-               produce(nextImage);
-               ReportingUtils.logError(ex);
+         String camera = nextImage.tags.getString("Core-Camera");
+         if (!camera.equals(controls_.getCamera())) {
+            if (nextImage.tags.has("Camera")) {
+               camera = nextImage.tags.getString("Camera");
             }
-         } else {
-            //Must produce Poison image so LiveAcq Thread terminates properly
-            produce(nextImage);
          }
+         if (!camera.equals(controls_.getCamera())) {
+            return nextImage;
+         }
+
+         return proccessTaggedImage(nextImage, controls_.getMirror(),
+                 controls_.getRotate());
+
       } catch (Exception ex) {
          ReportingUtils.logError(ex);
+         return nextImage;
       }
    }
 
@@ -94,6 +94,7 @@ public class SPIMAcquisition implements MMPlugin, MouseMotionListener, KeyListen
 	private static final String VIDEO_RECORDER = "Video";
 	private static final String BTN_STOP = "Abort!";
 	private static final String BTN_START = "Oh Snap!";
+	private static final int ASYNC_WRITER_THREADS = 2;
 
 	private JButton acqFetchX;
 	private JButton acqFetchY;
@@ -1915,14 +1916,25 @@ public class SPIMAcquisition implements MMPlugin, MouseMotionListener, KeyListen
 									return;
 					}
 
-					AcqOutputHandler handler = new OMETIFFHandler(
+					OMETIFFHandler handler = new OMETIFFHandler(
 						mmc, output, xyStageLabel, twisterLabel, zStageLabel, "t",
 						acqRows, timeSeqs, timeStep
 					);
-					if(asyncCheckbox.isSelected())
-						handler = new AsyncOutputWrapper(handler, (ij.IJ.maxMemory() - ij.IJ.currentMemory())/(mmc.getImageWidth()*mmc.getImageHeight()*mmc.getBytesPerPixel()*2));
-
-					params.setOutputHandler(handler);
+					if(asyncCheckbox.isSelected()) {
+						// OME-TIFF writes a file per stack, so consecutive stacks
+						// can be written by different threads.
+						int writers = Math.min(ASYNC_WRITER_THREADS, acqRows.length * timeSeqs);
+						AcqOutputHandler[] handlers;
+						try {
+							handlers = writers > 1 ? handler.splitByStack(writers) : new AcqOutputHandler[] {handler};
+						} catch(Exception e) {
+							ReportingUtils.logException("Couldn't split output handler; using one writer: ", e);
+							handlers = new AcqOutputHandler[] {handler};
+						}
+						params.setOutputHandler(new AsyncOutputWrapper(handlers, (ij.IJ.maxMemory() - ij.IJ.currentMemory())/2));
+					} else {
+						params.setOutputHandler(handler);
+					}
 				} else {
 					output = null;
 				}
@@ -1973,11 +1985,18 @@ public class SPIMAcquisition implements MMPlugin, MouseMotionListener, KeyListen
 				acqProgress.setEnabled(true);
 
 				params.setProgressListener(new ProgrammaticAcquisitor.AcqProgressCallback() {
+					private String bufferStatus = "";
+
 					@Override
 					public void reportProgress(int tp, int row, double overall) {
-						acqProgress.setString(String.format("%.02f%%: T %d \u03B8 %d", overall*100, tp+1, row+1));
+						acqProgress.setString(String.format("%.02f%%: T %d \u03B8 %d", overall*100, tp+1, row+1) + bufferStatus);
 						acqProgress.setValue((int)(overall * 100));
 					}
+
+					@Override
+					public void reportBufferStatus(double fill, long stalls) {
+						bufferStatus = String.format(" (buffer %.0f%%, %d stalls)", fill*100, stalls);
+					}
 				});
 
 				if(output != null) {
@@ -1,65 +1,189 @@
 package spim.progacq;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-import java.lang.InterruptedException;
 import java.lang.Thread.UncaughtExceptionHandler;
-import java.nio.channels.ClosedByInterruptException;
 
 import org.micromanager.utils.ReportingUtils;
 
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
 
-import mmcorej.TaggedImage;
-
+/**
+ * Passes slices to one or more output handlers on background threads, so that
+ * the acquisition thread only waits when more than a given number of bytes of
+ * pixels are waiting to be written.
+ *
+ * Each writer thread has a single-producer/single-consumer ring of reusable
+ * slots, filled by the acquisition thread and emptied by the writer. With
+ * several handlers, whole stacks are handed to the writers in turn, so each
+ * handler must be able to write its stacks independently of the others (see
+ * OMETIFFHandler.splitByStack).
+ */
 public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHandler {
-	private class IPC {
-		public IPC(ImageProcessor ip, double x, double y, double z, double t, double dt) {
-			this.ip = ip;
-			this.x = x;
-			this.y = y;
-			this.z = z;
-			this.t = t;
-			this.dt = dt;
-		}
+	private static final int BEGIN_STACK = 0, SLICE = 1, FINALIZE_STACK = 2;
+	private static final int RING_SLOTS = 4096; // Must be a power of two.
+	private static final long PARK_NANOS = 100000;
 
+	private static class IPC {
+		public int kind;
 		public ImageProcessor ip;
 		public double x, y, z, t, dt;
+		public int axis;
+		public long bytes;
 	}
 
-	private AcqOutputHandler handler;
-	private Thread writerThread;
-	private BlockingQueue<IPC> queue;
-	private Exception rethrow;
+	private class Writer implements Runnable {
+		private final AcqOutputHandler handler;
+		private final IPC[] ring;
+		private final Thread thread;
+		// head is only written by the writer thread, tail only by the acquisition thread.
+		private volatile long head, tail;
+		private volatile boolean stop;
+
+		public Writer(AcqOutputHandler handlerRef, int index) {
+			handler = handlerRef;
+			ring = new IPC[RING_SLOTS];
+			for(int i = 0; i < ring.length; ++i)
+				ring[i] = new IPC();
+
+			head = tail = 0;
+			stop = false;
+
+			thread = new Thread(this, "Async Output Handler Thread " + index);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.setUncaughtExceptionHandler(AsyncOutputWrapper.this);
+		}
 
-	private Runnable writerOp = new Runnable() {
 		@Override
 		public void run() {
-			while(!Thread.interrupted()) try {
-				writeAll();
-			} catch (Exception e) {
-				if(!(e instanceof InterruptedException) &&
-				   !(e instanceof ClosedByInterruptException) ) {
+			while(!stop || head != tail) {
+				if(head == tail) {
+					// publish() and finalizeAcquisition() unpark us; the loop
+					// re-checks both conditions, so early returns are harmless.
+					LockSupport.park(this);
+					continue;
+				}
+
+				IPC next = ring[(int) (head & (ring.length - 1))];
+				try {
+					switch(next.kind) {
+					case BEGIN_STACK:
+						handler.beginStack(next.axis);
+						break;
+					case SLICE:
+						handler.processSlice(next.ip, next.x, next.y, next.z, next.t, next.dt);
+						break;
+					case FINALIZE_STACK:
+						handler.finalizeStack(next.axis);
+						break;
+					}
+				} catch(Exception e) {
 					ij.IJ.log("Async writer failed!");
-					throw new RuntimeException(e);
-				} else if(e instanceof ClosedByInterruptException) {
-					ij.IJ.log("Warning: asynchronous writer may have been cancelled before completing. (" + queue.size() + ")");
+					rethrow = e;
+					return;
+				} finally {
+					next.ip = null;
+					bytesQueued.addAndGet(-next.bytes);
+				}
+
+				head = head + 1;
+			}
+		}
+
+		/**
+		 * Claims the next free slot, waiting if the ring is full or too many
+		 * bytes are queued. Call publish() once the slot is filled in.
+		 */
+		private IPC claim(long bytes) throws Exception {
+			boolean stalled = false;
+			while(tail - head == ring.length ||
+					(bytes > 0 && bytesQueued.get() > 0 && bytesQueued.get() + bytes > capBytes)) {
+				if(rethrow != null)
+					throw rethrow;
+
+				if(!stalled) {
+					stalled = true;
+					stalls.incrementAndGet();
 				}
+
+				LockSupport.parkNanos(PARK_NANOS);
 			}
+
+			IPC slot = ring[(int) (tail & (ring.length - 1))];
+			slot.bytes = bytes;
+			bytesQueued.addAndGet(bytes);
+			return slot;
 		}
-	};
 
-	public AsyncOutputWrapper(AcqOutputHandler handlerRef, long cap) {
-		handler = handlerRef;
-		queue = new LinkedBlockingQueue<IPC>((int) cap);
-		writerThread = new Thread(writerOp, "Async Output Handler Thread");
-		writerThread.setPriority(Thread.MIN_PRIORITY);
-		writerThread.setUncaughtExceptionHandler(this);
+		private void publish() {
+			tail = tail + 1;
+			LockSupport.unpark(thread);
+		}
 
+		private void drain() throws Exception {
+			while(head != tail) {
+				if(rethrow != null)
+					throw rethrow;
+
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+	}
+
+	private final Writer[] writers;
+	private final long capBytes;
+	private final AtomicLong bytesQueued;
+	private final AtomicLong stalls;
+	private int stackCount;
+	private Writer current;
+	private volatile Exception rethrow;
+
+	/**
+	 * @param handlerRef the handler to write slices with
+	 * @param capBytes the number of bytes of pixels that may be waiting to be
+	 *            written before processSlice waits for the writer
+	 */
+	public AsyncOutputWrapper(AcqOutputHandler handlerRef, long capBytes) {
+		this(new AcqOutputHandler[] {handlerRef}, capBytes);
+	}
+
+	/**
+	 * @param handlerRefs one handler per writer thread; stacks are handed to
+	 *            them in turn. getImagePlus is answered by the first.
+	 * @param capBytes the number of bytes of pixels that may be waiting to be
+	 *            written, across all writers, before processSlice waits
+	 */
+	public AsyncOutputWrapper(AcqOutputHandler[] handlerRefs, long capBytes) {
+		this.capBytes = capBytes;
+		bytesQueued = new AtomicLong(0);
+		stalls = new AtomicLong(0);
+		stackCount = 0;
 		rethrow = null;
-		writerThread.start();
+
+		writers = new Writer[handlerRefs.length];
+		for(int i = 0; i < writers.length; ++i)
+			writers[i] = new Writer(handlerRefs[i], i);
+
+		current = writers[0];
+
+		for(Writer w : writers)
+			w.thread.start();
+	}
+
+	/**
+	 * @return the fraction of the byte capacity currently waiting to be written
+	 */
+	public double getFillLevel() {
+		return capBytes > 0 ? (double) bytesQueued.get() / capBytes : 0;
+	}
+
+	/**
+	 * @return the number of times processSlice had to wait for a writer
+	 */
+	public long getStallCount() {
+		return stalls.get();
 	}
 
 	@Override
@@ -67,11 +191,9 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 		if(rethrow != null)
 			throw rethrow;
 
-		writeAll();
+		drainAll();
 
-		synchronized(handler) {
-			return handler.getImagePlus();
-		}
+		return writers[0].handler.getImagePlus();
 	}
 
 	@Override
@@ -79,9 +201,12 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 		if(rethrow != null)
 			throw rethrow;
 
-		synchronized(handler) {
-			handler.beginStack(axis);
-		}
+		current = writers[stackCount++ % writers.length];
+
+		IPC store = current.claim(0);
+		store.kind = BEGIN_STACK;
+		store.axis = axis;
+		current.publish();
 	}
 
 	@Override
@@ -90,11 +215,19 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 		if(rethrow != null)
 			throw rethrow;
 
-		IPC store = new IPC(ip, X, Y, Z, theta, deltaT);
-		if(!queue.offer(store)) {
-			writeNext();
-			queue.put(store);
-		}
+		Object pixels = ip.getPixels();
+		int bytesPerPixel = pixels instanceof byte[] ? 1 : pixels instanceof short[] ? 2 : 4;
+		long bytes = (long) ip.getPixelCount() * bytesPerPixel;
+
+		IPC store = current.claim(bytes);
+		store.kind = SLICE;
+		store.ip = ip;
+		store.x = X;
+		store.y = Y;
+		store.z = Z;
+		store.t = theta;
+		store.dt = deltaT;
+		current.publish();
 	}
 
 	@Override
@@ -102,11 +235,10 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 		if(rethrow != null)
 			throw rethrow;
 
-		writeAll();
-
-		synchronized(handler) {
-			handler.finalizeStack(depth);
-		}
+		IPC store = current.claim(0);
+		store.kind = FINALIZE_STACK;
+		store.axis = depth;
+		current.publish();
 	}
 
 	@Override
@@ -114,44 +246,30 @@ public class AsyncOutputWrapper implements AcqOutputHandler, UncaughtExceptionHa
 		if(rethrow != null)
 			throw rethrow;
 
-		writeAll();
-		writerThread.interrupt();
-		writerThread.join();
+		drainAll();
 
-		synchronized(handler) {
-			handler.finalizeAcquisition();
+		for(Writer w : writers) {
+			w.stop = true;
+			LockSupport.unpark(w.thread);
+			w.thread.join();
 		}
-	}
-
-	private void writeNext() throws Exception {
-		if(rethrow != null)
-			throw rethrow;
 
-		IPC write = queue.poll();
-		if(write != null)
-		{
-			synchronized(handler) {
-				handler.processSlice(write.ip, write.x, write.y, write.z, write.t, write.dt);
-			}
-		}
+		for(Writer w : writers)
+			w.handler.finalizeAcquisition();
 	}
 
-	private void writeAll() throws Exception {
-		if(rethrow != null)
-		{
-			if(Thread.currentThread() != writerThread)
-				throw rethrow;
-			else
-				return;
-		};
-
-		while(!queue.isEmpty())
-			writeNext();
+	private void drainAll() throws Exception {
+		for(Writer w : writers)
+			w.drain();
 	}
 
 	@Override
 	public void uncaughtException(Thread thread, Throwable exc) {
-		if(thread != writerThread)
+		boolean ours = false;
+		for(Writer w : writers)
+			ours |= (thread == w.thread);
+
+		if(!ours)
 			throw new Error("Unexpected exception mis-caught.", exc);
 
 		if(!(exc instanceof Exception))
@@ -33,6 +33,12 @@ public class OMETIFFHandler implements AcqOutputHandler {
 	private int stacks, timesteps;
 	private AcqRow[] acqRows;
 	private double deltat;
+
+	// Handlers made by splitByStack share the metadata, and each handles every
+	// stackStride-th stack starting at firstStack. Writers read the metadata
+	// while saving and closing, so those hold its lock too.
+	private int firstStack, stackStride;
+	private int[] annotationBase;
 	
 	public OMETIFFHandler(CMMCore iCore, File outDir, String xyDev,
 			String cDev, String zDev, String tDev, AcqRow[] acqRows,
@@ -41,7 +47,9 @@ public class OMETIFFHandler implements AcqOutputHandler {
 		if(outDir == null || !outDir.exists() || !outDir.isDirectory())
 			throw new IllegalArgumentException("Null path specified: " + outDir.toString());
 
-		imageCounter = -1;
+		firstStack = 0;
+		stackStride = 1;
+		imageCounter = firstStack - stackStride;
 		sliceCounter = 0;
 
 		stacks = acqRows.length;
@@ -98,27 +106,98 @@ public class OMETIFFHandler implements AcqOutputHandler {
 				meta.setPixelsTimeIncrement(new Double(deltat), image);
 			}
 
-			writer = new ImageWriter().getWriter(makeFilename(0, 0));
-
-			writer.setWriteSequentially(true);
-			writer.setMetadataRetrieve(meta);
-			writer.setInterleaved(false);
-			writer.setValidBitsPerPixel((int) core.getImageBitDepth());
-			writer.setCompression("Uncompressed");
+			writer = createWriter();
 		} catch(Throwable t) {
 			t.printStackTrace();
 			throw new IllegalArgumentException(t);
 		}
 	}
 
+	private OMETIFFHandler(OMETIFFHandler base, int first, int stride) throws Exception {
+		outputDirectory = base.outputDirectory;
+		meta = base.meta;
+		core = base.core;
+		stacks = base.stacks;
+		timesteps = base.timesteps;
+		acqRows = base.acqRows;
+		deltat = base.deltat;
+		annotationBase = base.annotationBase;
+
+		firstStack = first;
+		stackStride = stride;
+		imageCounter = firstStack - stackStride;
+		sliceCounter = 0;
+
+		writer = createWriter();
+	}
+
+	private IFormatWriter createWriter() throws Exception {
+		IFormatWriter w = new ImageWriter().getWriter(makeFilename(0, 0));
+
+		w.setWriteSequentially(true);
+		w.setMetadataRetrieve(meta);
+		w.setInterleaved(false);
+		w.setValidBitsPerPixel((int) core.getImageBitDepth());
+		w.setCompression("Uncompressed");
+
+		return w;
+	}
+
+	/**
+	 * Splits this handler into n handlers that write alternate stacks (and so
+	 * different files) with their own writers, for use with several
+	 * AsyncOutputWrapper writer threads. This handler becomes the first of them.
+	 *
+	 * Every plane's entries in the shared metadata are created here, so that
+	 * while the handlers run they only change values of existing entries.
+	 *
+	 * @param n the number of handlers
+	 * @return the handlers, in the order stacks should be handed to them
+	 */
+	public OMETIFFHandler[] splitByStack(int n) throws Exception {
+		if(imageCounter != firstStack - stackStride)
+			throw new IllegalStateException("Can't split a handler that has begun writing.");
+
+		annotationBase = new int[stacks];
+		int annotations = 0;
+		for(int image = 0; image < stacks; ++image) {
+			annotationBase[image] = annotations;
+			int depth = acqRows[image].getDepth();
+
+			for(int plane = 0; plane < depth * timesteps; ++plane) {
+				meta.setPlaneTheZ(new NonNegativeInteger(plane % depth), image, plane);
+				meta.setPlaneTheT(new NonNegativeInteger(plane / depth), image, plane);
+
+				String key = String.format("%d/%d/%d: %s", image, plane, 0, "Theta");
+				meta.setDoubleAnnotationID(key, annotations);
+				meta.setDoubleAnnotationValue(Double.NaN, annotations);
+				meta.setPlaneAnnotationRef(key, image, plane, 0);
+				++annotations;
+			}
+		}
+
+		OMETIFFHandler[] handlers = new OMETIFFHandler[n];
+		handlers[0] = this;
+		firstStack = 0;
+		stackStride = n;
+		imageCounter = firstStack - stackStride;
+
+		for(int i = 1; i < n; ++i)
+			handlers[i] = new OMETIFFHandler(this, i, n);
+
+		return handlers;
+	}
+
 	private static String makeFilename(int angleIndex, int timepoint) {
 		return String.format("spim_TL%02d_Angle%01d.ome.tiff", (timepoint + 1), angleIndex);
 	}
 
 	private void openWriter(int angleIndex, int timepoint) throws Exception {
-		writer.changeOutputFile(new File(outputDirectory, meta.getUUIDFileName(angleIndex, acqRows[angleIndex].getDepth()*timepoint)).getAbsolutePath());
-		writer.setSeries(angleIndex);
-		meta.setUUID(meta.getUUIDValue(angleIndex, acqRows[angleIndex].getDepth()*timepoint));
+		synchronized(meta) {
+			writer.changeOutputFile(new File(outputDirectory, meta.getUUIDFileName(angleIndex, acqRows[angleIndex].getDepth()*timepoint)).getAbsolutePath());
+			writer.setSeries(angleIndex);
+			meta.setUUID(meta.getUUIDValue(angleIndex, acqRows[angleIndex].getDepth()*timepoint));
+		}
 
 		sliceCounter = 0;
 	}
@@ -133,12 +212,20 @@ public class OMETIFFHandler implements AcqOutputHandler {
 	public void beginStack(int axis) throws Exception {
 		ReportingUtils.logMessage("Beginning stack along dimension " + axis);
 
-		if(++imageCounter < stacks * timesteps)
+		imageCounter += stackStride;
+		if(imageCounter < stacks * timesteps)
 			openWriter(imageCounter % stacks, imageCounter / stacks);
 	}
 
 	private int doubleAnnotations = 0;
 	private int storeDouble(int image, int plane, int n, String name, double val) {
+		if(annotationBase != null) {
+			// The annotation was created by splitByStack.
+			int index = annotationBase[image] + plane;
+			meta.setDoubleAnnotationValue(val, index);
+			return index;
+		}
+
 		String key = String.format("%d/%d/%d: %s", image, plane, n, name);
 
 		meta.setDoubleAnnotationID(key, doubleAnnotations);
@@ -160,22 +247,24 @@ public class OMETIFFHandler implements AcqOutputHandler {
 		int timePoint = imageCounter / stacks;
 		int plane = timePoint*acqRows[image].getDepth() + sliceCounter;
 
-		meta.setPlanePositionX(X, image, plane);
-		meta.setPlanePositionY(Y, image, plane);
-		meta.setPlanePositionZ(Z, image, plane);
-		meta.setPlaneTheZ(new NonNegativeInteger(sliceCounter), image, plane);
-		meta.setPlaneTheT(new NonNegativeInteger(timePoint), image, plane);
-		meta.setPlaneDeltaT(deltaT, image, plane);
-
-		storeDouble(image, plane, 0, "Theta", theta);
-
-		try {
-			writer.saveBytes(plane, data);
-		} catch(java.io.IOException ioe) {
-			finalizeStack(0);
-			if(writer != null)
-				writer.close();
-			throw new Exception("Error writing OME-TIFF.", ioe);
+		synchronized(meta) {
+			meta.setPlanePositionX(X, image, plane);
+			meta.setPlanePositionY(Y, image, plane);
+			meta.setPlanePositionZ(Z, image, plane);
+			meta.setPlaneTheZ(new NonNegativeInteger(sliceCounter), image, plane);
+			meta.setPlaneTheT(new NonNegativeInteger(timePoint), image, plane);
+			meta.setPlaneDeltaT(deltaT, image, plane);
+
+			storeDouble(image, plane, 0, "Theta", theta);
+
+			try {
+				writer.saveBytes(plane, data);
+			} catch(java.io.IOException ioe) {
+				finalizeStack(0);
+				if(writer != null)
+					writer.close();
+				throw new Exception("Error writing OME-TIFF.", ioe);
+			}
 		}
 
 		++sliceCounter;
@@ -188,10 +277,13 @@ public class OMETIFFHandler implements AcqOutputHandler {
 
 	@Override
 	public void finalizeAcquisition() throws Exception {
-		if(writer != null)
-			writer.close();
+		if(writer != null) {
+			synchronized(meta) {
+				writer.close();
+			}
+		}
 
-		imageCounter = 0;
+		imageCounter = firstStack - stackStride;
 
 		writer = null;
 	}
@@ -175,6 +175,14 @@ public class ProgrammaticAcquisitor {
 
 	public interface AcqProgressCallback {
 		public abstract void reportProgress(int tp, int row, double overall);
+
+		/**
+		 * Reports the state of an asynchronous output handler's buffer.
+		 *
+		 * @param fill fraction of the buffer waiting to be written
+		 * @param stalls number of times acquisition waited for the writers
+		 */
+		public abstract void reportBufferStatus(double fill, long stalls);
 	}
 
 	/**
@@ -233,7 +241,9 @@ public class ProgrammaticAcquisitor {
 								};
 
 								TaggedImage ti = core.popNextTaggedImage();
-								handleSlice(core, mgr, metaDevs, acqBegan, ti, handler);
+								// Stages may be moving, so positions are queried for each image.
+								handleSlice(core, mgr, metaDevs, acqBegan, ti, handler,
+										new PositionSnapshot(core, mgr, metaDevs), null);
 
 								if(params.isUpdateLive())
 									updateLiveImage(frame, ti);
@@ -281,11 +291,19 @@ public class ProgrammaticAcquisitor {
 
 				runDevicesAtRow(core, mgr, row, step);
 
+				// Devices only move along Z within a row, so everything else
+				// is read once here instead of for every slice.
+				final PositionSnapshot rowPositions = params.isContinuous() ? null :
+					new PositionSnapshot(core, mgr, metaDevs);
+
 				if(params.isIllumFullStack())
 					core.setShutterOpen(true);
 
 				handler.beginStack(0);
 
+				final long stackBegan = System.nanoTime();
+				int stackSlices = 0;
+
 				if(row.getZStartPosition() == row.getZEndPosition()) {
 					core.waitForImageSynchro();
 					Thread.sleep(params.getSettleDelay());
@@ -294,16 +312,22 @@ public class ProgrammaticAcquisitor {
 						core.snapImage();
 
 						TaggedImage ti = core.getTaggedImage();
-						handleSlice(core, mgr, metaDevs, acqBegan, ti, handler);
+						ImageProcessor ip = handleSlice(core, mgr, metaDevs, acqBegan, ti, handler,
+								rowPositions, null);
 						if(ad != null)
-							tallyAntiDriftSlice(core, mgr, row, ad, ti);
+							ad.tallySlice(new Vector3D(0,0,rowPositions.z-row.getZStartPosition()), ip);
 						if(params.isUpdateLive())
 							updateLiveImage(frame, ti);
+						++stackSlices;
 					};
 				} else if (!row.getZContinuous()) {
-					double start = core.getPosition(mgr.getLabel(SPIMDevice.STAGE_Z));
+					double start = rowPositions != null ? rowPositions.z :
+						core.getPosition(mgr.getLabel(SPIMDevice.STAGE_Z));
 					double end = start + row.getZEndPosition() - row.getZStartPosition();
-					for(double zStart = start; zStart <= end; zStart += row.getZStepSize()) {
+					// Z is computed from the step index rather than accumulated, and
+					// used as the slice's position instead of asking the stage.
+					for(int zStep = 0; start + zStep * row.getZStepSize() <= end; ++zStep) {
+						double zStart = start + zStep * row.getZStepSize();
 						core.setPosition(mgr.getLabel(SPIMDevice.STAGE_Z), zStart);
 						core.waitForImageSynchro();
 
@@ -316,11 +340,13 @@ public class ProgrammaticAcquisitor {
 						if(!params.isContinuous()) {
 							core.snapImage();
 							TaggedImage ti = core.getTaggedImage();
-							handleSlice(core, mgr, metaDevs, acqBegan, ti, handler);
+							ImageProcessor ip = handleSlice(core, mgr, metaDevs, acqBegan, ti, handler,
+									rowPositions, zStart);
 							if(ad != null)
-								tallyAntiDriftSlice(core, mgr, row, ad, ti);
+								ad.tallySlice(new Vector3D(0,0,zStart-row.getZStartPosition()), ip);
 							if(params.isUpdateLive())
 								updateLiveImage(frame, ti);
+							++stackSlices;
 						}
 
 						double stackProg = Math.max(Math.min((zStart - start)/(end - start),1),0);
@@ -347,6 +373,9 @@ public class ProgrammaticAcquisitor {
 
 				handler.finalizeStack(0);
 
+				if(stackSlices > 1)
+					logStackTiming(core, tp, rown, stackSlices, System.nanoTime() - stackBegan);
+
 				if(params.isIllumFullStack())
 					core.setShutterOpen(false);
 
@@ -367,9 +396,16 @@ public class ProgrammaticAcquisitor {
 				final Double progress = (double) (params.getRows().length * timeSeq + step + 1)
 						/ (params.getRows().length * params.getTimeSeqCount());
 
+				final AsyncOutputWrapper async = handler instanceof AsyncOutputWrapper ?
+						(AsyncOutputWrapper) handler : null;
+				final double fill = async != null ? async.getFillLevel() : 0;
+				final long stalls = async != null ? async.getStallCount() : 0;
+
 				SwingUtilities.invokeLater(new Runnable() {
 					@Override
 					public void run() {
+						if(async != null)
+							params.getProgressListener().reportBufferStatus(fill, stalls);
 						params.getProgressListener().reportProgress(tp, rown, progress);
 					}
 				});
@@ -410,38 +446,83 @@ public class ProgrammaticAcquisitor {
 		return handler.getImagePlus();
 	}
 
-	private static void tallyAntiDriftSlice(CMMCore core, DeviceManager mgr, AcqRow row, AntiDrift ad, TaggedImage img) throws Exception {
-		ImageProcessor ip = ImageUtils.makeProcessor(img);
+	/**
+	 * Logs how fast a stack was acquired, compared to the rate the camera's
+	 * exposure time alone would allow.
+	 */
+	private static void logStackTiming(CMMCore core, int tp, int row, int slices, long nanos) {
+		double actualFps = slices / (nanos / 1e9);
+		double theoreticalFps;
+		try {
+			theoreticalFps = 1000.0 / core.getExposure();
+		} catch (Exception e) {
+			theoreticalFps = Double.NaN;
+		}
+		core.logMessage(String.format("TP %d view %d: %d slices in %.3f s, %.2f fps (exposure allows %.2f fps)",
+				tp, row, slices, nanos / 1e9, actualFps, theoreticalFps));
+	}
 
-		ad.tallySlice(new Vector3D(0,0,core.getPosition(mgr.getLabel(SPIMDevice.STAGE_Z))-row.getZStartPosition()), ip);
+	/**
+	 * Positions of the stages and metadata devices, read once so that slices
+	 * taken without moving anything but Z don't each query every device.
+	 */
+	private static class PositionSnapshot {
+		final double x, y, z, theta;
+		final Object[] metaValues;
+
+		PositionSnapshot(CMMCore core, DeviceManager mgr, SPIMDevice[] metaDevs) throws Exception {
+			x = core.getXPosition(mgr.getLabel(SPIMDevice.STAGE_XY));
+			y = core.getYPosition(mgr.getLabel(SPIMDevice.STAGE_XY));
+			z = core.getPosition(mgr.getLabel(SPIMDevice.STAGE_Z));
+			theta = core.getPosition(mgr.getLabel(SPIMDevice.STAGE_THETA));
+
+			metaValues = new Object[metaDevs.length];
+			for(int i = 0; i < metaDevs.length; ++i) {
+				SPIMDevice dev = metaDevs[i];
+				try {
+					if(DeviceType.StageDevice.equals(dev.getMMType())) {
+						metaValues[i] = core.getPosition(mgr.getLabel(dev));
+					} else if(DeviceType.XYStageDevice.equals(dev.getMMType())) {
+						metaValues[i] = core.getXPosition(mgr.getLabel(dev)) + "x" + core.getYPosition(mgr.getLabel(dev));
+					} else {
+						metaValues[i] = "<unknown device type>";
+					}
+				} catch(Throwable t) {
+					metaValues[i] = "<<<Exception: " + t.getMessage() + ">>>";
+				}
+			}
+		}
 	}
 
-	private static void handleSlice(CMMCore core, DeviceManager mgr,
+	/**
+	 * Tags the slice with its time and device positions and passes it to the
+	 * output handler.
+	 *
+	 * @param z
+	 *            Z position of the slice, or null to use the snapshot's.
+	 * @return The processor wrapping the slice's pixels, for further use
+	 *         (e.g. anti-drift) without wrapping them again.
+	 */
+	private static ImageProcessor handleSlice(CMMCore core, DeviceManager mgr,
 			SPIMDevice[] metaDevs, double start, TaggedImage slice,
-			AcqOutputHandler handler) throws Exception {
+			AcqOutputHandler handler, PositionSnapshot positions, Double z) throws Exception {
+
+		double sliceZ = z != null ? z : positions.z;
 
 		slice.tags.put("t", System.nanoTime() / 1e9 - start);
 
-		for(SPIMDevice dev : metaDevs) {
-			try {
-				if(DeviceType.StageDevice.equals(dev.getMMType())) {
-					slice.tags.put(dev.getText(), core.getPosition(mgr.getLabel(dev)));
-				} else if(DeviceType.XYStageDevice.equals(dev.getMMType())) {
-					slice.tags.put(dev.getText(), core.getXPosition(mgr.getLabel(dev)) + "x" + core.getYPosition(mgr.getLabel(dev)));
-				} else {
-					slice.tags.put(dev.getText(), "<unknown device type>");
-				}
-			} catch(Throwable t) {
-				slice.tags.put(dev.getText(), "<<<Exception: " + t.getMessage() + ">>>");
-			}
+		for(int i = 0; i < metaDevs.length; ++i) {
+			if(metaDevs[i] == SPIMDevice.STAGE_Z)
+				slice.tags.put(metaDevs[i].getText(), sliceZ);
+			else
+				slice.tags.put(metaDevs[i].getText(), positions.metaValues[i]);
 		}
 
 		ImageProcessor ip = ImageUtils.makeProcessor(slice);
 
-		handler.processSlice(ip, core.getXPosition(mgr.getLabel(SPIMDevice.STAGE_XY)),
-				core.getYPosition(mgr.getLabel(SPIMDevice.STAGE_XY)),
-				core.getPosition(mgr.getLabel(SPIMDevice.STAGE_Z)),
-				core.getPosition(mgr.getLabel(SPIMDevice.STAGE_THETA)),
+		handler.processSlice(ip, positions.x, positions.y, sliceZ, positions.theta,
 				System.nanoTime() / 1e9 - start);
+
+		return ip;
 	}
 };
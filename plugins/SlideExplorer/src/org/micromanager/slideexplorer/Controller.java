@@ -59,6 +59,30 @@ public class Controller {
         return trimImage(img, mapPosition, measuredMapPosition);
     }
 
+    /**
+     * Get a tile at mapPosition, to which the stage must already have been
+     * sent. As soon as the exposure is over the stage is sent on to
+     * nextMapPosition (unless that is null), so that it moves while the
+     * image is read out, trimmed and cached. The stage is sent on even if
+     * the image could not be taken, in which case null is returned.
+     */
+    public synchronized ImageProcessor grabImageAndMoveOn(Point mapPosition, Point nextMapPosition) {
+        hardware_.waitForStage();
+        boolean snapped = hardware_.snapImage();
+        Point measuredMapPosition = stageToMap(hardware_.getXYStagePosition());
+        if (nextMapPosition != null) {
+            hardware_.stageStart(mapToStage(nextMapPosition));
+        }
+        if (!snapped) {
+            return null;
+        }
+        ImageProcessor img = hardware_.getSnappedImage();
+        if (img == null) {
+            return null;
+        }
+        return trimImage(img, mapPosition, measuredMapPosition);
+    }
+
     /** Trim the image to correct for sloppiness in stage position. **/
     private ImageProcessor trimImage(ImageProcessor img, Point mapPosition,
             Point measuredMapPosition) {
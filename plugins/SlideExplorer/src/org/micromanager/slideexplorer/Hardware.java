@@ -22,8 +22,25 @@ public class Hardware {
 
     // Camera commands -----------------------
     ImageProcessor acquireImage() {
+        if (!snapImage()) {
+            return null;
+        }
+        return getSnappedImage();
+    }
+
+    /* Expose the camera. Returns once the exposure is over. */
+    boolean snapImage() {
         try {
             core_.snapImage();
+            return true;
+        } catch (Exception e) {
+            ReportingUtils.logError(e);
+            return false;
+        }
+    }
+
+    ImageProcessor getSnappedImage() {
+        try {
             Object img = core_.getImage();
             return ImageUtils.makeProcessor(core_, img);
         } catch (Exception e) {
@@ -100,6 +117,24 @@ public class Hardware {
         }
     }
 
+    /* Send the stage to stagePos without waiting for it to get there. */
+    void stageStart(Point2D.Double stagePos) {
+        try {
+            while (core_.deviceBusy(stage_));
+        } catch (Exception e) {
+            ReportingUtils.logError(e);
+        }
+        setXYStagePosition(stagePos.x, stagePos.y);
+    }
+
+    void waitForStage() {
+        try {
+            core_.waitForDevice(stage_);
+        } catch (Exception e) {
+            ReportingUtils.logError(e);
+        }
+    }
+
     public int getImageType() {
         return ImageUtils.BppToImageType(core_.getBytesPerPixel());
     }
@@ -8,7 +8,17 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.prefs.Preferences;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -43,6 +53,7 @@ public class Hub {
    private ConfigurationDialog configDialog_;
    private static String angleKey = "angle";
    private static String pixelSizeKey = "pixelSize";
+   private static String pipelinedSurveyKey = "pipelinedSurvey";
    private double angle_;
    private double pixelSize_;
    private final Preferences prefs_;
@@ -53,6 +64,9 @@ public class Hub {
    private String currentPixelSizeConfig_ = "None";
    private Hashtable<String, OffsetsRow> offsetsData_ = new Hashtable<String, OffsetsRow>();
    private double autofocusOffset_ = 0;
+   private boolean pipelinedSurvey_;
+   // Incremented whenever the view changes, so that surveys know to replan.
+   private final AtomicInteger viewVersion_ = new AtomicInteger();
 //   private AcqControlDlgMosaic mosaicDlg_ = null;
 
    /*
@@ -64,6 +78,7 @@ public class Hub {
       core_ = app_.getMMCore();
       prefs_ = Preferences.systemNodeForPackage(this.getClass());
       angle_ = prefs_.getDouble(angleKey, 0.0);
+      pipelinedSurvey_ = prefs_.getBoolean(pipelinedSurveyKey, true);
       //pixelSize_ = prefs_.getDouble(pixelSizeKey, core.getPixelSizeUm());
       pixelSize_ = core_.getPixelSizeUm();
 
@@ -185,6 +200,7 @@ public class Hub {
          } catch (InterruptedException e) {
             ReportingUtils.showError(e);
          }
+         ReportingUtils.logMessage(cache_.getStatistics());
          cache_.clear();
          running_ = false;
       }
@@ -205,6 +221,7 @@ public class Hub {
    public void resize(Dimension newViewDimensionsOnScreen) {
       coords_.setViewDimensionsOnScreen(newViewDimensionsOnScreen);
       coords_.setViewDimensionsOffScreen(new Dimension(3 * newViewDimensionsOnScreen.width, 3 * newViewDimensionsOnScreen.height));
+      viewVersion_.incrementAndGet();
    }
 
 
@@ -261,6 +278,7 @@ public class Hub {
    }
 
    public void updateView() {
+      viewVersion_.incrementAndGet();
       SwingUtilities.invokeLater(new GUIUpdater(null));
    }
 
@@ -328,6 +346,20 @@ public class Hub {
       return modeMgr_.getMode();
    }
 
+   /*
+    * In a pipelined survey the missing tiles are acquired along a serpentine
+    * path, and the stage moves on while the last tile is being cached.
+    * Otherwise tiles are acquired one by one, nearest to the stage first.
+    */
+   public void setPipelinedSurvey(boolean pipelined) {
+      pipelinedSurvey_ = pipelined;
+      prefs_.putBoolean(pipelinedSurveyKey, pipelined);
+   }
+
+   public boolean isPipelinedSurvey() {
+      return pipelinedSurvey_;
+   }
+
    void acquireMosaics() {
       roiManager_.updateMappings();
       try {
@@ -618,15 +650,40 @@ public class Hub {
    class TileGrabberThread extends Thread {
 
       double tol_;
+      // Missing tiles of the current view, in the order they will be acquired.
+      private final LinkedList<Point> plannedTiles_ = new LinkedList<Point>();
+      private int plannedViewVersion_ = -1;
+      // Tiles that failed since the last plan. Each is retried once at the
+      // end of the plan, and again whenever the view changes.
+      private final Set<Point> failedTiles_ = new HashSet<Point>();
+      // Tiles chosen for acquisition that are not in the cache yet.
+      private final Set<Point> inFlightTiles_ = Collections.synchronizedSet(new HashSet<Point>());
+      private ExecutorService cacheWorker_;
+      private final Comparator<Point> byX_ = new Comparator<Point>() {
+         public int compare(Point a, Point b) {
+            return a.x < b.x ? -1 : (a.x == b.x ? 0 : 1);
+         }
+      };
 
       public TileGrabberThread() {
          setName("SlideExplorer hardware thread");
       }
 
       public void run() {
+         cacheWorker_ = Executors.newSingleThreadExecutor();
          while (stopTileGrabberThread_ == false) {
 
             if (modeMgr_.getMode() == ModeManager.SURVEY) {
+               if (pipelinedSurvey_) {
+                  if (!surveyPipelined()) {
+                     try {
+                        sleep(20);
+                     } catch (InterruptedException e) {
+                        ReportingUtils.logError(e, "tileGrabberThread sleep resulted in an exception.");
+                     }
+                  }
+                  continue;
+               }
                ArrayList<Point> missingTiles = findMissingTiles();
                if (missingTiles.size() > 0) {
                   try {
@@ -652,18 +709,174 @@ public class Hub {
                }
             }
          }
+         // Let the cache catch up before Hub.stop clears it.
+         cacheWorker_.shutdown();
+         try {
+            cacheWorker_.awaitTermination(10, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            ReportingUtils.logError(e);
+         }
       }
 
       public ArrayList<Point> findMissingTiles() {
          ArrayList<Point> tiles = coords_.getTilesOnScreen();
          for (int i = tiles.size() - 1; i >= 0; i--) {
-            if (cache_.hasImage(tiles.get(i))) {
+            if (cache_.hasImage(tiles.get(i)) || inFlightTiles_.contains(tiles.get(i))) {
                tiles.remove(i);
             }
          }
          return tiles;
       }
 
+      /*
+       * Acquires the planned tiles until none are left or the survey stops.
+       * While the stage moves to the next tile, the previous one is added to
+       * the cache and drawn by cacheWorker_.
+       * Returns false if there was nothing to acquire.
+       */
+      private boolean surveyPipelined() {
+         updatePlan();
+         if (plannedTiles_.isEmpty()) {
+            return false;
+         }
+         if (app_.getLiveMode()) {
+            app_.enableLiveMode(false);
+         }
+         long startTime = System.nanoTime();
+         int nrTiles = 0;
+         Point tile = takePlannedTile();
+         controller_.goToMapPosition(coords_.tileToMap(tile));
+         while (tile != null) {
+            if (stopTileGrabberThread_ || modeMgr_.getMode() != ModeManager.SURVEY) {
+               inFlightTiles_.remove(tile);
+               break;
+            }
+            updatePlan();
+            Point nextTile = takePlannedTile();
+            final Point tileIndex = tile;
+            ImageProcessor grabbed = null;
+            try {
+               grabbed = controller_.grabImageAndMoveOn(coords_.tileToMap(tile),
+                       nextTile == null ? null : coords_.tileToMap(nextTile));
+            } catch (Throwable e) {
+               ReportingUtils.logError(e);
+               // The stage may not have been sent on.
+               if (nextTile != null) {
+                  controller_.goToMapPosition(coords_.tileToMap(nextTile));
+               }
+            }
+            if (grabbed == null) {
+               inFlightTiles_.remove(tileIndex);
+               if (failedTiles_.add(tileIndex)) {
+                  plannedTiles_.addLast(tileIndex);
+               }
+               if (nextTile == null) {
+                  nextTile = takePlannedTile();
+                  if (nextTile != null) {
+                     controller_.goToMapPosition(coords_.tileToMap(nextTile));
+                  }
+               }
+            } else {
+               final ImageProcessor img = grabbed;
+               try {
+                  cacheWorker_.execute(new Runnable() {
+                     public void run() {
+                        try {
+                           cache_.addImage(tileIndex, img);
+                           SwingUtilities.invokeLater(new GUIUpdater(tileIndex));
+                        } catch (Throwable e) {
+                           ReportingUtils.logError(e);
+                        } finally {
+                           inFlightTiles_.remove(tileIndex);
+                        }
+                     }
+                  });
+                  nrTiles++;
+               } catch (Throwable e) {
+                  inFlightTiles_.remove(tileIndex);
+                  ReportingUtils.logError(e);
+               }
+            }
+            tile = nextTile;
+         }
+         double seconds = (System.nanoTime() - startTime) / 1e9;
+         ReportingUtils.logMessage(String.format(
+                 "SlideExplorer: surveyed %d tiles in %.1f s (%.2f tiles/s)",
+                 nrTiles, seconds, nrTiles / seconds));
+         return true;
+      }
+
+      /*
+       * Removes the next tile from the plan and marks it as in flight,
+       * or returns null if the plan is empty.
+       */
+      private Point takePlannedTile() {
+         if (plannedTiles_.isEmpty()) {
+            return null;
+         }
+         Point tile = plannedTiles_.removeFirst();
+         inFlightTiles_.add(tile);
+         return tile;
+      }
+
+      /*
+       * Plans the tiles missing from the view, but only when the view
+       * changed since the last plan. Otherwise the plan already holds
+       * exactly the tiles that are still missing.
+       */
+      private void updatePlan() {
+         int viewVersion = viewVersion_.get();
+         if (viewVersion == plannedViewVersion_) {
+            return;
+         }
+         plannedViewVersion_ = viewVersion;
+         plannedTiles_.clear();
+         failedTiles_.clear();
+         plannedTiles_.addAll(planSerpentinePath(findMissingTiles(),
+                 coords_.getNearestTileFromMapPosition(controller_.getCurrentMapPosition())));
+      }
+
+      /*
+       * Orders tiles row by row, alternating direction, starting at the
+       * corner nearest to startTile.
+       */
+      protected ArrayList<Point> planSerpentinePath(ArrayList<Point> tiles, Point startTile) {
+         TreeMap<Integer, ArrayList<Point>> rows = new TreeMap<Integer, ArrayList<Point>>();
+         for (Point tile : tiles) {
+            ArrayList<Point> row = rows.get(tile.y);
+            if (row == null) {
+               row = new ArrayList<Point>();
+               rows.put(tile.y, row);
+            }
+            row.add(tile);
+         }
+         ArrayList<Point> path = new ArrayList<Point>(tiles.size());
+         if (rows.isEmpty()) {
+            return path;
+         }
+         ArrayList<ArrayList<Point>> rowList = new ArrayList<ArrayList<Point>>(rows.values());
+         if (Math.abs(rows.lastKey() - startTile.y) < Math.abs(rows.firstKey() - startTile.y)) {
+            Collections.reverse(rowList);
+         }
+         ArrayList<Point> firstRow = rowList.get(0);
+         int minX = Integer.MAX_VALUE;
+         int maxX = Integer.MIN_VALUE;
+         for (Point tile : firstRow) {
+            minX = Math.min(minX, tile.x);
+            maxX = Math.max(maxX, tile.x);
+         }
+         boolean leftToRight = Math.abs(startTile.x - minX) <= Math.abs(startTile.x - maxX);
+         for (ArrayList<Point> row : rowList) {
+            Collections.sort(row, byX_);
+            if (!leftToRight) {
+               Collections.reverse(row);
+            }
+            path.addAll(row);
+            leftToRight = !leftToRight;
+         }
+         return path;
+      }
+
       public void navigate(Point mapPos) {
          applyNavigationSystemSettings();
          modeMgr_.setMode(ModeManager.NAVIGATE);
@@ -1,14 +1,11 @@
 package org.micromanager.slideexplorer;
 
 import java.awt.Point;
-import java.io.File;
-import java.util.Random;
+import java.io.IOException;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
 public class MultiTile {
 
@@ -16,11 +13,17 @@ public class MultiTile {
     int type_;
     int width_;
     int height_;
-    String fileName_ = null;
-    boolean cached_ = false;
-    String tmpDirectory_ = "/tmp";
-
-    MultiTile(int type, int width, int height) {
+    // Slot in the cache's spill store, -1 if the tile was never spilled.
+    int slot_ = -1;
+    // True when proc_ differs from the copy in the spill store.
+    boolean dirty_ = false;
+    // Quadrants whose child tile changed since it was last copied in.
+    int staleQuadrants_ = 0;
+    volatile long lastAccess_ = 0;
+    final MultiTileCache cache_;
+
+    MultiTile(MultiTileCache cache, int type, int width, int height) {
+        cache_ = cache;
         type_ = type;
         width_ = width;
         height_ = height;
@@ -32,12 +35,15 @@ public class MultiTile {
     }
 
     public synchronized void getImageReady() {
+        lastAccess_ = cache_.tick();
         if (proc_ == null) {
-            if (cached_ == false) {
-                createCleanImage();
-            } else {
-                loadFromCache();
+            createCleanImage();
+            if (slot_ >= 0) {
+                loadFromStore();
             }
+            cache_.tileLoaded(this);
+        } else {
+            cache_.recordHit();
         }
         proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
     }
@@ -45,70 +51,126 @@ public class MultiTile {
     public synchronized void setImage(ImageProcessor proc) {
         getImageReady();
         proc_.insert(proc, 0, 0);
+        dirty_ = true;
     }
 
     private void createCleanImage() {
         proc_ = ImageUtils.makeProcessor(type_, width_, height_);
     }
 
+    /*
+     * Replaces one quadrant of this tile with inProc shrunk by half. 8 and 16
+     * bit tiles of the same size are averaged over 2x2 blocks straight into
+     * the quadrant; other images are resized.
+     */
     public synchronized void insertQuadrantImage(Point quad, ImageProcessor inProc) {
-        // TODO: rewrite this as a fast algorithm. Should require only a single copy.
         getImageReady();
-        inProc.setInterpolationMethod(ImageProcessor.BILINEAR);
-        ImageProcessor inProcSmall = inProc.resize(width_ / 2, height_ / 2);
-        proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
-        cached_ = false;
+        int offset = quad.y * (height_ / 2) * width_ + quad.x * (width_ / 2);
+        Object src = inProc.getPixels();
+        Object dst = proc_.getPixels();
+        boolean sameSize = inProc.getWidth() == width_ && inProc.getHeight() == height_;
+        if (sameSize && src instanceof short[] && dst instanceof short[]) {
+            downsample((short[]) src, (short[]) dst, offset);
+        } else if (sameSize && src instanceof byte[] && dst instanceof byte[]) {
+            downsample((byte[]) src, (byte[]) dst, offset);
+        } else {
+            inProc.setInterpolationMethod(ImageProcessor.BILINEAR);
+            ImageProcessor inProcSmall = inProc.resize(width_ / 2, height_ / 2);
+            proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
+        }
+        dirty_ = true;
     }
 
-    public synchronized void dropFromMemory() {
-        if (!cached_) {
-            cacheOnDisk();
+    private void downsample(short[] src, short[] dst, int offset) {
+        int halfWidth = width_ / 2;
+        int halfHeight = height_ / 2;
+        for (int y = 0; y < halfHeight; y++) {
+            int s0 = 2 * y * width_;
+            int s1 = s0 + width_;
+            int d = offset + y * width_;
+            for (int x = 0; x < halfWidth; x++, s0 += 2, s1 += 2, d++) {
+                int sum = (src[s0] & 0xffff) + (src[s0 + 1] & 0xffff)
+                        + (src[s1] & 0xffff) + (src[s1 + 1] & 0xffff);
+                dst[d] = (short) ((sum + 2) >> 2);
+            }
         }
-
-        proc_ = null;
     }
 
-    private void cacheOnDisk() {
-        if (proc_ != null) {
-            ImagePlus imgp = new ImagePlus("", proc_);
-            FileSaver fs = new FileSaver(imgp);
-            if (fileName_ == null) {
-                fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
+    private void downsample(byte[] src, byte[] dst, int offset) {
+        int halfWidth = width_ / 2;
+        int halfHeight = height_ / 2;
+        for (int y = 0; y < halfHeight; y++) {
+            int s0 = 2 * y * width_;
+            int s1 = s0 + width_;
+            int d = offset + y * width_;
+            for (int x = 0; x < halfWidth; x++, s0 += 2, s1 += 2, d++) {
+                int sum = (src[s0] & 0xff) + (src[s0 + 1] & 0xff)
+                        + (src[s1] & 0xff) + (src[s1 + 1] & 0xff);
+                dst[d] = (byte) ((sum + 2) >> 2);
             }
-            fs.saveAsTiff(fileName_);
-            cached_ = true;
         }
     }
 
-    private void loadFromCache() {
-        ImagePlus imgp = IJ.openImage(fileName_);
-        if (imgp != null) {
-            proc_ = imgp.getProcessor();
-        } else { // Somehow the image got lost.
-            proc_ = null;
-            cached_ = false;
-            getImageReady();
-        }
+    /*
+     * Records that the child tile in quadrant quad changed.
+     * Returns false if it was already waiting to be copied.
+     */
+    synchronized boolean markStale(Point quad) {
+        int bit = 1 << (quad.y * 2 + quad.x);
+        boolean wasStale = (staleQuadrants_ & bit) != 0;
+        staleQuadrants_ |= bit;
+        return !wasStale;
     }
 
-    public String toString() {
-        return "Tile";
+    /*
+     * Returns the quadrants marked stale, as bits (y * 2 + x), and clears them.
+     */
+    synchronized int takeStaleQuadrants() {
+        int stale = staleQuadrants_;
+        staleQuadrants_ = 0;
+        return stale;
     }
-    private static Random rand = null;
 
-    public static long randLong() {
-        if (rand == null) {
-            rand = new Random();
+    /*
+     * Writes the pixels to the spill store if they changed since they were
+     * last stored, and releases them. The tile stays in memory if the pixels
+     * can not be stored.
+     */
+    public synchronized void dropFromMemory() {
+        if (proc_ == null) {
+            return;
+        }
+        if (dirty_) {
+            TileSpillStore store = cache_.getSpillStore();
+            if (store == null) {
+                return;
+            }
+            if (slot_ < 0) {
+                try {
+                    slot_ = store.allocate();
+                } catch (IOException e) {
+                    ReportingUtils.logError(e, "SlideExplorer: failed to grow the tile spill file.");
+                    return;
+                }
+            }
+            store.write(slot_, proc_.getPixels());
+            dirty_ = false;
         }
-        return rand.nextLong();
+        proc_ = null;
+        cache_.tileDropped(this);
     }
 
-    public void wipeFromDisk() {
-        if (fileName_ != null) {
-            File file = new File(fileName_);
-            if (file.exists()) {
-                file.delete();
-            }
+    private void loadFromStore() {
+        TileSpillStore store = cache_.getSpillStore();
+        if (store != null) {
+            store.read(slot_, proc_.getPixels());
+            cache_.recordMiss();
+        } else { // Somehow the image got lost.
+            slot_ = -1;
         }
     }
+
+    public String toString() {
+        return "Tile";
+    }
 }
@@ -1,120 +1,325 @@
 package org.micromanager.slideexplorer;
 
+import ij.ImagePlus;
 import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
-import java.util.Hashtable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.micromanager.utils.ImageUtils;
+import org.micromanager.utils.ReportingUtils;
 
+/*
+ * Holds the MultiTiles of all zoom levels. Tiles are kept in memory up to a
+ * byte budget; beyond it the least recently used tiles, at any zoom level,
+ * are spilled to a TileSpillStore.
+ *
+ * Lookups only use concurrent maps and the monitor of the tile involved, so
+ * readers never wait on each other unless they use the same tile.
+ */
 public class MultiTileCache {
-	
+
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
-	private int type_ = -1;
-	
-	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
-	
+	private volatile int type_ = -1;
+	private volatile int tileBytes_ = 0;
+	private final long memoryBudget_;
+
+	protected ConcurrentHashMap<Point3D,MultiTile> allTiles_ = new ConcurrentHashMap<Point3D,MultiTile>();
+	private final ConcurrentHashMap<MultiTile,Boolean> residentTiles_ = new ConcurrentHashMap<MultiTile,Boolean>();
+	private final AtomicLong residentBytes_ = new AtomicLong();
+	private final AtomicLong clock_ = new AtomicLong();
+	private final AtomicLong hits_ = new AtomicLong();
+	private final AtomicLong misses_ = new AtomicLong();
+	private final ReentrantLock evictionLock_ = new ReentrantLock();
+	private final Object storeLock_ = new Object();
+	private volatile TileSpillStore store_ = null;
+
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
+		this(zoomLevels, tileDimensions, Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	/*
+	 * memoryBudget is the number of bytes of pixels kept in memory.
+	 */
+	public MultiTileCache(int zoomLevels, Dimension tileDimensions, long memoryBudget) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
-
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
+		memoryBudget_ = memoryBudget;
 	}
-	
+
 	public void addImage(Point idx, ImageProcessor proc) {
 		if (type_ == -1) {
-			type_ = ImageUtils.getImageProcessorType(proc);
+			setType(ImageUtils.getImageProcessorType(proc));
 		}
-		
+
 		MultiTile tile = getTile(idx);
 		tile.setImage(proc);
-		propagateTile(idx, tile);
+		propagateTile(idx);
+		evictIfNeeded();
 	}
-	
+
 	public ImageProcessor getImage(Point3D multiTileIndex) {
-		return getMultiTile(multiTileIndex).getImage();
+		MultiTile tile = getMultiTile(multiTileIndex);
+		refreshTile(multiTileIndex, tile);
+		ImageProcessor proc = tile.getImage();
+		evictIfNeeded();
+		return proc;
 	}
-	
+
 	public boolean hasImage(Point p) {
 		return allTiles_.containsKey(new Point3D(p,0));
 	}
-	
+
 	public boolean hasImage(Point3D p) {
 		return allTiles_.containsKey(p);
 	}
-		
-	protected void propagateTile(Point idx, MultiTile multiTile) {
-		propagateTile(new Point3D(idx, 0), multiTile);
+
+	protected void propagateTile(Point idx) {
+		propagateTile(new Point3D(idx, 0));
 	}
-	
-	protected void propagateTile(Point3D idx, MultiTile multiTile) {
-		if (idx.k>minZoomLevel_) {
+
+	/*
+	 * Marks the quadrant of idx stale in all its ancestors. Their pixels are
+	 * only brought up to date when they are asked for, so a tile that is
+	 * never viewed costs nothing, and a tile is updated once for all the
+	 * changes made to its descendants in between. Marking stops at the first
+	 * ancestor that was already stale, as the ones above it are too.
+	 */
+	protected void propagateTile(Point3D idx) {
+		while (idx.k>minZoomLevel_) {
 			Point3D pidx = getParentIndex(idx);
-			Point pquad = getParentQuadrant(idx);
-			MultiTile parentTile = getMultiTile(pidx);
-			
-			ImageProcessor proc = multiTile.getImage();
-			parentTile.insertQuadrantImage(pquad, proc);
-			propagateTile(pidx, parentTile);
+			if (!getMultiTile(pidx).markStale(getParentQuadrant(idx))) {
+				return;
+			}
+			idx = pidx;
+		}
+	}
+
+	/*
+	 * Copies the stale quadrants of a tile in from its children, refreshing
+	 * those first. Evicts as it goes, as refreshing a tile at a low zoom level
+	 * can touch many more tiles than fit in memory.
+	 */
+	protected void refreshTile(Point3D idx, MultiTile tile) {
+		int stale = tile.takeStaleQuadrants();
+		for (int q = 0; q < 4; q++) {
+			if ((stale & (1 << q)) != 0) {
+				Point quad = new Point(q & 1, q >> 1);
+				Point3D cidx = new Point3D(2*idx.i + quad.x, 2*idx.j + quad.y, idx.k+1);
+				MultiTile childTile = allTiles_.get(cidx);
+				if (childTile != null) {
+					refreshTile(cidx, childTile);
+					tile.insertQuadrantImage(quad, childTile.getImage());
+					evictIfNeeded();
+				}
+			}
 		}
 	}
-		
+
 	protected MultiTile getMultiTile(int i, int j, int z) {
 		return getMultiTile(new Point3D(i,j,z));
 	}
-	
+
 	protected MultiTile getTile(Point idx) {
 		return getMultiTile(new Point3D(idx.x, idx.y, 0));
 	}
-	
-	protected synchronized MultiTile getMultiTile(Point3D idx) {
 
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
+	protected MultiTile getMultiTile(Point3D idx) {
+		MultiTile tile = allTiles_.get(idx);
+		if (tile == null) {
+			MultiTile newTile = new MultiTile(this, type_, width_, height_);
+			tile = allTiles_.putIfAbsent(idx, newTile);
+			if (tile == null) {
+				tile = newTile;
 			}
 		}
-
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
-			allTiles_.put(idx, tile);
-			return tile;
-		} else {
-			return allTiles_.get(idx);
-		}
+		return tile;
 	}
-		
+
 	protected Point3D getParentIndex(Point3D idx) {
 		return new Point3D(idx.i>>1, idx.j>>1, idx.k-1);
 	}
-	
+
 	protected Point getParentQuadrant(Point3D idx) {
 		return new Point(idx.i & 1, idx.j & 1);
 	}
-	
+
 	protected Point3D newPoint3D(int i, int j, int k) {
 		return new Point3D(i,j,k);
 	}
 
-	public void clear() {
-		for (MultiTile multiTile:allTiles_.values()) {
-			multiTile.wipeFromDisk();
+	private void setType(int type) {
+		type_ = type;
+		int bytesPerPixel = 4;
+		if (type == ImagePlus.GRAY8) {
+			bytesPerPixel = 1;
+		} else if (type == ImagePlus.GRAY16) {
+			bytesPerPixel = 2;
+		}
+		tileBytes_ = width_ * height_ * bytesPerPixel;
+	}
+
+	// Called by the tiles, while holding their own monitor.
+
+	long tick() {
+		return clock_.incrementAndGet();
+	}
+
+	void recordHit() {
+		hits_.incrementAndGet();
+	}
+
+	void recordMiss() {
+		misses_.incrementAndGet();
+	}
+
+	void tileLoaded(MultiTile tile) {
+		if (residentTiles_.put(tile, Boolean.TRUE) == null) {
+			residentBytes_.addAndGet(tileBytes_);
 		}
-        currentTiles_.clear();
-        allTiles_.clear();
 	}
-	
-	
 
-}
\ No newline at end of file
+	void tileDropped(MultiTile tile) {
+		if (residentTiles_.remove(tile) != null) {
+			residentBytes_.addAndGet(-tileBytes_);
+		}
+	}
+
+	TileSpillStore getSpillStore() {
+		TileSpillStore store = store_;
+		if (store == null) {
+			synchronized (storeLock_) {
+				if (store_ == null) {
+					try {
+						store_ = new TileSpillStore(tileBytes_);
+					} catch (IOException e) {
+						ReportingUtils.logError(e, "SlideExplorer: failed to create the tile spill file.");
+					}
+				}
+				store = store_;
+			}
+		}
+		return store;
+	}
+
+	/*
+	 * Once the tiles in memory exceed the budget, drops the least recently
+	 * used ones until they are 10% below it, so that eviction does not run
+	 * for every new tile. Only one thread evicts at a time; the others go on.
+	 */
+	private void evictIfNeeded() {
+		if (residentBytes_.get() <= memoryBudget_ || !evictionLock_.tryLock()) {
+			return;
+		}
+		try {
+			ArrayList<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>();
+			for (MultiTile tile : residentTiles_.keySet()) {
+				candidates.add(new EvictionCandidate(tile));
+			}
+			Collections.sort(candidates);
+			long target = memoryBudget_ - memoryBudget_ / 10;
+			for (EvictionCandidate candidate : candidates) {
+				if (residentBytes_.get() <= target) {
+					break;
+				}
+				candidate.tile_.dropFromMemory();
+			}
+		} finally {
+			evictionLock_.unlock();
+		}
+	}
+
+	/*
+	 * Access time of a tile at the start of an eviction, so that the order
+	 * does not change while sorting.
+	 */
+	private static class EvictionCandidate implements Comparable<EvictionCandidate> {
+		final MultiTile tile_;
+		final long lastAccess_;
+
+		EvictionCandidate(MultiTile tile) {
+			tile_ = tile;
+			lastAccess_ = tile.lastAccess_;
+		}
+
+		public int compareTo(EvictionCandidate other) {
+			return lastAccess_ < other.lastAccess_ ? -1 : (lastAccess_ == other.lastAccess_ ? 0 : 1);
+		}
+	}
+
+	/*
+	 * Fraction of tile accesses that found the pixels in memory.
+	 * Creating a new tile counts as neither a hit nor a miss.
+	 */
+	public double getHitRate() {
+		long hits = hits_.get();
+		long total = hits + misses_.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/*
+	 * Fraction of tile accesses that had to read the pixels from the spill file.
+	 */
+	public double getMissRate() {
+		long misses = misses_.get();
+		long total = hits_.get() + misses;
+		return total == 0 ? 0 : (double) misses / total;
+	}
+
+	public long getResidentBytes() {
+		return residentBytes_.get();
+	}
+
+	/*
+	 * MB/s written to the spill file, 0 when nothing was spilled.
+	 */
+	public double getSpillWriteThroughput() {
+		TileSpillStore store = store_;
+		return store == null ? 0 : store.getWriteThroughput();
+	}
+
+	/*
+	 * MB/s read back from the spill file, 0 when nothing was read.
+	 */
+	public double getSpillReadThroughput() {
+		TileSpillStore store = store_;
+		return store == null ? 0 : store.getReadThroughput();
+	}
+
+	public String getStatistics() {
+		TileSpillStore store = store_;
+		return String.format("SlideExplorer tile cache: %d tiles, %.1f MB in memory, " +
+				"hit rate %.3f, miss rate %.3f, spilled %.1f MB at %.1f MB/s, read back %.1f MB at %.1f MB/s",
+				allTiles_.size(), residentBytes_.get() / 1048576.0, getHitRate(), getMissRate(),
+				store == null ? 0.0 : store.getBytesWritten() / 1048576.0, getSpillWriteThroughput(),
+				store == null ? 0.0 : store.getBytesRead() / 1048576.0, getSpillReadThroughput());
+	}
+
+	public void clear() {
+		evictionLock_.lock();
+		try {
+			allTiles_.clear();
+			residentTiles_.clear();
+			residentBytes_.set(0);
+			hits_.set(0);
+			misses_.set(0);
+			synchronized (storeLock_) {
+				if (store_ != null) {
+					store_.close();
+					store_ = null;
+				}
+			}
+		} finally {
+			evictionLock_.unlock();
+		}
+	}
+}
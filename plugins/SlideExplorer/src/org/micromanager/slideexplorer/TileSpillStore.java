@@ -0,0 +1,192 @@
+package org.micromanager.slideexplorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.micromanager.utils.MemoryUtils;
+import org.micromanager.utils.ReportingUtils;
+
+/*
+ * Keeps the raw pixels of tiles that were dropped from memory in a single
+ * memory-mapped file. All tiles have the same size, so a tile is stored in
+ * a slot and the slot number is the index of its offset in the file.
+ * The file is mapped in segments that are added as the store grows.
+ */
+class TileSpillStore {
+
+	private static final long SEGMENT_SIZE = 64L << 20;
+
+	private final int tileBytes_;
+	private final int tilesPerSegment_;
+	private final File file_;
+	private final RandomAccessFile raf_;
+	private final CopyOnWriteArrayList<MappedByteBuffer> segments_ =
+			new CopyOnWriteArrayList<MappedByteBuffer>();
+	private int nextSlot_ = 0;
+	// Held for reading while a segment is used, and for writing by close(),
+	// since touching a segment after it was unmapped crashes the JVM.
+	private final ReadWriteLock mapLock_ = new ReentrantReadWriteLock();
+	private boolean closed_ = false;
+
+	private final AtomicLong bytesWritten_ = new AtomicLong();
+	private final AtomicLong writeNanos_ = new AtomicLong();
+	private final AtomicLong bytesRead_ = new AtomicLong();
+	private final AtomicLong readNanos_ = new AtomicLong();
+
+	TileSpillStore(int tileBytes) throws IOException {
+		tileBytes_ = tileBytes;
+		tilesPerSegment_ = (int) Math.max(1, SEGMENT_SIZE / tileBytes);
+		file_ = File.createTempFile("SlideExplorer", ".tiles");
+		file_.deleteOnExit();
+		raf_ = new RandomAccessFile(file_, "rw");
+	}
+
+	/*
+	 * Reserves a slot for a tile, mapping a new segment of the file if needed.
+	 * Slots are never given back, as tiles are only discarded all at once
+	 * by closing the store.
+	 */
+	synchronized int allocate() throws IOException {
+		if (closed_) {
+			throw new IOException("The tile spill file is closed.");
+		}
+		int slot = nextSlot_;
+		int segment = slot / tilesPerSegment_;
+		if (segment == segments_.size()) {
+			long segmentBytes = (long) tilesPerSegment_ * tileBytes_;
+			segments_.add(raf_.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					segment * segmentBytes, segmentBytes));
+		}
+		nextSlot_++;
+		return slot;
+	}
+
+	/*
+	 * Returns a buffer covering only the given slot. Every call gets its own
+	 * buffer, so tiles can be read and written concurrently.
+	 */
+	private ByteBuffer slotBuffer(int slot) {
+		ByteBuffer buf = segments_.get(slot / tilesPerSegment_).duplicate();
+		int offset = (slot % tilesPerSegment_) * tileBytes_;
+		buf.position(offset);
+		buf.limit(offset + tileBytes_);
+		return buf.slice().order(ByteOrder.nativeOrder());
+	}
+
+	void write(int slot, Object pixels) {
+		long start = System.nanoTime();
+		mapLock_.readLock().lock();
+		try {
+			if (closed_) {
+				return;
+			}
+			ByteBuffer buf = slotBuffer(slot);
+			if (pixels instanceof byte[]) {
+				buf.put((byte[]) pixels);
+			} else if (pixels instanceof short[]) {
+				buf.asShortBuffer().put((short[]) pixels);
+			} else if (pixels instanceof int[]) {
+				buf.asIntBuffer().put((int[]) pixels);
+			} else if (pixels instanceof float[]) {
+				buf.asFloatBuffer().put((float[]) pixels);
+			} else {
+				ReportingUtils.logError("SlideExplorer: can not store pixels of type "
+						+ pixels.getClass().getName());
+				return;
+			}
+		} finally {
+			mapLock_.readLock().unlock();
+		}
+		writeNanos_.addAndGet(System.nanoTime() - start);
+		bytesWritten_.addAndGet(tileBytes_);
+	}
+
+	void read(int slot, Object pixels) {
+		long start = System.nanoTime();
+		mapLock_.readLock().lock();
+		try {
+			if (closed_) {
+				return;
+			}
+			ByteBuffer buf = slotBuffer(slot);
+			if (pixels instanceof byte[]) {
+				buf.get((byte[]) pixels);
+			} else if (pixels instanceof short[]) {
+				buf.asShortBuffer().get((short[]) pixels);
+			} else if (pixels instanceof int[]) {
+				buf.asIntBuffer().get((int[]) pixels);
+			} else if (pixels instanceof float[]) {
+				buf.asFloatBuffer().get((float[]) pixels);
+			} else {
+				ReportingUtils.logError("SlideExplorer: can not read pixels of type "
+						+ pixels.getClass().getName());
+				return;
+			}
+		} finally {
+			mapLock_.readLock().unlock();
+		}
+		readNanos_.addAndGet(System.nanoTime() - start);
+		bytesRead_.addAndGet(tileBytes_);
+	}
+
+	long getBytesWritten() {
+		return bytesWritten_.get();
+	}
+
+	long getBytesRead() {
+		return bytesRead_.get();
+	}
+
+	/*
+	 * Megabytes per second written, counting only time spent copying pixels.
+	 */
+	double getWriteThroughput() {
+		return throughput(bytesWritten_.get(), writeNanos_.get());
+	}
+
+	double getReadThroughput() {
+		return throughput(bytesRead_.get(), readNanos_.get());
+	}
+
+	private static double throughput(long bytes, long nanos) {
+		if (nanos == 0) {
+			return 0;
+		}
+		return (bytes / 1048576.0) / (nanos / 1e9);
+	}
+
+	/*
+	 * Unmaps the file right away so that it can be deleted, also on Windows.
+	 * Reads and writes after this leave the pixels untouched.
+	 */
+	synchronized void close() {
+		mapLock_.writeLock().lock();
+		try {
+			if (closed_) {
+				return;
+			}
+			closed_ = true;
+			for (MappedByteBuffer segment : segments_) {
+				MemoryUtils.unmap(segment);
+			}
+			segments_.clear();
+		} finally {
+			mapLock_.writeLock().unlock();
+		}
+		try {
+			raf_.close();
+		} catch (IOException e) {
+			ReportingUtils.logError(e);
+		}
+		file_.delete();
+	}
+}